@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Represents the puts or the takes of a committed transaction on disk
+ * as a single record, which is also the commit of the transaction.
+ * Each put is framed by an op code and its length so the pointer to an
+ * individual event, the offset of its frame in the data file, can be
+ * read without reading the rest of the batch. Written in data files of
+ * version 2 and later, the events of which are encoded as Writables
+ * framed by {@link LogFile#OP_EVENT} up to version 3, and compactly
+ * framed by {@link LogFile#OP_COMPACT_EVENT} from version 4. From
+ * version 5 an event is compressed, and framed by
+ * {@link LogFile#OP_COMPRESSED_EVENT}, when the file has a
+ * {@link CompressionCodec} and compressing the event makes it smaller.
+ * From version 6 each event ends with the CRC32 of its encoding, which
+ * is counted in its length, and is framed by
+ * {@link LogFile#OP_CHECKED_COMPACT_EVENT} or
+ * {@link LogFile#OP_CHECKED_COMPRESSED_EVENT} instead, so that reading
+ * a single event can detect its corruption.
+ *
+ * A batch is encoded directly into the {@link RecordBuffer} of the
+ * writing thread.
+ */
+class Batch extends TransactionEventRecord {
+  /**
+   * Bytes of the magic header, record type, transaction id, timestamp,
+   * batch type and count which precede the first entry
+   */
+  static final int HEADER_SIZE = 4 + 2 + 8 + 8 + 2 + 4;
+  /**
+   * Bytes of the op code and length which precede each event
+   */
+  static final int EVENT_HEADER_SIZE = 1 + 4;
+
+  /**
+   * Type of Batch Take|Put
+   */
+  private short type;
+  private int count;
+  // events of a put batch being written
+  private Collection<FlumeEvent> events;
+  // offsets of the event frames of a put batch relative to the record,
+  // that is to its magic header
+  private int[] eventOffsets;
+  // long representations of the pointers of a take batch
+  private long[] pointers;
+
+  Batch(Long transactionID) {
+    super(transactionID);
+  }
+
+  /**
+   * Create a batch of the puts of a transaction
+   */
+  static Batch newPut(long transactionID, Collection<FlumeEvent> events) {
+    Batch batch = new Batch(transactionID);
+    batch.type = Type.PUT.get();
+    batch.count = events.size();
+    batch.events = events;
+    return batch;
+  }
+
+  /**
+   * Create a batch of the takes of a transaction
+   */
+  static Batch newTake(long transactionID,
+      Collection<FlumeEventPointer> takes) {
+    Batch batch = new Batch(transactionID);
+    batch.type = Type.TAKE.get();
+    batch.count = takes.size();
+    batch.pointers = new long[batch.count];
+    int index = 0;
+    for (FlumeEventPointer pointer : takes) {
+      batch.pointers[index++] = pointer.toLong();
+    }
+    return batch;
+  }
+
+  short getType() {
+    return type;
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  /**
+   * @return offsets of the events of a put batch, relative to the
+   * magic header of the record in the data file, known once the batch
+   * has been encoded or read
+   */
+  int[] getEventOffsets() {
+    return eventOffsets;
+  }
+
+  /**
+   * @return long representations of the pointers of a take batch
+   */
+  long[] getPointers() {
+    return pointers;
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    type = in.readShort();
+    count = in.readInt();
+    if(count < 0) {
+      throw new IOException("Invalid count " + count);
+    }
+    if(type == Type.PUT.get()) {
+      eventOffsets = new int[count];
+      long offset = HEADER_SIZE;
+      for (int index = 0; index < count; index++) {
+        byte operation = in.readByte();
+        if(!LogFile.isBatchEvent(operation)) {
+          throw new IOException("Operation " + Integer.toHexString(operation)
+              + " is not an event");
+        }
+        int length = in.readInt();
+        if(length < 0) {
+          throw new IOException("Invalid event length " + length);
+        }
+        eventOffsets[index] = (int) offset;
+        skipFully(in, length);
+        offset += EVENT_HEADER_SIZE + length;
+      }
+    } else if(type == Type.TAKE.get()) {
+      pointers = new long[count];
+      for (int index = 0; index < count; index++) {
+        int offset = in.readInt();
+        int fileID = in.readInt();
+        pointers[index] = new FlumeEventPointer(fileID, offset).toLong();
+      }
+    } else {
+      throw new IOException("Unknown batch type " + Integer.toHexString(type));
+    }
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    RecordBuffer buffer = encode(null);
+    // the magic header, type and transaction id are written by the caller
+    int offset = 4 + 2 + 8;
+    out.write(buffer.array(), offset, buffer.position() - offset);
+  }
+
+  /**
+   * Encode the batch, as {@link #toByteBuffer(TransactionEventRecord)}
+   * would, into the record buffer of the calling thread. The buffers
+   * returned are only valid until the thread encodes another record.
+   */
+  ByteBuffer[] toByteBuffers() {
+    return toByteBuffers(null);
+  }
+
+  /**
+   * Encode the batch as {@link #toByteBuffers()} does, compressing its
+   * events with codec, which may be null for none
+   */
+  ByteBuffer[] toByteBuffers(CompressionCodec codec) {
+    return encode(codec).toByteBuffers();
+  }
+
+  private RecordBuffer encode(CompressionCodec codec) {
+    RecordBuffer buffer = RecordBuffer.forThread();
+    buffer.putInt(MAGIC_HEADER);
+    buffer.putShort(getRecordType());
+    buffer.putLong(getTransactionID());
+    buffer.putLong(getTimestamp());
+    buffer.putShort(type);
+    buffer.putInt(count);
+    if(type == Type.PUT.get()) {
+      Preconditions.checkState(events != null, "Batch was not created " +
+          "with events");
+      if(eventOffsets == null || eventOffsets.length != count) {
+        eventOffsets = new int[count];
+      }
+      int index = 0;
+      for (FlumeEvent event : events) {
+        int start = buffer.position();
+        eventOffsets[index++] = start;
+        buffer.putByte(LogFile.OP_CHECKED_COMPACT_EVENT);
+        buffer.putInt(0);
+        event.writeCompact(buffer);
+        int length = buffer.position() - start - EVENT_HEADER_SIZE;
+        if(codec != null && compress(buffer, start, length, codec)) {
+          buffer.array()[start] = LogFile.OP_CHECKED_COMPRESSED_EVENT;
+          length = buffer.position() - start - EVENT_HEADER_SIZE;
+        }
+        buffer.putInt(buffer.checksum(start + EVENT_HEADER_SIZE, length));
+        buffer.putIntAt(start + 1, length + LogFile.EVENT_CHECKSUM_SIZE);
+      }
+      Preconditions.checkState(index == count, "Events changed during " +
+          "encoding");
+    } else {
+      for (long pointer : pointers) {
+        // the offset then the fileID of FlumeEventPointer.toLong()
+        buffer.putInt((int) pointer);
+        buffer.putInt((int) (pointer >>> 32));
+      }
+    }
+    return buffer;
+  }
+
+  /**
+   * Replace the compact encoding of length bytes, framed at start and
+   * ending at the position of buffer, by its compression, unless that
+   * is no smaller. The frame is left to the caller.
+   * @return true if the event was compressed
+   */
+  private static boolean compress(RecordBuffer buffer, int start,
+      int length, CompressionCodec codec) {
+    int end = buffer.position();
+    buffer.putVarInt(length);
+    // only worth it if smaller
+    int maxLength = length - (buffer.position() - end) - 1;
+    if(maxLength <= 0) {
+      buffer.position(end);
+      return false;
+    }
+    // compress past the end of the event, then move it over the event
+    buffer.ensureCapacity(maxLength);
+    byte[] data = buffer.array();
+    int compressed = codec.compress(data, start + EVENT_HEADER_SIZE, length,
+        data, buffer.position(), maxLength);
+    if(compressed < 0) {
+      buffer.position(end);
+      return false;
+    }
+    int compressedLength = buffer.position() - end + compressed;
+    System.arraycopy(data, end, data, start + EVENT_HEADER_SIZE,
+        compressedLength);
+    buffer.position(start + EVENT_HEADER_SIZE + compressedLength);
+    return true;
+  }
+
+  @Override
+  short getRecordType() {
+    return Type.BATCH.get();
+  }
+
+  private static void skipFully(DataInput in, int length) throws IOException {
+    while(length > 0) {
+      int skipped = in.skipBytes(length);
+      if(skipped <= 0) {
+        // skipBytes does not distinguish EOF from a short skip
+        in.readByte();
+        skipped = 1;
+      }
+      length -= skipped;
+    }
+  }
+}
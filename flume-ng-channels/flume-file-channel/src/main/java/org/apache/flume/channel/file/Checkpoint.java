@@ -25,55 +25,201 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
 
 /**
  * Represents a copy of FlumeEventQueue written out to a specific
  * directory. Two checkpoints will be used at all times, writes
  * will be alternated between the two Checkpoint objects/files.
+ *
+ * The checkpoint file is memory mapped and laid out as a header
+ * followed by an image of the queue's backing buffer. Each write
+ * copies from a {@link QueueSnapshot} only the regions of the queue
+ * modified since this checkpoint was last written, so the cost of a
+ * checkpoint is proportional to the change in the queue rather than
+ * its capacity, and the queue is only held while the snapshot is
+ * taken.
+ * Reading the checkpoint is a bulk copy of the image back into the
+ * queue. Files written in the original streamed format are still
+ * read and are replaced by the mapped format on their next write.
+ * The header records the capacity of the queue while the length of
+ * the image is the number of slots in the queue's ring. It also records
+ * the position each data file being written had reached when the
+ * snapshot was taken, every record before which is older than the
+ * checkpoint, so replay can start reading there.
  */
 class Checkpoint {
 
   private static final Logger LOG = LoggerFactory
       .getLogger(Checkpoint.class);
   private static final long OFFSET_TIMESTAMP = 0;
+  private static final int OFFSET_VERSION = 8;
+  private static final int OFFSET_CAPACITY = 16;
+  private static final int OFFSET_SIZE = 24;
+  private static final int OFFSET_HEAD = 32;
+  private static final int OFFSET_WRITE_POSITIONS = 40;
+  /**
+   * Version of the mapped format. Stored as a long after the
+   * timestamp, where the original format stored the int capacity
+   * followed by the int queue version, so it cannot be mistaken
+   * for the original format.
+   */
+  static final long VERSION = 2L;
+  static final int HEADER_SIZE = 1024;
+  /**
+   * Number of data file write positions which fit in the header after
+   * their count, each an int fileID and a long position
+   */
+  static final int MAX_WRITE_POSITIONS =
+      (HEADER_SIZE - OFFSET_WRITE_POSITIONS - 4) / (4 + 8);
   private final File file;
   private final int queueCapacity;
 
   private long timestamp;
+  private MappedByteBuffer mappedBuffer;
+  private int mappedSlots;
+  /**
+   * Queue generation last copied to the mapped file, negative when
+   * the file does not hold an image of the current queue.
+   */
+  private int writtenGeneration;
   Checkpoint(File file, int queueCapacity) {
     this.file = file;
     this.queueCapacity = queueCapacity;
     timestamp = -1;
+    writtenGeneration = -1;
   }
 
+  /**
+   * Write a checkpoint of the queue as it is now, holding the queue
+   * for the whole write
+   */
   void write(FlumeEventQueue queue) throws IOException {
-    LOG.info("Writing checkoint to " + file + ", size = " + queue.size());
-    RandomAccessFile dataOutput = new RandomAccessFile(file, "rw");
+    QueueSnapshot snapshot = new QueueSnapshot(queue.getSlots());
+    queue.snapshot(snapshot, System.currentTimeMillis());
+    write(snapshot, Collections.<Integer, Long>emptyMap());
+  }
+
+  /**
+   * Write a checkpoint from snapshot, which the queue need not be
+   * locked for. The checkpoint records the time of the snapshot.
+   * @param writePositions the position of each data file being written
+   * when the snapshot was taken, keyed by fileID
+   */
+  void write(QueueSnapshot snapshot, Map<Integer, Long> writePositions)
+      throws IOException {
+    LOG.info("Writing checkoint to " + file + ", size = " + snapshot.getSize());
+    int slots = snapshot.getSlots();
+    if(mappedBuffer == null || mappedSlots != slots) {
+      map(slots);
+      writtenGeneration = -1;
+    }
+    boolean error = true;
     try {
-      // write out a small number
-      dataOutput.writeLong(Long.MIN_VALUE);
-      // write a the queue itself
-      dataOutput.writeInt(queue.getCapacity());
-      queue.write(dataOutput);
+      // mark the checkpoint as incomplete
+      mappedBuffer.putLong((int) OFFSET_TIMESTAMP, Long.MIN_VALUE);
+      mappedBuffer.force();
+      // copy the regions changed since this checkpoint was last written
+      copyRegions(snapshot);
+      writtenGeneration = snapshot.getGeneration();
+      mappedBuffer.putLong(OFFSET_VERSION, VERSION);
+      mappedBuffer.putLong(OFFSET_CAPACITY, snapshot.getCapacity());
+      mappedBuffer.putLong(OFFSET_SIZE, snapshot.getSize());
+      mappedBuffer.putLong(OFFSET_HEAD, snapshot.getHead());
+      putWritePositions(writePositions);
       // force all changes to disk
-      dataOutput.getChannel().force(true);
+      mappedBuffer.force();
       // now update the timestamp saying we are successful
-      dataOutput.seek(OFFSET_TIMESTAMP);
-      dataOutput.writeLong(timestamp = System.currentTimeMillis());
-      dataOutput.getChannel().force(true);
-      dataOutput.close();
+      mappedBuffer.putLong((int) OFFSET_TIMESTAMP,
+          timestamp = snapshot.getTimestamp());
+      mappedBuffer.force();
+      error = false;
     } finally {
-      if(dataOutput != null) {
-        try {
-          dataOutput.close();
-        } catch (IOException e) {}
+      if(error) {
+        writtenGeneration = -1;
+      }
+    }
+  }
+
+  private void putWritePositions(Map<Integer, Long> writePositions) {
+    if(writePositions.size() > MAX_WRITE_POSITIONS) {
+      // replay will read the data files from the start
+      mappedBuffer.putInt(OFFSET_WRITE_POSITIONS, 0);
+      return;
+    }
+    mappedBuffer.putInt(OFFSET_WRITE_POSITIONS, writePositions.size());
+    int offset = OFFSET_WRITE_POSITIONS + 4;
+    for (Map.Entry<Integer, Long> entry : writePositions.entrySet()) {
+      mappedBuffer.putInt(offset, entry.getKey());
+      mappedBuffer.putLong(offset + 4, entry.getValue());
+      offset += 4 + 8;
+    }
+  }
+
+  /**
+   * @return the position each data file being written had reached when
+   * the checkpoint on disk was written, keyed by fileID, empty if the
+   * checkpoint does not record them
+   */
+  Map<Integer, Long> readWritePositions() throws IOException {
+    Map<Integer, Long> writePositions = Maps.newHashMap();
+    if(!file.exists() || file.length() < HEADER_SIZE) {
+      return writePositions;
+    }
+    RandomAccessFile fileHandle = new RandomAccessFile(file, "r");
+    try {
+      if(fileHandle.readLong() <= 0L || fileHandle.readLong() != VERSION) {
+        return writePositions;
+      }
+      fileHandle.seek(OFFSET_WRITE_POSITIONS);
+      int count = fileHandle.readInt();
+      if(count < 0 || count > MAX_WRITE_POSITIONS) {
+        LOG.warn("Ignoring " + count + " write positions in " + file);
+        return writePositions;
+      }
+      for (int index = 0; index < count; index++) {
+        writePositions.put(fileHandle.readInt(), fileHandle.readLong());
+      }
+    } finally {
+      try {
+        fileHandle.close();
+      } catch (IOException e) {}
+    }
+    return writePositions;
+  }
+
+  private void copyRegions(QueueSnapshot snapshot) {
+    int[] regionGenerations = snapshot.getRegionGenerations();
+    ByteBuffer source = snapshot.getElements().duplicate();
+    ByteBuffer destination = getElements();
+    int regionBytes = FlumeEventQueue.REGION_SIZE *
+        FlumeEventQueue.SIZE_OF_LONG;
+    int copied = 0;
+    for (int region = 0; region < regionGenerations.length; region++) {
+      if(writtenGeneration < 0 ||
+          regionGenerations[region] > writtenGeneration) {
+        int start = region * regionBytes;
+        int end = Math.min(start + regionBytes, source.capacity());
+        source.limit(end).position(start);
+        destination.limit(end).position(start);
+        destination.put(source);
+        copied++;
       }
     }
+    if(LOG.isDebugEnabled()) {
+      LOG.debug("Copied " + copied + " of " + regionGenerations.length
+          + " regions to " + file);
+    }
   }
 
   File getFile() {
@@ -81,6 +227,65 @@ class Checkpoint {
   }
 
   FlumeEventQueue read() throws IOException {
+    long fileLength = file.length();
+    if(fileLength < OFFSET_HEAD + 8) {
+      return readLegacy();
+    }
+    RandomAccessFile fileHandle = new RandomAccessFile(file, "r");
+    long version;
+    int capacity;
+    int size;
+    int head;
+    try {
+      long timestamp = fileHandle.readLong();
+      Preconditions.checkState(timestamp > 0, "Timestamp is invalid " + timestamp);
+      version = fileHandle.readLong();
+      if(version != VERSION) {
+        return readLegacy();
+      }
+      capacity = (int) fileHandle.readLong();
+      size = (int) fileHandle.readLong();
+      head = (int) fileHandle.readLong();
+    } finally {
+      try {
+        fileHandle.close();
+      } catch (IOException e) {}
+    }
+    Preconditions.checkState(capacity > 0, "Capacity is invalid " + capacity);
+    long slots = (fileLength - HEADER_SIZE) / FlumeEventQueue.SIZE_OF_LONG;
+    if(slots < capacity) {
+      throw new EOFException("Checkpoint " + file + " of length " + fileLength
+          + " is too short for capacity " + capacity);
+    }
+    Preconditions.checkState(head >= 0 && head < slots, "Head is invalid " + head);
+    map((int) slots);
+    ByteBuffer elements = getElements();
+    FlumeEventQueue queue = new FlumeEventQueue(Math.max(capacity, queueCapacity));
+    if(queue.getSlots() == slots) {
+      writtenGeneration = queue.copyFrom(elements, head, size);
+      return queue;
+    }
+    // the number of slots has changed, the image cannot be copied as is
+    LOG.info("Rebuilding queue of capacity " + queue.getCapacity()
+        + " from " + file + " with " + slots + " slots");
+    for (int index = 0; index < size; index++) {
+      long value = elements.getLong((int) ((head + index) % slots)
+          * FlumeEventQueue.SIZE_OF_LONG);
+      Preconditions.checkState(value != FlumeEventQueue.EMPTY,
+          "Empty slot at " + index);
+      Preconditions.checkState(queue.addTail(FlumeEventPointer.fromLong(value)),
+          "Unable to add to queue");
+    }
+    writtenGeneration = -1;
+    return queue;
+  }
+
+  /**
+   * Read a checkpoint written in the original streamed format
+   */
+  private FlumeEventQueue readLegacy() throws IOException {
+    LOG.info("Reading checkpoint " + file + " in the original format");
+    writtenGeneration = -1;
     FileInputStream fileInput = new FileInputStream(file);
     try {
       DataInputStream dataInput = new DataInputStream(fileInput);
@@ -99,6 +304,44 @@ class Checkpoint {
     }
   }
 
+  /**
+   * Map the checkpoint file, sized for a queue with the given number
+   * of slots. The mapping remains valid after the file handle is closed.
+   */
+  private void map(int slots) throws IOException {
+    long length = HEADER_SIZE + (long) slots * FlumeEventQueue.SIZE_OF_LONG;
+    Preconditions.checkArgument(length <= Integer.MAX_VALUE,
+        "Slots " + slots + " is too large to map");
+    RandomAccessFile fileHandle = new RandomAccessFile(file, "rw");
+    try {
+      if(fileHandle.length() != length) {
+        fileHandle.setLength(length);
+      }
+      mappedBuffer = fileHandle.getChannel().map(MapMode.READ_WRITE, 0, length);
+      mappedSlots = slots;
+    } finally {
+      try {
+        fileHandle.close();
+      } catch (IOException e) {}
+    }
+  }
+
+  private ByteBuffer getElements() {
+    ByteBuffer elements = mappedBuffer.duplicate();
+    elements.position(HEADER_SIZE);
+    return elements.slice();
+  }
+
+  /**
+   * Release the mapping of the checkpoint file. The mapping itself is
+   * released once the buffer is garbage collected.
+   */
+  void close() {
+    mappedBuffer = null;
+    mappedSlots = 0;
+    writtenGeneration = -1;
+  }
+
   long getTimestamp() throws IOException {
     if(timestamp > 0) {
       return timestamp;
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.IOException;
+
+/**
+ * Compresses the events of the batches written to data files. The id
+ * of the codec a data file is written with is recorded in its header
+ * so that files written with different codecs, or none, can be read
+ * side by side. Implementations must be thread safe and have a public
+ * no argument constructor.
+ */
+public interface CompressionCodec {
+  /**
+   * @return the id recorded in the header of data files written with
+   * this codec, unique among codecs, ids below 16 are reserved
+   */
+  int getID();
+
+  /**
+   * Compress length bytes of data at offset into out at outOffset,
+   * writing at most maxLength bytes. The input and output ranges do not
+   * overlap but may be in the same array.
+   * @return the number of bytes written, or -1 if the compressed bytes
+   * do not fit in maxLength, in which case the event is written
+   * uncompressed
+   */
+  int compress(byte[] data, int offset, int length, byte[] out,
+      int outOffset, int maxLength);
+
+  /**
+   * Decompress length bytes of data at offset into uncompressed, which
+   * must be filled exactly
+   * @throws IOException if the bytes are not valid for this codec
+   */
+  void decompress(byte[] data, int offset, int length, byte[] uncompressed)
+      throws IOException;
+}
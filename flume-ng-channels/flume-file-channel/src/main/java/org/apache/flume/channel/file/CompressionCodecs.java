@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Resolves the {@link CompressionCodec} configured by name and the one
+ * recorded by id in the header of a data file. A custom codec is
+ * configured by class name and registered by its id when configured,
+ * so data files written with it can only be read once it has been
+ * configured again.
+ */
+final class CompressionCodecs {
+  /**
+   * Recorded in the header of data files whose events are not compressed
+   */
+  static final int NONE_ID = 0;
+  static final String NONE = "none";
+  static final String DEFLATE = "deflate";
+  private static final int MIN_CUSTOM_ID = 16;
+  private static final Map<Integer, CompressionCodec> CODECS =
+      new ConcurrentHashMap<Integer, CompressionCodec>();
+
+  static {
+    CODECS.put(DeflateCodec.ID, new DeflateCodec());
+  }
+
+  private CompressionCodecs() {
+  }
+
+  /**
+   * @return the codec named, null for none, creating and registering a
+   * custom codec given its class name
+   */
+  static CompressionCodec forName(String name) {
+    Preconditions.checkNotNull(name, "name");
+    if(NONE.equalsIgnoreCase(name)) {
+      return null;
+    }
+    if(DEFLATE.equalsIgnoreCase(name)) {
+      return CODECS.get(DeflateCodec.ID);
+    }
+    CompressionCodec codec;
+    try {
+      codec = Class.forName(name).asSubclass(CompressionCodec.class)
+          .newInstance();
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Unable to create compression " +
+          "codec " + name, e);
+    }
+    int id = codec.getID();
+    Preconditions.checkArgument(id >= MIN_CUSTOM_ID, "Compression codec " +
+        name + " has reserved id " + id);
+    synchronized (CODECS) {
+      CompressionCodec registered = CODECS.get(id);
+      if(registered != null) {
+        Preconditions.checkArgument(registered.getClass() ==
+            codec.getClass(), "Compression codec " + name + " has the id " +
+            id + " of " + registered.getClass().getName());
+        return registered;
+      }
+      CODECS.put(id, codec);
+    }
+    return codec;
+  }
+
+  /**
+   * @return the codec recorded with id, null for none
+   * @throws IOException if no codec with the id has been configured
+   */
+  static CompressionCodec forID(int id) throws IOException {
+    if(id == NONE_ID) {
+      return null;
+    }
+    CompressionCodec codec = CODECS.get(id);
+    if(codec == null) {
+      throw new IOException("Unknown compression codec id " + id);
+    }
+    return codec;
+  }
+
+  /**
+   * @return the id recorded for codec, which may be null for none
+   */
+  static int getID(CompressionCodec codec) {
+    return codec == null ? NONE_ID : codec.getID();
+  }
+}
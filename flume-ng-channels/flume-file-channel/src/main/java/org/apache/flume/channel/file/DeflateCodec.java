@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses events with the JDK {@link Deflater}. Each thread reuses
+ * its own deflater and inflater, so that compressing an event does not
+ * allocate their native state.
+ */
+public class DeflateCodec implements CompressionCodec {
+  static final int ID = 1;
+
+  private final int level;
+  private final ThreadLocal<Deflater> deflaters =
+      new ThreadLocal<Deflater>() {
+    @Override
+    protected Deflater initialValue() {
+      return new Deflater(level);
+    }
+  };
+  private final ThreadLocal<Inflater> inflaters =
+      new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater();
+    }
+  };
+
+  public DeflateCodec() {
+    this(Deflater.BEST_SPEED);
+  }
+
+  /**
+   * @param level the compression level, from
+   * {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+   * Files written at any level are read alike.
+   */
+  public DeflateCodec(int level) {
+    if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level "
+          + level);
+    }
+    this.level = level;
+  }
+
+  @Override
+  public int getID() {
+    return ID;
+  }
+
+  @Override
+  public int compress(byte[] data, int offset, int length, byte[] out,
+      int outOffset, int maxLength) {
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    deflater.setInput(data, offset, length);
+    deflater.finish();
+    int written = 0;
+    while(!deflater.finished()) {
+      if(written == maxLength) {
+        return -1;
+      }
+      written += deflater.deflate(out, outOffset + written,
+          maxLength - written);
+    }
+    return written;
+  }
+
+  @Override
+  public void decompress(byte[] data, int offset, int length,
+      byte[] uncompressed) throws IOException {
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+    inflater.setInput(data, offset, length);
+    try {
+      int read = 0;
+      while(read < uncompressed.length) {
+        int inflated = inflater.inflate(uncompressed, read,
+            uncompressed.length - read);
+        if(inflated == 0 && (inflater.finished() || inflater.needsInput()
+            || inflater.needsDictionary())) {
+          break;
+        }
+        read += inflated;
+      }
+      if(read != uncompressed.length || inflater.getRemaining() > 0) {
+        throw new IOException("Compressed event inflated to " + read +
+            " bytes, expected " + uncompressed.length);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed event", e);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.util.Locale;
+
+/**
+ * When a commit to a {@link FileChannel} is made durable. In every mode
+ * a commit returns once its record has been written to the data file,
+ * is then read by takes, and is made durable before a checkpoint which
+ * refers to it and when the data file is rolled or closed. The modes
+ * differ in how much of the most recent commits a crash of the host
+ * can lose.
+ */
+enum Durability {
+  /**
+   * A commit returns once it is on disk, concurrent commits sharing a
+   * single fsync
+   */
+  SYNC,
+  /**
+   * Commits are synced in the background every sync interval, or as
+   * soon as the bytes written since the last sync reach a threshold
+   */
+  PERIODIC,
+  /**
+   * Commits are left to the operating system, which writes them out
+   * at its discretion
+   */
+  OS;
+
+  /**
+   * @return the mode named, ignoring case
+   * @throws IllegalArgumentException if there is no such mode
+   */
+  static Durability forName(String name) {
+    return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+  }
+
+  /**
+   * @return the name the mode is configured by
+   */
+  String getName() {
+    return name().toLowerCase(Locale.ENGLISH);
+  }
+}
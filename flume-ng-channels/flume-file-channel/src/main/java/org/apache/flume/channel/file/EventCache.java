@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.flume.CounterGroup;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Cache of recently put FlumeEvents keyed by their FlumeEventPointer,
+ * bounded by the estimated number of bytes held and evicted in FIFO
+ * order. In steady state sinks take events put shortly before, so a
+ * take can usually be served from the cache without reading and
+ * deserializing the event from its data file. An event is removed
+ * from the cache when it is taken, so each event is served at most
+ * once and the same instance is never handed to two takers.
+ */
+class EventCache {
+  static final String COUNTER_HITS = "cache.hits";
+  static final String COUNTER_MISSES = "cache.misses";
+  static final String COUNTER_BYTES = "cache.bytes";
+  static final String COUNTER_EVENTS = "cache.events";
+  /**
+   * Rough heap overhead of an entry and of a header, beyond the
+   * lengths of the strings and the body
+   */
+  static final int ENTRY_OVERHEAD = 128;
+  static final int HEADER_OVERHEAD = 96;
+
+  private final LinkedHashMap<Long, Entry> events =
+      new LinkedHashMap<Long, Entry>();
+  private final CounterGroup counters;
+  private long maxBytes;
+  private long bytes;
+  private long hits;
+  private long misses;
+
+  EventCache(long maxBytes, CounterGroup counters) {
+    Preconditions.checkArgument(maxBytes >= 0, "maxBytes < 0");
+    this.maxBytes = maxBytes;
+    this.counters = counters;
+  }
+
+  /**
+   * Add an event which was written at pointer, evicting the oldest
+   * events until the cache is within its size. Events larger than
+   * the cache are not added.
+   */
+  synchronized void put(FlumeEventPointer pointer, FlumeEvent event) {
+    long size = estimateSize(event);
+    if(size > maxBytes) {
+      return;
+    }
+    Entry previous = events.put(pointer.toLong(), new Entry(event, size));
+    if(previous != null) {
+      bytes -= previous.size;
+    }
+    bytes += size;
+    evict();
+    updateCounters();
+  }
+
+  /**
+   * Remove and return the event at pointer
+   * @return the event or null if it is not cached
+   */
+  synchronized FlumeEvent remove(FlumeEventPointer pointer) {
+    Entry entry = events.remove(pointer.toLong());
+    if(entry == null) {
+      return null;
+    }
+    bytes -= entry.size;
+    updateCounters();
+    return entry.event;
+  }
+
+  /**
+   * Remove and return the event at pointer, recording a hit or miss
+   * @return the event or null if it is not cached
+   */
+  FlumeEvent take(FlumeEventPointer pointer) {
+    FlumeEvent event = remove(pointer);
+    synchronized (this) {
+      if(event == null) {
+        misses++;
+        counters.set(COUNTER_MISSES, misses);
+      } else {
+        hits++;
+        counters.set(COUNTER_HITS, hits);
+      }
+    }
+    return event;
+  }
+
+  synchronized void setMaxBytes(long maxBytes) {
+    Preconditions.checkArgument(maxBytes >= 0, "maxBytes < 0");
+    this.maxBytes = maxBytes;
+    evict();
+    updateCounters();
+  }
+
+  synchronized void clear() {
+    events.clear();
+    bytes = 0;
+    updateCounters();
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  synchronized int size() {
+    return events.size();
+  }
+
+  /**
+   * @return the fraction of takes which were served from the cache
+   */
+  synchronized double getHitRatio() {
+    long takes = hits + misses;
+    return takes == 0 ? 0.0D : (double) hits / takes;
+  }
+
+  private void evict() {
+    Iterator<Entry> iterator = events.values().iterator();
+    while(bytes > maxBytes && iterator.hasNext()) {
+      bytes -= iterator.next().size;
+      iterator.remove();
+    }
+  }
+
+  private void updateCounters() {
+    counters.set(COUNTER_BYTES, bytes);
+    counters.set(COUNTER_EVENTS, (long) events.size());
+  }
+
+  /**
+   * Copy an event so the cached instance shares no mutable state
+   * with the event given to the channel, other than the body
+   */
+  static FlumeEvent copy(Map<String, String> headers, byte[] body) {
+    Map<String, String> copy = Maps.newHashMap();
+    if(headers != null) {
+      copy.putAll(headers);
+    }
+    return new FlumeEvent(copy, body);
+  }
+
+  static long estimateSize(FlumeEvent event) {
+    long size = ENTRY_OVERHEAD;
+    byte[] body = event.getBody();
+    if(body != null) {
+      size += body.length;
+    }
+    Map<String, String> headers = event.getHeaders();
+    if(headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        size += HEADER_OVERHEAD;
+        // two bytes per char
+        size += 2L * header.getKey().length();
+        size += 2L * header.getValue().length();
+      }
+    }
+    return size;
+  }
+
+  private static class Entry {
+    private final FlumeEvent event;
+    private final long size;
+    Entry(FlumeEvent event, long size) {
+      this.event = event;
+      this.size = size;
+    }
+  }
+}
@@ -21,8 +21,9 @@ package org.apache.flume.channel.file;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -46,10 +47,13 @@ import com.google.common.base.Throwables;
  * </p>
  * <p>
  * FileChannel works by writing all transactions to a set of directories
- * specified in the configuration. Additionally, when a commit occurs
- * the transaction is synced to disk. Pointers to events put on the
+ * specified in the configuration. The puts or takes of a transaction
+ * are written as a single record when it commits and, with the default
+ * sync {@link Durability}, the record is synced to disk before the
+ * commit returns. Pointers to events put on the
  * channel are stored in memory. As such, each event on the queue
- * will require 8 bytes of DirectMemory (non-heap). However, the channel
+ * will require 16 bytes of DirectMemory (non-heap), 8 for the queue and
+ * 8 for the snapshot checkpoints are written from. However, the channel
  * will only allow a configurable number messages into the channel.
  * The appropriate amount of direct memory for said capacity,
  * must be allocated to the JVM via the JVM property: -XX:MaxDirectMemorySize
@@ -58,9 +62,9 @@ import com.google.common.base.Throwables;
  * <p>
  * Memory Consumption:
  * <ol>
- * <li>200GB of data in queue at 100 byte messages: 16GB</li>
- * <li>200GB of data in queue at 500 byte messages: 3.2GB</li>
- * <li>200GB of data in queue at 1000 byte messages: 1.6GB</li>
+ * <li>200GB of data in queue at 100 byte messages: 32GB</li>
+ * <li>200GB of data in queue at 500 byte messages: 6.4GB</li>
+ * <li>200GB of data in queue at 1000 byte messages: 3.2GB</li>
  * </ol>
  * </p>
  */
@@ -74,6 +78,17 @@ public class FileChannel extends BasicChannelSemantics {
   private int transactionCapacity;
   private long checkpointInterval;
   private long maxFileSize;
+  private long groupCommitWindow;
+  private long eventCacheBytes;
+  private int readAheadSize;
+  private int compactionMaxEvents;
+  private long compactionBytesPerSecond;
+  private String compressionCodecName;
+  private CompressionCodec compressionCodec;
+  private Durability durability = Durability.SYNC;
+  private long syncInterval = FileChannelConfiguration.DEFAULT_SYNC_INTERVAL;
+  private long syncBytes = FileChannelConfiguration.DEFAULT_SYNC_BYTES;
+  private int writeQueueSize;
   private File checkpointDir;
   private File[] dataDirs;
   private Log log;
@@ -162,12 +177,93 @@ public class FileChannel extends BasicChannelSemantics {
             FileChannelConfiguration.DEFAULT_MAX_FILE_SIZE),
             FileChannelConfiguration.DEFAULT_MAX_FILE_SIZE);
 
+    groupCommitWindow =
+        context.getLong(FileChannelConfiguration.GROUP_COMMIT_WINDOW,
+            FileChannelConfiguration.DEFAULT_GROUP_COMMIT_WINDOW);
+    Preconditions.checkArgument(groupCommitWindow >= 0L,
+        FileChannelConfiguration.GROUP_COMMIT_WINDOW + " must be >= 0");
+
+    eventCacheBytes =
+        context.getLong(FileChannelConfiguration.EVENT_CACHE_BYTES,
+            FileChannelConfiguration.DEFAULT_EVENT_CACHE_BYTES);
+    Preconditions.checkArgument(eventCacheBytes >= 0L,
+        FileChannelConfiguration.EVENT_CACHE_BYTES + " must be >= 0");
+
+    readAheadSize =
+        context.getInteger(FileChannelConfiguration.READ_AHEAD_SIZE,
+            FileChannelConfiguration.DEFAULT_READ_AHEAD_SIZE);
+    Preconditions.checkArgument(readAheadSize >= 0,
+        FileChannelConfiguration.READ_AHEAD_SIZE + " must be >= 0");
+
+    compactionMaxEvents =
+        context.getInteger(FileChannelConfiguration.COMPACTION_MAX_EVENTS,
+            FileChannelConfiguration.DEFAULT_COMPACTION_MAX_EVENTS);
+    Preconditions.checkArgument(compactionMaxEvents >= 0,
+        FileChannelConfiguration.COMPACTION_MAX_EVENTS + " must be >= 0");
+
+    compactionBytesPerSecond =
+        context.getLong(FileChannelConfiguration.COMPACTION_BYTES_PER_SECOND,
+            FileChannelConfiguration.DEFAULT_COMPACTION_BYTES_PER_SECOND);
+    Preconditions.checkArgument(compactionBytesPerSecond >= 0L,
+        FileChannelConfiguration.COMPACTION_BYTES_PER_SECOND + " must be >= 0");
+
+    String newCompressionCodecName =
+        context.getString(FileChannelConfiguration.COMPRESSION_CODEC,
+            FileChannelConfiguration.DEFAULT_COMPRESSION_CODEC);
+    if(log != null && !newCompressionCodecName.equals(compressionCodecName)) {
+      LOG.warn("An attempt was made to change the compression codec " +
+          "after start, this is not supported.");
+    } else {
+      compressionCodec = CompressionCodecs.forName(newCompressionCodecName);
+      compressionCodecName = newCompressionCodecName;
+    }
+
+    Durability newDurability = Durability.forName(
+        context.getString(FileChannelConfiguration.DURABILITY,
+            FileChannelConfiguration.DEFAULT_DURABILITY));
+    long newSyncInterval =
+        context.getLong(FileChannelConfiguration.SYNC_INTERVAL,
+            FileChannelConfiguration.DEFAULT_SYNC_INTERVAL);
+    Preconditions.checkArgument(newSyncInterval > 0L,
+        FileChannelConfiguration.SYNC_INTERVAL + " must be > 0");
+    long newSyncBytes =
+        context.getLong(FileChannelConfiguration.SYNC_BYTES,
+            FileChannelConfiguration.DEFAULT_SYNC_BYTES);
+    Preconditions.checkArgument(newSyncBytes >= 0L,
+        FileChannelConfiguration.SYNC_BYTES + " must be >= 0");
+    if(log != null && (newDurability != durability ||
+        newSyncInterval != syncInterval || newSyncBytes != syncBytes)) {
+      LOG.warn("An attempt was made to change the durability after " +
+          "start, this is not supported.");
+    } else {
+      durability = newDurability;
+      syncInterval = newSyncInterval;
+      syncBytes = newSyncBytes;
+    }
+
+    int newWriteQueueSize =
+        context.getInteger(FileChannelConfiguration.WRITE_QUEUE_SIZE,
+            FileChannelConfiguration.DEFAULT_WRITE_QUEUE_SIZE);
+    Preconditions.checkArgument(newWriteQueueSize >= 0,
+        FileChannelConfiguration.WRITE_QUEUE_SIZE + " must be >= 0");
+    if(log != null && newWriteQueueSize != writeQueueSize) {
+      LOG.warn("An attempt was made to change the write queue size after " +
+          "start, this is not supported.");
+    } else {
+      writeQueueSize = newWriteQueueSize;
+    }
+
     if(queueRemaining == null) {
       queueRemaining = new Semaphore(capacity, true);
     }
     if(log != null) {
       log.setCheckpointInterval(checkpointInterval);
       log.setMaxFileSize(maxFileSize);
+      log.setGroupCommitWindow(groupCommitWindow);
+      log.setEventCacheBytes(eventCacheBytes);
+      log.setReadAheadSize(readAheadSize);
+      log.setCompactionMaxEvents(compactionMaxEvents);
+      log.setCompactionBytesPerSecond(compactionBytesPerSecond);
     }
   }
 
@@ -177,6 +273,14 @@ public class FileChannel extends BasicChannelSemantics {
     try {
       log = new Log(checkpointInterval, maxFileSize, capacity,
           checkpointDir, dataDirs);
+      log.setGroupCommitWindow(groupCommitWindow);
+      log.setEventCacheBytes(eventCacheBytes);
+      log.setReadAheadSize(readAheadSize);
+      log.setCompactionMaxEvents(compactionMaxEvents);
+      log.setCompactionBytesPerSecond(compactionBytesPerSecond);
+      log.setCompressionCodec(compressionCodec);
+      log.setDurability(durability, syncInterval, syncBytes);
+      log.setWriteQueueSize(writeQueueSize);
       log.replay();
     } catch (IOException e) {
       Throwables.propagate(e);
@@ -241,6 +345,12 @@ public class FileChannel extends BasicChannelSemantics {
           "Thread has transaction which is still open: " +
               trans.getStateAsString());
     }
+    if(trans != null && trans.log == log) {
+      // closed, and the channel has not been restarted since
+      trans.reset(TRANSACTION_ID.incrementAndGet(), transactionCapacity,
+          keepAlive, queueRemaining);
+      return trans;
+    }
     trans = new FileBackedTransaction(log, TRANSACTION_ID.incrementAndGet(),
         transactionCapacity, keepAlive, queueRemaining);
     transactions.set(trans);
@@ -257,6 +367,8 @@ public class FileChannel extends BasicChannelSemantics {
   void close() {
     if(open) {
       open = false;
+      LOG.info("FileChannel closed. Metrics:{}, event cache hit ratio:{}",
+          log.getCounterGroup(), log.getEventCache().getHitRatio());
       log.close();
       log = null;
       queueRemaining = null;
@@ -265,25 +377,48 @@ public class FileChannel extends BasicChannelSemantics {
 
   /**
    * Transaction backed by a file. This transaction supports either puts
-   * or takes but not both.
+   * or takes but not both. Puts and takes are held in memory until
+   * commit, when they are written to the log as one batch, so nothing
+   * is written for a transaction which is rolled back.
+   *
+   * The thread which created a transaction reuses it for each of its
+   * transactions until the channel is restarted. As it is confined to
+   * that thread its lists are plain array lists, which keep their size
+   * once grown.
    */
   static class FileBackedTransaction extends BasicTransactionSemantics {
-    private final LinkedBlockingDeque<FlumeEventPointer> takeList;
-    private final LinkedBlockingDeque<FlumeEventPointer> putList;
-    private final long transactionID;
-    private final int keepAlive;
+    private final ArrayList<FlumeEventPointer> takeList;
+    private final ArrayList<FlumeEvent> putList;
+    private long transactionID;
+    private int transCapacity;
+    private int keepAlive;
     private final Log log;
     private final FlumeEventQueue queue;
-    private final Semaphore queueRemaining;
+    private Semaphore queueRemaining;
     public FileBackedTransaction(Log log, long transactionID,
         int transCapacity, int keepAlive, Semaphore queueRemaining) {
       this.log = log;
       queue = log.getFlumeEventQueue();
       this.transactionID = transactionID;
+      this.transCapacity = transCapacity;
+      this.keepAlive = keepAlive;
+      this.queueRemaining = queueRemaining;
+      putList = new ArrayList<FlumeEvent>();
+      takeList = new ArrayList<FlumeEventPointer>();
+    }
+    /**
+     * Prepare the closed transaction for the next transaction of its
+     * thread, which has a new id
+     */
+    private void reset(long transactionID, int transCapacity, int keepAlive,
+        Semaphore queueRemaining) {
+      this.transactionID = transactionID;
+      this.transCapacity = transCapacity;
       this.keepAlive = keepAlive;
       this.queueRemaining = queueRemaining;
-      putList = new LinkedBlockingDeque<FlumeEventPointer>(transCapacity);
-      takeList = new LinkedBlockingDeque<FlumeEventPointer>(transCapacity);
+      putList.clear();
+      takeList.clear();
+      reset();
     }
     private boolean isClosed() {
       return State.CLOSED.equals(getState());
@@ -293,7 +428,7 @@ public class FileChannel extends BasicChannelSemantics {
     }
     @Override
     protected void doPut(Event event) throws InterruptedException {
-      if(putList.remainingCapacity() == 0) {
+      if(putList.size() >= transCapacity) {
         throw new ChannelException("Put queue for FileBackedTransaction " +
             "of capacity " + putList.size() + " full, consider " +
             "committing more frequently, increasing capacity or " +
@@ -302,17 +437,29 @@ public class FileChannel extends BasicChannelSemantics {
       if(!queueRemaining.tryAcquire(keepAlive, TimeUnit.SECONDS)) {
         throw new ChannelException("Cannot acquire capacity");
       }
-      try {
-        FlumeEventPointer ptr = log.put(transactionID, event);
-        Preconditions.checkState(putList.offer(ptr));
-      } catch (IOException e) {
-        throw new ChannelException("Put failed due to IO error", e);
+      putList.add(new FlumeEvent(event.getHeaders(), event.getBody()));
+    }
+
+    @Override
+    protected void doPutAll(List<Event> events) throws InterruptedException {
+      int size = events.size();
+      if(transCapacity - putList.size() < size) {
+        throw new ChannelException("Put queue for FileBackedTransaction " +
+            "of capacity " + transCapacity + " can't hold " + size +
+            " more events, consider committing more frequently, increasing " +
+            "capacity or increasing thread count");
+      }
+      if(!queueRemaining.tryAcquire(size, keepAlive, TimeUnit.SECONDS)) {
+        throw new ChannelException("Cannot acquire capacity");
+      }
+      for (Event event : events) {
+        putList.add(new FlumeEvent(event.getHeaders(), event.getBody()));
       }
     }
 
     @Override
     protected Event doTake() throws InterruptedException {
-      if(takeList.remainingCapacity() == 0) {
+      if(takeList.size() >= transCapacity) {
         throw new ChannelException("Take list for FileBackedTransaction, capacity " +
             takeList.size() + " full, consider committing more frequently, " +
             "increasing capacity, or increasing thread count");
@@ -322,8 +469,7 @@ public class FileChannel extends BasicChannelSemantics {
         try {
           // first add to takeList so that if write to disk
           // fails rollback actually does it's work
-          Preconditions.checkState(takeList.offer(ptr));
-          log.take(transactionID, ptr); // write take to disk
+          takeList.add(ptr);
           Event event = log.get(ptr);
           return event;
         } catch (IOException e) {
@@ -333,34 +479,46 @@ public class FileChannel extends BasicChannelSemantics {
       return null;
     }
 
+    @Override
+    protected int doTake(int max, List<Event> events)
+        throws InterruptedException {
+      if(takeList.size() >= transCapacity) {
+        throw new ChannelException("Take list for FileBackedTransaction, capacity " +
+            takeList.size() + " full, consider committing more frequently, " +
+            "increasing capacity, or increasing thread count");
+      }
+      // take no more than the transaction has room for
+      max = Math.min(max, transCapacity - takeList.size());
+      // first add to takeList so that if a read from disk
+      // fails rollback actually does it's work
+      int size = takeList.size();
+      int taken = queue.removeHead(max, takeList);
+      try {
+        for (FlumeEventPointer pointer : takeList.subList(size,
+            size + taken)) {
+          events.add(log.get(pointer));
+        }
+      } catch (IOException e) {
+        throw new ChannelException("Take failed due to IO error", e);
+      }
+      return taken;
+    }
+
     @Override
     protected void doCommit() throws InterruptedException {
       int puts = putList.size();
       int takes = takeList.size();
       if(puts > 0) {
         Preconditions.checkState(takes == 0);
-        synchronized (queue) {
-          while(!putList.isEmpty()) {
-            if(!queue.addTail(putList.removeFirst())) {
-              StringBuilder msg = new StringBuilder();
-              msg.append("Queue add failed, this shouldn't be able to ");
-              msg.append("happen. A portion of the transaction has been ");
-              msg.append("added to the queue but the remaining portion ");
-              msg.append("cannot be added. Those messages will be consumed ");
-              msg.append("despite this transaction failing. Please report.");
-              LOG.error(msg.toString());
-              Preconditions.checkState(false, msg.toString());
-            }
-          }
-        }
         try {
-          log.commitPut(transactionID);
+          // adds the events to the queue once they are on disk
+          log.commitPuts(transactionID, putList);
         } catch (IOException e) {
           throw new ChannelException("Commit failed due to IO error", e);
         }
       } else if(takes > 0) {
         try {
-          log.commitTake(transactionID);
+          log.commitTakes(transactionID, takeList);
         } catch (IOException e) {
           throw new ChannelException("Commit failed due to IO error", e);
         }
@@ -376,17 +534,13 @@ public class FileChannel extends BasicChannelSemantics {
       int takes = takeList.size();
       if(takes > 0) {
         Preconditions.checkState(puts == 0);
-        while(!takeList.isEmpty()) {
-          Preconditions.checkState(queue.addHead(takeList.removeLast()),
+        for (int index = takes - 1; index >= 0; index--) {
+          Preconditions.checkState(queue.addHead(takeList.get(index)),
               "Queue add failed, this shouldn't be able to happen");
         }
       }
+      // nothing has been written for the transaction
       queueRemaining.release(puts);
-      try {
-        log.rollback(transactionID);
-      } catch (IOException e) {
-        throw new ChannelException("Commit failed due to IO error", e);
-      }
       putList.clear();
       takeList.clear();
     }
@@ -47,7 +47,10 @@ public class FileChannelConfiguration {
   /**
    * Maximum capacity of the channel. This number needs to be configured
    * in line with -XX:MaxDirectMemorySize. {@link FileChannel}
-   * Default: 1,000,000 which will consume 8MB of direct memory
+   * The queue, and the snapshot of it checkpoints are written from,
+   * each hold 8 bytes for the capacity rounded up to a power of two.
+   * Default: 1,000,000 which will consume 16MB of direct memory
+   * and 8MB on disk for each of the two checkpoint files
    */
   public static final String CAPACITY = "capacity";
   public static final int DEFAULT_CAPACITY = 1000000;
@@ -57,4 +60,82 @@ public class FileChannelConfiguration {
    */
   public static final String KEEP_ALIVE = "keep-alive";
   public static final int DEFAULT_KEEP_ALIVE = 3;
+  /**
+   * The length of time a commit will wait for concurrent commits
+   * to the same data directory so that they are all made durable
+   * by a single fsync. Commits which arrive while an fsync is in
+   * progress are always coalesced behind the next fsync, regardless
+   * of this setting. Default: 0 (ms)
+   */
+  public static final String GROUP_COMMIT_WINDOW = "groupCommitWindow";
+  public static final long DEFAULT_GROUP_COMMIT_WINDOW = 0L;
+  /**
+   * Maximum estimated heap, in bytes, used to cache recently put
+   * events so takes can be served without reading the data files.
+   * Default: 0 (disabled)
+   */
+  public static final String EVENT_CACHE_BYTES = "eventCacheBytes";
+  public static final long DEFAULT_EVENT_CACHE_BYTES = 0L;
+  /**
+   * Number of bytes read at once when takes walk a data file which is
+   * no longer being written. Each data file being read holds one such
+   * buffer on heap. Default: 1MB, 0 disables read ahead
+   */
+  public static final String READ_AHEAD_SIZE = "readAheadSize";
+  public static final int DEFAULT_READ_AHEAD_SIZE = 1024 * 1024;
+  /**
+   * Maximum number of events the background worker relocates at a time
+   * from the oldest data files, when those events are a small fraction
+   * of the files, so that the files can be deleted rather than being
+   * kept by a few events which have not been taken. Default: 0
+   * (disabled)
+   */
+  public static final String COMPACTION_MAX_EVENTS = "compactionMaxEvents";
+  public static final int DEFAULT_COMPACTION_MAX_EVENTS = 0;
+  /**
+   * Rate at which compaction reads and writes data files.
+   * Default: 1MB (per second), 0 for no limit
+   */
+  public static final String COMPACTION_BYTES_PER_SECOND =
+      "compactionBytesPerSecond";
+  public static final long DEFAULT_COMPACTION_BYTES_PER_SECOND =
+      1024L * 1024L;
+  /**
+   * Codec compressing the events written to data files: none, deflate,
+   * or the class name of a {@link CompressionCodec}. The codec of each
+   * data file is recorded in it, so data files written with a previous
+   * codec remain readable. Default: none
+   */
+  public static final String COMPRESSION_CODEC = "compressionCodec";
+  public static final String DEFAULT_COMPRESSION_CODEC =
+      CompressionCodecs.NONE;
+  /**
+   * When commits are made durable: sync, each commit returns once it is
+   * on disk; periodic, data files are synced in the background every
+   * syncInterval or once syncBytes are written; os, data files are
+   * only synced when rolled or closed and before checkpoints. A crash
+   * of the host loses the commits not yet synced. Default: sync
+   */
+  public static final String DURABILITY = "durability";
+  public static final String DEFAULT_DURABILITY = "sync";
+  /**
+   * Interval between syncs with periodic durability. Default: 1000 (ms)
+   */
+  public static final String SYNC_INTERVAL = "syncInterval";
+  public static final long DEFAULT_SYNC_INTERVAL = 1000L;
+  /**
+   * Bytes written to a data file which trigger a sync before the end of
+   * the interval with periodic durability. Default: 0 (none)
+   */
+  public static final String SYNC_BYTES = "syncBytes";
+  public static final long DEFAULT_SYNC_BYTES = 0L;
+  /**
+   * Records which may be queued for the write thread each data
+   * directory then has, which writes the commits of every transaction
+   * to its directory with a single gathering write so that committing
+   * threads do not contend for the data file. Default: 0 (committing
+   * threads write their own commits)
+   */
+  public static final String WRITE_QUEUE_SIZE = "writeQueueSize";
+  public static final int DEFAULT_WRITE_QUEUE_SIZE = 0;
 }
@@ -21,6 +21,8 @@ package org.apache.flume.channel.file;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import org.apache.flume.Event;
@@ -117,4 +119,58 @@ class FlumeEvent implements Event, Writable {
     event.readFields(in);
     return event;
   }
+
+  /**
+   * Encode the event compactly into buffer: the number of headers, the
+   * key and value of each header as varint length and UTF-8 bytes, then
+   * the body length plus one, zero for no body, and the body bytes.
+   */
+  void writeCompact(RecordBuffer buffer) {
+    Map<String, String> headers = getHeaders();
+    if(headers == null) {
+      buffer.putVarInt(0);
+    } else {
+      buffer.putVarInt(headers.size());
+      for(Map.Entry<String, String> entry : headers.entrySet()) {
+        buffer.putString(entry.getKey());
+        buffer.putString(entry.getValue());
+      }
+    }
+    byte[] body = getBody();
+    if(body == null) {
+      buffer.putVarInt(0);
+    } else {
+      buffer.putVarInt(body.length + 1);
+      buffer.putBytes(body);
+    }
+  }
+
+  /**
+   * @return the event encoded by {@link #writeCompact(RecordBuffer)} in
+   * length bytes of data at offset
+   */
+  static FlumeEvent fromCompact(byte[] data, int offset, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+    int count = RecordBuffer.getVarInt(buffer);
+    if(count > buffer.remaining()) {
+      throw new IOException("Invalid header count " + count);
+    }
+    Map<String, String> headers = Maps.newHashMapWithExpectedSize(count);
+    for (int index = 0; index < count; index++) {
+      String key = RecordBuffer.getString(buffer);
+      headers.put(key, RecordBuffer.getString(buffer));
+    }
+    byte[] body = null;
+    int bodyLength = RecordBuffer.getVarInt(buffer) - 1;
+    if(bodyLength >= 0) {
+      body = new byte[bodyLength];
+      try {
+        buffer.get(body);
+      } catch (BufferUnderflowException e) {
+        throw new IOException("Truncated body", e);
+      }
+    }
+    return new FlumeEvent(headers, body);
+  }
 }
\ No newline at end of file
@@ -23,6 +23,8 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -41,47 +43,129 @@ import com.google.common.collect.Maps;
  * {@link FlumeEventPointer} objects which are represented
  * as 8 byte longs internally. Additionally the queue itself
  * of longs is stored as a {@link LongBuffer} in DirectMemory
- * (off heap).
+ * (off heap). Slots are grouped into regions which record the
+ * generation in which they were last modified, allowing a
+ * {@link Checkpoint} to copy only the regions which changed since
+ * it was last written.
+ *
+ * The buffer is a ring whose number of slots is the capacity rounded
+ * up to a power of two, so head and tail sequences are mapped to
+ * slots with a mask. The tail is guarded by the monitor of the queue
+ * and the head by a separate lock, so threads committing puts do not
+ * contend with threads taking events. The number of events is kept
+ * in an atomic count which is reserved before an event is added and
+ * released after one is removed. Operations on the queue as a whole,
+ * such as {@link #removeAll(LongHashSet)} and
+ * {@link #snapshot(QueueSnapshot, long)}, hold both locks, always
+ * acquiring the monitor of the queue first.
  */
 class FlumeEventQueue implements Writable {
-  // XXX  We use % heavily which can be CPU intensive.
-  @SuppressWarnings("unused")
   private static final Logger LOG = LoggerFactory
   .getLogger(FlumeEventQueue.class);
   protected static final int VERSION = 1;
   protected static final int SIZE_OF_LONG = 8;
   protected static final int EMPTY = 0;
-  protected final Map<Integer, AtomicInteger> fileIDCounts = Maps.newHashMap();
+  /**
+   * Each region covers 512 slots, that is 4KB of the backing buffer.
+   */
+  protected static final int REGION_SHIFT = 9;
+  protected static final int REGION_SIZE = 1 << REGION_SHIFT;
+  protected static final int MAX_SLOTS = 1 << 27;
   protected final LongBuffer elements;
   protected final ByteBuffer backingBuffer;
-  // both fields will be modified by multiple threads
-  protected volatile int size;
-  protected volatile int next;
+  protected final int capacity;
+  protected final int mask;
+  protected final Object headLock = new Object();
+  // number of events on the queue including those being added
+  protected final AtomicInteger count = new AtomicInteger();
+  // sequence of the head, guarded by headLock
+  protected int head;
+  // sequence after the tail, guarded by this but read by consumers
+  protected volatile int tail;
+  // events per file added at the tail, guarded by this
+  protected final IntIntHashMap tailFileIDCounts = new IntIntHashMap();
+  // change in events per file made at the head, guarded by headLock
+  protected final IntIntHashMap headFileIDCounts = new IntIntHashMap();
+  // events removed from the head whose takes have been neither committed
+  // nor rolled back by adding them back, guarded by headLock
+  protected int pendingTakes;
+  // generation in which each region was last modified, written by
+  // threads holding either lock and read with both held
+  protected final int[] regionGenerations;
+  protected volatile int generation = 1;
   /**
    * @param capacity max event capacity of queue
    */
   FlumeEventQueue(int capacity) {
     Preconditions.checkArgument(capacity > 0, "Capacity must be greater than zero");
-    backingBuffer = DirectMemoryUtils.allocate(capacity * SIZE_OF_LONG);
+    Preconditions.checkArgument(capacity <= MAX_SLOTS, "Capacity must not be "
+        + "greater than " + MAX_SLOTS);
+    this.capacity = capacity;
+    int slots = Integer.highestOneBit(capacity);
+    if(slots < capacity) {
+      slots <<= 1;
+    }
+    mask = slots - 1;
+    backingBuffer = DirectMemoryUtils.allocate(slots * SIZE_OF_LONG);
     elements = backingBuffer.asLongBuffer();
     for (int index = 0; index < elements.capacity(); index++) {
       elements.put(index, EMPTY);
     }
+    regionGenerations = new int[((slots - 1) >> REGION_SHIFT) + 1];
   }
   /**
    * Retrieve and remove the head of the queue.
    *
    * @return FlumeEventPointer or null if queue is empty
    */
-  synchronized FlumeEventPointer removeHead() {
-    if(size() == 0) {
-      return null;
+  FlumeEventPointer removeHead() {
+    long value;
+    synchronized (headLock) {
+      int sequence = head;
+      if(sequence == tail) {
+        return null;
+      }
+      int slot = sequence & mask;
+      value = elements.get(slot);
+      Preconditions.checkState(value != EMPTY);
+      set(slot, EMPTY);
+      head = sequence + 1;
+      headFileIDCounts.add(FlumeEventPointer.fromLong(value).getFileID(), -1);
+      pendingTakes++;
+    }
+    count.decrementAndGet();
+    return FlumeEventPointer.fromLong(value);
+  }
+  /**
+   * Retrieve and remove up to max pointers from the head of the queue,
+   * holding the head lock once for all of them
+   *
+   * @param pointers collection the pointers removed are added to
+   * @return the number of pointers removed, 0 if the queue is empty
+   */
+  int removeHead(int max, Collection<FlumeEventPointer> pointers) {
+    int removed = 0;
+    synchronized (headLock) {
+      int sequence = head;
+      int end = tail;
+      while(removed < max && sequence != end) {
+        int slot = sequence & mask;
+        long value = elements.get(slot);
+        Preconditions.checkState(value != EMPTY);
+        set(slot, EMPTY);
+        FlumeEventPointer pointer = FlumeEventPointer.fromLong(value);
+        headFileIDCounts.add(pointer.getFileID(), -1);
+        pointers.add(pointer);
+        sequence++;
+        removed++;
+      }
+      head = sequence;
+      pendingTakes += removed;
+    }
+    if(removed > 0) {
+      count.addAndGet(-removed);
     }
-    long value = remove(0);
-    Preconditions.checkState(value != EMPTY);
-    FlumeEventPointer ptr = FlumeEventPointer.fromLong(value);
-    decrementFileID(ptr.getFileID());
-    return ptr;
+    return removed;
   }
   /**
    * Add a FlumeEventPointer to the head of the queue
@@ -89,14 +173,39 @@ class FlumeEventQueue implements Writable {
    * @return true if space was available and pointer was
    * added to the queue
    */
-  synchronized boolean addHead(FlumeEventPointer e) {
+  boolean addHead(FlumeEventPointer e) {
     long value = e.toLong();
     Preconditions.checkArgument(value != EMPTY);
-    if(add(0, value)) {
-      incrementFileID(e.getFileID());
-      return true;
+    if(!reserve()) {
+      return false;
+    }
+    synchronized (headLock) {
+      int sequence = head - 1;
+      set(sequence & mask, value);
+      head = sequence;
+      headFileIDCounts.add(e.getFileID(), 1);
+      pendingTakes--;
+    }
+    return true;
+  }
+  /**
+   * Record that the takes of events removed from the head were
+   * committed, so they are no longer pending
+   * @param takes the number of events taken
+   */
+  void commitTakes(int takes) {
+    synchronized (headLock) {
+      pendingTakes -= takes;
+    }
+  }
+  /**
+   * @return the number of events removed from the head whose takes
+   * have been neither committed nor rolled back
+   */
+  int getPendingTakes() {
+    synchronized (headLock) {
+      return pendingTakes;
     }
-    return false;
   }
   /**
    * Add a FlumeEventPointer to the tail of the queue
@@ -109,11 +218,15 @@ class FlumeEventQueue implements Writable {
   synchronized boolean addTail(FlumeEventPointer e) {
     long value = e.toLong();
     Preconditions.checkArgument(value != EMPTY);
-    if(add(size(), value)) {
-      incrementFileID(e.getFileID());
-      return true;
+    if(!reserve()) {
+      return false;
     }
-    return false;
+    int sequence = tail;
+    set(sequence & mask, value);
+    tailFileIDCounts.add(e.getFileID(), 1);
+    // publishes the slot to consumers
+    tail = sequence + 1;
+    return true;
   }
 
   /**
@@ -126,94 +239,206 @@ class FlumeEventQueue implements Writable {
   synchronized boolean remove(FlumeEventPointer e) {
     long value = e.toLong();
     Preconditions.checkArgument(value != EMPTY);
-    for (int i = 0; i < size; i++) {
-      if(get(i) == value) {
-        remove(i);
-        FlumeEventPointer ptr = FlumeEventPointer.fromLong(value);
-        decrementFileID(ptr.getFileID());
-        return true;
+    synchronized (headLock) {
+      int size = tail - head;
+      for (int i = 0; i < size; i++) {
+        if(get(i) == value) {
+          // shift the events before it towards the tail
+          for (int k = i; k > 0; k--) {
+            set(convert(k), get(k - 1));
+          }
+          set(convert(0), EMPTY);
+          head++;
+          count.decrementAndGet();
+          mergeFileIDCounts();
+          decrementFileID(e.getFileID());
+          return true;
+        }
       }
     }
     return false;
   }
+  /**
+   * Remove every FlumeEventPointer which is contained in values from
+   * the queue in a single pass, preserving the order of the remaining
+   * pointers. Pointers which are removed from the queue are also
+   * removed from values. Will normally only be used when recovering
+   * from a crash.
+   * @param values long representations of the pointers to be removed
+   * @return the number of pointers removed
+   */
+  synchronized int removeAll(LongHashSet values) {
+    if(values.isEmpty()) {
+      return 0;
+    }
+    synchronized (headLock) {
+      mergeFileIDCounts();
+      int size = tail - head;
+      int kept = 0;
+      for (int index = 0; index < size; index++) {
+        long value = get(index);
+        if(values.remove(value)) {
+          decrementFileID(FlumeEventPointer.fromLong(value).getFileID());
+        } else {
+          if(kept != index) {
+            set(convert(kept), value);
+          }
+          kept++;
+        }
+      }
+      int removed = size - kept;
+      for (int index = kept; index < size; index++) {
+        set(convert(index), EMPTY);
+      }
+      tail = head + kept;
+      count.addAndGet(-removed);
+      return removed;
+    }
+  }
   /**
    * @return the set of fileIDs which are currently on the queue
    * will be normally be used when deciding which data files can
    * be deleted
    */
   synchronized Set<Integer> getFileIDs() {
-    return new HashSet<Integer>(fileIDCounts.keySet());
+    synchronized (headLock) {
+      mergeFileIDCounts();
+      Set<Integer> fileIDs = new HashSet<Integer>();
+      for (int fileID : tailFileIDCounts.keys()) {
+        fileIDs.add(fileID);
+      }
+      return fileIDs;
+    }
   }
   /**
-   * @return current size of the queue, not the capacity
+   * @return the number of events on the queue for each fileID
    */
-  synchronized int size() {
-    return size;
+  synchronized Map<Integer, Integer> getFileIDCounts() {
+    synchronized (headLock) {
+      mergeFileIDCounts();
+      Map<Integer, Integer> counts = Maps.newHashMap();
+      for (int fileID : tailFileIDCounts.keys()) {
+        counts.put(fileID, tailFileIDCounts.get(fileID));
+      }
+      return counts;
+    }
   }
-  protected void incrementFileID(int fileID) {
-    AtomicInteger counter = fileIDCounts.get(fileID);
-    if(counter == null) {
-      counter = new AtomicInteger(0);
-      fileIDCounts.put(fileID, counter);
+  /**
+   * @return long representations of the pointers on the queue to
+   * events in the data file fileID, in ascending order
+   */
+  synchronized long[] getPointers(int fileID) {
+    synchronized (headLock) {
+      mergeFileIDCounts();
+      long[] pointers = new long[tailFileIDCounts.get(fileID)];
+      int found = 0;
+      int size = tail - head;
+      for (int index = 0; index < size && found < pointers.length; index++) {
+        long value = get(index);
+        if(FlumeEventPointer.fromLong(value).getFileID() == fileID) {
+          pointers[found++] = value;
+        }
+      }
+      Preconditions.checkState(found == pointers.length, "Found " + found +
+          " pointers to " + fileID + " but expected " + pointers.length);
+      Arrays.sort(pointers);
+      return pointers;
     }
-    counter.incrementAndGet();
   }
-
-  protected void decrementFileID(int fileID) {
-    AtomicInteger counter = fileIDCounts.get(fileID);
-    Preconditions.checkState(counter != null);
-    int count = counter.decrementAndGet();
-    if(count == 0) {
-      fileIDCounts.remove(fileID);
+  /**
+   * Replace each pointer on the queue which is contained in from by
+   * the pointer at the same index of to, in a single pass and without
+   * moving it in the queue. Used to relocate events to another data
+   * file.
+   * @param from long representations of the pointers to be replaced,
+   * in ascending order
+   * @param to long representations of their replacements
+   * @return the number of pointers replaced
+   */
+  synchronized int replaceAll(long[] from, long[] to) {
+    Preconditions.checkArgument(from.length == to.length,
+        "Replacements do not match the pointers replaced");
+    if(from.length == 0) {
+      return 0;
+    }
+    synchronized (headLock) {
+      mergeFileIDCounts();
+      int size = tail - head;
+      int replaced = 0;
+      for (int index = 0; index < size; index++) {
+        long value = get(index);
+        int found = Arrays.binarySearch(from, value);
+        if(found >= 0) {
+          long replacement = to[found];
+          Preconditions.checkArgument(replacement != EMPTY);
+          set(convert(index), replacement);
+          decrementFileID(FlumeEventPointer.fromLong(value).getFileID());
+          tailFileIDCounts.add(
+              FlumeEventPointer.fromLong(replacement).getFileID(), 1);
+          replaced++;
+        }
+      }
+      return replaced;
     }
   }
-
-  protected long get(int index) {
-    if (index < 0 || index > size - 1) {
-      throw new IndexOutOfBoundsException(String.valueOf(index));
+  /**
+   * @return current size of the queue, not the capacity
+   */
+  int size() {
+    return count.get();
+  }
+  /**
+   * Reserve space for an event to be added
+   * @return false if the queue is full
+   */
+  private boolean reserve() {
+    while(true) {
+      int current = count.get();
+      if(current >= capacity) {
+        return false;
+      }
+      if(count.compareAndSet(current, current + 1)) {
+        return true;
+      }
     }
-    return elements.get(convert(index));
   }
-
-  protected boolean add(int index, long value) {
-    if (index < 0 || index > size) {
-      throw new IndexOutOfBoundsException(String.valueOf(index));
+  /**
+   * Fold the changes made at the head into the counts made at the tail,
+   * must be called with both locks held
+   */
+  private void mergeFileIDCounts() {
+    if(headFileIDCounts.size() == 0) {
+      return;
     }
-    if (size + 1 > elements.capacity()) {
-      return false;
+    for (int fileID : headFileIDCounts.keys()) {
+      int delta = headFileIDCounts.get(fileID);
+      if(delta != 0 && tailFileIDCounts.add(fileID, delta) == 0) {
+        tailFileIDCounts.remove(fileID);
+      }
     }
-    // shift right if element is not added at the right
-    // edge of the array. the common case, add(size-1, value)
-    // will result in no copy operations
-    for (int k = size; k > index; k--) {
-      elements.put(convert(k),
-          elements.get(convert(k - 1)));
+    headFileIDCounts.clear();
+  }
+  /**
+   * Must be called with both locks held after merging the counts
+   */
+  private void decrementFileID(int fileID) {
+    Preconditions.checkState(tailFileIDCounts.containsKey(fileID));
+    if(tailFileIDCounts.add(fileID, -1) == 0) {
+      tailFileIDCounts.remove(fileID);
     }
-    elements.put(convert(index), value);
-    size++;
-    return true;
   }
 
-  protected long remove(int index) {
-    if (index < 0 || index > size - 1) {
-      throw new IndexOutOfBoundsException(String.valueOf(index));
-    }
-    long value = elements.get(convert(index));
-    // shift left if element removed is not on the left
-    // edge of the array. the common case, remove(0)
-    // will result in no copy operations
-    for (int k = index; k > 0; k--) {
-      elements.put(convert(k),
-          elements.get(convert(k - 1)));
-    }
-    elements.put(next % elements.capacity(), EMPTY);
-    next = (next + 1) % elements.capacity();
-    size--;
-    return value;
+  protected long get(int index) {
+    return elements.get(convert(index));
+  }
+
+  protected void set(int slot, long value) {
+    elements.put(slot, value);
+    regionGenerations[slot >> REGION_SHIFT] = generation;
   }
 
   protected int convert(int index) {
-    return (next + index % elements.capacity()) % elements.capacity();
+    return (head + index) & mask;
   }
 
   @Override
@@ -227,24 +452,117 @@ class FlumeEventQueue implements Writable {
       long value = input.readLong();
       FlumeEventPointer ptr = FlumeEventPointer.fromLong(value);
       Preconditions.checkState(value != EMPTY);
-      Preconditions.checkState(addHead(ptr), "Unable to add to queue");
+      Preconditions.checkState(addTail(ptr), "Unable to add to queue");
     }
   }
 
   @Override
   public synchronized void write(DataOutput output) throws IOException {
-    output.writeInt(VERSION);
-    output.writeInt(size);
-    for (int index = 0; index < size; index++) {
-      long value = elements.get(convert(index));
-      Preconditions.checkState(value != EMPTY);;
-      output.writeLong(value);
+    synchronized (headLock) {
+      int size = tail - head;
+      output.writeInt(VERSION);
+      output.writeInt(size);
+      for (int index = 0; index < size; index++) {
+        long value = get(index);
+        Preconditions.checkState(value != EMPTY);
+        output.writeLong(value);
+      }
+    }
+  }
+  /**
+   * Bring snapshot up to date with the queue, copying the regions of
+   * the queue modified since it was last taken. Holds both locks only
+   * for the duration of the memory copy, so a checkpoint can then be
+   * written from the snapshot without blocking the queue.
+   *
+   * @param timestamp recorded as the time of the snapshot
+   * @return the number of regions copied
+   */
+  synchronized int snapshot(QueueSnapshot snapshot, long timestamp) {
+    Preconditions.checkArgument(snapshot.getSlots() == getSlots(),
+        "Snapshot of " + snapshot.getSlots() + " slots does not match the "
+            + getSlots() + " slots of the queue");
+    synchronized (headLock) {
+      int sinceGeneration = snapshot.getGeneration();
+      int[] snapshotGenerations = snapshot.getRegionGenerations();
+      ByteBuffer source = backingBuffer.duplicate();
+      ByteBuffer destination = snapshot.getElements().duplicate();
+      int regionBytes = REGION_SIZE * SIZE_OF_LONG;
+      int copied = 0;
+      for (int region = 0; region < regionGenerations.length; region++) {
+        if(sinceGeneration < 0 || regionGenerations[region] > sinceGeneration) {
+          int start = region * regionBytes;
+          int end = Math.min(start + regionBytes, backingBuffer.capacity());
+          source.limit(end).position(start);
+          destination.limit(end).position(start);
+          destination.put(source);
+          snapshotGenerations[region] = regionGenerations[region];
+          copied++;
+        }
+      }
+      if(LOG.isDebugEnabled()) {
+        LOG.debug("Copied " + copied + " of " + regionGenerations.length
+            + " regions modified after generation " + sinceGeneration);
+      }
+      snapshot.set(generation++, capacity, head & mask, tail - head,
+          timestamp, pendingTakes);
+      return copied;
+    }
+  }
+  /**
+   * Replace the contents of the queue with source, which must hold
+   * an image, as taken by {@link #snapshot(QueueSnapshot, long)}, of a
+   * queue with the same number of slots.
+   *
+   * @return the generation of the image, regions modified after this
+   * call are of later generations
+   */
+  synchronized int copyFrom(ByteBuffer source, int head, int size) {
+    Preconditions.checkArgument(source.capacity() >= backingBuffer.capacity(),
+        "Source capacity " + source.capacity() + " is less than "
+            + backingBuffer.capacity());
+    Preconditions.checkArgument(size >= 0 && size <= getCapacity(),
+        "Invalid size " + size);
+    Preconditions.checkArgument(head >= 0 && head < getSlots(),
+        "Invalid head " + head);
+    synchronized (headLock) {
+      ByteBuffer src = source.duplicate();
+      src.limit(backingBuffer.capacity()).position(0);
+      ByteBuffer destination = backingBuffer.duplicate();
+      destination.clear();
+      destination.put(src);
+      this.head = head;
+      this.tail = head + size;
+      count.set(size);
+      tailFileIDCounts.clear();
+      headFileIDCounts.clear();
+      for (int index = 0; index < size; index++) {
+        long value = get(index);
+        Preconditions.checkState(value != EMPTY, "Empty slot at " + index);
+        tailFileIDCounts.add(FlumeEventPointer.fromLong(value).getFileID(), 1);
+      }
+      return generation++;
+    }
+  }
+  /**
+   * @return the slot which holds the head of the queue
+   */
+  int getHead() {
+    synchronized (headLock) {
+      return head & mask;
     }
   }
+  /**
+   * @return number of slots in the backing buffer, that is the
+   * capacity rounded up to a power of two
+   */
+  int getSlots() {
+    return elements.capacity();
+  }
   /**
    * @return max capacity of the queue
    */
   public int getCapacity() {
-    return elements.capacity();
+    return capacity;
   }
 }
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.util.Arrays;
+
+/**
+ * Map of primitive int keys to int values using open addressing with
+ * linear probing. Integer.MIN_VALUE is used to mark empty slots and
+ * cannot be used as a key, which suits non-negative log file ids.
+ * Not thread safe.
+ */
+class IntIntHashMap {
+  private static final int EMPTY = Integer.MIN_VALUE;
+  private static final int MIN_CAPACITY = 16;
+
+  private int[] keys;
+  private int[] values;
+  private int mask;
+  private int size;
+
+  IntIntHashMap() {
+    allocate(MIN_CAPACITY);
+  }
+
+  /**
+   * @return the value for key or 0 if key is not present
+   */
+  int get(int key) {
+    int index = indexOf(key);
+    return keys[index] == key ? values[index] : 0;
+  }
+
+  boolean containsKey(int key) {
+    return key != EMPTY && keys[indexOf(key)] == key;
+  }
+
+  /**
+   * Add delta to the value of key, adding key with a value of zero
+   * first if it is not present.
+   * @return the new value
+   */
+  int add(int key, int delta) {
+    if(key == EMPTY) {
+      throw new IllegalArgumentException("Cannot add " + EMPTY);
+    }
+    int index = indexOf(key);
+    if(keys[index] == key) {
+      return values[index] += delta;
+    }
+    keys[index] = key;
+    values[index] = delta;
+    if(++size > (keys.length >> 1)) {
+      rehash(keys.length << 1);
+    }
+    return delta;
+  }
+
+  /**
+   * @return true if the key was present
+   */
+  boolean remove(int key) {
+    if(key == EMPTY) {
+      return false;
+    }
+    int index = indexOf(key);
+    if(keys[index] != key) {
+      return false;
+    }
+    // shift back the following entries of the probe sequence so
+    // lookups do not stop early at the slot we just emptied
+    int gap = index;
+    int next = (gap + 1) & mask;
+    while(keys[next] != EMPTY) {
+      int home = hash(keys[next]) & mask;
+      if(((next - home) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        values[gap] = values[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[gap] = EMPTY;
+    values[gap] = 0;
+    size--;
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    Arrays.fill(keys, EMPTY);
+    Arrays.fill(values, 0);
+    size = 0;
+  }
+
+  /**
+   * @return the keys in the map, in no particular order
+   */
+  int[] keys() {
+    int[] result = new int[size];
+    int count = 0;
+    for (int key : keys) {
+      if(key != EMPTY) {
+        result[count++] = key;
+      }
+    }
+    return result;
+  }
+
+  private int indexOf(int key) {
+    int index = hash(key) & mask;
+    while(keys[index] != EMPTY && keys[index] != key) {
+      index = (index + 1) & mask;
+    }
+    return index;
+  }
+
+  private void rehash(int capacity) {
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(capacity);
+    for (int index = 0; index < oldKeys.length; index++) {
+      if(oldKeys[index] != EMPTY) {
+        int newIndex = indexOf(oldKeys[index]);
+        keys[newIndex] = oldKeys[index];
+        values[newIndex] = oldValues[index];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    values = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  private static int hash(int key) {
+    int hash = key * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+}
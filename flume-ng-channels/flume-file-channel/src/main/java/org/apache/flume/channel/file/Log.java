@@ -26,17 +26,23 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.apache.flume.CounterGroup;
 import org.apache.flume.Event;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,6 +61,51 @@ class Log {
   private static final Logger LOGGER = LoggerFactory.getLogger(Log.class);
   private static final int MIN_NUM_LOGS = 2;
   private static final String FILE_LOCK = "in_use.lock";
+  /**
+   * Bytes, and regions of contiguous bytes, of the data files skipped
+   * during replay because they did not hold intact records
+   */
+  static final String COUNTER_REPLAY_SKIPPED_BYTES = "log.replay.skipped.bytes";
+  static final String COUNTER_REPLAY_SKIPPED_REGIONS =
+      "log.replay.skipped.regions";
+  /**
+   * 1 if the data files were not replayed as the log had been shut
+   * down cleanly
+   */
+  static final String COUNTER_REPLAY_CLEAN = "log.replay.clean";
+  /**
+   * Data files compacted, events relocated and bytes read and written
+   * by compaction
+   */
+  static final String COUNTER_COMPACTION_FILES = "log.compaction.files";
+  static final String COUNTER_COMPACTION_EVENTS = "log.compaction.events";
+  static final String COUNTER_COMPACTION_BYTES = "log.compaction.bytes";
+  /**
+   * Checkpoints written, the duration of the last one, and the time
+   * the last one held the channel, and the longest such time, while
+   * taking a snapshot of the queue
+   */
+  static final String COUNTER_CHECKPOINTS = "log.checkpoints";
+  static final String COUNTER_CHECKPOINT_MILLIS = "log.checkpoint.time";
+  static final String COUNTER_CHECKPOINT_LOCK_MICROS =
+      "log.checkpoint.lock.time";
+  static final String COUNTER_CHECKPOINT_LOCK_MICROS_MAX =
+      "log.checkpoint.lock.time.max";
+  /**
+   * Followed by the name of the {@link Durability} of commits, set to 1
+   */
+  static final String COUNTER_DURABILITY_PREFIX = "log.durability.";
+  /**
+   * Transaction id of the put records which relocate events during
+   * compaction. They are never committed, so replay ignores them, the
+   * relocation being made durable by the checkpoint which follows it.
+   */
+  static final long COMPACTION_TRANSACTION_ID = -1L;
+  /**
+   * A data file is only compacted while the events on the queue which
+   * it holds amount to at most this fraction of its size
+   */
+  private static final double MAX_COMPACTION_LIVE_RATIO = 0.25D;
   // for reader
   private final Map<Integer, LogFile.RandomReader> idLogFileMap = Collections
       .synchronizedMap(new HashMap<Integer, LogFile.RandomReader>());
@@ -64,6 +115,7 @@ class Log {
   private final BackgroundWorker worker;
   private final int queueSize;
   private final AtomicReferenceArray<LogFile.Writer> logFiles;
+  private final CounterGroup counterGroup;
 
   private volatile boolean open;
   private AtomicReference<Checkpoint> checkpoint;
@@ -72,7 +124,46 @@ class Log {
   private FlumeEventQueue queue;
   private long checkpointInterval;
   private long maxFileSize;
+  private volatile long groupCommitWindow;
+  private final EventCache eventCache;
+  private volatile boolean eventCacheEnabled;
+  private volatile int readAheadSize;
+  private volatile int compactionMaxEvents;
+  private volatile long compactionBytesPerSecond;
+  private CompressionCodec compressionCodec;
+  private Durability durability = Durability.SYNC;
+  // syncs the data files with periodic durability
+  private LogFile.Syncer syncer;
+  // records queued for the write thread of each data file, 0 for none
+  private int writeQueueSize;
+  // time events were last relocated, until both checkpoints hold the
+  // relocation the data files they were relocated from must be kept
+  private volatile long lastRelocation;
   private final Map<String, FileLock> locks;
+  /**
+   * Held shared by batch commits from the time the timestamp of their
+   * record is taken until the puts are on the queue, and exclusively
+   * by checkpoints, so a checkpoint never claims a committed batch
+   * which is not in the queue it writes. Acquired before the monitor
+   * of the log.
+   */
+  private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+  /**
+   * Held for the whole of a checkpoint write, which takes a snapshot
+   * of the queue under checkpointLock and writes it once that is
+   * released, and by replay and close so that they do not overlap a
+   * checkpoint. Acquired before checkpointLock and the monitor of the
+   * log.
+   */
+  private final Object checkpointWriterLock = new Object();
+  // guarded by checkpointWriterLock
+  private QueueSnapshot snapshot;
+  /**
+   * Set once a put, take, commit or rollback has been logged as a
+   * record of its own, which unlike a batch does not update the queue,
+   * so only a replay of the data files can reconstruct it.
+   */
+  private volatile boolean unbatchedRecords;
 
   Log(long checkpointInterval, long maxFileSize, int queueSize,
       File checkpointDir, File... logDirs) throws IOException {
@@ -110,6 +201,9 @@ class Log {
     this.checkpointDir = checkpointDir;
     this.logDirs = logDirs;
     logFiles = new AtomicReferenceArray<LogFile.Writer>(this.logDirs.length);
+    counterGroup = new CounterGroup();
+    counterGroup.setName("Log-" + checkpointDir);
+    eventCache = new EventCache(0L, counterGroup);
     worker = new BackgroundWorker(this);
     worker.setName("Log-BackgroundWorker");
     worker.setDaemon(true);
@@ -121,7 +215,13 @@ class Log {
    * directly before the shutdown or crash.
    * @throws IOException
    */
-  synchronized void replay() throws IOException {
+  void replay() throws IOException {
+    synchronized (checkpointWriterLock) {
+      doReplay();
+    }
+  }
+
+  private synchronized void doReplay() throws IOException {
     Preconditions.checkState(!open, "Cannot replay after Log as been opened");
     try {
       /*
@@ -140,8 +240,11 @@ class Log {
           int id = LogUtils.getIDForFile(file);
           dataFiles.add(file);
           nextFileID.set(Math.max(nextFileID.get(), id));
-          idLogFileMap.put(id, new LogFile.RandomReader(new File(logDir, PREFIX
-              + id)));
+          LogFile.RandomReader reader = new LogFile.RandomReader(
+              new File(logDir, PREFIX + id), readAheadSize, counterGroup);
+          // files found on startup are never written again
+          reader.setImmutable();
+          idLogFileMap.put(id, reader);
         }
       }
       LOGGER.info("Found NextFileID " + nextFileID +
@@ -190,19 +293,69 @@ class Log {
         queue = new FlumeEventQueue(queueSize);
         checkpoint = new AtomicReference<Checkpoint>(checkpointA);
       }
+      Checkpoint readCheckpoint = null;
+      if (checkpointA.getTimestamp() != checkpointB.getTimestamp()) {
+        readCheckpoint = checkpoint.get() == checkpointA ? checkpointB :
+          checkpointA;
+      }
+      /*
+       * If the log was closed cleanly after writing the checkpoint just
+       * read, it holds the whole state and there is nothing to replay.
+       * The marker is removed before anything is written.
+       */
+      boolean clean = readCheckpoint != null &&
+          ShutdownMarker.isClean(checkpointDir, readCheckpoint.getTimestamp(),
+              dataFiles);
+      ShutdownMarker.delete(checkpointDir);
 
-      long ts = checkpoint.get().getTimestamp();
+      // the queue is as of the checkpoint it was read from, if any
+      long ts = readCheckpoint == null ? 0L : readCheckpoint.getTimestamp();
+      LOGGER.info("Commits have " + durability.getName() + " durability" +
+          (syncer == null ? "" : ", syncing every " +
+              syncer.getSyncInterval() + "ms or " + syncer.getSyncBytes() +
+              " bytes"));
+      counterGroup.set(COUNTER_DURABILITY_PREFIX + durability.getName(), 1L);
       LOGGER.info("Last Checkpoint " + new Date(ts) +
           ", queue depth = " + queue.size());
 
-      /*
-       * We now have everything we need to actually replay the log files
-       * the queue, the timestamp the queue was written to disk, and
-       * the list of data files.
-       */
-      ReplayHandler replayHandler = new ReplayHandler(queue,
-          checkpoint.get().getTimestamp());
-      replayHandler.replayLog(dataFiles);
+      if (clean) {
+        LOGGER.info("Log was shut down cleanly after the last checkpoint, " +
+            "skipping replay of " + dataFiles.size() + " data files");
+        counterGroup.set(COUNTER_REPLAY_CLEAN, 1L);
+      } else {
+        /*
+         * We now have everything we need to actually replay the log
+         * files the queue, the timestamp the queue was written to disk,
+         * and the list of data files. Reading starts at the position
+         * each file being written had reached at the checkpoint, files
+         * no longer written by then are not read at all. Without a
+         * checkpoint the queue is empty and every file is replayed.
+         */
+        Map<Integer, Long> startPositions = readCheckpoint == null ?
+            Collections.<Integer, Long>emptyMap() :
+            readCheckpoint.readWritePositions();
+        List<File> replayFiles = dataFiles;
+        if (!startPositions.isEmpty()) {
+          int maxFileID = Collections.max(startPositions.keySet());
+          replayFiles = Lists.newArrayList();
+          for (File dataFile : dataFiles) {
+            int id = LogUtils.getIDForFile(dataFile);
+            if (id > maxFileID || startPositions.containsKey(id)) {
+              replayFiles.add(dataFile);
+            }
+          }
+          LOGGER.info("Replaying " + replayFiles.size() + " of " +
+              dataFiles.size() + " data files from their positions at " +
+              "the checkpoint " + startPositions);
+        }
+        ReplayHandler replayHandler = new ReplayHandler(queue, ts,
+            startPositions);
+        replayHandler.replayLog(replayFiles);
+        counterGroup.set(COUNTER_REPLAY_SKIPPED_BYTES,
+            replayHandler.getSkippedBytes());
+        counterGroup.set(COUNTER_REPLAY_SKIPPED_REGIONS,
+            replayHandler.getSkippedRegions());
+      }
       for (int index = 0; index < logDirs.length; index++) {
         LOGGER.info("Rolling " + logDirs[index]);
         roll(index);
@@ -230,7 +383,8 @@ class Log {
   /**
    * Return the FlumeEvent for an event pointer. This method is
    * non-transactional. It is assumed the client has obtained this
-   * FlumeEventPointer via FlumeEventQueue.
+   * FlumeEventPointer via FlumeEventQueue. The event is served from
+   * the event cache, if enabled, when it was put recently.
    *
    * @param pointer
    * @return FlumeEventPointer
@@ -240,6 +394,12 @@ class Log {
   FlumeEvent get(FlumeEventPointer pointer) throws IOException,
   InterruptedException {
     Preconditions.checkState(open, "Log is closed");
+    if(eventCacheEnabled) {
+      FlumeEvent event = eventCache.take(pointer);
+      if(event != null) {
+        return event;
+      }
+    }
     int id = pointer.getFileID();
     LogFile.RandomReader logFile = idLogFileMap.get(id);
     Preconditions.checkNotNull(logFile, "LogFile is null for id " + id);
@@ -258,13 +418,16 @@ class Log {
   FlumeEventPointer put(long transactionID, Event event)
       throws IOException {
     Preconditions.checkState(open, "Log is closed");
+    if(transactionID != COMPACTION_TRANSACTION_ID) {
+      unbatchedRecords = true;
+    }
     FlumeEvent flumeEvent = new FlumeEvent(event.getHeaders(), event.getBody());
     Put put = new Put(transactionID, flumeEvent);
     put.setTimestamp(System.currentTimeMillis());
     ByteBuffer buffer = TransactionEventRecord.toByteBuffer(put);
     int logFileIndex = nextLogWriter(transactionID);
     if (logFiles.get(logFileIndex).isRollRequired(buffer)) {
-      roll(logFileIndex, buffer);
+      roll(logFileIndex, buffer.capacity());
     }
     boolean error = true;
     try {
@@ -289,13 +452,14 @@ class Log {
   void take(long transactionID, FlumeEventPointer pointer)
       throws IOException {
     Preconditions.checkState(open, "Log is closed");
+    unbatchedRecords = true;
     Take take = new Take(transactionID, pointer.getOffset(),
         pointer.getFileID());
     take.setTimestamp(System.currentTimeMillis());
     ByteBuffer buffer = TransactionEventRecord.toByteBuffer(take);
     int logFileIndex = nextLogWriter(transactionID);
     if (logFiles.get(logFileIndex).isRollRequired(buffer)) {
-      roll(logFileIndex, buffer);
+      roll(logFileIndex, buffer.capacity());
     }
     boolean error = true;
     try {
@@ -320,12 +484,13 @@ class Log {
     if(LOGGER.isDebugEnabled()) {
       LOGGER.debug("Rolling back " + transactionID);
     }
+    unbatchedRecords = true;
     Rollback rollback = new Rollback(transactionID);
     rollback.setTimestamp(System.currentTimeMillis());
     ByteBuffer buffer = TransactionEventRecord.toByteBuffer(rollback);
     int logFileIndex = nextLogWriter(transactionID);
     if (logFiles.get(logFileIndex).isRollRequired(buffer)) {
-      roll(logFileIndex, buffer);
+      roll(logFileIndex, buffer.capacity());
     }
     boolean error = true;
     try {
@@ -372,20 +537,118 @@ class Log {
     commit(transactionID, TransactionEventRecord.Type.TAKE.get());
   }
 
+  /**
+   * Log the puts of a transaction as a single batch record, which also
+   * commits the transaction, and add the pointers to the events to the
+   * queue once the record is on disk.
+   *
+   * Synchronization not required as this method is atomic
+   * @param transactionID
+   * @param events
+   * @throws IOException
+   */
+  void commitPuts(long transactionID, Collection<FlumeEvent> events)
+      throws IOException {
+    Preconditions.checkState(open, "Log is closed");
+    Batch batch = Batch.newPut(transactionID, events);
+    checkpointLock.readLock().lock();
+    try {
+      Pair<Integer, Integer> record = commit(batch);
+      int fileID = record.getLeft();
+      int offset = record.getRight();
+      int[] eventOffsets = batch.getEventOffsets();
+      FlumeEventPointer[] pointers = new FlumeEventPointer[eventOffsets.length];
+      for (int index = 0; index < pointers.length; index++) {
+        pointers[index] = new FlumeEventPointer(fileID,
+            offset + eventOffsets[index]);
+      }
+      // cache the events before a taker can find them in the queue,
+      // else it reads them from disk and the entries are never used
+      if(eventCacheEnabled) {
+        int index = 0;
+        for (FlumeEvent event : events) {
+          eventCache.put(pointers[index++], EventCache.copy(event.getHeaders(),
+              event.getBody()));
+        }
+      }
+      synchronized (queue) {
+        for (FlumeEventPointer pointer : pointers) {
+          if(!queue.addTail(pointer)) {
+            StringBuilder msg = new StringBuilder();
+            msg.append("Queue add failed, this shouldn't be able to ");
+            msg.append("happen. A portion of the transaction has been ");
+            msg.append("added to the queue but the remaining portion ");
+            msg.append("cannot be added. Those messages will be consumed ");
+            msg.append("despite this transaction failing. Please report.");
+            LOGGER.error(msg.toString());
+            Preconditions.checkState(false, msg.toString());
+          }
+        }
+      }
+    } finally {
+      checkpointLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Log the takes of a transaction as a single batch record, which also
+   * commits the transaction. The pointers must already have been
+   * removed from the queue.
+   *
+   * Synchronization not required as this method is atomic
+   * @param transactionID
+   * @param pointers
+   * @throws IOException
+   */
+  void commitTakes(long transactionID, Collection<FlumeEventPointer> pointers)
+      throws IOException {
+    Preconditions.checkState(open, "Log is closed");
+    Batch batch = Batch.newTake(transactionID, pointers);
+    checkpointLock.readLock().lock();
+    try {
+      commit(batch);
+      queue.commitTakes(pointers.size());
+    } finally {
+      checkpointLock.readLock().unlock();
+    }
+  }
+
   /**
    * Synchronization required since we do not want this
    * to be called during a checkpoint.
    */
-  synchronized void close() {
+  void close() {
+    synchronized (checkpointWriterLock) {
+      // let commits in progress finish, see shutdown()
+      checkpointLock.writeLock().lock();
+      try {
+        doClose();
+      } finally {
+        checkpointLock.writeLock().unlock();
+      }
+    }
+  }
+
+  private synchronized void doClose() {
+    boolean wasOpen = open;
     open = false;
     if (worker != null) {
       worker.shutdown();
     }
     if (logFiles != null) {
       for (int index = 0; index < logFiles.length(); index++) {
-        logFiles.get(index).close();
+        LogFile.Writer writer = logFiles.get(index);
+        if (writer != null) {
+          writer.close();
+        }
       }
     }
+    if (syncer != null) {
+      syncer.shutdown();
+    }
+    if (wasOpen) {
+      shutdown();
+    }
     synchronized (idLogFileMap) {
       for(Integer logId : idLogFileMap.keySet()) {
         LogFile.RandomReader reader = idLogFileMap.get(logId);
@@ -394,6 +657,14 @@ class Log {
         }
       }
     }
+    eventCache.clear();
+    if (checkpointA != null) {
+      checkpointA.close();
+    }
+    if (checkpointB != null) {
+      checkpointB.close();
+    }
+    snapshot = null;
     try {
       unlock(checkpointDir);
     } catch(IOException ex) {
@@ -408,6 +679,44 @@ class Log {
     }
   }
 
+  /**
+   * With the data files closed, write a final checkpoint and then a
+   * marker recording the shut down, so the next replay need not read
+   * the data files. Called holding the checkpoint lock exclusively, so
+   * no commit is in progress. Nothing is written while transactions
+   * hold events taken from the queue, or once records have been
+   * written outside of batches, since only a replay of the data files
+   * from the previous checkpoint restores those.
+   */
+  private void shutdown() {
+    if (unbatchedRecords || queue.getPendingTakes() != 0) {
+      LOGGER.info("Shut down with takes pending or records outside of " +
+          "batches, the data files will be replayed on start");
+      return;
+    }
+    try {
+      writeCheckpoint();
+      if (snapshot.getPendingTakes() != 0) {
+        // a take raced the checkpoint
+        return;
+      }
+      List<File> dataFiles = Lists.newArrayList();
+      for (File logDir : logDirs) {
+        dataFiles.addAll(LogUtils.getLogs(logDir));
+      }
+      // the checkpoint written is now the one to be read
+      Checkpoint lastCheckpoint = checkpoint.get() == checkpointA ?
+          checkpointB : checkpointA;
+      ShutdownMarker.write(checkpointDir, lastCheckpoint.getTimestamp(),
+          dataFiles);
+      LOGGER.info("Shut down cleanly with " + dataFiles.size() +
+          " data files");
+    } catch (Exception e) {
+      LOGGER.warn("Unable to write the shutdown checkpoint, the data files " +
+          "will be replayed on start", e);
+    }
+  }
+
   synchronized void shutdownWorker() {
     Preconditions.checkNotNull(worker, "worker");
     worker.shutdown();
@@ -418,6 +727,113 @@ class Log {
   void setMaxFileSize(long maxFileSize) {
     this.maxFileSize = maxFileSize;
   }
+  /**
+   * Set the time a commit waits for concurrent commits to the same
+   * data file so they can share a single fsync. Applies to the current
+   * writers as well as those created on future rolls.
+   */
+  void setGroupCommitWindow(long groupCommitWindow) {
+    this.groupCommitWindow = groupCommitWindow;
+    for (int index = 0; index < logFiles.length(); index++) {
+      LogFile.Writer writer = logFiles.get(index);
+      if(writer != null) {
+        writer.setGroupCommitWindow(groupCommitWindow);
+      }
+    }
+  }
+  /**
+   * Set the maximum estimated size in bytes of the events cached for
+   * takes, zero disables the cache.
+   */
+  void setEventCacheBytes(long eventCacheBytes) {
+    eventCache.setMaxBytes(eventCacheBytes);
+    eventCacheEnabled = eventCacheBytes > 0;
+  }
+  /**
+   * Set the number of bytes read at once when takes walk a data file
+   * which is no longer being written, zero disables read ahead.
+   * Applies to the current readers as well as those created later.
+   */
+  void setReadAheadSize(int readAheadSize) {
+    this.readAheadSize = readAheadSize;
+    synchronized (idLogFileMap) {
+      for (LogFile.RandomReader reader : idLogFileMap.values()) {
+        reader.setReadAheadSize(readAheadSize);
+      }
+    }
+  }
+  /**
+   * Set the maximum number of events relocated by each compaction,
+   * zero disables compaction
+   */
+  void setCompactionMaxEvents(int compactionMaxEvents) {
+    Preconditions.checkArgument(compactionMaxEvents >= 0,
+        "compactionMaxEvents < 0");
+    this.compactionMaxEvents = compactionMaxEvents;
+  }
+  /**
+   * Set the rate at which compaction reads and writes data files, zero
+   * for no limit
+   */
+  void setCompactionBytesPerSecond(long compactionBytesPerSecond) {
+    Preconditions.checkArgument(compactionBytesPerSecond >= 0L,
+        "compactionBytesPerSecond < 0");
+    this.compactionBytesPerSecond = compactionBytesPerSecond;
+  }
+  /**
+   * Set the codec which compresses the events of the batches written
+   * to data files, null for none. Data files written with other codecs
+   * are still read, provided their codecs are known.
+   */
+  void setCompressionCodec(CompressionCodec compressionCodec) {
+    Preconditions.checkState(!open, "Compression codec cannot be changed " +
+        "once the log is open");
+    this.compressionCodec = compressionCodec;
+  }
+  /**
+   * Set when commits are made durable. With periodic durability the
+   * data files are synced every syncInterval milliseconds, and once
+   * syncBytes have been written to one since it was last synced unless
+   * syncBytes is zero.
+   */
+  void setDurability(Durability durability, long syncInterval,
+      long syncBytes) {
+    Preconditions.checkState(!open, "Durability cannot be changed " +
+        "once the log is open");
+    Preconditions.checkNotNull(durability, "durability");
+    if (syncer != null) {
+      syncer.shutdown();
+      syncer = null;
+    }
+    if (durability == Durability.PERIODIC) {
+      syncer = new LogFile.Syncer(syncInterval, syncBytes);
+      syncer.start();
+    }
+    this.durability = durability;
+  }
+  /**
+   * Set the number of records which may be queued for the write thread
+   * each data file then has, which writes the commits of every
+   * committer to its directory. Zero, the default, has committers
+   * write their own commits.
+   */
+  void setWriteQueueSize(int writeQueueSize) {
+    Preconditions.checkState(!open, "Write queue size cannot be changed " +
+        "once the log is open");
+    Preconditions.checkArgument(writeQueueSize >= 0, "writeQueueSize < 0");
+    this.writeQueueSize = writeQueueSize;
+  }
+  EventCache getEventCache() {
+    return eventCache;
+  }
+  /**
+   * @return counters for this log, such as the number of syncs, the
+   * number of commits covered by those syncs and the event cache
+   * hits, misses and resident bytes
+   */
+  CounterGroup getCounterGroup() {
+    return counterGroup;
+  }
 
   /**
    * Synchronization not required as this method is atomic
@@ -427,12 +843,13 @@ class Log {
    * @throws IOException
    */
   private void commit(long transactionID, short type) throws IOException {
+    unbatchedRecords = true;
     Commit commit = new Commit(transactionID, type);
     commit.setTimestamp(System.currentTimeMillis());
     ByteBuffer buffer = TransactionEventRecord.toByteBuffer(commit);
     int logFileIndex = nextLogWriter(transactionID);
     if (logFiles.get(logFileIndex).isRollRequired(buffer)) {
-      roll(logFileIndex, buffer);
+      roll(logFileIndex, buffer.capacity());
     }
     boolean error = true;
     try {
@@ -444,6 +861,36 @@ class Log {
       }
     }
   }
+  /**
+   * Write a batch record with a single gathering write and wait for it
+   * to be on disk. Must be called holding the checkpoint lock shared.
+   *
+   * @return the fileID and the offset the events of the batch are
+   * relative to
+   * @throws IOException
+   */
+  private Pair<Integer, Integer> commit(Batch batch) throws IOException {
+    batch.setTimestamp(System.currentTimeMillis());
+    ByteBuffer[] buffers = batch.toByteBuffers(compressionCodec);
+    long size = LogFile.FRAME_HEADER_SIZE;
+    for (ByteBuffer buffer : buffers) {
+      size += buffer.remaining();
+    }
+    int logFileIndex = nextLogWriter(batch.getTransactionID());
+    if (logFiles.get(logFileIndex).isRollRequired(size)) {
+      roll(logFileIndex, size);
+    }
+    boolean error = true;
+    try {
+      Pair<Integer, Integer> result = logFiles.get(logFileIndex).commit(buffers);
+      error = false;
+      return result;
+    } finally {
+      if (error) {
+        roll(logFileIndex);
+      }
+    }
+  }
   /**
    * Atomic so not synchronization required.
    * @return
@@ -458,39 +905,47 @@ class Log {
    * @throws IOException
    */
   private void roll(int index) throws IOException {
-    roll(index, null);
+    roll(index, -1L);
   }
   /**
    * Roll a log if needed. Roll always occurs if the log at the index
-   * does not exist (typically on startup), or buffer is null. Otherwise
-   * LogFile.Writer.isRollRequired is checked again to ensure we don't
-   * have threads pile up on this log resulting in multiple successive
-   * rolls
+   * does not exist (typically on startup), or size is negative. Otherwise
+   * LogFile.Writer.isRollRequired is checked again for a write of size
+   * bytes to ensure we don't have threads pile up on this log resulting
+   * in multiple successive rolls
    *
    * Synchronization required since both synchronized and unsynchronized
    * methods call this method.
    * @param index
    * @throws IOException
    */
-  private synchronized void roll(int index, ByteBuffer buffer)
+  private synchronized void roll(int index, long size)
       throws IOException {
     LogFile.Writer oldLogFile = logFiles.get(index);
     // check to make sure a roll is actually required due to
     // the possibility of multiple writes waiting on lock
-    if(oldLogFile == null || buffer == null ||
-        oldLogFile.isRollRequired(buffer)) {
+    if(oldLogFile == null || size < 0L ||
+        oldLogFile.isRollRequired(size)) {
       try {
         LOGGER.info("Roll start " + logDirs[index]);
         int fileID = nextFileID.incrementAndGet();
         File file = new File(logDirs[index], PREFIX + fileID);
         Preconditions.checkState(!file.exists(), "File alread exists "  + file);
         Preconditions.checkState(file.createNewFile(), "File could not be created " + file);
-        idLogFileMap.put(fileID, new LogFile.RandomReader(file));
+        idLogFileMap.put(fileID, new LogFile.RandomReader(file,
+            readAheadSize, counterGroup));
         // writer from this point on will get new reference
-        logFiles.set(index, new LogFile.Writer(file, fileID, maxFileSize));
+        logFiles.set(index, new LogFile.Writer(file, fileID, maxFileSize,
+            groupCommitWindow, counterGroup, compressionCodec, durability,
+            syncer, writeQueueSize));
         // close out old log
         if (oldLogFile != null) {
           oldLogFile.close();
+          LogFile.RandomReader reader =
+              idLogFileMap.get(oldLogFile.getFileID());
+          if(reader != null) {
+            reader.setImmutable();
+          }
         }
       } finally {
         LOGGER.info("Roll end");
@@ -501,16 +956,64 @@ class Log {
    * Write the current checkpoint object and then swap objects so that
    * the next checkpoint occurs on the other checkpoint directory.
    *
+   * Commits and the queue are only held while the modified regions of
+   * the queue are copied to a snapshot, the checkpoint file is written
+   * and synced from the snapshot once they are released.
+   *
    * Synchronization required since both synchronized and unsynchronized
    * @throws IOException if we are unable to write the checkpoint out to disk
    */
-  private synchronized void writeCheckpoint() throws IOException {
-    synchronized (queue) {
-      checkpoint.get().write(queue);
+  private void writeCheckpoint() throws IOException {
+    synchronized (checkpointWriterLock) {
+      long start = System.nanoTime();
+      long lockNanos;
+      Map<Integer, Long> writePositions = Maps.newHashMap();
+      List<LogFile.Writer> writers = Lists.newArrayList();
+      checkpointLock.writeLock().lock();
+      try {
+        long locked = System.nanoTime();
+        synchronized (this) {
+          synchronized (queue) {
+            if(snapshot == null || snapshot.getSlots() != queue.getSlots()) {
+              snapshot = new QueueSnapshot(queue.getSlots());
+            }
+            // positions first, every record before them is older than
+            // the snapshot
+            for (int index = 0; index < logFiles.length(); index++) {
+              LogFile.Writer writer = logFiles.get(index);
+              if (writer != null) {
+                writePositions.put(writer.getFileID(), writer.length());
+                writers.add(writer);
+              }
+            }
+            queue.snapshot(snapshot, System.currentTimeMillis());
+          }
+        }
+        lockNanos = System.nanoTime() - locked;
+      } finally {
+        checkpointLock.writeLock().unlock();
+      }
+      if (durability != Durability.SYNC) {
+        // the events the snapshot refers to must be on disk before it
+        for (LogFile.Writer writer : writers) {
+          writer.sync();
+        }
+      }
+      checkpoint.get().write(snapshot, writePositions);
       if (!checkpoint.compareAndSet(checkpointA, checkpointB)) {
         Preconditions.checkState(checkpoint.compareAndSet(checkpointB,
             checkpointA));
       }
+      long lockMicros = TimeUnit.NANOSECONDS.toMicros(lockNanos);
+      counterGroup.incrementAndGet(COUNTER_CHECKPOINTS);
+      counterGroup.set(COUNTER_CHECKPOINT_MILLIS,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      counterGroup.set(COUNTER_CHECKPOINT_LOCK_MICROS, lockMicros);
+      synchronized (counterGroup) {
+        if(counterGroup.get(COUNTER_CHECKPOINT_LOCK_MICROS_MAX) < lockMicros) {
+          counterGroup.set(COUNTER_CHECKPOINT_LOCK_MICROS_MAX, lockMicros);
+        }
+      }
     }
   }
   /**
@@ -523,8 +1026,148 @@ class Log {
     return checkpoint.get().getTimestamp();
   }
 
-  private void removeOldLogs() {
+  /**
+   * Relocate the events on the queue from the oldest data files to the
+   * current data files, so that {@link #removeOldLogs()} can delete
+   * them. Since a data file is only deleted once every older file is,
+   * files are compacted oldest first, and only while their events
+   * amount to a small fraction of their size and number at most
+   * compactionMaxEvents in total.
+   *
+   * Events are copied as put records which are never committed. Once
+   * they are on disk the pointers on the queue are replaced, keeping
+   * their position, and a checkpoint is written which makes the
+   * relocation durable. Reads and writes are throttled to
+   * compactionBytesPerSecond so that compaction does not compete with
+   * commits for the disks.
+   *
+   * Synchronization not required, called by the background worker only
+   */
+  void compact() throws IOException, InterruptedException {
+    int maxEvents = compactionMaxEvents;
+    if(maxEvents <= 0 || !open) {
+      return;
+    }
+    Set<Integer> writing = new TreeSet<Integer>();
+    for (int index = 0; index < logFiles.length(); index++) {
+      writing.add(logFiles.get(index).getFileID());
+    }
+    Throttle throttle = new Throttle(compactionBytesPerSecond);
+    List<long[]> relocatedFrom = Lists.newArrayList();
+    List<long[]> relocatedTo = Lists.newArrayList();
+    int events = 0;
+    Map<Integer, Integer> fileIDCounts =
+        new TreeMap<Integer, Integer>(queue.getFileIDCounts());
+    for (Map.Entry<Integer, Integer> entry : fileIDCounts.entrySet()) {
+      int fileID = entry.getKey();
+      LogFile.RandomReader reader = idLogFileMap.get(fileID);
+      if(writing.contains(fileID) || reader == null ||
+          events + entry.getValue() > maxEvents) {
+        break;
+      }
+      long[] pointers = queue.getPointers(fileID);
+      if(!isSparse(reader, pointers, throttle)) {
+        break;
+      }
+      LOGGER.info("Compacting " + reader.getFile() + ", relocating " +
+          pointers.length + " events");
+      relocatedFrom.add(pointers);
+      relocatedTo.add(relocate(reader, pointers, throttle));
+      events += pointers.length;
+    }
+    if(relocatedFrom.isEmpty()) {
+      return;
+    }
+    for (int index = 0; index < logFiles.length(); index++) {
+      logFiles.get(index).sync();
+    }
+    // files were visited in ascending order so the pointers are too
+    long[] from = new long[events];
+    long[] to = new long[events];
+    int position = 0;
+    for (int index = 0; index < relocatedFrom.size(); index++) {
+      long[] pointers = relocatedFrom.get(index);
+      System.arraycopy(pointers, 0, from, position, pointers.length);
+      System.arraycopy(relocatedTo.get(index), 0, to, position,
+          pointers.length);
+      position += pointers.length;
+    }
+    int replaced = queue.replaceAll(from, to);
+    lastRelocation = System.currentTimeMillis();
+    writeCheckpoint();
+    counterGroup.addAndGet(COUNTER_COMPACTION_FILES,
+        (long) relocatedFrom.size());
+    counterGroup.addAndGet(COUNTER_COMPACTION_EVENTS, (long) replaced);
+    counterGroup.addAndGet(COUNTER_COMPACTION_BYTES, throttle.getBytes());
+    LOGGER.info("Compacted " + relocatedFrom.size() + " data files, " +
+        "relocated " + replaced + " events, " + (events - replaced) +
+        " were taken meanwhile");
+  }
+  /**
+   * @return true if the events at pointers in the data file read by
+   * reader amount to a small enough fraction of its size to relocate
+   */
+  private boolean isSparse(LogFile.RandomReader reader, long[] pointers,
+      Throttle throttle) throws IOException, InterruptedException {
+    long maxLiveBytes = (long) (reader.getFile().length() *
+        MAX_COMPACTION_LIVE_RATIO);
+    long liveBytes = 0L;
+    for (long pointer : pointers) {
+      FlumeEvent event = reader.get(
+          FlumeEventPointer.fromLong(pointer).getOffset());
+      long size = sizeOf(event);
+      liveBytes += size;
+      if(liveBytes > maxLiveBytes) {
+        return false;
+      }
+      throttle.acquire(size);
+    }
+    return true;
+  }
+  /**
+   * Copy the events at pointers into the current data files
+   * @return long representations of the pointers to the copies
+   */
+  private long[] relocate(LogFile.RandomReader reader, long[] pointers,
+      Throttle throttle) throws IOException, InterruptedException {
+    long[] relocated = new long[pointers.length];
+    for (int index = 0; index < pointers.length; index++) {
+      FlumeEvent event = reader.get(
+          FlumeEventPointer.fromLong(pointers[index]).getOffset());
+      relocated[index] = put(COMPACTION_TRANSACTION_ID, event).toLong();
+      // read and written
+      throttle.acquire(2L * sizeOf(event));
+    }
+    return relocated;
+  }
+  /**
+   * @return the approximate size of the event in a data file
+   */
+  private static long sizeOf(FlumeEvent event) {
+    long size = 0L;
+    byte[] body = event.getBody();
+    if(body != null) {
+      size += body.length;
+    }
+    Map<String, String> headers = event.getHeaders();
+    if(headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        size += RecordBuffer.utf8Length(header.getKey());
+        size += RecordBuffer.utf8Length(header.getValue());
+      }
+    }
+    return size;
+  }
+
+  private void removeOldLogs() throws IOException {
     Preconditions.checkState(open, "Log is closed");
+    if(lastRelocation > getLastCheckpoint()) {
+      // replay starts from the older of the two checkpoints, which may
+      // still point to relocated events
+      LOGGER.debug("Not removing logs until events relocated at " +
+          lastRelocation + " are in both checkpoints");
+      return;
+    }
     // we will find the smallest fileID currently in use and
     // won't delete any files with an id larger than the min
     Set<Integer> fileIDs = new TreeSet<Integer>(queue.getFileIDs());
@@ -621,6 +1264,30 @@ class Log {
     lock.channel().close();
     lock = null;
   }
+  /**
+   * Limits the rate at which bytes are processed by sleeping
+   */
+  private static class Throttle {
+    private final long bytesPerSecond;
+    private final long start = System.currentTimeMillis();
+    private long bytes;
+    Throttle(long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+    }
+    void acquire(long count) throws InterruptedException {
+      bytes += count;
+      if(bytesPerSecond > 0L) {
+        long due = start + (bytes * 1000L) / bytesPerSecond;
+        long wait = due - System.currentTimeMillis();
+        if(wait > 0L) {
+          Thread.sleep(wait);
+        }
+      }
+    }
+    long getBytes() {
+      return bytes;
+    }
+  }
   static class BackgroundWorker extends Thread {
     private static final Logger LOG = LoggerFactory
         .getLogger(BackgroundWorker.class);
@@ -655,9 +1322,15 @@ class Log {
               log.writeCheckpoint();
             }
           }
+          if(log.open) {
+            log.compact();
+          }
           if(log.open) {
             log.removeOldLogs();
           }
+        } catch (InterruptedException e) {
+          // recheck run flag
+          continue;
         } catch (IOException e) {
           LOG.error("Error doing checkpoint", e);
         } catch (Exception e) {
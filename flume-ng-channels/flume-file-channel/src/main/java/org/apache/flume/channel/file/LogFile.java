@@ -18,22 +18,39 @@
  */
 package org.apache.flume.channel.file;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
+import org.apache.flume.CounterGroup;
 import org.apache.flume.tools.DirectMemoryUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.common.io.CountingInputStream;
 
 /**
  * Represents a single data file on disk. Has methods to write,
@@ -53,62 +70,379 @@ class LogFile {
   public static final long MAX_FILE_SIZE =
       Integer.MAX_VALUE - (1024L * 1024L);
 
-  private static final byte OP_RECORD = Byte.MAX_VALUE;
+  /**
+   * Precedes each record in files of version 1 and 2
+   */
+  static final byte OP_RECORD = Byte.MAX_VALUE;
   private static final byte OP_EOF = Byte.MIN_VALUE;
+  /**
+   * Precedes each record in files of version 3 and later, followed by
+   * the length and the CRC32 of the record
+   */
+  private static final byte OP_FRAME = Byte.MAX_VALUE - 2;
+  /**
+   * Bytes of the op code, length and checksum which precede a record
+   */
+  static final int FRAME_HEADER_SIZE = 1 + 4 + 4;
 
   static {
     for (int i = 0; i < FILL.capacity(); i++) {
       FILL.put(OP_EOF);
     }
   }
-  private static final int VERSION = 1;
+  /**
+   * Files of version 1 hold a record for each put, take, rollback and
+   * commit. Version 2 adds {@link Batch} records, which hold the puts
+   * or takes of a committed transaction, each put framed by OP_EVENT.
+   * Version 3 frames each record with its length and checksum, so that
+   * replay can detect a corrupt record and resume at the next intact
+   * one. Version 4 encodes the events of batches compactly, framed by
+   * OP_COMPACT_EVENT. Version 5 records the {@link CompressionCodec} of
+   * the file in its header, events compressed by it being framed by
+   * OP_COMPRESSED_EVENT. Version 6 ends each event of a batch with its
+   * checksum, framed by OP_CHECKED_COMPACT_EVENT or
+   * OP_CHECKED_COMPRESSED_EVENT, as the checksum of the record is not
+   * read when a single event is. All versions are read.
+   */
+  static final int VERSION_1 = 1;
+  static final int VERSION_2 = 2;
+  static final int VERSION_3 = 3;
+  static final int VERSION_4 = 4;
+  static final int VERSION_5 = 5;
+  static final int VERSION = 6;
+  /**
+   * Precedes each event in a {@link Batch}, pointers to events in a
+   * batch are the offsets of this op code
+   */
+  static final byte OP_EVENT = Byte.MAX_VALUE - 1;
+  /**
+   * Precedes each compactly encoded event in a {@link Batch}, see
+   * {@link FlumeEvent#writeCompact(RecordBuffer)}
+   */
+  static final byte OP_COMPACT_EVENT = Byte.MAX_VALUE - 3;
+  /**
+   * Precedes each compressed event in a {@link Batch}, which holds the
+   * length of the compact encoding of the event as a varint followed by
+   * that encoding compressed by the codec of the file
+   */
+  static final byte OP_COMPRESSED_EVENT = Byte.MAX_VALUE - 4;
+  /**
+   * Precede each event in a {@link Batch} as OP_COMPACT_EVENT and
+   * OP_COMPRESSED_EVENT do, the event ending with the CRC32 of the
+   * bytes before it, which its length includes
+   */
+  static final byte OP_CHECKED_COMPACT_EVENT = Byte.MAX_VALUE - 5;
+  static final byte OP_CHECKED_COMPRESSED_EVENT = Byte.MAX_VALUE - 6;
+  /**
+   * Bytes of the checksum which ends each checked event
+   */
+  static final int EVENT_CHECKSUM_SIZE = 4;
 
 
+  /**
+   * Counter names published by {@link Writer} into the
+   * {@link CounterGroup} supplied by the {@link Log}.
+   */
+  static final String COUNTER_SYNCS = "log.syncs";
+  static final String COUNTER_SYNC_COMMITS = "log.sync.commits";
+  static final String COUNTER_SYNC_COMMITS_MAX = "log.sync.commits.max";
+  /**
+   * Syncs requested by commits which reached the byte threshold of
+   * periodic durability
+   */
+  static final String COUNTER_SYNC_REQUESTS = "log.sync.requests";
+  /**
+   * Gathering writes made by the write threads of writers, and the
+   * records they wrote
+   */
+  static final String COUNTER_WRITE_BATCHES = "log.write.batches";
+  static final String COUNTER_WRITE_BATCH_RECORDS = "log.write.batch.records";
+  /**
+   * Counter names published by {@link RandomReader}.
+   */
+  static final String COUNTER_READS = "log.reads";
+  static final String COUNTER_READ_AHEAD_HITS = "log.readahead.hits";
+  static final String COUNTER_READ_AHEAD_FILLS = "log.readahead.fills";
+
+  /**
+   * @return the CRC32 of the remaining bytes of buffers, computed from
+   * their backing arrays without copying them or moving their positions
+   */
+  static int checksum(CRC32 crc, ByteBuffer[] buffers) {
+    crc.reset();
+    for (ByteBuffer buffer : buffers) {
+      Preconditions.checkArgument(buffer.hasArray(),
+          "Buffer is not backed by an array");
+      crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(),
+          buffer.remaining());
+    }
+    return (int) crc.getValue();
+  }
+
+  /**
+   * @return the record held by length bytes of data at offset, or null
+   * if they do not match checksum
+   */
+  private static TransactionEventRecord fromFrame(byte[] data, int offset,
+      int length, int checksum) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(data, offset, length);
+    if((int) crc.getValue() != checksum) {
+      return null;
+    }
+    return TransactionEventRecord.fromDataInput(new DataInputStream(
+        new ByteArrayInputStream(data, offset, length)));
+  }
+
+  /**
+   * @return the event compressed in length bytes of data at offset
+   */
+  static FlumeEvent fromCompressed(byte[] data, int offset, int length,
+      CompressionCodec codec) throws IOException {
+    if(codec == null) {
+      throw new IOException("Compressed event in a file without a " +
+          "compression codec");
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+    int uncompressedLength = RecordBuffer.getVarInt(buffer);
+    byte[] uncompressed = new byte[uncompressedLength];
+    codec.decompress(data, buffer.position(), buffer.remaining(),
+        uncompressed);
+    return FlumeEvent.fromCompact(uncompressed, 0, uncompressedLength);
+  }
+
+  /**
+   * @return true if operation frames an event of a {@link Batch}
+   */
+  static boolean isBatchEvent(byte operation) {
+    return operation == OP_EVENT || operation == OP_COMPACT_EVENT ||
+        operation == OP_COMPRESSED_EVENT ||
+        operation == OP_CHECKED_COMPACT_EVENT ||
+        operation == OP_CHECKED_COMPRESSED_EVENT;
+  }
+
+  /**
+   * @return the event of a batch framed by operation, held by length
+   * bytes of data at offset, or null if it is a checked event which
+   * does not match its checksum
+   * @param codec the codec of the file
+   */
+  static FlumeEvent fromBatchEvent(byte operation, byte[] data, int offset,
+      int length, CompressionCodec codec) throws IOException {
+    if(operation == OP_CHECKED_COMPACT_EVENT ||
+        operation == OP_CHECKED_COMPRESSED_EVENT) {
+      length -= EVENT_CHECKSUM_SIZE;
+      if(length < 0) {
+        return null;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data, offset, length);
+      if((int) crc.getValue() !=
+          ByteBuffer.wrap(data).getInt(offset + length)) {
+        return null;
+      }
+    }
+    if(operation == OP_COMPRESSED_EVENT ||
+        operation == OP_CHECKED_COMPRESSED_EVENT) {
+      return fromCompressed(data, offset, length, codec);
+    }
+    if(operation == OP_COMPACT_EVENT ||
+        operation == OP_CHECKED_COMPACT_EVENT) {
+      return FlumeEvent.fromCompact(data, offset, length);
+    }
+    Preconditions.checkArgument(operation == OP_EVENT, "Operation " +
+        Integer.toHexString(operation) + " is not an event");
+    return FlumeEvent.from(new DataInputStream(
+        new ByteArrayInputStream(data, offset, length)));
+  }
+
+  /**
+   * Writes records to a data file. Commits are group committed: a
+   * committer writes its record under the writer monitor and then
+   * waits outside of it for the data to become durable. The first
+   * committer to find its bytes unsynced becomes the leader, optionally
+   * waits for the group commit window so that other committers can
+   * write their records, and then issues a single force() which covers
+   * every record written before it. Committers arriving while that
+   * force() is in flight queue behind it and find their bytes durable
+   * when it completes, or lead the next one.
+   *
+   * That is the {@link Durability#SYNC} mode. With
+   * {@link Durability#PERIODIC} a commit returns once written and the
+   * file is synced by a {@link Syncer}, with {@link Durability#OS}
+   * only when it is closed or {@link #sync()} is called.
+   *
+   * Optionally commits are written by a write thread of the writer
+   * rather than by the committers. A committer then only queues its
+   * encoded record and waits for the result. The write thread writes
+   * every record queued with a single gathering write, syncs them as
+   * the durability requires, and completes their results, so that
+   * records queue up while it is writing and syncing.
+   */
   static class Writer {
+    /**
+     * Most records written by a single gathering write
+     */
+    private static final int MAX_WRITE_BATCH = 1000;
+    private static final WriteRequest STOP = new WriteRequest(null);
+
     private final int fileID;
     private final File file;
     private final long maxFileSize;
     private final RandomAccessFile writeFileHandle;
     private final FileChannel writeFileChannel;
+    private final CounterGroup counters;
+    private final CompressionCodec codec;
+    private final Durability durability;
+    private final Syncer syncer;
+    /**
+     * Lock ordering is syncLock then the writer monitor.
+     */
+    private final Object syncLock = new Object();
+    // written holding syncLock
+    private volatile long lastSyncPosition;
+    // guarded by this
+    private int unsyncedCommits;
+    // reused by each write, guarded by this
+    private final ByteBuffer frameHeader =
+        ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+
+    // records queued for the write thread, null if there is none
+    private final BlockingQueue<WriteRequest> writeQueue;
+    private final Thread writeThread;
+    private final AtomicBoolean stopping = new AtomicBoolean();
 
+    private volatile long groupCommitWindow;
     private volatile boolean open;
+    // guarded by this
+    private long closedLength;
 
     Writer(File file, int logFileID, long maxFileSize) throws IOException {
+      this(file, logFileID, maxFileSize, 0L, new CounterGroup(), null);
+    }
+
+    /**
+     * @param codec compresses the events of the batches written, null
+     * for none
+     */
+    Writer(File file, int logFileID, long maxFileSize,
+        long groupCommitWindow, CounterGroup counters,
+        CompressionCodec codec) throws IOException {
+      this(file, logFileID, maxFileSize, groupCommitWindow, counters, codec,
+          Durability.SYNC, null);
+    }
+
+    /**
+     * @param syncer syncs the file in the background, required for
+     * {@link Durability#PERIODIC} and ignored otherwise
+     */
+    Writer(File file, int logFileID, long maxFileSize,
+        long groupCommitWindow, CounterGroup counters,
+        CompressionCodec codec, Durability durability, Syncer syncer)
+            throws IOException {
+      this(file, logFileID, maxFileSize, groupCommitWindow, counters, codec,
+          durability, syncer, 0);
+    }
+
+    /**
+     * @param writeQueueSize the number of records which may be queued
+     * for the write thread of the writer, 0 for commits to be written by
+     * the committing threads
+     */
+    Writer(File file, int logFileID, long maxFileSize,
+        long groupCommitWindow, CounterGroup counters,
+        CompressionCodec codec, Durability durability, Syncer syncer,
+        int writeQueueSize) throws IOException {
+      Preconditions.checkArgument(writeQueueSize >= 0, "writeQueueSize < 0");
+      Preconditions.checkArgument(durability != Durability.PERIODIC ||
+          syncer != null, "Periodic durability requires a syncer");
       this.file = file;
       fileID = logFileID;
       this.maxFileSize = Math.min(maxFileSize, MAX_FILE_SIZE);
+      this.groupCommitWindow = groupCommitWindow;
+      this.counters = counters;
+      this.codec = codec;
+      this.durability = durability;
+      this.syncer = durability == Durability.PERIODIC ? syncer : null;
       writeFileHandle = new RandomAccessFile(file, "rw");
       writeFileHandle.writeInt(VERSION);
       writeFileHandle.writeInt(fileID);
+      writeFileHandle.writeInt(CompressionCodecs.getID(codec));
       writeFileChannel = writeFileHandle.getChannel();
       writeFileChannel.force(true);
-      LOG.info("Opened " + file);
+      lastSyncPosition = writeFileChannel.position();
+      LOG.info("Opened " + file + " with " + durability.getName() +
+          " durability");
       open = true;
+      if(this.syncer != null) {
+        this.syncer.add(this);
+      }
+      if(writeQueueSize > 0) {
+        writeQueue = new ArrayBlockingQueue<WriteRequest>(writeQueueSize);
+        writeThread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            writeQueued();
+          }
+        }, "LogFile-Writer-" + file.getParentFile().getName() + "-" +
+            fileID);
+        writeThread.setDaemon(true);
+        writeThread.start();
+      } else {
+        writeQueue = null;
+        writeThread = null;
+      }
     }
 
     String getParent() {
       return file.getParent();
     }
-    synchronized void close() {
-      if(open) {
-        open = false;
-        if(writeFileChannel.isOpen()) {
-          LOG.info("Closing " + file);
-          try {
-            writeFileChannel.force(false);
-          } catch (IOException e) {
-            LOG.warn("Unable to flush to disk", e);
-          }
-          try {
-            writeFileHandle.close();
-          } catch (IOException e) {
-            LOG.info("Unable to close", e);
+    void close() {
+      if(syncer != null) {
+        syncer.remove(this);
+      }
+      if(writeThread != null) {
+        // the records queued before are written first
+        if(stopping.compareAndSet(false, true)) {
+          Uninterruptibles.putUninterruptibly(writeQueue, STOP);
+        }
+        Uninterruptibles.joinUninterruptibly(writeThread);
+        failQueued();
+      }
+      synchronized (syncLock) {
+        synchronized (this) {
+          if(open) {
+            open = false;
+            if(writeFileChannel.isOpen()) {
+              LOG.info("Closing " + file);
+              try {
+                closedLength = writeFileChannel.position();
+                writeFileChannel.force(false);
+                lastSyncPosition = writeFileChannel.position();
+              } catch (IOException e) {
+                LOG.warn("Unable to flush to disk", e);
+              }
+              try {
+                writeFileHandle.close();
+              } catch (IOException e) {
+                LOG.info("Unable to close", e);
+              }
+            }
           }
         }
       }
     }
 
+    /**
+     * @return the position the next record will be written at, or the
+     * length written once closed
+     */
     synchronized long length() throws IOException {
+      if(!open) {
+        return closedLength;
+      }
       return writeFileChannel.position();
     }
 
@@ -122,35 +456,351 @@ class LogFile {
     synchronized void rollback(ByteBuffer buffer) throws IOException {
       write(buffer);
     }
-    synchronized void commit(ByteBuffer buffer) throws IOException {
-      write(buffer);
-      sync();
+    /**
+     * Write the commit record and return once it, and every record
+     * written before it, is as durable as the durability of the file
+     * requires. Must not be called while holding the writer monitor.
+     */
+    void commit(ByteBuffer buffer) throws IOException {
+      if(writeQueue != null) {
+        await(submit(new ByteBuffer[] { buffer }));
+        return;
+      }
+      long position;
+      synchronized (this) {
+        write(buffer);
+        unsyncedCommits++;
+        position = writeFileChannel.position();
+      }
+      commitSync(position);
+    }
+
+    /**
+     * Write a batch record, encoded in buffers, with a single gathering
+     * write and return once it, and every record written before it, is
+     * as durable as the durability of the file requires. Must not be
+     * called while holding the writer monitor.
+     * @return the fileID and the offset of the record following its
+     * frame header, to which the offsets of the events are relative
+     */
+    Pair<Integer, Integer> commit(ByteBuffer[] buffers) throws IOException {
+      Pair<Integer, Integer> result;
+      if(writeQueue != null) {
+        result = await(submit(buffers));
+        return Pair.of(result.getLeft(),
+            result.getRight() + FRAME_HEADER_SIZE);
+      }
+      long position;
+      synchronized (this) {
+        result = write(buffers);
+        unsyncedCommits++;
+        position = writeFileChannel.position();
+      }
+      commitSync(position);
+      return Pair.of(result.getLeft(), result.getRight() + FRAME_HEADER_SIZE);
     }
 
     synchronized boolean isRollRequired(ByteBuffer buffer) throws IOException {
-      return open && length() + (long) buffer.capacity() > maxFileSize;
+      return isRollRequired(FRAME_HEADER_SIZE + buffer.capacity());
+    }
+
+    synchronized boolean isRollRequired(long size) throws IOException {
+      return open && length() + size > maxFileSize;
     }
 
     int getFileID() {
       return fileID;
     }
-    private void sync() throws IOException {
-      Preconditions.checkState(open, "File closed");
-      writeFileChannel.force(false);
+    /**
+     * @return the codec which compresses the events of batches written
+     * to this file, null for none
+     */
+    CompressionCodec getCompressionCodec() {
+      return codec;
+    }
+    /**
+     * Return once every record written so far is on disk, which a
+     * closed writer ensured when it was closed. Must not be called
+     * while holding the writer monitor.
+     */
+    void sync() throws IOException {
+      long position;
+      synchronized (this) {
+        if(!open) {
+          return;
+        }
+        position = writeFileChannel.position();
+      }
+      sync(position);
+    }
+    void setGroupCommitWindow(long groupCommitWindow) {
+      this.groupCommitWindow = groupCommitWindow;
+    }
+    Durability getDurability() {
+      return durability;
+    }
+    /**
+     * Queue a record for the write thread, waiting for space in the
+     * queue if need be. The buffers must not change until the result
+     * is complete.
+     */
+    private Future<Pair<Integer, Integer>> submit(ByteBuffer[] buffers)
+        throws IOException {
+      WriteRequest request = new WriteRequest(buffers);
+      boolean interrupted = false;
+      try {
+        while(true) {
+          if(stopping.get()) {
+            throw new IOException("File closed " + file);
+          }
+          try {
+            if(writeQueue.offer(request, 100L, TimeUnit.MILLISECONDS)) {
+              break;
+            }
+          } catch (InterruptedException e) {
+            // the record buffers may be reused once we return
+            interrupted = true;
+          }
+        }
+      } finally {
+        if(interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if(stopping.get() && writeQueue.remove(request)) {
+        // queued after the write thread may have stopped, fail only this
+        // record as the rest of the queue, STOP included, is not ours
+        request.result.setException(new IOException("File closed " + file));
+      }
+      return request.result;
+    }
+    private static Pair<Integer, Integer> await(
+        Future<Pair<Integer, Integer>> result) throws IOException {
+      try {
+        return Uninterruptibles.getUninterruptibly(result);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+        throw Throwables.propagate(e.getCause());
+      }
+    }
+    /**
+     * Run by the write thread until the writer is closed
+     */
+    private void writeQueued() {
+      List<WriteRequest> requests = Lists.newArrayList();
+      boolean run = true;
+      while(run) {
+        requests.clear();
+        try {
+          requests.add(writeQueue.take());
+        } catch (InterruptedException e) {
+          continue;
+        }
+        writeQueue.drainTo(requests, MAX_WRITE_BATCH - 1);
+        // records queued after the stop are still written, the file
+        // is not closed until we return
+        run = !requests.remove(STOP);
+        if(!requests.isEmpty()) {
+          write(requests);
+        }
+      }
+    }
+    /**
+     * Write requests, sync them as the durability requires and complete
+     * their results, failing all of them if any write or the sync fails
+     */
+    private void write(List<WriteRequest> requests) {
+      try {
+        long position;
+        synchronized (this) {
+          writeAll(requests);
+          unsyncedCommits += requests.size();
+          position = writeFileChannel.position();
+        }
+        commitSync(position);
+      } catch (Throwable t) {
+        LOG.warn("Unable to write " + requests.size() + " records to " +
+            file, t);
+        for (WriteRequest request : requests) {
+          request.result.setException(t);
+        }
+        return;
+      }
+      counters.incrementAndGet(COUNTER_WRITE_BATCHES);
+      counters.addAndGet(COUNTER_WRITE_BATCH_RECORDS,
+          (long) requests.size());
+      for (WriteRequest request : requests) {
+        request.result.set(Pair.of(fileID, request.offset));
+      }
+    }
+    private void failQueued() {
+      List<WriteRequest> requests = Lists.newArrayList();
+      writeQueue.drainTo(requests);
+      for (WriteRequest request : requests) {
+        if(request == STOP) {
+          // a write thread still running must see it to stop
+          Uninterruptibles.putUninterruptibly(writeQueue, STOP);
+        } else {
+          request.result.setException(new IOException("File closed " +
+              file));
+        }
+      }
+    }
+    /**
+     * Make a commit ending at position durable as the durability of
+     * the file requires
+     */
+    private void commitSync(long position) throws IOException {
+      switch (durability) {
+      case SYNC:
+        sync(position);
+        break;
+      case PERIODIC:
+        long syncBytes = syncer.getSyncBytes();
+        if(syncBytes > 0L && position - lastSyncPosition >= syncBytes) {
+          counters.incrementAndGet(COUNTER_SYNC_REQUESTS);
+          syncer.request();
+        }
+        break;
+      default:
+        // synced when closed or by a checkpoint
+        break;
+      }
+    }
+    /**
+     * Ensure the file is synced at least up to position.
+     */
+    private void sync(long position) throws IOException {
+      synchronized (syncLock) {
+        if(lastSyncPosition >= position) {
+          // a force() issued by another committer covered our bytes
+          return;
+        }
+        waitForGroup();
+        long syncPosition;
+        int commits;
+        synchronized (this) {
+          Preconditions.checkState(open, "File closed");
+          syncPosition = writeFileChannel.position();
+          commits = unsyncedCommits;
+          unsyncedCommits = 0;
+        }
+        boolean error = true;
+        try {
+          writeFileChannel.force(false);
+          error = false;
+        } finally {
+          if(error) {
+            synchronized (this) {
+              unsyncedCommits += commits;
+            }
+          }
+        }
+        lastSyncPosition = syncPosition;
+        counters.incrementAndGet(COUNTER_SYNCS);
+        counters.addAndGet(COUNTER_SYNC_COMMITS, (long) commits);
+        synchronized (counters) {
+          if(counters.get(COUNTER_SYNC_COMMITS_MAX) < commits) {
+            counters.set(COUNTER_SYNC_COMMITS_MAX, (long) commits);
+          }
+        }
+      }
+    }
+    /**
+     * Give concurrent committers the group commit window to write
+     * their records so that they are covered by our force().
+     */
+    private void waitForGroup() {
+      long window = groupCommitWindow;
+      if(window > 0L) {
+        try {
+          Thread.sleep(window);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
     }
     private Pair<Integer, Integer> write(ByteBuffer buffer) throws IOException {
+      return write(new ByteBuffer[] { buffer });
+    }
+    /**
+     * Frame the record encoded in buffers with its length and checksum
+     * and write both with a single gathering write.
+     * @return the fileID and the offset of the frame
+     */
+    private Pair<Integer, Integer> write(ByteBuffer[] buffers)
+        throws IOException {
       Preconditions.checkState(open, "File closed");
       long length = length();
-      long expectedLength = length + (long) buffer.capacity();
+      ByteBuffer[] frame = buffers.length == 1 ? this.frame :
+          new ByteBuffer[buffers.length + 1];
+      long recordSize = 0;
+      for (int index = 0; index < buffers.length; index++) {
+        frame[index + 1] = buffers[index];
+        recordSize += buffers[index].remaining();
+      }
+      long size = FRAME_HEADER_SIZE + recordSize;
+      long expectedLength = length + size;
       Preconditions.checkArgument(expectedLength < (long) Integer.MAX_VALUE);
       int offset = (int)length;
       Preconditions.checkState(offset > 0);
-      preallocate(1 + buffer.capacity());
-      writeFileHandle.writeByte(OP_RECORD);
-      int wrote = writeFileChannel.write(buffer);
-      Preconditions.checkState(wrote == buffer.limit());
+      frameHeader.clear();
+      frameHeader.put(OP_FRAME).putInt((int) recordSize)
+          .putInt(checksum(crc, buffers)).flip();
+      frame[0] = frameHeader;
+      preallocate((int) size);
+      long wrote = 0;
+      try {
+        while(wrote < size) {
+          wrote += writeFileChannel.write(frame);
+        }
+      } finally {
+        // do not retain the record buffer of the writing thread
+        frame[1] = null;
+      }
+      Preconditions.checkState(wrote == size);
       return Pair.of(fileID, offset);
     }
+    /**
+     * Frame each of the records of requests and write all of them with
+     * a single gathering write, recording the offset of each frame.
+     */
+    private void writeAll(List<WriteRequest> requests) throws IOException {
+      Preconditions.checkState(open, "File closed");
+      long length = length();
+      int count = 0;
+      for (WriteRequest request : requests) {
+        count += 1 + request.buffers.length;
+      }
+      ByteBuffer[] frames = new ByteBuffer[count];
+      int index = 0;
+      long size = 0L;
+      for (WriteRequest request : requests) {
+        long recordSize = 0;
+        for (ByteBuffer buffer : request.buffers) {
+          recordSize += buffer.remaining();
+        }
+        long offset = length + size;
+        Preconditions.checkArgument(offset + FRAME_HEADER_SIZE + recordSize
+            < (long) Integer.MAX_VALUE);
+        Preconditions.checkState(offset > 0);
+        request.offset = (int) offset;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        header.put(OP_FRAME).putInt((int) recordSize)
+            .putInt(checksum(crc, request.buffers)).flip();
+        frames[index++] = header;
+        for (ByteBuffer buffer : request.buffers) {
+          frames[index++] = buffer;
+        }
+        size += FRAME_HEADER_SIZE + recordSize;
+      }
+      preallocate((int) size);
+      long wrote = 0;
+      while(wrote < size) {
+        wrote += writeFileChannel.write(frames);
+      }
+      Preconditions.checkState(wrote == size);
+    }
     private void preallocate(int size) throws IOException {
       long position = writeFileChannel.position();
       if(position + size > writeFileChannel.size()) {
@@ -164,33 +814,221 @@ class LogFile {
 
   }
 
+  /**
+   * A record queued for the write thread of a {@link Writer}
+   */
+  private static class WriteRequest {
+    private final ByteBuffer[] buffers;
+    private final SettableFuture<Pair<Integer, Integer>> result =
+        SettableFuture.create();
+    // offset of the frame of the record, set by the write thread
+    private int offset;
+
+    WriteRequest(ByteBuffer[] buffers) {
+      this.buffers = buffers;
+    }
+  }
+
+  /**
+   * Syncs the writers of {@link Durability#PERIODIC} durability every
+   * sync interval, and when one of them requests it because the bytes
+   * written to it since its last sync reached the sync bytes. Each
+   * writer registers itself when opened and is removed when closed.
+   */
+  static class Syncer extends Thread {
+    private final Set<Writer> writers = new CopyOnWriteArraySet<Writer>();
+    private final long syncInterval;
+    private final long syncBytes;
+    private volatile boolean run = true;
+    // guarded by this
+    private boolean requested;
+
+    /**
+     * @param syncInterval milliseconds between syncs
+     * @param syncBytes unsynced bytes which trigger a sync, 0 for none
+     */
+    Syncer(long syncInterval, long syncBytes) {
+      Preconditions.checkArgument(syncInterval > 0L, "syncInterval <= 0");
+      Preconditions.checkArgument(syncBytes >= 0L, "syncBytes < 0");
+      this.syncInterval = syncInterval;
+      this.syncBytes = syncBytes;
+      setName("LogFile-Syncer");
+      setDaemon(true);
+    }
+
+    long getSyncInterval() {
+      return syncInterval;
+    }
+
+    long getSyncBytes() {
+      return syncBytes;
+    }
+
+    void add(Writer writer) {
+      writers.add(writer);
+    }
+
+    void remove(Writer writer) {
+      writers.remove(writer);
+    }
+
+    /**
+     * Sync the writers now rather than at the end of the interval
+     */
+    synchronized void request() {
+      requested = true;
+      notifyAll();
+    }
+
+    void shutdown() {
+      if(run) {
+        run = false;
+        interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      while(run) {
+        synchronized (this) {
+          if(!requested) {
+            try {
+              wait(syncInterval);
+            } catch (InterruptedException e) {
+              // recheck run flag
+              continue;
+            }
+          }
+          requested = false;
+        }
+        for (Writer writer : writers) {
+          try {
+            writer.sync();
+          } catch (Exception e) {
+            LOG.warn("Unable to sync " + writer.file, e);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads events at random offsets for channel takes. Takes normally
+   * walk a data file in the order it was written, so once a file is
+   * immutable, that is it has been rolled or was found on startup,
+   * a get which follows closely after the previous one reads a large
+   * contiguous chunk of the file with a single positional read.
+   * Subsequent gets which fall in that chunk are served from memory
+   * rather than by a seek and read per event.
+   */
   static class RandomReader {
     private final File file;
     private final BlockingQueue<RandomAccessFile> readFileHandles =
         new ArrayBlockingQueue<RandomAccessFile>(50, true);
+    private final AtomicLong reads;
+    private final AtomicLong readAheadHits;
+    private final AtomicLong readAheadFills;
 
     private volatile boolean open;
+    private volatile boolean immutable;
+    private volatile int readAheadSize;
+    private volatile ReadAheadWindow window;
+    private volatile int lastOffset = -1;
+    // read from the header when first needed
+    private volatile boolean codecRead;
+    private volatile CompressionCodec codec;
     public RandomReader(File file) throws IOException {
+      this(file, 0, new CounterGroup());
+    }
+    RandomReader(File file, int readAheadSize, CounterGroup counters)
+        throws IOException {
       this.file = file;
+      this.readAheadSize = readAheadSize;
+      reads = counters.getCounter(COUNTER_READS);
+      readAheadHits = counters.getCounter(COUNTER_READ_AHEAD_HITS);
+      readAheadFills = counters.getCounter(COUNTER_READ_AHEAD_FILLS);
       readFileHandles.add(open());
       open = true;
     }
+    /**
+     * Set the number of bytes read at once when gets are sequential,
+     * zero disables read ahead
+     */
+    void setReadAheadSize(int readAheadSize) {
+      Preconditions.checkArgument(readAheadSize >= 0, "readAheadSize < 0");
+      this.readAheadSize = readAheadSize;
+      if(readAheadSize == 0) {
+        window = null;
+      }
+    }
+    File getFile() {
+      return file;
+    }
+    /**
+     * Mark the file as no longer being written, allowing read ahead
+     */
+    void setImmutable() {
+      immutable = true;
+    }
     FlumeEvent get(int offset) throws IOException, InterruptedException {
       Preconditions.checkState(open, "File closed");
+      if(immutable && readAheadSize > 0) {
+        FlumeEvent event = readAhead(offset);
+        if(event != null) {
+          return event;
+        }
+      }
+      lastOffset = offset;
+      reads.incrementAndGet();
       RandomAccessFile fileHandle = checkOut();
       boolean error = true;
       try {
         fileHandle.seek(offset);
         byte operation = fileHandle.readByte();
-        Preconditions.checkState(operation == OP_RECORD);
-        TransactionEventRecord record = TransactionEventRecord.
-            fromDataInput(fileHandle);
-        if(!(record instanceof Put)) {
-          Preconditions.checkState(false, "Record is " +
-              record.getClass().getSimpleName());
+        FlumeEvent event;
+        if(isBatchEvent(operation)) {
+          // an event of a batch, read the whole frame at once
+          int length = fileHandle.readInt();
+          if(length < 0 || offset + (long) length > MAX_FILE_SIZE) {
+            throw new IOException("Corrupt event at offset " + offset +
+                " of " + file + ", length is " + length);
+          }
+          byte[] frame = new byte[length];
+          fileHandle.readFully(frame);
+          event = fromBatchEvent(operation, frame, 0, length,
+              getCompressionCodec(fileHandle));
+          if(event == null) {
+            throw new IOException("Corrupt event at offset " + offset +
+                " of " + file + ", checksum does not match");
+          }
+        } else {
+          TransactionEventRecord record;
+          if(operation == OP_FRAME) {
+            int length = fileHandle.readInt();
+            int checksum = fileHandle.readInt();
+            if(length < 0 || offset + (long) length > MAX_FILE_SIZE) {
+              throw new IOException("Corrupt record at offset " + offset +
+                  " of " + file + ", length is " + length);
+            }
+            byte[] data = new byte[length];
+            fileHandle.readFully(data);
+            record = fromFrame(data, 0, length, checksum);
+            if(record == null) {
+              throw new IOException("Corrupt record at offset " + offset +
+                  " of " + file + ", checksum does not match");
+            }
+          } else {
+            Preconditions.checkState(operation == OP_RECORD);
+            record = TransactionEventRecord.fromDataInput(fileHandle);
+          }
+          if(!(record instanceof Put)) {
+            Preconditions.checkState(false, "Record is " +
+                record.getClass().getSimpleName());
+          }
+          event = ((Put)record).getEvent();
         }
         error = false;
-        return ((Put)record).getEvent();
+        return event;
       } finally {
         if(error) {
           close(fileHandle);
@@ -199,9 +1037,94 @@ class LogFile {
         }
       }
     }
+    /**
+     * @return the codec recorded in the header of the file, read with
+     * fileHandle the first time it is needed
+     */
+    private CompressionCodec getCompressionCodec(RandomAccessFile fileHandle)
+        throws IOException {
+      if(!codecRead) {
+        ByteBuffer header = ByteBuffer.allocate(4 + 4 + 4);
+        FileChannel channel = fileHandle.getChannel();
+        while(header.hasRemaining()) {
+          if(channel.read(header, header.position()) < 0) {
+            throw new EOFException("Header of " + file + " is incomplete");
+          }
+        }
+        header.flip();
+        int version = header.getInt();
+        header.getInt();
+        codec = version <= VERSION_4 ? null :
+            CompressionCodecs.forID(header.getInt());
+        codecRead = true;
+      }
+      return codec;
+    }
+    /**
+     * @return the event at offset from the read ahead window, reading
+     * a new window if the offset follows the previous get, or null if
+     * the event should be read directly from the file
+     */
+    private FlumeEvent readAhead(int offset)
+        throws IOException, InterruptedException {
+      ReadAheadWindow current = window;
+      if(current != null && current.contains(offset)) {
+        FlumeEvent event = current.get(offset, codec);
+        if(event != null) {
+          lastOffset = offset;
+          readAheadHits.incrementAndGet();
+          return event;
+        }
+        // the record extends past the end of the window
+      } else {
+        int last = lastOffset;
+        if(last < 0 || offset <= last || offset - last > readAheadSize) {
+          return null;
+        }
+      }
+      current = fill(offset);
+      window = current;
+      FlumeEvent event = current.get(offset, codec);
+      if(event == null) {
+        // larger than the window or not a put, read it directly
+        return null;
+      }
+      lastOffset = offset;
+      readAheadHits.incrementAndGet();
+      return event;
+    }
+    private ReadAheadWindow fill(int offset)
+        throws IOException, InterruptedException {
+      readAheadFills.incrementAndGet();
+      ByteBuffer buffer = ByteBuffer.allocate(readAheadSize);
+      RandomAccessFile fileHandle = checkOut();
+      boolean error = true;
+      try {
+        // resolved before the first window is used
+        getCompressionCodec(fileHandle);
+        FileChannel channel = fileHandle.getChannel();
+        long position = offset;
+        while(buffer.hasRemaining()) {
+          int read = channel.read(buffer, position);
+          if(read < 0) {
+            break;
+          }
+          position += read;
+        }
+        error = false;
+      } finally {
+        if(error) {
+          close(fileHandle);
+        } else {
+          checkIn(fileHandle);
+        }
+      }
+      return new ReadAheadWindow(offset, buffer.array(), buffer.position());
+    }
     synchronized void close() {
       if(open) {
         open = false;
+        window = null;
         LOG.info("Closing RandomReader " + file);
         List<RandomAccessFile> fileHandles = Lists.newArrayList();
         while(readFileHandles.drainTo(fileHandles) > 0) {
@@ -255,29 +1178,125 @@ class LogFile {
     }
   }
 
+  /**
+   * A contiguous, immutable chunk of a data file
+   */
+  private static class ReadAheadWindow {
+    private final int start;
+    private final byte[] data;
+    private final int length;
+    ReadAheadWindow(int start, byte[] data, int length) {
+      this.start = start;
+      this.data = data;
+      this.length = length;
+    }
+    boolean contains(int offset) {
+      return offset >= start && offset - start < length;
+    }
+    /**
+     * @return the event of the put or batch event at offset, or null
+     * if there is no such event at offset or it is not wholly
+     * contained in the window
+     * @param codec the codec of the file
+     */
+    FlumeEvent get(int offset, CompressionCodec codec) throws IOException {
+      int index = offset - start;
+      DataInputStream input = new DataInputStream(
+          new ByteArrayInputStream(data, index, length - index));
+      try {
+        byte operation = input.readByte();
+        if(isBatchEvent(operation)) {
+          int eventLength = input.readInt();
+          if(eventLength < 0 || eventLength > input.available()) {
+            return null;
+          }
+          // a corrupt event is left to the direct read to report
+          return fromBatchEvent(operation, data,
+              index + Batch.EVENT_HEADER_SIZE, eventLength, codec);
+        }
+        TransactionEventRecord record;
+        if(operation == OP_FRAME) {
+          int recordLength = input.readInt();
+          int checksum = input.readInt();
+          if(recordLength < 0 || recordLength > input.available()) {
+            return null;
+          }
+          // a corrupt record is left to the direct read to report
+          record = fromFrame(data, index + FRAME_HEADER_SIZE, recordLength,
+              checksum);
+        } else if(operation == OP_RECORD) {
+          record = TransactionEventRecord.fromDataInput(input);
+        } else {
+          return null;
+        }
+        if(record instanceof Put) {
+          return ((Put) record).getEvent();
+        }
+        return null;
+      } catch (EOFException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Reads the records of a data file in order. Reads are buffered, the
+   * file position is tracked as records are consumed. The frame of each
+   * record of a file of version 3 or later is validated; on finding an
+   * invalid frame the reader scans forward for the next intact frame,
+   * skipping and reporting the bytes in between. Bytes at the end of the file which
+   * hold no intact record are reported too, unless they are all
+   * preallocated.
+   */
   static class SequentialReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Bytes of the magic header, type, transaction id and timestamp
+     * which every record holds
+     */
+    private static final int MIN_RECORD_SIZE = 4 + 2 + 8 + 8;
+    private final File file;
     private final RandomAccessFile fileHandle;
     private final FileChannel fileChannel;
+    private final long fileSize;
     private final int version;
     private final int logFileID;
+    private final CompressionCodec codec;
+    private CountingInputStream countingInput;
+    private DataInputStream input;
+    private long inputStart;
+    private byte[] frame = new byte[BUFFER_SIZE];
+    private int lastPayloadOffset;
+    private long skippedBytes;
+    private int skippedRegions;
 
     /**
      * Construct a Sequential Log Reader object
      * @param file
-     * @throws IOException if an I/O error occurs
+     * @throws IOException if an I/O error occurs or the file was written
+     * with a compression codec which is not configured
      * @throws EOFException if the file is empty
      */
     SequentialReader(File file) throws IOException, EOFException {
+      this.file = file;
       fileHandle = new RandomAccessFile(file, "r");
       fileChannel = fileHandle.getChannel();
       version = fileHandle.readInt();
-      if(version != VERSION) {
+      if(version < VERSION_1 || version > VERSION) {
         throw new IOException("Version is " + Integer.toHexString(version) +
-            " expected " + Integer.toHexString(VERSION));
+            " expected " + Integer.toHexString(VERSION_1) + " to " +
+            Integer.toHexString(VERSION));
       }
       logFileID = fileHandle.readInt();
       Preconditions.checkArgument(logFileID >= 0, "LogFileID is not positive: "
           + Integer.toHexString(logFileID));
+      if(version <= VERSION_4) {
+        codec = null;
+      } else {
+        codec = CompressionCodecs.forID(fileHandle.readInt());
+      }
+      fileSize = fileChannel.size();
+      reposition(fileChannel.position());
     }
     int getVersion() {
       return version;
@@ -285,24 +1304,195 @@ class LogFile {
     int getLogFileID() {
       return logFileID;
     }
+    /**
+     * @return the codec the events of the batches of the file were
+     * compressed with, null for none
+     */
+    CompressionCodec getCompressionCodec() {
+      return codec;
+    }
+    /**
+     * @return the offset of the record returned by the last call to
+     * {@link #next()} following its frame header, to which the offsets
+     * of the events of a {@link Batch} are relative
+     */
+    int getLastPayloadOffset() {
+      return lastPayloadOffset;
+    }
+    /**
+     * @return the number of bytes skipped because they did not hold an
+     * intact record
+     */
+    long getSkippedBytes() {
+      return skippedBytes;
+    }
+    /**
+     * @return the number of contiguous regions of skipped bytes
+     */
+    int getSkippedRegions() {
+      return skippedRegions;
+    }
+    /**
+     * Continue reading at position, which must be the offset of a record
+     * at or after the current position, skipping the records before it
+     */
+    void seek(long position) throws IOException {
+      long current = inputStart + countingInput.getCount();
+      Preconditions.checkArgument(position >= current, "Position " +
+          position + " is before the current position " + current);
+      if(position > current) {
+        reposition(Math.min(position, fileSize));
+      }
+    }
     Pair<Integer, TransactionEventRecord> next() throws IOException {
-      try {
-        long position = fileChannel.position();
+      while(true) {
+        long position = inputStart + countingInput.getCount();
         Preconditions.checkState(position < MAX_FILE_SIZE,
             String.valueOf(position));
         int offset = (int) position;
-        byte operation = fileHandle.readByte();
-        if(operation != OP_RECORD) {
+        Preconditions.checkState(offset > 0);
+        if(version < VERSION_3) {
+          // records are not framed, reading stops at the first bad one
+          try {
+            byte operation = input.readByte();
+            if(operation != OP_RECORD) {
+              return null;
+            }
+            TransactionEventRecord record = TransactionEventRecord.
+                fromDataInput(input);
+            lastPayloadOffset = offset + 1;
+            return Pair.of(offset, record);
+          } catch(EOFException e) {
+            return null;
+          }
+        }
+        TransactionEventRecord record = readFrame(position);
+        if(record != null) {
+          lastPayloadOffset = offset + FRAME_HEADER_SIZE;
+          return Pair.of(offset, record);
+        }
+        if(!skip(position)) {
           return null;
         }
-        TransactionEventRecord record = TransactionEventRecord.
-            fromDataInput(fileHandle);
-        Preconditions.checkState(offset > 0);
-        return Pair.of(offset, record);
+      }
+    }
+    /**
+     * @return the record framed at position, or null if the frame is
+     * not intact
+     */
+    private TransactionEventRecord readFrame(long position)
+        throws IOException {
+      try {
+        if(input.readByte() != OP_FRAME) {
+          return null;
+        }
+        int length = input.readInt();
+        int checksum = input.readInt();
+        if(length < MIN_RECORD_SIZE ||
+            position + FRAME_HEADER_SIZE + length > fileSize) {
+          return null;
+        }
+        if(frame.length < length) {
+          frame = new byte[Math.max(length, frame.length * 2)];
+        }
+        input.readFully(frame, 0, length);
+        return fromFrame(frame, 0, length, checksum);
       } catch(EOFException e) {
         return null;
       }
     }
+    /**
+     * Scan forward from the invalid frame at position for the next
+     * intact frame and resume reading there.
+     * @return true if an intact frame was found
+     */
+    private boolean skip(long position) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      byte[] data = buffer.array();
+      // whether every byte scanned is preallocation
+      boolean preallocated = true;
+      long next = -1L;
+      long chunk = position;
+      scan:
+      while(chunk < fileSize) {
+        buffer.clear();
+        int read = fileChannel.read(buffer, chunk);
+        if(read <= 0) {
+          break;
+        }
+        for (int index = 0; index < read; index++) {
+          long candidate = chunk + index;
+          if(candidate > position && data[index] == OP_FRAME &&
+              isFrame(candidate)) {
+            next = candidate;
+            break scan;
+          }
+          if(data[index] != OP_EOF) {
+            preallocated = false;
+          }
+        }
+        chunk += read;
+      }
+      long end = next < 0L ? fileSize : next;
+      if(next >= 0L) {
+        skippedBytes += end - position;
+        skippedRegions++;
+        LOG.warn("Skipped " + (end - position) + " bytes at offset " +
+            position + " of " + file + " which do not hold an intact " +
+            "record, resuming at offset " + next);
+        reposition(next);
+        return true;
+      }
+      if(!preallocated) {
+        skippedBytes += end - position;
+        skippedRegions++;
+        LOG.warn("Skipped " + (end - position) + " bytes at offset " +
+            position + " to the end of " + file + " which do not hold " +
+            "an intact record, likely an incomplete write");
+      }
+      return false;
+    }
+    /**
+     * @return true if an intact frame, holding a record with a valid
+     * magic header, starts at position
+     */
+    private boolean isFrame(long position) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE + 4);
+      if(!readFully(header, position)) {
+        return false;
+      }
+      header.flip();
+      header.get();
+      int length = header.getInt();
+      int checksum = header.getInt();
+      if(length < MIN_RECORD_SIZE ||
+          position + FRAME_HEADER_SIZE + length > fileSize ||
+          header.getInt() != TransactionEventRecord.MAGIC_HEADER) {
+        return false;
+      }
+      ByteBuffer record = ByteBuffer.allocate(length);
+      return readFully(record, position + FRAME_HEADER_SIZE) &&
+          checksum(new CRC32(), new ByteBuffer[] { (ByteBuffer) record.flip() })
+          == checksum;
+    }
+    private boolean readFully(ByteBuffer buffer, long position)
+        throws IOException {
+      while(buffer.hasRemaining()) {
+        int read = fileChannel.read(buffer, position);
+        if(read < 0) {
+          return false;
+        }
+        position += read;
+      }
+      return true;
+    }
+    private void reposition(long position) throws IOException {
+      fileChannel.position(position);
+      inputStart = position;
+      countingInput = new CountingInputStream(new BufferedInputStream(
+          Channels.newInputStream(fileChannel), BUFFER_SIZE));
+      input = new DataInputStream(countingInput);
+    }
     void close() {
       if(fileHandle != null) {
         try {
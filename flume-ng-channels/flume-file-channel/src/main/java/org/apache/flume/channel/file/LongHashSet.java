@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Set of primitive longs using open addressing with linear probing.
+ * Zero is used to mark empty slots and cannot be stored, which suits
+ * the long representation of {@link FlumeEventPointer} as offsets are
+ * always positive. Not thread safe.
+ */
+class LongHashSet {
+  private static final long EMPTY = 0L;
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] values;
+  private int mask;
+  private int size;
+
+  LongHashSet() {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * @param expectedSize number of values which can be added
+   * before the set is resized
+   */
+  LongHashSet(int expectedSize) {
+    Preconditions.checkArgument(expectedSize >= 0, "expectedSize < 0");
+    allocate(capacityFor(expectedSize));
+  }
+
+  /**
+   * @return true if the value was not already present
+   */
+  boolean add(long value) {
+    Preconditions.checkArgument(value != EMPTY, "Cannot add " + EMPTY);
+    int index = indexOf(value);
+    if(values[index] == value) {
+      return false;
+    }
+    values[index] = value;
+    if(++size > (values.length >> 1)) {
+      rehash(values.length << 1);
+    }
+    return true;
+  }
+
+  boolean contains(long value) {
+    return value != EMPTY && values[indexOf(value)] == value;
+  }
+
+  /**
+   * @return true if the value was present
+   */
+  boolean remove(long value) {
+    if(value == EMPTY) {
+      return false;
+    }
+    int index = indexOf(value);
+    if(values[index] != value) {
+      return false;
+    }
+    // shift back the following entries of the probe sequence so
+    // lookups do not stop early at the slot we just emptied
+    int gap = index;
+    int next = (gap + 1) & mask;
+    while(values[next] != EMPTY) {
+      int home = hash(values[next]) & mask;
+      if(((next - home) & mask) >= ((next - gap) & mask)) {
+        values[gap] = values[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    values[gap] = EMPTY;
+    size--;
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    Arrays.fill(values, EMPTY);
+    size = 0;
+  }
+
+  /**
+   * @return the values in the set, in no particular order
+   */
+  long[] toArray() {
+    long[] result = new long[size];
+    int count = 0;
+    for (long value : values) {
+      if(value != EMPTY) {
+        result[count++] = value;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return index of value if it is present or of the empty slot
+   * where it should be inserted
+   */
+  private int indexOf(long value) {
+    int index = hash(value) & mask;
+    while(values[index] != EMPTY && values[index] != value) {
+      index = (index + 1) & mask;
+    }
+    return index;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldValues = values;
+    allocate(capacity);
+    for (long value : oldValues) {
+      if(value != EMPTY) {
+        values[indexOf(value)] = value;
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    values = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while(capacity >> 1 < expectedSize) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  private static int hash(long value) {
+    // mix the high (file id) and low (offset) words
+    long hash = value * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+}
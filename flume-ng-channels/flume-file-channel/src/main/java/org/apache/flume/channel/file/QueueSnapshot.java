@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.nio.ByteBuffer;
+
+import org.apache.flume.tools.DirectMemoryUtils;
+
+/**
+ * A point in time copy of a {@link FlumeEventQueue}, taken with
+ * {@link FlumeEventQueue#snapshot(QueueSnapshot, long)} while the queue
+ * is locked, so that a {@link Checkpoint} can be written from it after
+ * the queue is released. A snapshot is reused from one checkpoint to
+ * the next, each copying only the regions of the queue modified since
+ * the previous one, and records the generation in which each region it
+ * holds was last modified so that each checkpoint file can in turn copy
+ * only the regions it does not hold yet.
+ */
+class QueueSnapshot {
+  private final ByteBuffer elements;
+  private final int[] regionGenerations;
+  // generation of the queue when the snapshot was last taken
+  private int generation = -1;
+  private int capacity;
+  private int head;
+  private int size;
+  private long timestamp;
+  private int pendingTakes;
+
+  /**
+   * @param slots the number of slots of the queues to be copied
+   */
+  QueueSnapshot(int slots) {
+    elements = DirectMemoryUtils.allocate(slots * FlumeEventQueue.SIZE_OF_LONG);
+    regionGenerations = new int[((slots - 1) >> FlumeEventQueue.REGION_SHIFT)
+                                + 1];
+  }
+
+  /**
+   * Record the state of the queue, called by the queue once the
+   * modified regions have been copied
+   */
+  void set(int generation, int capacity, int head, int size,
+      long timestamp, int pendingTakes) {
+    this.generation = generation;
+    this.capacity = capacity;
+    this.head = head;
+    this.size = size;
+    this.timestamp = timestamp;
+    this.pendingTakes = pendingTakes;
+  }
+
+  /**
+   * @return the image of the backing buffer of the queue
+   */
+  ByteBuffer getElements() {
+    return elements;
+  }
+
+  /**
+   * @return the generation in which each region was last modified
+   */
+  int[] getRegionGenerations() {
+    return regionGenerations;
+  }
+
+  /**
+   * @return the generation the queue was in when the snapshot was
+   * taken, negative if it has not been taken
+   */
+  int getGeneration() {
+    return generation;
+  }
+
+  int getSlots() {
+    return elements.capacity() / FlumeEventQueue.SIZE_OF_LONG;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the slot which held the head of the queue
+   */
+  int getHead() {
+    return head;
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  /**
+   * @return the time the snapshot was taken
+   */
+  long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the number of events which had been removed from the head
+   * of the queue by takes not yet committed or rolled back, and are
+   * therefore missing from the snapshot
+   */
+  int getPendingTakes() {
+    return pendingTakes;
+  }
+}
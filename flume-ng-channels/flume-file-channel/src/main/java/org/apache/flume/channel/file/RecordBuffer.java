@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * A growable heap buffer into which records are encoded. Each thread
+ * owns one, obtained by {@link #forThread()}, which is reused for every
+ * record the thread encodes, so that encoding a record allocates
+ * nothing once the buffer has grown to fit it. The contents are only
+ * valid until the next call to {@link #forThread()} by the same thread.
+ *
+ * Also encodes and decodes the variable length integers and strings of
+ * the compact event encoding.
+ */
+final class RecordBuffer {
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+  /**
+   * A buffer which has grown larger than this is not kept for reuse, so
+   * that an occasional large transaction does not pin its memory
+   */
+  private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+  private static final ThreadLocal<RecordBuffer> BUFFERS =
+      new ThreadLocal<RecordBuffer>() {
+    @Override
+    protected RecordBuffer initialValue() {
+      return new RecordBuffer();
+    }
+  };
+
+  private byte[] data = new byte[INITIAL_CAPACITY];
+  private int position;
+  private final ByteBuffer[] buffers = new ByteBuffer[1];
+  private final CRC32 crc = new CRC32();
+
+  private RecordBuffer() {
+  }
+
+  /**
+   * @return the empty buffer of the calling thread
+   */
+  static RecordBuffer forThread() {
+    RecordBuffer buffer = BUFFERS.get();
+    if(buffer.data.length > MAX_RETAINED_CAPACITY) {
+      buffer.data = new byte[INITIAL_CAPACITY];
+      buffer.buffers[0] = null;
+    }
+    buffer.position = 0;
+    return buffer;
+  }
+
+  int position() {
+    return position;
+  }
+
+  /**
+   * Move the position back to a position already written, discarding
+   * the bytes after it
+   */
+  void position(int position) {
+    Preconditions.checkArgument(position >= 0 && position <= this.position,
+        "Invalid position " + position);
+    this.position = position;
+  }
+
+  byte[] array() {
+    return data;
+  }
+
+  /**
+   * @return the encoded bytes as a single buffer, for a gathering write
+   */
+  ByteBuffer[] toByteBuffers() {
+    ByteBuffer buffer = buffers[0];
+    if(buffer == null || buffer.array() != data) {
+      buffer = ByteBuffer.wrap(data);
+      buffers[0] = buffer;
+    }
+    buffer.clear();
+    buffer.limit(position);
+    return buffers;
+  }
+
+  void putByte(byte value) {
+    ensureCapacity(1);
+    data[position++] = value;
+  }
+
+  void putShort(short value) {
+    ensureCapacity(2);
+    data[position++] = (byte) (value >>> 8);
+    data[position++] = (byte) value;
+  }
+
+  void putInt(int value) {
+    ensureCapacity(4);
+    putIntAt(position, value);
+    position += 4;
+  }
+
+  /**
+   * Overwrite the four bytes at index, which must have been written
+   */
+  void putIntAt(int index, int value) {
+    data[index] = (byte) (value >>> 24);
+    data[index + 1] = (byte) (value >>> 16);
+    data[index + 2] = (byte) (value >>> 8);
+    data[index + 3] = (byte) value;
+  }
+
+  /**
+   * @return the CRC32 of the length written bytes at offset
+   */
+  int checksum(int offset, int length) {
+    crc.reset();
+    crc.update(data, offset, length);
+    return (int) crc.getValue();
+  }
+
+  void putLong(long value) {
+    putInt((int) (value >>> 32));
+    putInt((int) value);
+  }
+
+  /**
+   * Write a non negative value in seven bit groups, least significant
+   * first, the high bit of each byte set if another follows
+   */
+  void putVarInt(int value) {
+    ensureCapacity(5);
+    while((value & ~0x7F) != 0) {
+      data[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    data[position++] = (byte) value;
+  }
+
+  void putBytes(byte[] value) {
+    ensureCapacity(value.length);
+    System.arraycopy(value, 0, data, position, value.length);
+    position += value.length;
+  }
+
+  /**
+   * Write the length of the UTF-8 encoding of value as a varint and then
+   * the encoding, without allocating. Unpaired surrogates are replaced
+   * by '?' as {@link String#getBytes(java.nio.charset.Charset)} does.
+   */
+  void putString(String value) {
+    int length = utf8Length(value);
+    putVarInt(length);
+    ensureCapacity(length);
+    int chars = value.length();
+    for (int index = 0; index < chars; index++) {
+      char c = value.charAt(index);
+      if(c < 0x80) {
+        data[position++] = (byte) c;
+      } else if(c < 0x800) {
+        data[position++] = (byte) (0xC0 | (c >> 6));
+        data[position++] = (byte) (0x80 | (c & 0x3F));
+      } else if(isSurrogate(c)) {
+        if(isSurrogatePair(value, index)) {
+          int codePoint = Character.toCodePoint(c, value.charAt(++index));
+          data[position++] = (byte) (0xF0 | (codePoint >> 18));
+          data[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          data[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          data[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+          data[position++] = (byte) '?';
+        }
+      } else {
+        data[position++] = (byte) (0xE0 | (c >> 12));
+        data[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        data[position++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+  }
+
+  static int getVarInt(ByteBuffer buffer) throws IOException {
+    int value = 0;
+    try {
+      for (int shift = 0; shift < 32; shift += 7) {
+        byte b = buffer.get();
+        value |= (b & 0x7F) << shift;
+        if((b & 0x80) == 0) {
+          if(value < 0) {
+            break;
+          }
+          return value;
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated varint", e);
+    }
+    throw new IOException("Invalid varint");
+  }
+
+  static String getString(ByteBuffer buffer) throws IOException {
+    int length = getVarInt(buffer);
+    if(length > buffer.remaining()) {
+      throw new IOException("String length " + length + " exceeds the " +
+          buffer.remaining() + " bytes remaining");
+    }
+    String value = new String(buffer.array(),
+        buffer.arrayOffset() + buffer.position(), length, Charsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  static int utf8Length(String value) {
+    int chars = value.length();
+    int length = chars;
+    for (int index = 0; index < chars; index++) {
+      char c = value.charAt(index);
+      if(c >= 0x80) {
+        if(c < 0x800) {
+          length++;
+        } else if(!isSurrogate(c)) {
+          length += 2;
+        } else if(isSurrogatePair(value, index)) {
+          // four bytes for the two chars
+          length += 2;
+          index++;
+        }
+      }
+    }
+    return length;
+  }
+
+  private static boolean isSurrogate(char c) {
+    return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+  }
+
+  private static boolean isSurrogatePair(String value, int index) {
+    return Character.isHighSurrogate(value.charAt(index)) &&
+        index + 1 < value.length() &&
+        Character.isLowSurrogate(value.charAt(index + 1));
+  }
+
+  /**
+   * Ensure length more bytes can be written after the position without
+   * growing the array
+   */
+  void ensureCapacity(int length) {
+    if(position + length > data.length) {
+      long capacity = Math.max((long) data.length << 1,
+          (long) position + length);
+      if(capacity > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Record is too large");
+      }
+      byte[] grown = new byte[(int) capacity];
+      System.arraycopy(data, 0, grown, 0, position);
+      data = grown;
+    }
+  }
+}
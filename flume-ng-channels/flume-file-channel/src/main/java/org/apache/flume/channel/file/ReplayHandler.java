@@ -21,8 +21,18 @@ package org.apache.flume.channel.file;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.collections.MultiMap;
 import org.apache.commons.collections.map.MultiValueMap;
@@ -30,20 +40,50 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Processes a set of data logs, replaying said logs into the queue.
+ *
+ * The logs of each data directory are decoded concurrently by a
+ * {@link LogDecoder} per directory, which reads its logs in file id
+ * order and hands committed transactions to this thread. Since all
+ * records of a transaction are written to the same directory, the
+ * committed transactions of every directory are merged by commit
+ * timestamp and transaction id before being applied. Transactions are
+ * either individual put or take records followed by a commit record,
+ * or a single {@link Batch} record which is committed by being written.
+ *
+ * Committed puts are buffered in commit order and committed takes are
+ * collected into a set. Once every log has been read the takes are
+ * removed from the checkpointed queue in a single pass, and the puts
+ * which were not subsequently taken are appended to the queue. Replay
+ * is therefore linear in the size of the logs and the queue.
  */
 class ReplayHandler {
   private static final Logger LOG = LoggerFactory
       .getLogger(ReplayHandler.class);
+  /**
+   * Number of committed transactions a decoder may read ahead of
+   * the merge
+   */
+  private static final int DECODER_QUEUE_SIZE = 1000;
   private final FlumeEventQueue queue;
   private final long lastCheckpoint;
+  private final Map<Integer, Long> startPositions;
   /**
-   * This data structure stores takes for which we found a commit in the log
-   * files before we found a commit for the put. This can happen if the channel
-   * is configured for multiple directories.
+   * Largest fileID with a start position, files after it were created
+   * after the checkpoint
+   */
+  private final int lastStartFileID;
+  /**
+   * Long representations of the pointers of committed takes which have
+   * not yet been matched against the queue or a committed put. Takes
+   * may be found before the commit of the corresponding put if the
+   * channel is configured for multiple directories.
    *
    * Consider the following:
    *
@@ -52,24 +92,267 @@ class ReplayHandler {
    * Put goes to logdir2 Commit of Put goes to logdir2 Take goes to logdir1
    * Commit of Take goes to logdir1
    *
-   * When replaying we will start with log1 and find the take and commit before
-   * finding the put and commit in logdir2.
+   * The take may then be committed with an earlier timestamp than the
+   * put, for example when the clock is adjusted.
+   */
+  private final LongHashSet pendingTakes;
+  /**
+   * Long representations of the pointers of committed puts, in commit order
    */
-  private final List<Long> pendingTakes;
+  private long[] committedPuts;
+  private int committedPutCount;
+  /**
+   * Bytes, and regions of contiguous bytes, of the logs which were
+   * skipped because they did not hold intact records
+   */
+  private final AtomicLong skippedBytes = new AtomicLong();
+  private final AtomicLong skippedRegions = new AtomicLong();
 
   ReplayHandler(FlumeEventQueue queue, long lastCheckpoint) {
+    this(queue, lastCheckpoint, Collections.<Integer, Long>emptyMap());
+  }
+
+  /**
+   * @param startPositions the position each data file, keyed by fileID,
+   * had reached when the checkpoint of lastCheckpoint was written. The
+   * records before it are older than the checkpoint so are not read,
+   * those after it are newer whatever their timestamp, as are all the
+   * records of files created after the checkpoint.
+   */
+  ReplayHandler(FlumeEventQueue queue, long lastCheckpoint,
+      Map<Integer, Long> startPositions) {
     this.queue = queue;
     this.lastCheckpoint = lastCheckpoint;
-    pendingTakes = Lists.newArrayList();
+    this.startPositions = startPositions;
+    lastStartFileID = startPositions.isEmpty() ? Integer.MAX_VALUE :
+        Collections.max(startPositions.keySet());
+    pendingTakes = new LongHashSet();
+    committedPuts = new long[1024];
   }
 
   void replayLog(List<File> logs) throws IOException {
-    int total = 0;
-    int count = 0;
-    MultiMap transactionMap = new MultiValueMap();
     LOG.info("Starting replay of " + logs);
+    // group the logs by directory, keeping the order within a directory
+    Map<File, List<File>> logsByDir = Maps.newLinkedHashMap();
     for (File log : logs) {
+      File dir = log.getAbsoluteFile().getParentFile();
+      List<File> dirLogs = logsByDir.get(dir);
+      if (dirLogs == null) {
+        dirLogs = Lists.newArrayList();
+        logsByDir.put(dir, dirLogs);
+      }
+      dirLogs.add(log);
+    }
+    int total = 0;
+    if (!logsByDir.isEmpty()) {
+      ExecutorService executor = Executors.newFixedThreadPool(
+          logsByDir.size(), new ThreadFactoryBuilder().setDaemon(true)
+          .setNameFormat("ReplayHandler-LogDecoder-%d").build());
+      try {
+        PriorityQueue<LogDecoder> decoders = new PriorityQueue<LogDecoder>(
+            logsByDir.size(), new Comparator<LogDecoder>() {
+              @Override
+              public int compare(LogDecoder decoder1, LogDecoder decoder2) {
+                return CommittedTransaction.compare(decoder1.current,
+                    decoder2.current);
+              }
+            });
+        List<LogDecoder> started = Lists.newArrayList();
+        for (List<File> dirLogs : logsByDir.values()) {
+          LogDecoder decoder = new LogDecoder(dirLogs);
+          executor.submit(decoder);
+          started.add(decoder);
+        }
+        for (LogDecoder decoder : started) {
+          if (decoder.advance()) {
+            decoders.add(decoder);
+          }
+        }
+        while (!decoders.isEmpty()) {
+          LogDecoder decoder = decoders.poll();
+          CommittedTransaction transaction = decoder.current;
+          processCommit(transaction.type, transaction.pointers);
+          total += transaction.pointers.length;
+          if (decoder.advance()) {
+            decoders.add(decoder);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted during replay", e);
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+    applyCommits();
+    int pendingTakesSize = pendingTakes.size();
+    if (pendingTakesSize > 0) {
+      String msg = "Pending takes " + pendingTakesSize
+          + " exist after the end of replay";
+      if (LOG.isDebugEnabled()) {
+        for (long pointer : pendingTakes.toArray()) {
+          LOG.debug("Pending take " + FlumeEventPointer.fromLong(pointer));
+        }
+        Preconditions.checkState(false, msg);
+      } else {
+        LOG.error(msg + ". Duplicate messages will exist in destination.");
+      }
+    }
+    LOG.info("Replayed " + total);
+    if (skippedRegions.get() > 0) {
+      LOG.warn("Skipped " + skippedBytes.get() + " bytes in "
+          + skippedRegions.get() + " regions of " + logs
+          + " which did not hold intact records");
+    }
+  }
+
+  long getSkippedBytes() {
+    return skippedBytes.get();
+  }
+
+  long getSkippedRegions() {
+    return skippedRegions.get();
+  }
+
+  private void processCommit(short type, long[] pointers) {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Processing commit of " + TransactionEventRecord.getName(type));
+    }
+    if (type == TransactionEventRecord.Type.PUT.get()) {
+      if (committedPutCount + pointers.length > committedPuts.length) {
+        committedPuts = Arrays.copyOf(committedPuts, Math.max(
+            committedPuts.length << 1, committedPutCount + pointers.length));
+      }
+      for (long pointer : pointers) {
+        committedPuts[committedPutCount++] = pointer;
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Commited Put " + FlumeEventPointer.fromLong(pointer));
+        }
+      }
+    } else if (type == TransactionEventRecord.Type.TAKE.get()) {
+      for (long pointer : pointers) {
+        pendingTakes.add(pointer);
+      }
+    } else {
+      Preconditions.checkArgument(false,
+          "Unknown record type: " + Integer.toHexString(type));
+    }
+  }
+
+  /**
+   * Remove the committed takes from the queue and append the committed
+   * puts which were not taken. Takes which match neither remain in
+   * pendingTakes.
+   */
+  private void applyCommits() {
+    int removed = queue.removeAll(pendingTakes);
+    int added = 0;
+    for (int index = 0; index < committedPutCount; index++) {
+      long value = committedPuts[index];
+      if (!pendingTakes.remove(value)) {
+        FlumeEventPointer pointer = FlumeEventPointer.fromLong(value);
+        Preconditions.checkState(queue.addTail(pointer), "Unable to add "
+            + pointer);
+        added++;
+      }
+    }
+    LOG.info("Removed " + removed + " from and added " + added
+        + " to the queue");
+    committedPuts = new long[0];
+    committedPutCount = 0;
+  }
+
+  /**
+   * A transaction with a commit record after the last checkpoint
+   */
+  private static class CommittedTransaction {
+    /**
+     * Marks the end of the logs of a decoder
+     */
+    static final CommittedTransaction END =
+        new CommittedTransaction(0L, 0L, (short) 0, new long[0]);
+    final long timestamp;
+    final long transactionID;
+    final short type;
+    final long[] pointers;
+    CommittedTransaction(long timestamp, long transactionID, short type,
+        long[] pointers) {
+      this.timestamp = timestamp;
+      this.transactionID = transactionID;
+      this.type = type;
+      this.pointers = pointers;
+    }
+    static int compare(CommittedTransaction transaction1,
+        CommittedTransaction transaction2) {
+      if (transaction1.timestamp != transaction2.timestamp) {
+        return transaction1.timestamp < transaction2.timestamp ? -1 : 1;
+      }
+      if (transaction1.transactionID != transaction2.transactionID) {
+        return transaction1.transactionID < transaction2.transactionID
+            ? -1 : 1;
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Reads the logs of one data directory in order, handing transactions
+   * to the replay thread as their commit records are found.
+   */
+  private class LogDecoder implements Runnable {
+    private final List<File> logs;
+    private final BlockingQueue<CommittedTransaction> committed =
+        new ArrayBlockingQueue<CommittedTransaction>(DECODER_QUEUE_SIZE);
+    private volatile Throwable error;
+    // only accessed by the replay thread
+    private CommittedTransaction current;
+
+    LogDecoder(List<File> logs) {
+      this.logs = logs;
+    }
+
+    /**
+     * Called by the replay thread to move to the next committed
+     * transaction of this decoder.
+     * @return false if there are no more transactions
+     */
+    boolean advance() throws IOException, InterruptedException {
+      current = committed.take();
+      if (current == CommittedTransaction.END) {
+        current = null;
+        if (error != null) {
+          Throwables.propagateIfPossible(error, IOException.class);
+          throw new IOException("Error decoding " + logs, error);
+        }
+        return false;
+      }
+      return true;
+    }
+
+    @Override
+    public void run() {
+      try {
+        MultiMap transactionMap = new MultiValueMap();
+        for (File log : logs) {
+          decode(log, transactionMap);
+        }
+      } catch (InterruptedException e) {
+        // replay is being aborted
+        return;
+      } catch (Throwable t) {
+        error = t;
+      }
+      try {
+        committed.put(CommittedTransaction.END);
+      } catch (InterruptedException e) {
+        // replay is being aborted
+      }
+    }
+
+    private void decode(File log, MultiMap transactionMap)
+        throws IOException, InterruptedException {
       LOG.info("Replaying " + log);
+      int count = 0;
       LogFile.SequentialReader reader = null;
       try {
         reader = new LogFile.SequentialReader(log);
@@ -78,6 +361,20 @@ class ReplayHandler {
         // for puts the fileId is the fileID of the file they exist in
         // for takes the fileId and offset are pointers to a put
         int fileId = reader.getLogFileID();
+        Long startPosition = startPositions.get(fileId);
+        if (startPosition != null) {
+          LOG.info("Seeking to " + startPosition + " of " + log +
+              ", the position at the checkpoint");
+          reader.seek(startPosition);
+        }
+        /*
+         * Positions are recorded with the snapshot of the queue, so the
+         * records past them are newer than the checkpoint even when
+         * committed in the same millisecond. Only without positions is
+         * the timestamp the way to tell.
+         */
+        boolean afterCheckpoint = startPosition != null ||
+            fileId > lastStartFileID;
         while ((entry = reader.next()) != null) {
           int offset = entry.getLeft();
           TransactionEventRecord record = entry.getRight();
@@ -90,23 +387,52 @@ class ReplayHandler {
                 + TransactionEventRecord.getName(type) + ", transaction "
                 + trans);
           }
-          if (record.getTimestamp() > lastCheckpoint) {
+          if (afterCheckpoint || record.getTimestamp() > lastCheckpoint) {
             if (type == TransactionEventRecord.Type.PUT.get()) {
-              ptr = new FlumeEventPointer(fileId, offset);
-              transactionMap.put(trans, ptr);
+              // events relocated by compaction are never committed
+              if (trans != Log.COMPACTION_TRANSACTION_ID) {
+                ptr = new FlumeEventPointer(fileId, offset);
+                transactionMap.put(trans, ptr);
+              }
             } else if (type == TransactionEventRecord.Type.TAKE.get()) {
               Take take = (Take) record;
               ptr = new FlumeEventPointer(take.getFileID(), take.getOffset());
               transactionMap.put(trans, ptr);
+            } else if (type == TransactionEventRecord.Type.BATCH.get()) {
+              // a batch is committed by being written
+              Batch batch = (Batch) record;
+              long[] values;
+              if (batch.getType() == TransactionEventRecord.Type.PUT.get()) {
+                int payloadOffset = reader.getLastPayloadOffset();
+                int[] eventOffsets = batch.getEventOffsets();
+                values = new long[eventOffsets.length];
+                for (int index = 0; index < values.length; index++) {
+                  values[index] = new FlumeEventPointer(fileId,
+                      payloadOffset + eventOffsets[index]).toLong();
+                }
+              } else {
+                values = batch.getPointers();
+              }
+              if (values.length > 0) {
+                committed.put(new CommittedTransaction(record.getTimestamp(),
+                    trans, batch.getType(), values));
+                count += values.length;
+              }
             } else if (type == TransactionEventRecord.Type.ROLLBACK.get()) {
               transactionMap.remove(trans);
             } else if (type == TransactionEventRecord.Type.COMMIT.get()) {
               @SuppressWarnings("unchecked")
-              Collection<FlumeEventPointer> pointers = 
+              Collection<FlumeEventPointer> pointers =
                 (Collection<FlumeEventPointer>) transactionMap.remove(trans);
               if (pointers != null && pointers.size() > 0) {
-                processCommit(((Commit) record).getType(), pointers);
-                count += pointers.size();
+                long[] values = new long[pointers.size()];
+                int index = 0;
+                for (FlumeEventPointer pointer : pointers) {
+                  values[index++] = pointer.toLong();
+                }
+                committed.put(new CommittedTransaction(record.getTimestamp(),
+                    trans, ((Commit) record).getType(), values));
+                count += values.length;
               }
             } else {
               Preconditions.checkArgument(false, "Unknown record type: "
@@ -116,62 +442,20 @@ class ReplayHandler {
           }
         }
         LOG.info("Replayed " + count + " from " + log);
+        if (reader.getSkippedRegions() > 0) {
+          skippedBytes.addAndGet(reader.getSkippedBytes());
+          skippedRegions.addAndGet(reader.getSkippedRegions());
+          LOG.warn("Skipped " + reader.getSkippedBytes() + " bytes in "
+              + reader.getSkippedRegions() + " regions of " + log
+              + " which did not hold intact records");
+        }
       } catch (EOFException e) {
         LOG.warn("Hit EOF on " + log);
       } finally {
-        total += count;
-        count = 0;
         if (reader != null) {
           reader.close();
         }
       }
     }
-    int pendingTakesSize = pendingTakes.size();
-    if (pendingTakesSize > 0) {
-      String msg = "Pending takes " + pendingTakesSize
-          + " exist after the end of replay";
-      if (LOG.isDebugEnabled()) {
-        for (Long pointer : pendingTakes) {
-          LOG.debug("Pending take " + FlumeEventPointer.fromLong(pointer));
-        }
-        Preconditions.checkState(false, msg);
-      } else {
-        LOG.error(msg + ". Duplicate messages will exist in destination.");
-      }
-    }
-    LOG.info("Replayed " + total);
   }
-
-  private void processCommit(short type, Collection<FlumeEventPointer> pointers) {
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("Processing commit of " + TransactionEventRecord.getName(type));
-    }
-    if (type == TransactionEventRecord.Type.PUT.get()) {
-      for (FlumeEventPointer pointer : pointers) {
-        Preconditions.checkState(queue.addTail(pointer), "Unable to add "
-            + pointer);
-        if (pendingTakes.remove(pointer.toLong())) {
-          Preconditions.checkState(queue.remove(pointer),
-              "Take was pending and pointer was successfully added to the"
-                  + " queue but could not be removed: " + pointer);
-        } else if (LOG.isDebugEnabled()) {
-          LOG.debug("Commited Put " + pointer);
-        }
-      }
-    } else if (type == TransactionEventRecord.Type.TAKE.get()) {
-      for (FlumeEventPointer pointer : pointers) {
-        boolean removed = queue.remove(pointer);
-        if (!removed) {
-          pendingTakes.add(pointer.toLong());
-          if (LOG.isDebugEnabled()) {
-            LOG.info("Unable to remove " + pointer + " added to pending list");
-          }
-        }
-      }
-    } else {
-      Preconditions.checkArgument(false,
-          "Unknown record type: " + Integer.toHexString(type));
-    }
-  }
-
 }
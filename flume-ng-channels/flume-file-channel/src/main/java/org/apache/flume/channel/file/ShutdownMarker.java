@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Written to the checkpoint directory when a {@link Log} is closed in
+ * an orderly manner, once its data files are closed and a final
+ * checkpoint has been written. Records the timestamp of that checkpoint
+ * and the length of each data file. If on the next start the newest
+ * checkpoint and the data files match the marker, the checkpoint holds
+ * the whole state of the channel and the data files need not be
+ * replayed. The marker is removed on start, before anything is written.
+ */
+class ShutdownMarker {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(ShutdownMarker.class);
+  static final String FILE_NAME = "clean-shutdown";
+  private static final int VERSION = 1;
+
+  private ShutdownMarker() {
+  }
+
+  /**
+   * Record a clean shutdown after the checkpoint written at
+   * checkpointTimestamp
+   */
+  static void write(File checkpointDir, long checkpointTimestamp,
+      List<File> dataFiles) throws IOException {
+    File file = new File(checkpointDir, FILE_NAME);
+    File tmp = new File(checkpointDir, FILE_NAME + ".tmp");
+    FileOutputStream fileOutput = new FileOutputStream(tmp);
+    try {
+      DataOutputStream output = new DataOutputStream(fileOutput);
+      output.writeInt(VERSION);
+      output.writeLong(checkpointTimestamp);
+      output.writeInt(dataFiles.size());
+      for (File dataFile : dataFiles) {
+        output.writeInt(LogUtils.getIDForFile(dataFile));
+        output.writeLong(dataFile.length());
+      }
+      output.flush();
+      fileOutput.getChannel().force(true);
+    } finally {
+      fileOutput.close();
+    }
+    if(!tmp.renameTo(file)) {
+      throw new IOException("Unable to rename " + tmp + " to " + file);
+    }
+  }
+
+  /**
+   * @return true if the marker records a clean shutdown after the
+   * checkpoint written at checkpointTimestamp, with exactly dataFiles
+   * at their current lengths
+   */
+  static boolean isClean(File checkpointDir, long checkpointTimestamp,
+      List<File> dataFiles) throws IOException {
+    File file = new File(checkpointDir, FILE_NAME);
+    Map<Integer, Long> lengths = Maps.newHashMap();
+    long timestamp;
+    try {
+      DataInputStream input = new DataInputStream(new FileInputStream(file));
+      try {
+        int version = input.readInt();
+        if(version != VERSION) {
+          LOG.warn("Ignoring " + file + " of version " + version);
+          return false;
+        }
+        timestamp = input.readLong();
+        int count = input.readInt();
+        for (int index = 0; index < count; index++) {
+          lengths.put(input.readInt(), input.readLong());
+        }
+      } finally {
+        input.close();
+      }
+    } catch (FileNotFoundException e) {
+      return false;
+    } catch (EOFException e) {
+      LOG.warn("Ignoring incomplete " + file);
+      return false;
+    }
+    if(timestamp != checkpointTimestamp) {
+      LOG.info("Shutdown marker is for the checkpoint of " + timestamp +
+          ", not the checkpoint read of " + checkpointTimestamp);
+      return false;
+    }
+    if(lengths.size() != dataFiles.size()) {
+      LOG.info("Shutdown marker records " + lengths.size() +
+          " data files, found " + dataFiles.size());
+      return false;
+    }
+    for (File dataFile : dataFiles) {
+      Long length = lengths.get(LogUtils.getIDForFile(dataFile));
+      if(length == null || length.longValue() != dataFile.length()) {
+        LOG.info("Shutdown marker does not match " + dataFile +
+            " of length " + dataFile.length());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Remove the marker, before the data files or checkpoints change
+   */
+  static void delete(File checkpointDir) throws IOException {
+    File file = new File(checkpointDir, FILE_NAME);
+    if(file.exists() && !file.delete()) {
+      throw new IOException("Unable to delete " + file);
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.CounterGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Append only data files holding the events a
+ * {@link SpillableMemoryChannel} could not keep in memory. Events are
+ * written as put batches by {@link LogFile.Writer}, without syncing, and
+ * read back by {@link LogFile.RandomReader}. A file is deleted once every
+ * event spilled to it has been released. Spill files are not replayed,
+ * those left by a previous run are deleted when a spill log is opened.
+ */
+class SpillLog {
+  private static final Logger LOG = LoggerFactory.getLogger(SpillLog.class);
+  static final String PREFIX = "spill-";
+
+  private final File spillDir;
+  private final long maxFileSize;
+  private final int readAheadSize;
+  private final CounterGroup counters;
+  // readers of every file with events which have not been released
+  private final Map<Integer, LogFile.RandomReader> readers =
+      Maps.newConcurrentMap();
+  // guarded by this
+  private final IntIntHashMap liveEvents = new IntIntHashMap();
+  // guarded by this
+  private LogFile.Writer writer;
+  private volatile boolean open;
+
+  SpillLog(File spillDir, long maxFileSize, int readAheadSize,
+      CounterGroup counters) throws IOException {
+    this.spillDir = spillDir;
+    this.maxFileSize = maxFileSize;
+    this.readAheadSize = readAheadSize;
+    this.counters = counters;
+    if(!spillDir.isDirectory()) {
+      Preconditions.checkState(spillDir.mkdirs(), "Unable to create " +
+          spillDir);
+    }
+    for (File file : spillDir.listFiles()) {
+      if(file.getName().startsWith(PREFIX)) {
+        LOG.info("Deleting spill file left by a previous run " + file);
+        if(!file.delete()) {
+          LOG.warn("Unable to delete " + file);
+        }
+      }
+    }
+    open(1);
+    open = true;
+  }
+
+  /**
+   * Append events to the current file, rolling it first if they do not
+   * fit.
+   * @return the pointers of the events, in the form of
+   * {@link FlumeEventPointer#toLong()}
+   */
+  synchronized long[] write(long transactionID, List<FlumeEvent> events)
+      throws IOException {
+    Preconditions.checkState(open, "Spill log is closed");
+    Batch batch = Batch.newPut(transactionID, events);
+    batch.setTimestamp(System.currentTimeMillis());
+    ByteBuffer[] buffers = batch.toByteBuffers();
+    long size = LogFile.FRAME_HEADER_SIZE;
+    for (ByteBuffer buffer : buffers) {
+      size += buffer.remaining();
+    }
+    if(writer.isRollRequired(size)) {
+      roll();
+    }
+    Pair<Integer, Integer> record = writer.commit(buffers);
+    int fileID = record.getLeft();
+    int offset = record.getRight();
+    int[] eventOffsets = batch.getEventOffsets();
+    long[] pointers = new long[eventOffsets.length];
+    for (int index = 0; index < pointers.length; index++) {
+      pointers[index] = new FlumeEventPointer(fileID,
+          offset + eventOffsets[index]).toLong();
+    }
+    liveEvents.add(fileID, pointers.length);
+    return pointers;
+  }
+
+  FlumeEvent get(long pointer) throws IOException, InterruptedException {
+    FlumeEventPointer eventPointer = FlumeEventPointer.fromLong(pointer);
+    LogFile.RandomReader reader = readers.get(eventPointer.getFileID());
+    Preconditions.checkState(reader != null, "No spill file for " +
+        eventPointer);
+    return reader.get(eventPointer.getOffset());
+  }
+
+  /**
+   * Release an event which has been taken, deleting its file once it was
+   * the last event of a file which is no longer written.
+   */
+  void release(long pointer) {
+    int fileID = FlumeEventPointer.fromLong(pointer).getFileID();
+    synchronized (this) {
+      if(liveEvents.add(fileID, -1) > 0 || fileID == writer.getFileID()) {
+        return;
+      }
+      liveEvents.remove(fileID);
+    }
+    delete(fileID);
+  }
+
+  /**
+   * Close and delete every file, dropping the events spilled to them
+   */
+  void close() {
+    int[] fileIDs;
+    synchronized (this) {
+      if(!open) {
+        return;
+      }
+      open = false;
+      writer.close();
+      fileIDs = new int[readers.size()];
+      int index = 0;
+      for (Integer fileID : readers.keySet()) {
+        fileIDs[index++] = fileID;
+      }
+      liveEvents.clear();
+    }
+    for (int fileID : fileIDs) {
+      delete(fileID);
+    }
+  }
+
+  /**
+   * @return the files with events which have not been released
+   */
+  int getFileCount() {
+    return readers.size();
+  }
+
+  // called holding the monitor
+  private void roll() throws IOException {
+    LogFile.Writer full = writer;
+    int fileID = full.getFileID();
+    full.close();
+    open(fileID + 1);
+    readers.get(fileID).setImmutable();
+    if(liveEvents.get(fileID) == 0) {
+      liveEvents.remove(fileID);
+      delete(fileID);
+    }
+  }
+
+  private void open(int fileID) throws IOException {
+    File file = new File(spillDir, PREFIX + fileID);
+    writer = new LogFile.Writer(file, fileID, maxFileSize, 0L, counters,
+        null, Durability.OS, null);
+    readers.put(fileID, new LogFile.RandomReader(file, readAheadSize,
+        counters));
+  }
+
+  private void delete(int fileID) {
+    LogFile.RandomReader reader = readers.remove(fileID);
+    if(reader != null) {
+      reader.close();
+      File file = reader.getFile();
+      LOG.info("Deleting drained spill file " + file);
+      if(!file.delete()) {
+        LOG.warn("Unable to delete " + file);
+      }
+    }
+  }
+}
@@ -0,0 +1,466 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.CounterGroup;
+import org.apache.flume.Event;
+import org.apache.flume.channel.BasicChannelSemantics;
+import org.apache.flume.channel.BasicTransactionSemantics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A memory channel which spills to disk rather than refusing puts when
+ * it is full. Committed puts are queued in memory, as by
+ * {@link org.apache.flume.channel.MemoryChannel}, until memoryCapacity
+ * events are held. Puts committed beyond that are appended to a
+ * {@link SpillLog}, and so are all puts while spilled events remain, so
+ * that events are taken in the order they were committed: those in memory
+ * first, then those spilled. Once takes have emptied memory to half of
+ * memoryCapacity the oldest spilled events are read back into memory,
+ * keeping their order, so that takes are served from memory and puts
+ * return to memory as soon as the spill has drained. A spill file is
+ * deleted once all of its events have been taken or read back.
+ *
+ * Spilling is not a means of durability, spill files are not synced and
+ * are deleted rather than replayed when the channel is next started.
+ */
+public class SpillableMemoryChannel extends BasicChannelSemantics {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(SpillableMemoryChannel.class);
+  static final String COUNTER_SPILL_PUTS = "spill.puts";
+  static final String COUNTER_SPILL_TAKES = "spill.takes";
+  static final String COUNTER_SPILL_REFILLS = "spill.refills";
+  // the take was from memory
+  private static final long NO_POINTER = -1L;
+
+  public class SpillableTransaction extends BasicTransactionSemantics {
+    private final int transCapacity;
+    private final List<Event> putList;
+    private final List<Event> takeList;
+    // pointers of spilled takes, NO_POINTER for those from memory
+    private final long[] takePointers;
+
+    public SpillableTransaction(int transCapacity) {
+      this.transCapacity = transCapacity;
+      putList = new ArrayList<Event>(transCapacity);
+      takeList = new ArrayList<Event>(transCapacity);
+      takePointers = new long[transCapacity];
+    }
+
+    @Override
+    protected void doPut(Event event) {
+      if(putList.size() == transCapacity) {
+        throw new ChannelException("Put queue for SpillableTransaction of " +
+            "capacity " + transCapacity + " full, consider committing more " +
+            "frequently, increasing capacity or increasing thread count");
+      }
+      putList.add(event);
+    }
+
+    @Override
+    protected Event doTake() throws InterruptedException {
+      if(takeList.size() == transCapacity) {
+        throw new ChannelException("Take list for SpillableTransaction, " +
+            "capacity " + transCapacity + " full, consider committing more " +
+            "frequently, increasing capacity, or increasing thread count");
+      }
+      if(!queueStored.tryAcquire(keepAlive, TimeUnit.SECONDS)) {
+        return null;
+      }
+      Event event;
+      long pointer = NO_POINTER;
+      synchronized(queueLock) {
+        event = memory.pollFirst();
+        if(event == null) {
+          pointer = removeSpilled();
+          spilledTaken++;
+        }
+      }
+      if(event == null) {
+        boolean error = true;
+        try {
+          event = spillLog.get(pointer);
+          counters.incrementAndGet(COUNTER_SPILL_TAKES);
+          error = false;
+        } catch (IOException e) {
+          throw new ChannelException("Unable to read spilled event", e);
+        } finally {
+          if(error) {
+            synchronized(queueLock) {
+              addSpilledFirst(pointer);
+              spilledTaken--;
+            }
+            queueStored.release();
+          }
+        }
+      }
+      takePointers[takeList.size()] = pointer;
+      takeList.add(event);
+      refill();
+      return event;
+    }
+
+    @Override
+    protected void doCommit() throws InterruptedException {
+      int remainingChange = takeList.size() - putList.size();
+      if(remainingChange < 0) {
+        if(!queueRemaining.tryAcquire(-remainingChange, keepAlive, TimeUnit.SECONDS)) {
+          throw new ChannelException("Space for commit to queue couldn't be" +
+              " acquired Sinks are likely not keeping up with sources, or the" +
+              " buffer size is too tight");
+        }
+      }
+      int puts = putList.size();
+      if(puts > 0) {
+        boolean spill;
+        synchronized(queueLock) {
+          spill = spilledSize > 0 || spilling > 0 ||
+              memory.size() + puts > memoryCapacity;
+          if(spill) {
+            spilling++;
+          } else {
+            memory.addAll(putList);
+          }
+        }
+        if(spill) {
+          spill(remainingChange);
+        }
+      }
+      int spilledTakes = 0;
+      for (int index = 0; index < takeList.size(); index++) {
+        if(takePointers[index] != NO_POINTER) {
+          spillLog.release(takePointers[index]);
+          spilledTakes++;
+        }
+      }
+      if(spilledTakes > 0) {
+        synchronized(queueLock) {
+          spilledTaken -= spilledTakes;
+        }
+      }
+      putList.clear();
+      takeList.clear();
+      queueStored.release(puts);
+      if(remainingChange > 0) {
+        queueRemaining.release(remainingChange);
+      }
+    }
+
+    private void spill(int remainingChange) {
+      long[] pointers = null;
+      try {
+        List<FlumeEvent> events = new ArrayList<FlumeEvent>(putList.size());
+        for (Event event : putList) {
+          events.add(new FlumeEvent(event.getHeaders(), event.getBody()));
+        }
+        pointers = getSpillLog().write(transactionID.incrementAndGet(),
+            events);
+        counters.addAndGet(COUNTER_SPILL_PUTS, (long) pointers.length);
+      } catch (IOException e) {
+        throw new ChannelException("Unable to spill events to " + spillDir,
+            e);
+      } finally {
+        synchronized(queueLock) {
+          spilling--;
+          if(pointers != null) {
+            for (long pointer : pointers) {
+              addSpilledLast(pointer);
+            }
+          }
+        }
+        if(pointers == null && remainingChange < 0) {
+          queueRemaining.release(-remainingChange);
+        }
+      }
+    }
+
+    @Override
+    protected void doRollback() {
+      int takes = takeList.size();
+      synchronized(queueLock) {
+        for (int index = takes - 1; index >= 0; index--) {
+          if(takePointers[index] == NO_POINTER) {
+            memory.addFirst(takeList.get(index));
+          } else {
+            addSpilledFirst(takePointers[index]);
+            spilledTaken--;
+          }
+        }
+      }
+      putList.clear();
+      takeList.clear();
+      queueStored.release(takes);
+    }
+  }
+
+  // lock to guard the queues, which should never be held through a
+  // blocking operation
+  private final Object queueLock = new Object();
+  @GuardedBy(value = "queueLock")
+  private final LinkedList<Event> memory = new LinkedList<Event>();
+  // ring of pointers to the spilled events, which follow those in memory
+  @GuardedBy(value = "queueLock")
+  private long[] spilled;
+  @GuardedBy(value = "queueLock")
+  private int spilledHead;
+  @GuardedBy(value = "queueLock")
+  private int spilledSize;
+  // commits writing to the spill log, after which puts must spill too
+  @GuardedBy(value = "queueLock")
+  private int spilling;
+  // spilled events taken by transactions which have not completed, whose
+  // pointers go back to the spill on rollback
+  @GuardedBy(value = "queueLock")
+  private int spilledTaken;
+  // changed whenever the head of the spill is, so that a refill can tell
+  // whether the events it read are still the oldest spilled
+  @GuardedBy(value = "queueLock")
+  private long spilledHeadVersion;
+  @GuardedBy(value = "queueLock")
+  private boolean refilling;
+
+  // as for MemoryChannel, the space remaining with all uncommitted takes
+  // deducted, and the events which can be taken
+  private Semaphore queueRemaining;
+  private Semaphore queueStored;
+  private final CounterGroup counters = new CounterGroup();
+  // only used to frame the spilled batches
+  private final AtomicLong transactionID = new AtomicLong();
+
+  private int capacity;
+  private volatile int memoryCapacity;
+  private volatile Integer transCapacity;
+  private volatile int keepAlive;
+  private File spillDir;
+  private long maxFileSize;
+  private int readAheadSize;
+  // opened when first needed
+  private volatile SpillLog spillLog;
+
+  @Override
+  public void configure(Context context) {
+    int newCapacity = context.getInteger(
+        SpillableMemoryChannelConfiguration.CAPACITY,
+        SpillableMemoryChannelConfiguration.DEFAULT_CAPACITY);
+    Preconditions.checkArgument(newCapacity > 0,
+        SpillableMemoryChannelConfiguration.CAPACITY + " must be > 0");
+    if(capacity > 0 && newCapacity != capacity) {
+      LOG.warn("Capacity of this channel cannot be sized on the fly, " +
+          "keeping " + capacity);
+    } else {
+      capacity = newCapacity;
+    }
+    memoryCapacity = context.getInteger(
+        SpillableMemoryChannelConfiguration.MEMORY_CAPACITY,
+        SpillableMemoryChannelConfiguration.DEFAULT_MEMORY_CAPACITY);
+    Preconditions.checkArgument(memoryCapacity >= 0,
+        SpillableMemoryChannelConfiguration.MEMORY_CAPACITY + " must be >= 0");
+    transCapacity = context.getInteger(
+        SpillableMemoryChannelConfiguration.TRANSACTION_CAPACITY,
+        SpillableMemoryChannelConfiguration.DEFAULT_TRANSACTION_CAPACITY);
+    Preconditions.checkState(transCapacity <= capacity);
+    keepAlive = context.getInteger(
+        SpillableMemoryChannelConfiguration.KEEP_ALIVE,
+        SpillableMemoryChannelConfiguration.DEFAULT_KEEP_ALIVE);
+
+    String homePath = System.getProperty("user.home").replace('\\', '/');
+    File newSpillDir = new File(context.getString(
+        SpillableMemoryChannelConfiguration.SPILL_DIR,
+        homePath + "/.flume/spillable-memory-channel/spill"));
+    long newMaxFileSize = Math.min(context.getLong(
+        SpillableMemoryChannelConfiguration.MAX_FILE_SIZE,
+        SpillableMemoryChannelConfiguration.DEFAULT_MAX_FILE_SIZE),
+        LogFile.MAX_FILE_SIZE);
+    int newReadAheadSize = context.getInteger(
+        SpillableMemoryChannelConfiguration.READ_AHEAD_SIZE,
+        SpillableMemoryChannelConfiguration.DEFAULT_READ_AHEAD_SIZE);
+    Preconditions.checkArgument(newReadAheadSize >= 0,
+        SpillableMemoryChannelConfiguration.READ_AHEAD_SIZE + " must be >= 0");
+    synchronized(queueLock) {
+      if(spillLog != null && (!newSpillDir.equals(spillDir) ||
+          newMaxFileSize != maxFileSize ||
+          newReadAheadSize != readAheadSize)) {
+        LOG.warn("An attempt was made to change the spill files while " +
+            "events are spilled, this is not supported.");
+      } else {
+        spillDir = newSpillDir;
+        maxFileSize = newMaxFileSize;
+        readAheadSize = newReadAheadSize;
+      }
+      if(spilled == null) {
+        spilled = new long[capacity];
+        queueRemaining = new Semaphore(capacity);
+        queueStored = new Semaphore(0);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    // spilled events are kept should the channel be started again
+    SpillLog drained = null;
+    synchronized(queueLock) {
+      if(spillLog != null && spilledSize == 0 && spilling == 0 &&
+          spilledTaken == 0 && !refilling) {
+        drained = spillLog;
+        spillLog = null;
+      }
+    }
+    if(drained != null) {
+      drained.close();
+    }
+    LOG.info("SpillableMemoryChannel stopped. Metrics:{}", counters);
+    super.stop();
+  }
+
+  CounterGroup getCounterGroup() {
+    return counters;
+  }
+
+  /**
+   * @return the spill log, or null if nothing has been spilled
+   */
+  SpillLog getSpillLogIfOpen() {
+    return spillLog;
+  }
+
+  private SpillLog getSpillLog() throws IOException {
+    SpillLog log = spillLog;
+    if(log == null) {
+      synchronized(queueLock) {
+        if(spillLog == null) {
+          LOG.info("Spilling events to " + spillDir);
+          spillLog = new SpillLog(spillDir, maxFileSize, readAheadSize,
+              counters);
+        }
+        log = spillLog;
+      }
+    }
+    return log;
+  }
+
+  /**
+   * Read the oldest spilled events back into memory, as many as memory has
+   * room for, once memory has emptied to half of memoryCapacity. The
+   * events are read without holding the queue lock and are only moved if
+   * no take or rollback changed the head of the spill meanwhile.
+   */
+  private void refill() {
+    long[] pointers;
+    long version;
+    synchronized(queueLock) {
+      if(refilling || spilledSize == 0 ||
+          memory.size() > memoryCapacity / 2) {
+        return;
+      }
+      int count = Math.min(spilledSize, memoryCapacity - memory.size());
+      if(count <= 0) {
+        return;
+      }
+      pointers = new long[count];
+      for (int index = 0; index < count; index++) {
+        pointers[index] = spilled[(spilledHead + index) % spilled.length];
+      }
+      version = spilledHeadVersion;
+      refilling = true;
+    }
+    try {
+      List<Event> events = new ArrayList<Event>(pointers.length);
+      for (long pointer : pointers) {
+        events.add(spillLog.get(pointer));
+      }
+      boolean moved = false;
+      synchronized(queueLock) {
+        if(version == spilledHeadVersion) {
+          // memory holds the events committed before the spilled ones
+          memory.addAll(events);
+          spilledHead = (spilledHead + pointers.length) % spilled.length;
+          spilledSize -= pointers.length;
+          spilledHeadVersion++;
+          moved = true;
+        }
+      }
+      if(moved) {
+        for (long pointer : pointers) {
+          spillLog.release(pointer);
+        }
+        counters.addAndGet(COUNTER_SPILL_REFILLS, (long) pointers.length);
+      }
+    } catch (IOException e) {
+      LOG.warn("Unable to read spilled events back into memory, they " +
+          "will be taken from " + spillDir, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized(queueLock) {
+        refilling = false;
+      }
+    }
+  }
+
+  @GuardedBy(value = "queueLock")
+  private void addSpilledLast(long pointer) {
+    Preconditions.checkState(spilledSize < spilled.length, "Queue add " +
+        "failed, this shouldn't be able to happen");
+    spilled[(spilledHead + spilledSize) % spilled.length] = pointer;
+    spilledSize++;
+  }
+
+  @GuardedBy(value = "queueLock")
+  private void addSpilledFirst(long pointer) {
+    Preconditions.checkState(spilledSize < spilled.length, "Not enough " +
+        "space to rollback takes. This should never happen, please report");
+    spilledHead = (spilledHead + spilled.length - 1) % spilled.length;
+    spilled[spilledHead] = pointer;
+    spilledSize++;
+    spilledHeadVersion++;
+  }
+
+  @GuardedBy(value = "queueLock")
+  private long removeSpilled() {
+    Preconditions.checkState(spilledSize > 0, "Queue was empty despite " +
+        "semaphore signalling existence of entry");
+    long pointer = spilled[spilledHead];
+    spilledHead = (spilledHead + 1) % spilled.length;
+    spilledSize--;
+    spilledHeadVersion++;
+    return pointer;
+  }
+
+  @Override
+  protected BasicTransactionSemantics createTransaction() {
+    return new SpillableTransaction(transCapacity);
+  }
+}
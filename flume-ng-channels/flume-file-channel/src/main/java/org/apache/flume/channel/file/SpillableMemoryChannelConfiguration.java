@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+public class SpillableMemoryChannelConfiguration {
+  /**
+   * Maximum number of events held by the channel, in memory and spilled
+   * to disk. The spilled events are tracked by a queue holding 8 bytes
+   * on heap for each. Default: 1,000,000
+   */
+  public static final String CAPACITY = "capacity";
+  public static final int DEFAULT_CAPACITY = 1000000;
+  /**
+   * Number of events held in memory, beyond which committed puts are
+   * spilled to disk until the spilled events have been taken.
+   * Default: 10,000
+   */
+  public static final String MEMORY_CAPACITY = "memoryCapacity";
+  public static final int DEFAULT_MEMORY_CAPACITY = 10000;
+  /**
+   * Maximum number of put/take events in a transaction. Default: 100
+   */
+  public static final String TRANSACTION_CAPACITY = "transactionCapacity";
+  public static final int DEFAULT_TRANSACTION_CAPACITY = 100;
+  /**
+   * The length of time we will wait for space available to do a Put.
+   * Default: 3 (seconds)
+   */
+  public static final String KEEP_ALIVE = "keep-alive";
+  public static final int DEFAULT_KEEP_ALIVE = 3;
+  /**
+   * Directory spill files will be written in, which must not be shared
+   * with another channel as spill files found in it are deleted when the
+   * channel first spills.
+   */
+  public static final String SPILL_DIR = "spillDir";
+  /**
+   * Max file size for spill files, a file being deleted once all of its
+   * events have been taken. Default: 256MB
+   */
+  public static final String MAX_FILE_SIZE = "maxFileSize";
+  public static final long DEFAULT_MAX_FILE_SIZE = 256L * 1024L * 1024L;
+  /**
+   * Number of bytes read at once when takes walk a spill file which is
+   * no longer being written. Default: 1MB, 0 disables read ahead
+   */
+  public static final String READ_AHEAD_SIZE =
+      FileChannelConfiguration.READ_AHEAD_SIZE;
+  public static final int DEFAULT_READ_AHEAD_SIZE =
+      FileChannelConfiguration.DEFAULT_READ_AHEAD_SIZE;
+}
@@ -34,6 +34,7 @@ import com.google.common.collect.ImmutableMap;
 
 /**
  * Base class for records in data file: Put, Take, Rollback, Commit
+ * and Batch
  */
 abstract class TransactionEventRecord implements Writable {
   private final long transactionID;
@@ -74,7 +75,8 @@ abstract class TransactionEventRecord implements Writable {
     PUT((short)1),
     TAKE((short)2),
     ROLLBACK((short)3),
-    COMMIT((short)4);
+    COMMIT((short)4),
+    BATCH((short)5);
 
     private short id;
     Type(short id) {
@@ -98,6 +100,8 @@ abstract class TransactionEventRecord implements Writable {
           Rollback.class.getDeclaredConstructor(Long.class));
       builder.put(Type.COMMIT.get(),
           Commit.class.getDeclaredConstructor(Long.class));
+      builder.put(Type.BATCH.get(),
+          Batch.class.getDeclaredConstructor(Long.class));
     } catch (Exception e) {
       Throwables.propagate(e);
     }
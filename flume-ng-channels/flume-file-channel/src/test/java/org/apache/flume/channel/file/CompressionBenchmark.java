@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.CounterGroup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Compares the bytes written to data files, and the CPU time spent
+ * encoding and reading events, without compression and with deflate at
+ * several levels. Not run as part of the unit tests, run it with the
+ * test classpath:
+ *
+ * <pre>
+ * java -Dbenchmark.events=100000 -Dbenchmark.eventSizes=100,500,2000,8000 \
+ *   org.apache.flume.channel.file.CompressionBenchmark
+ * </pre>
+ *
+ * Event bodies are JSON documents of roughly the given sizes, whose
+ * field values are drawn at random from small sets, as log events are.
+ * Events are committed in batches of benchmark.batchSize. Encoding is
+ * timed apart from writing so that disk speed does not hide it.
+ */
+public class CompressionBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int events = Integer.getInteger("benchmark.events", 100000);
+    int batchSize = Integer.getInteger("benchmark.batchSize", 100);
+    String[] eventSizes = System.getProperty("benchmark.eventSizes",
+        "100,500,2000,8000").split(",");
+    String[] names = { "none", "deflate-1", "deflate-6", "deflate-9" };
+    CompressionCodec[] codecs = { null,
+        new DeflateCodec(Deflater.BEST_SPEED),
+        new DeflateCodec(6),
+        new DeflateCodec(Deflater.BEST_COMPRESSION) };
+    System.out.println("eventSize codec bytesPerEvent ratio " +
+        "encodeNanosPerEvent readNanosPerEvent");
+    for (String eventSize : eventSizes) {
+      List<List<FlumeEvent>> batches = generate(events, batchSize,
+          Integer.parseInt(eventSize.trim()));
+      long uncompressed = 0L;
+      for (int index = 0; index < codecs.length; index++) {
+        long[] result = run(batches, codecs[index]);
+        if(codecs[index] == null) {
+          uncompressed = result[0];
+        }
+        System.out.println(eventSize.trim() + " " + names[index] + " " +
+            (result[0] / events) + " " +
+            String.format("%.2f", (double) result[0] / uncompressed) + " " +
+            (result[1] / events) + " " + (result[2] / events));
+      }
+    }
+  }
+
+  /**
+   * @return the bytes written, and the nanoseconds spent encoding and
+   * reading the events
+   */
+  private static long[] run(List<List<FlumeEvent>> batches,
+      CompressionCodec codec) throws Exception {
+    File dataDir = Files.createTempDir();
+    try {
+      File file = new File(dataDir, Log.PREFIX + 1);
+      LogFile.Writer writer = new LogFile.Writer(file, 1,
+          LogFile.MAX_FILE_SIZE, 0L, new CounterGroup(), codec);
+      // warm up the encoder before timing it
+      for (int index = 0; index < Math.min(100, batches.size()); index++) {
+        Batch.newPut(index, batches.get(index)).toByteBuffers(codec);
+      }
+      long encodeNanos = 0L;
+      long transactionID = 0L;
+      List<Long> pointers = Lists.newArrayList();
+      try {
+        for (List<FlumeEvent> events : batches) {
+          Batch batch = Batch.newPut(++transactionID, events);
+          batch.setTimestamp(System.currentTimeMillis());
+          long start = System.nanoTime();
+          ByteBuffer[] buffers = batch.toByteBuffers(codec);
+          encodeNanos += System.nanoTime() - start;
+          int offset = writer.commit(buffers).getRight();
+          for (int eventOffset : batch.getEventOffsets()) {
+            pointers.add(new FlumeEventPointer(1, offset + eventOffset)
+                .toLong());
+          }
+        }
+      } finally {
+        writer.close();
+      }
+      long bytes = file.length();
+      LogFile.RandomReader reader = new LogFile.RandomReader(file,
+          1024 * 1024, new CounterGroup());
+      reader.setImmutable();
+      long readNanos;
+      try {
+        long start = System.nanoTime();
+        for (long pointer : pointers) {
+          reader.get(FlumeEventPointer.fromLong(pointer).getOffset());
+        }
+        readNanos = System.nanoTime() - start;
+      } finally {
+        reader.close();
+      }
+      return new long[] { bytes, encodeNanos, readNanos };
+    } finally {
+      FileUtils.deleteQuietly(dataDir);
+    }
+  }
+
+  private static List<List<FlumeEvent>> generate(int events, int batchSize,
+      int eventSize) {
+    Random random = new Random(eventSize);
+    String[] hosts = { "web01", "web02", "web03", "api01" };
+    String[] paths = { "/", "/login", "/search", "/cart", "/checkout" };
+    int[] statuses = { 200, 200, 200, 302, 404, 500 };
+    List<List<FlumeEvent>> batches = Lists.newArrayList();
+    List<FlumeEvent> batch = null;
+    for (int index = 0; index < events; index++) {
+      if(index % batchSize == 0) {
+        batch = Lists.newArrayList();
+        batches.add(batch);
+      }
+      StringBuilder json = new StringBuilder("[");
+      while(json.length() < eventSize) {
+        if(json.length() > 1) {
+          json.append(',');
+        }
+        json.append("{\"ts\":").append(1340000000000L + random.nextInt())
+            .append(",\"host\":\"").append(hosts[random.nextInt(hosts.length)])
+            .append("\",\"path\":\"").append(paths[random.nextInt(paths.length)])
+            .append("\",\"status\":")
+            .append(statuses[random.nextInt(statuses.length)])
+            .append(",\"bytes\":").append(random.nextInt(100000))
+            .append('}');
+      }
+      json.append(']');
+      Map<String, String> headers = Maps.newHashMap();
+      headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
+      batch.add(new FlumeEvent(headers,
+          json.toString().getBytes(Charsets.UTF_8)));
+    }
+    return batches;
+  }
+}
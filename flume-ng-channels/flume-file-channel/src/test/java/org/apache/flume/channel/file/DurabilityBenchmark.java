@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.CounterGroup;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Compares the commit throughput and latency of a data file in each
+ * {@link Durability} mode, with several threads committing batches
+ * concurrently as the sources of a channel do. Not run as part of the
+ * unit tests, run it with the test classpath, pointing benchmark.dir at
+ * the disk to measure:
+ *
+ * <pre>
+ * java -Dbenchmark.dir=/data/tmp -Dbenchmark.threads=4 \
+ *   -Dbenchmark.commits=2000 -Dbenchmark.batchSize=100 \
+ *   org.apache.flume.channel.file.DurabilityBenchmark
+ * </pre>
+ *
+ * Periodic durability syncs every benchmark.syncInterval milliseconds
+ * and every benchmark.syncBytes bytes. Setting benchmark.writeQueueSize
+ * has the commits written by the write thread of the data file. Each
+ * mode is run once to warm up before it is measured.
+ */
+public class DurabilityBenchmark {
+  private static int writeQueueSize;
+
+  public static void main(String[] args) throws Exception {
+    File dir = new File(System.getProperty("benchmark.dir",
+        System.getProperty("java.io.tmpdir")));
+    int threads = Integer.getInteger("benchmark.threads", 4);
+    int commits = Integer.getInteger("benchmark.commits", 2000);
+    int batchSize = Integer.getInteger("benchmark.batchSize", 100);
+    int eventSize = Integer.getInteger("benchmark.eventSize", 500);
+    long syncInterval = Long.getLong("benchmark.syncInterval", 1000L);
+    long syncBytes = Long.getLong("benchmark.syncBytes", 0L);
+    writeQueueSize = Integer.getInteger("benchmark.writeQueueSize", 0);
+    List<FlumeEvent> batch = Lists.newArrayList();
+    for (int index = 0; index < batchSize; index++) {
+      batch.add(new FlumeEvent(Maps.<String, String>newHashMap(),
+          new byte[eventSize]));
+    }
+    System.out.println("durability commitsPerSecond eventsPerSecond " +
+        "microsPerCommit syncs");
+    for (Durability durability : Durability.values()) {
+      run(dir, durability, syncInterval, syncBytes, threads,
+          Math.max(1, commits / 10), batch);
+      CounterGroup counters = new CounterGroup();
+      long nanos = run(dir, durability, syncInterval, syncBytes, threads,
+          commits, batch, counters);
+      long total = (long) threads * commits;
+      System.out.println(durability.getName() + " " +
+          (total * 1000000000L / nanos) + " " +
+          (total * batchSize * 1000000000L / nanos) + " " +
+          (nanos * threads / total / 1000L) + " " +
+          counters.get(LogFile.COUNTER_SYNCS));
+    }
+  }
+
+  private static long run(File dir, Durability durability,
+      long syncInterval, long syncBytes, int threads, int commits,
+      List<FlumeEvent> batch) throws Exception {
+    return run(dir, durability, syncInterval, syncBytes, threads, commits,
+        batch, new CounterGroup());
+  }
+
+  /**
+   * @return the nanoseconds taken by every thread to make its commits
+   */
+  private static long run(File dir, Durability durability,
+      long syncInterval, long syncBytes, int threads, final int commits,
+      final List<FlumeEvent> batch, CounterGroup counters) throws Exception {
+    File benchmarkDir = new File(dir, "durability-benchmark-" +
+        System.nanoTime());
+    LogFile.Syncer syncer = null;
+    if(durability == Durability.PERIODIC) {
+      syncer = new LogFile.Syncer(syncInterval, syncBytes);
+      syncer.start();
+    }
+    try {
+      Preconditions.checkState(benchmarkDir.mkdirs(), benchmarkDir);
+      final LogFile.Writer writer = new LogFile.Writer(
+          new File(benchmarkDir, Log.PREFIX + 1), 1, LogFile.MAX_FILE_SIZE,
+          0L, counters, null, durability, syncer, writeQueueSize);
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(threads);
+      final AtomicReference<Throwable> error =
+          new AtomicReference<Throwable>();
+      for (int thread = 0; thread < threads; thread++) {
+        final long firstTransactionID = (long) thread * commits;
+        Thread committer = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              for (int index = 0; index < commits; index++) {
+                Batch record = Batch.newPut(firstTransactionID + index,
+                    batch);
+                record.setTimestamp(System.currentTimeMillis());
+                writer.commit(record.toByteBuffers());
+              }
+            } catch (Throwable throwable) {
+              error.compareAndSet(null, throwable);
+            } finally {
+              done.countDown();
+            }
+          }
+        };
+        committer.setDaemon(true);
+        committer.start();
+      }
+      long startNanos = System.nanoTime();
+      start.countDown();
+      done.await();
+      long nanos = System.nanoTime() - startNanos;
+      writer.close();
+      if(error.get() != null) {
+        throw new RuntimeException("Commit failed", error.get());
+      }
+      return nanos;
+    } finally {
+      if(syncer != null) {
+        syncer.shutdown();
+      }
+      FileUtils.deleteQuietly(benchmarkDir);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Replay benchmark over a synthetic set of data files. Not run as part
+ * of the unit tests, run it with the test classpath:
+ *
+ * <pre>
+ * java -Dbenchmark.bytes=4294967296 -Dbenchmark.eventSize=500 \
+ *   -Dbenchmark.dirs=2 -XX:MaxDirectMemorySize=1g \
+ *   org.apache.flume.channel.file.ReplayBenchmark [dataDir]
+ * </pre>
+ *
+ * Transactions are spread over benchmark.dirs directories by
+ * transaction id, as {@link Log} does with its data directories.
+ * The log set holds transactions of benchmark.batchSize puts, of which
+ * benchmark.takePercent percent are later taken in transactions of the
+ * same size. Takes lag puts by benchmark.lag events, so a few million
+ * events are queued while replaying a multi-GB log set.
+ */
+public class ReplayBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    long bytes = Long.getLong("benchmark.bytes", 2L * 1024L * 1024L * 1024L);
+    int eventSize = Integer.getInteger("benchmark.eventSize", 500);
+    int batchSize = Integer.getInteger("benchmark.batchSize", 100);
+    int takePercent = Integer.getInteger("benchmark.takePercent", 90);
+    int lag = Integer.getInteger("benchmark.lag", 1000000);
+    int dirs = Integer.getInteger("benchmark.dirs", 1);
+    File dataDir = args.length > 0 ? new File(args[0]) : Files.createTempDir();
+    boolean delete = args.length == 0;
+    try {
+      long start = System.currentTimeMillis();
+      List<File> logs = Lists.newArrayList();
+      long events = generate(dataDir, dirs, logs, bytes, eventSize,
+          batchSize, takePercent, lag);
+      LogUtils.sort(logs);
+      System.out.println("Generated " + events + " events in " + logs.size()
+          + " files in "
+          + (System.currentTimeMillis() - start) + "ms");
+      FlumeEventQueue queue = new FlumeEventQueue((int) events);
+      start = System.currentTimeMillis();
+      new ReplayHandler(queue, 0L).replayLog(logs);
+      long elapsed = System.currentTimeMillis() - start;
+      System.out.println("Replayed into queue of size " + queue.size()
+          + " in " + elapsed + "ms");
+    } finally {
+      if(delete) {
+        FileUtils.deleteQuietly(dataDir);
+      }
+    }
+  }
+
+  private static long generate(File dataDir, int dirs, List<File> logs,
+      long bytes, int eventSize, int batchSize, int takePercent, int lag)
+          throws IOException {
+    Map<String, String> headers = Maps.newHashMap();
+    headers.put("timestamp", String.valueOf(System.currentTimeMillis()));
+    byte[] body = new byte[eventSize];
+    long[] pointers = new long[Math.max(lag, batchSize) * 2];
+    int head = 0;
+    int tail = 0;
+    int fileID = 0;
+    long transactionID = 0;
+    long events = 0;
+    long written = 0;
+    LogFile.Writer[] writers = new LogFile.Writer[dirs];
+    try {
+      while(written < bytes) {
+        transactionID++;
+        int index = (int) (transactionID % dirs);
+        LogFile.Writer writer = writers[index];
+        if(writer == null || writer.length() > LogFile.MAX_FILE_SIZE / 4) {
+          if(writer != null) {
+            writer.close();
+          }
+          File dir = new File(dataDir, "data-" + index);
+          if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+          }
+          File file = new File(dir, Log.PREFIX + (++fileID));
+          logs.add(file);
+          writer = writers[index] = new LogFile.Writer(file, fileID,
+              LogFile.MAX_FILE_SIZE);
+        }
+        long length = writer.length();
+        if(tail - head < lag + batchSize) {
+          for (int i = 0; i < batchSize; i++) {
+            Put put = new Put(transactionID, new FlumeEvent(headers, body));
+            put.setTimestamp(System.currentTimeMillis());
+            FlumeEventPointer ptr = writer.put(TransactionEventRecord.
+                toByteBuffer(put));
+            pointers[tail++ % pointers.length] = ptr.toLong();
+            events++;
+          }
+          append(writer, transactionID, TransactionEventRecord.Type.PUT);
+        } else {
+          for (int i = 0; i < batchSize; i++) {
+            FlumeEventPointer ptr = FlumeEventPointer.fromLong(
+                pointers[head++ % pointers.length]);
+            if((head % 100) < takePercent) {
+              Take take = new Take(transactionID, ptr.getOffset(),
+                  ptr.getFileID());
+              take.setTimestamp(System.currentTimeMillis());
+              writer.take(TransactionEventRecord.toByteBuffer(take));
+            }
+          }
+          append(writer, transactionID, TransactionEventRecord.Type.TAKE);
+        }
+        written += writer.length() - length;
+      }
+    } finally {
+      for (LogFile.Writer writer : writers) {
+        if(writer != null) {
+          writer.close();
+        }
+      }
+    }
+    return events;
+  }
+
+  /**
+   * Writer.commit() syncs every commit which would make generating a
+   * multi-GB log set take hours, the record type is determined by the
+   * buffer so append the commit without syncing.
+   */
+  private static void append(LogFile.Writer writer, long transactionID,
+      TransactionEventRecord.Type type) throws IOException {
+    Commit commit = new Commit(transactionID, type.get());
+    commit.setTimestamp(System.currentTimeMillis());
+    writer.rollback(TransactionEventRecord.toByteBuffer(commit));
+  }
+}
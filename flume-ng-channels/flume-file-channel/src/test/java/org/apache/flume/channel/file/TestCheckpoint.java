@@ -18,8 +18,11 @@
  */
 package org.apache.flume.channel.file;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Map;
 
 import junit.framework.Assert;
 
@@ -27,6 +30,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.Maps;
+
 public class TestCheckpoint {
 
   File file;
@@ -53,4 +58,100 @@ public class TestCheckpoint {
     Assert.assertEquals(ptrIn, ptrOut);
     Assert.assertTrue(checkpoint.getTimestamp() > 0);
   }
+  @Test
+  public void testWritePositions() throws IOException {
+    FlumeEventQueue queueIn = new FlumeEventQueue(1);
+    Checkpoint checkpoint = new Checkpoint(file, 1);
+    // a checkpoint not yet written records no positions
+    Assert.assertTrue(checkpoint.readWritePositions().isEmpty());
+    Map<Integer, Long> positions = Maps.newHashMap();
+    positions.put(3, 100L);
+    positions.put(4, 12L);
+    QueueSnapshot snapshot = new QueueSnapshot(queueIn.getSlots());
+    queueIn.snapshot(snapshot, 1L);
+    checkpoint.write(snapshot, positions);
+    Assert.assertEquals(positions,
+        new Checkpoint(file, 1).readWritePositions());
+    checkpoint.write(queueIn);
+    Assert.assertTrue(checkpoint.readWritePositions().isEmpty());
+  }
+  @Test
+  public void testIncrementalWrite() throws IOException {
+    FlumeEventQueue queueIn = new FlumeEventQueue(4096);
+    for (int i = 1; i <= 3000; i++) {
+      Assert.assertTrue(queueIn.addTail(new FlumeEventPointer(i, i)));
+    }
+    Checkpoint checkpoint = new Checkpoint(file, 4096);
+    checkpoint.write(queueIn);
+    Assert.assertEquals(Checkpoint.HEADER_SIZE + queueIn.getSlots() * 8L, file.length());
+    // wrap around the end of the ring and modify a few regions
+    for (int i = 1; i <= 2500; i++) {
+      Assert.assertEquals(new FlumeEventPointer(i, i), queueIn.removeHead());
+    }
+    for (int i = 3001; i <= 6000; i++) {
+      Assert.assertTrue(queueIn.addTail(new FlumeEventPointer(i, i)));
+    }
+    checkpoint.write(queueIn);
+    FlumeEventQueue queueOut = new Checkpoint(file, 4096).read();
+    Assert.assertEquals(3500, queueOut.size());
+    Assert.assertEquals(queueIn.getFileIDs(), queueOut.getFileIDs());
+    for (int i = 2501; i <= 6000; i++) {
+      Assert.assertEquals(new FlumeEventPointer(i, i), queueOut.removeHead());
+    }
+    Assert.assertNull(queueOut.removeHead());
+  }
+  @Test
+  public void testWriteAfterRead() throws IOException {
+    FlumeEventQueue queueIn = new FlumeEventQueue(100);
+    Assert.assertTrue(queueIn.addTail(new FlumeEventPointer(1, 1)));
+    Assert.assertTrue(queueIn.addTail(new FlumeEventPointer(2, 2)));
+    new Checkpoint(file, 100).write(queueIn);
+    Checkpoint checkpoint = new Checkpoint(file, 100);
+    FlumeEventQueue queue = checkpoint.read();
+    Assert.assertEquals(new FlumeEventPointer(1, 1), queue.removeHead());
+    Assert.assertTrue(queue.addTail(new FlumeEventPointer(3, 3)));
+    checkpoint.write(queue);
+    FlumeEventQueue queueOut = new Checkpoint(file, 100).read();
+    Assert.assertEquals(new FlumeEventPointer(2, 2), queueOut.removeHead());
+    Assert.assertEquals(new FlumeEventPointer(3, 3), queueOut.removeHead());
+    Assert.assertNull(queueOut.removeHead());
+  }
+  @Test
+  public void testCapacityIncrease() throws IOException {
+    FlumeEventQueue queueIn = new FlumeEventQueue(10);
+    for (int i = 1; i <= 10; i++) {
+      Assert.assertTrue(queueIn.addTail(new FlumeEventPointer(i, i)));
+    }
+    for (int i = 1; i <= 5; i++) {
+      queueIn.removeHead();
+      Assert.assertTrue(queueIn.addTail(new FlumeEventPointer(i + 10, i + 10)));
+    }
+    new Checkpoint(file, 10).write(queueIn);
+    FlumeEventQueue queueOut = new Checkpoint(file, 20).read();
+    Assert.assertEquals(20, queueOut.getCapacity());
+    for (int i = 6; i <= 15; i++) {
+      Assert.assertEquals(new FlumeEventPointer(i, i), queueOut.removeHead());
+    }
+  }
+  @Test
+  public void testReadOriginalFormat() throws IOException {
+    DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+    try {
+      output.writeLong(System.currentTimeMillis());
+      output.writeInt(10);
+      output.writeInt(FlumeEventQueue.VERSION);
+      output.writeInt(2);
+      output.writeLong(new FlumeEventPointer(1, 1).toLong());
+      output.writeLong(new FlumeEventPointer(2, 2).toLong());
+    } finally {
+      output.close();
+    }
+    Checkpoint checkpoint = new Checkpoint(file, 10);
+    FlumeEventQueue queue = checkpoint.read();
+    Assert.assertEquals(2, queue.size());
+    checkpoint.write(queue);
+    FlumeEventQueue queueOut = new Checkpoint(file, 10).read();
+    Assert.assertEquals(new FlumeEventPointer(1, 1), queueOut.removeHead());
+    Assert.assertEquals(new FlumeEventPointer(2, 2), queueOut.removeHead());
+  }
 }
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.util.Map;
+
+import org.apache.flume.CounterGroup;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+public class TestEventCache {
+  private CounterGroup counters;
+  @Before
+  public void setup() {
+    counters = new CounterGroup();
+  }
+  private static FlumeEvent newEvent(int bodySize) {
+    Map<String, String> headers = Maps.newHashMap();
+    headers.put("key", "value");
+    return new FlumeEvent(headers, new byte[bodySize]);
+  }
+  @Test
+  public void testPutTake() {
+    EventCache cache = new EventCache(10000, counters);
+    FlumeEventPointer pointer = new FlumeEventPointer(1, 1);
+    FlumeEvent event = newEvent(100);
+    cache.put(pointer, event);
+    Assert.assertEquals(1, cache.size());
+    Assert.assertEquals(EventCache.estimateSize(event), cache.getBytes());
+    Assert.assertSame(event, cache.take(pointer));
+    Assert.assertNull(cache.take(pointer));
+    Assert.assertEquals(0, cache.size());
+    Assert.assertEquals(0L, cache.getBytes());
+    Assert.assertEquals(1L, counters.get(EventCache.COUNTER_HITS).longValue());
+    Assert.assertEquals(1L, counters.get(EventCache.COUNTER_MISSES).longValue());
+    Assert.assertEquals(0L, counters.get(EventCache.COUNTER_BYTES).longValue());
+    Assert.assertEquals(0.5D, cache.getHitRatio(), 0.0D);
+  }
+  @Test
+  public void testEvictsOldestFirst() {
+    long eventSize = EventCache.estimateSize(newEvent(100));
+    EventCache cache = new EventCache(3 * eventSize, counters);
+    for (int i = 1; i <= 5; i++) {
+      cache.put(new FlumeEventPointer(1, i), newEvent(100));
+    }
+    Assert.assertEquals(3, cache.size());
+    Assert.assertEquals(3 * eventSize, cache.getBytes());
+    Assert.assertNull(cache.take(new FlumeEventPointer(1, 1)));
+    Assert.assertNull(cache.take(new FlumeEventPointer(1, 2)));
+    for (int i = 3; i <= 5; i++) {
+      Assert.assertNotNull(cache.take(new FlumeEventPointer(1, i)));
+    }
+    Assert.assertEquals(3L, counters.get(EventCache.COUNTER_HITS).longValue());
+  }
+  @Test
+  public void testEventLargerThanCache() {
+    EventCache cache = new EventCache(100, counters);
+    cache.put(new FlumeEventPointer(1, 1), newEvent(1000));
+    Assert.assertEquals(0, cache.size());
+    Assert.assertEquals(0L, cache.getBytes());
+  }
+  @Test
+  public void testShrink() {
+    long eventSize = EventCache.estimateSize(newEvent(100));
+    EventCache cache = new EventCache(10 * eventSize, counters);
+    for (int i = 1; i <= 10; i++) {
+      cache.put(new FlumeEventPointer(1, i), newEvent(100));
+    }
+    cache.setMaxBytes(2 * eventSize);
+    Assert.assertEquals(2, cache.size());
+    Assert.assertNotNull(cache.remove(new FlumeEventPointer(1, 10)));
+    Assert.assertEquals(eventSize, cache.getBytes());
+    Assert.assertEquals(eventSize,
+        counters.get(EventCache.COUNTER_BYTES).longValue());
+    Assert.assertEquals(1L, counters.get(EventCache.COUNTER_EVENTS).longValue());
+  }
+}
@@ -144,6 +144,89 @@ public class TestFileChannel {
     Assert.assertEquals(expected, actual);
   }
   @Test
+  public void testPutAllTakeBatch() throws Exception {
+    List<String> expected = Lists.newArrayList();
+    List<Event> events = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      String s = "batch-" + i;
+      expected.add(s);
+      events.add(EventBuilder.withBody(s.getBytes(Charsets.UTF_8)));
+    }
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    channel.putAll(events);
+    transaction.commit();
+    transaction.close();
+
+    // a rolled back batch is taken again
+    List<Event> taken = Lists.newArrayList();
+    transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals(4, channel.take(4, taken));
+    transaction.rollback();
+    transaction.close();
+
+    taken.clear();
+    transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals(4, channel.take(4, taken));
+    Assert.assertEquals(6, channel.take(20, taken));
+    Assert.assertEquals(0, channel.take(20, taken));
+    // max beyond the transaction capacity is capped rather than refused
+    Assert.assertEquals(0, channel.take(Integer.MAX_VALUE, taken));
+    transaction.commit();
+    transaction.close();
+    List<String> actual = Lists.newArrayList();
+    for (Event event : taken) {
+      actual.add(new String(event.getBody(), Charsets.UTF_8));
+    }
+    Assert.assertEquals(expected, actual);
+
+    // the takes were committed
+    channel.stop();
+    channel = createFileChannel();
+    Assert.assertEquals(0, takeEvents(channel, 1).size());
+  }
+  @Test
+  public void testTransactionReuse() throws Exception {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    channel.put(EventBuilder.withBody("reuse".getBytes(Charsets.UTF_8)));
+    transaction.commit();
+    transaction.close();
+
+    // the closed transaction of the thread is reset and used again
+    Assert.assertSame(transaction, channel.getTransaction());
+    Assert.assertEquals(Lists.newArrayList("reuse"), takeEvents(channel, 1));
+    Assert.assertSame(transaction, channel.getTransaction());
+    transaction.close();
+
+    // but not once the channel is restarted
+    channel.stop();
+    Configurables.configure(channel, context);
+    channel.start();
+    Assert.assertNotSame(transaction, channel.getTransaction());
+  }
+  @Test
+  public void testPutWithEventCache() throws Exception {
+    channel.stop();
+    context.put(FileChannelConfiguration.EVENT_CACHE_BYTES,
+        String.valueOf(1024L * 1024L));
+    channel = createFileChannel(1000);
+    List<String> expected = Lists.newArrayList();
+    expected.addAll(putEvents(channel, "cached", 5, 50));
+    // take and roll back, the events are then read from the data files
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertNotNull(channel.take());
+    transaction.rollback();
+    transaction.close();
+    List<String> actual = takeEvents(channel, 5);
+    Collections.sort(actual);
+    Collections.sort(expected);
+    Assert.assertEquals(expected, actual);
+  }
+  @Test
   public void testRollbackAfterNoPutTake() throws Exception {
     Transaction transaction;
     transaction = channel.getTransaction();
@@ -18,12 +18,17 @@
  */
 package org.apache.flume.channel.file;
 
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
 public class TestFlumeEventQueue {
@@ -36,6 +41,74 @@ public class TestFlumeEventQueue {
     queue = new FlumeEventQueue(1000);
   }
   @Test
+  public void testSnapshot() {
+    QueueSnapshot snapshot = new QueueSnapshot(queue.getSlots());
+    Assert.assertTrue(queue.addTail(pointer1));
+    Assert.assertTrue(queue.addTail(pointer2));
+    // the first snapshot copies every region
+    Assert.assertEquals(snapshot.getRegionGenerations().length,
+        queue.snapshot(snapshot, 1L));
+    Assert.assertEquals(2, snapshot.getSize());
+    Assert.assertEquals(1L, snapshot.getTimestamp());
+    Assert.assertEquals(pointer1.toLong(), snapshot.getElements()
+        .getLong(snapshot.getHead() * FlumeEventQueue.SIZE_OF_LONG));
+    // later ones only the regions modified since
+    Assert.assertEquals(pointer1, queue.removeHead());
+    Assert.assertEquals(1, queue.snapshot(snapshot, 2L));
+    Assert.assertEquals(1, snapshot.getSize());
+    Assert.assertEquals(pointer2.toLong(), snapshot.getElements()
+        .getLong(snapshot.getHead() * FlumeEventQueue.SIZE_OF_LONG));
+    Assert.assertEquals(0, queue.snapshot(snapshot, 3L));
+    // the snapshot is not changed by changes to the queue
+    Assert.assertEquals(pointer2, queue.removeHead());
+    Assert.assertEquals(1, snapshot.getSize());
+    Assert.assertEquals(pointer2.toLong(), snapshot.getElements()
+        .getLong(snapshot.getHead() * FlumeEventQueue.SIZE_OF_LONG));
+  }
+  @Test
+  public void testReplaceAll() {
+    for (int i = 1; i <= 5; i++) {
+      Assert.assertTrue(queue.addTail(new FlumeEventPointer(i % 2 + 1, i)));
+    }
+    long[] pointers = queue.getPointers(1);
+    Assert.assertArrayEquals(new long[] {
+        new FlumeEventPointer(1, 2).toLong(),
+        new FlumeEventPointer(1, 4).toLong() }, pointers);
+    Assert.assertEquals(2, queue.getFileIDCounts().get(1).intValue());
+    Assert.assertEquals(3, queue.getFileIDCounts().get(2).intValue());
+    long[] replacements = {
+        new FlumeEventPointer(3, 20).toLong(),
+        new FlumeEventPointer(3, 40).toLong() };
+    Assert.assertEquals(2, queue.replaceAll(pointers, replacements));
+    Assert.assertEquals(Sets.newHashSet(2, 3), queue.getFileIDs());
+    Assert.assertEquals(new FlumeEventPointer(2, 1), queue.removeHead());
+    Assert.assertEquals(new FlumeEventPointer(3, 20), queue.removeHead());
+    Assert.assertEquals(new FlumeEventPointer(2, 3), queue.removeHead());
+    Assert.assertEquals(new FlumeEventPointer(3, 40), queue.removeHead());
+    Assert.assertEquals(new FlumeEventPointer(2, 5), queue.removeHead());
+    Assert.assertNull(queue.removeHead());
+  }
+  @Test
+  public void testRemoveHeadBatch() {
+    for (int i = 1; i <= 5; i++) {
+      Assert.assertTrue(queue.addTail(new FlumeEventPointer(i % 2 + 1, i)));
+    }
+    List<FlumeEventPointer> pointers = Lists.newArrayList();
+    Assert.assertEquals(3, queue.removeHead(3, pointers));
+    Assert.assertEquals(Lists.newArrayList(new FlumeEventPointer(2, 1),
+        new FlumeEventPointer(1, 2), new FlumeEventPointer(2, 3)), pointers);
+    Assert.assertEquals(2, queue.size());
+    Assert.assertEquals(3, queue.getPendingTakes());
+    Assert.assertEquals(1, queue.getFileIDCounts().get(1).intValue());
+    Assert.assertEquals(1, queue.getFileIDCounts().get(2).intValue());
+    pointers.clear();
+    Assert.assertEquals(2, queue.removeHead(10, pointers));
+    Assert.assertEquals(Lists.newArrayList(new FlumeEventPointer(1, 4),
+        new FlumeEventPointer(2, 5)), pointers);
+    Assert.assertEquals(0, queue.removeHead(10, pointers));
+    Assert.assertEquals(0, queue.size());
+  }
+  @Test
   public void testQueueIsEmptyAfterCreation() {
     Assert.assertNull(queue.removeHead());
   }
@@ -164,4 +237,109 @@ public class TestFlumeEventQueue {
       }
     }
   }
+  @Test
+  public void testRemoveAll() {
+    LongHashSet values = new LongHashSet();
+    for (int i = 1; i <= 500; i++) {
+      Assert.assertTrue(queue.addTail(new FlumeEventPointer(i, i)));
+      if(i % 2 == 0) {
+        values.add(new FlumeEventPointer(i, i).toLong());
+      }
+    }
+    values.add(new FlumeEventPointer(1000, 1000).toLong());
+    Assert.assertEquals(250, queue.removeAll(values));
+    Assert.assertEquals(250, queue.size());
+    // only the value which was not on the queue remains
+    Assert.assertEquals(1, values.size());
+    Assert.assertTrue(values.contains(new FlumeEventPointer(1000, 1000).toLong()));
+    for (int i = 1; i <= 500; i += 2) {
+      Assert.assertEquals(new FlumeEventPointer(i, i), queue.removeHead());
+    }
+    Assert.assertNull(queue.removeHead());
+    Assert.assertEquals(Sets.newHashSet(), queue.getFileIDs());
+  }
+  @Test
+  public void testCapacityNotPowerOfTwo() {
+    queue = new FlumeEventQueue(5);
+    Assert.assertEquals(5, queue.getCapacity());
+    Assert.assertEquals(8, queue.getSlots());
+    for (int i = 1; i <= 5; i++) {
+      Assert.assertTrue(queue.addTail(new FlumeEventPointer(i, i)));
+    }
+    Assert.assertFalse(queue.addTail(new FlumeEventPointer(6, 6)));
+    Assert.assertFalse(queue.addHead(new FlumeEventPointer(6, 6)));
+    Assert.assertEquals(new FlumeEventPointer(1, 1), queue.removeHead());
+    Assert.assertTrue(queue.addHead(new FlumeEventPointer(6, 6)));
+    Assert.assertEquals(5, queue.size());
+  }
+  @Test
+  public void testConcurrentAddTailRemoveHead() throws Exception {
+    final int producers = 4;
+    final int consumers = 4;
+    final int events = 50000;
+    queue = new FlumeEventQueue(100);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger taken = new AtomicInteger();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final long[][] lastTaken = new long[consumers][producers];
+    Thread[] threads = new Thread[producers + consumers];
+    for (int i = 0; i < producers; i++) {
+      final int fileID = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int offset = 1; offset <= events;) {
+              if(queue.addTail(new FlumeEventPointer(fileID, offset))) {
+                offset++;
+              } else {
+                Thread.yield();
+              }
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+    }
+    for (int i = 0; i < consumers; i++) {
+      final long[] last = lastTaken[i];
+      threads[producers + i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            while(taken.get() < producers * events && error.get() == null) {
+              FlumeEventPointer ptr = queue.removeHead();
+              if(ptr == null) {
+                Thread.yield();
+                continue;
+              }
+              // events from a single producer must be taken in order
+              Assert.assertTrue(ptr.getOffset() > last[ptr.getFileID()]);
+              last[ptr.getFileID()] = ptr.getOffset();
+              taken.incrementAndGet();
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if(error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    Assert.assertEquals(producers * events, taken.get());
+    Assert.assertEquals(0, queue.size());
+    Assert.assertNull(queue.removeHead());
+    Assert.assertEquals(Sets.newHashSet(), queue.getFileIDs());
+  }
 }
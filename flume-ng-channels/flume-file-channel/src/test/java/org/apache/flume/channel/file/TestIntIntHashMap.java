@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+public class TestIntIntHashMap {
+
+  @Test
+  public void testAddGetRemove() {
+    IntIntHashMap map = new IntIntHashMap();
+    Assert.assertEquals(0, map.size());
+    Assert.assertEquals(0, map.get(1));
+    Assert.assertFalse(map.containsKey(1));
+    Assert.assertEquals(1, map.add(1, 1));
+    Assert.assertEquals(3, map.add(1, 2));
+    Assert.assertEquals(-1, map.add(0, -1));
+    Assert.assertEquals(3, map.get(1));
+    Assert.assertTrue(map.containsKey(0));
+    Assert.assertEquals(2, map.size());
+    Assert.assertTrue(map.remove(1));
+    Assert.assertFalse(map.remove(1));
+    Assert.assertFalse(map.containsKey(1));
+    Assert.assertEquals(1, map.size());
+    map.clear();
+    Assert.assertEquals(0, map.size());
+    Assert.assertFalse(map.containsKey(0));
+  }
+  @Test(expected=IllegalArgumentException.class)
+  public void testAddMinValue() {
+    new IntIntHashMap().add(Integer.MIN_VALUE, 1);
+  }
+  @Test
+  public void testAgainstHashMap() {
+    Random random = new Random(42);
+    IntIntHashMap map = new IntIntHashMap();
+    Map<Integer, Integer> expected = Maps.newHashMap();
+    for (int i = 0; i < 100000; i++) {
+      int key = random.nextInt(1024);
+      if(random.nextInt(4) == 0) {
+        Assert.assertEquals(expected.remove(key) != null, map.remove(key));
+      } else {
+        int delta = random.nextInt(10) - 5;
+        Integer value = expected.get(key);
+        int newValue = (value == null ? 0 : value) + delta;
+        expected.put(key, newValue);
+        Assert.assertEquals(newValue, map.add(key, delta));
+      }
+      Assert.assertEquals(expected.size(), map.size());
+    }
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      Assert.assertEquals(entry.getValue().intValue(), map.get(entry.getKey()));
+    }
+    int[] keys = map.keys();
+    Arrays.sort(keys);
+    int[] expectedKeys = new int[expected.size()];
+    int index = 0;
+    for (Integer key : expected.keySet()) {
+      expectedKeys[index++] = key;
+    }
+    Arrays.sort(expectedKeys);
+    Assert.assertArrayEquals(expectedKeys, keys);
+  }
+}
@@ -20,6 +20,14 @@ package org.apache.flume.channel.file;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
@@ -27,6 +35,9 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 
 public class TestLog {
@@ -75,6 +86,342 @@ public class TestLog {
     Assert.assertArrayEquals(eventIn.getBody(), eventOut.getBody());
   }
   @Test
+  public void testPutGetEventCache() throws IOException, InterruptedException {
+    log.setEventCacheBytes(1024L * 1024L);
+    FlumeEvent eventIn = TestUtils.newPersistableEvent();
+    log.commitPuts(++transactionID, Collections.singletonList(eventIn));
+    Assert.assertTrue(log.getEventCache().getBytes() > 0);
+    FlumeEventPointer eventPointer = log.getFlumeEventQueue().removeHead();
+    FlumeEvent eventOut = log.get(eventPointer);
+    Assert.assertEquals(eventIn.getHeaders(), eventOut.getHeaders());
+    Assert.assertArrayEquals(eventIn.getBody(), eventOut.getBody());
+    Assert.assertEquals(1L, log.getCounterGroup()
+        .get(EventCache.COUNTER_HITS).longValue());
+    Assert.assertEquals(0L, log.getEventCache().getBytes());
+    // the cached event is served once, later gets read the data file
+    eventOut = log.get(eventPointer);
+    Assert.assertEquals(eventIn.getHeaders(), eventOut.getHeaders());
+    Assert.assertArrayEquals(eventIn.getBody(), eventOut.getBody());
+    Assert.assertEquals(1L, log.getCounterGroup()
+        .get(EventCache.COUNTER_MISSES).longValue());
+  }
+  /**
+   * Puts committed as a batch are on the queue, can be read individually
+   * and are replayed, less those taken by a committed batch of takes
+   */
+  @Test
+  public void testBatchPutTakeCommit() throws IOException, InterruptedException {
+    List<FlumeEvent> eventsIn = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      eventsIn.add(TestUtils.newPersistableEvent());
+    }
+    log.commitPuts(++transactionID, eventsIn);
+    FlumeEventQueue queue = log.getFlumeEventQueue();
+    Assert.assertEquals(10, queue.size());
+    List<FlumeEventPointer> taken = Lists.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      FlumeEventPointer eventPointer = queue.removeHead();
+      FlumeEvent eventOut = log.get(eventPointer);
+      Assert.assertEquals(eventsIn.get(i).getHeaders(), eventOut.getHeaders());
+      Assert.assertArrayEquals(eventsIn.get(i).getBody(), eventOut.getBody());
+      taken.add(eventPointer);
+    }
+    log.commitTakes(++transactionID, taken);
+    // taken but not committed, so replayed
+    queue.removeHead();
+    log.close();
+    log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+        checkpointDir, dataDirs);
+    log.replay();
+    queue = log.getFlumeEventQueue();
+    Assert.assertEquals(6, queue.size());
+    for (int i = 4; i < 10; i++) {
+      FlumeEvent eventOut = log.get(queue.removeHead());
+      Assert.assertEquals(eventsIn.get(i).getHeaders(), eventOut.getHeaders());
+      Assert.assertArrayEquals(eventsIn.get(i).getBody(), eventOut.getBody());
+    }
+  }
+  /**
+   * Data files written with and without compression are read alike
+   */
+  @Test
+  public void testCompressionCodecChange() throws IOException,
+      InterruptedException {
+    List<FlumeEvent> eventsIn = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      byte[] body = new byte[200];
+      Arrays.fill(body, (byte) ('a' + i));
+      eventsIn.add(new FlumeEvent(new HashMap<String, String>(), body));
+    }
+    for (int i = 0; i < 2; i++) {
+      log.close();
+      log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+          checkpointDir, dataDirs);
+      log.setCompressionCodec(i == 0 ? new DeflateCodec() : null);
+      log.replay();
+      log.commitPuts(++transactionID, eventsIn.subList(i * 5, i * 5 + 5));
+    }
+    log.close();
+    log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+        checkpointDir, dataDirs);
+    log.replay();
+    FlumeEventQueue queue = log.getFlumeEventQueue();
+    Assert.assertEquals(10, queue.size());
+    for (int i = 0; i < 10; i++) {
+      FlumeEvent eventOut = log.get(queue.removeHead());
+      Assert.assertArrayEquals(eventsIn.get(i).getBody(), eventOut.getBody());
+    }
+  }
+  @Test
+  public void testCheckpointCounters() throws IOException,
+      InterruptedException {
+    // replay writes a checkpoint
+    Assert.assertEquals(1L, log.getCounterGroup()
+        .get(Log.COUNTER_CHECKPOINTS).longValue());
+    log.commitPuts(++transactionID,
+        Collections.singletonList(TestUtils.newPersistableEvent()));
+    log.close();
+    log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+        checkpointDir, dataDirs);
+    log.replay();
+    Assert.assertEquals(1, log.getFlumeEventQueue().size());
+    Assert.assertEquals(1L, log.getCounterGroup()
+        .get(Log.COUNTER_CHECKPOINTS).longValue());
+    long lockMicros = log.getCounterGroup()
+        .get(Log.COUNTER_CHECKPOINT_LOCK_MICROS);
+    Assert.assertTrue(lockMicros >= 0L);
+    Assert.assertTrue(log.getCounterGroup().get(
+        Log.COUNTER_CHECKPOINT_LOCK_MICROS_MAX) >= lockMicros);
+  }
+  /**
+   * A log closed cleanly is not replayed, a log whose data files changed
+   * after it was closed is
+   */
+  @Test
+  public void testCleanShutdown() throws IOException, InterruptedException {
+    List<FlumeEvent> eventsIn = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      eventsIn.add(newEvent("clean-" + i));
+    }
+    log.commitPuts(++transactionID, eventsIn);
+    log.close();
+    File marker = new File(checkpointDir, ShutdownMarker.FILE_NAME);
+    Assert.assertTrue(marker.isFile());
+    log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+        checkpointDir, dataDirs);
+    log.replay();
+    Assert.assertFalse(marker.exists());
+    Assert.assertEquals(1L, log.getCounterGroup()
+        .get(Log.COUNTER_REPLAY_CLEAN).longValue());
+    FlumeEventQueue queue = log.getFlumeEventQueue();
+    Assert.assertEquals(10, queue.size());
+    for (FlumeEvent eventIn : eventsIn) {
+      Assert.assertArrayEquals(eventIn.getBody(),
+          log.get(queue.removeHead()).getBody());
+    }
+  }
+  @Test
+  public void testShutdownMarkerMismatch() throws IOException,
+      InterruptedException {
+    List<FlumeEvent> eventsIn = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      eventsIn.add(newEvent("mismatch-" + i));
+    }
+    log.commitPuts(++transactionID, eventsIn);
+    log.close();
+    // a data file written after the marker
+    File dataFile = null;
+    for (File file : dataDirs[0].listFiles()) {
+      if(file.getName().startsWith(Log.PREFIX)) {
+        dataFile = file;
+      }
+    }
+    Assert.assertNotNull(dataFile);
+    Files.append("x", dataFile, Charsets.UTF_8);
+    log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+        checkpointDir, dataDirs);
+    log.replay();
+    Assert.assertEquals(0L, log.getCounterGroup()
+        .get(Log.COUNTER_REPLAY_CLEAN).longValue());
+    FlumeEventQueue queue = log.getFlumeEventQueue();
+    Assert.assertEquals(10, queue.size());
+    Set<String> bodies = Sets.newHashSet();
+    FlumeEventPointer pointer;
+    while((pointer = queue.removeHead()) != null) {
+      bodies.add(new String(log.get(pointer).getBody(), "UTF-8"));
+    }
+    Assert.assertEquals(10, bodies.size());
+  }
+  @Test
+  public void testRelaxedDurability() throws IOException,
+      InterruptedException {
+    for (Durability durability : Durability.values()) {
+      log.close();
+      log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+          checkpointDir, dataDirs);
+      log.setDurability(durability, 10L, 0L);
+      log.replay();
+      Assert.assertEquals(1L, log.getCounterGroup().get(
+          Log.COUNTER_DURABILITY_PREFIX + durability.getName()).longValue());
+      log.commitPuts(++transactionID, Collections.singletonList(
+          newEvent(durability.getName())));
+    }
+    log.close();
+    log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+        checkpointDir, dataDirs);
+    log.replay();
+    Assert.assertEquals(Durability.values().length,
+        log.getFlumeEventQueue().size());
+    Set<String> bodies = Sets.newHashSet();
+    FlumeEventPointer pointer;
+    while((pointer = log.getFlumeEventQueue().removeHead()) != null) {
+      bodies.add(new String(log.get(pointer).getBody(), "UTF-8"));
+    }
+    for (Durability durability : Durability.values()) {
+      Assert.assertTrue(bodies.contains(new String(
+          newEvent(durability.getName()).getBody(), "UTF-8")));
+    }
+  }
+  @Test
+  public void testWriteQueue() throws IOException, InterruptedException {
+    log.close();
+    log = new Log(Long.MAX_VALUE, MAX_FILE_SIZE, 100, checkpointDir,
+        dataDirs);
+    log.setWriteQueueSize(4);
+    log.replay();
+    List<FlumeEvent> eventsIn = Lists.newArrayList();
+    for (int i = 0; i < 30; i++) {
+      FlumeEvent event = newEvent("queued-" + i);
+      eventsIn.add(event);
+      // small data files so that writers are rolled
+      log.commitPuts(++transactionID, Collections.singletonList(event));
+    }
+    Assert.assertEquals(30L, log.getCounterGroup()
+        .get(LogFile.COUNTER_WRITE_BATCH_RECORDS).longValue());
+    log.close();
+    log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+        checkpointDir, dataDirs);
+    log.replay();
+    FlumeEventQueue queue = log.getFlumeEventQueue();
+    Assert.assertEquals(30, queue.size());
+    for (FlumeEvent eventIn : eventsIn) {
+      Assert.assertArrayEquals(eventIn.getBody(),
+          log.get(queue.removeHead()).getBody());
+    }
+  }
+  /**
+   * Rolls close writers which other committers are still submitting
+   * records to, which must fail those records rather than the stop of
+   * the write thread
+   */
+  @Test
+  public void testRollWhileSubmitting() throws IOException,
+      InterruptedException {
+    log.close();
+    log = new Log(Long.MAX_VALUE, MAX_FILE_SIZE, 10000, checkpointDir,
+        dataDirs);
+    log.setWriteQueueSize(2);
+    log.replay();
+    final int threads = 8;
+    final int commitsPerThread = 100;
+    final AtomicInteger committed = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      final long firstTransactionID = (thread + 1) * 1000L;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < commitsPerThread; i++) {
+              try {
+                // small data files so that writers are rolled
+                log.commitPuts(firstTransactionID + i,
+                    Collections.singletonList(newEvent("rolled-" + i)));
+                committed.incrementAndGet();
+              } catch (IOException e) {
+                // the writer was closed by a roll
+              }
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+    Assert.assertTrue(committed.get() > 0);
+    Assert.assertEquals(committed.get(), log.getFlumeEventQueue().size());
+  }
+  @Test
+  public void testCompaction() throws IOException, InterruptedException {
+    log.shutdownWorker();
+    List<FlumeEvent> eventsIn = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      eventsIn.add(newEvent("sparse-" + i));
+    }
+    // transactions which are multiples of the number of directories
+    // are written to the first one
+    log.commitPuts(0L, eventsIn);
+    FlumeEventQueue queue = log.getFlumeEventQueue();
+    List<FlumeEventPointer> taken = Lists.newArrayList();
+    for (int i = 0; i < 9; i++) {
+      taken.add(queue.removeHead());
+    }
+    int sparseFileID = taken.get(0).getFileID();
+    log.commitTakes(dataDirs.length, taken);
+    // roll the first directory so the sparse file is no longer written
+    List<FlumeEvent> moreEventsIn = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      moreEventsIn.add(newEvent("current-" + i));
+    }
+    log.commitPuts(2L * dataDirs.length, moreEventsIn);
+    Assert.assertTrue(queue.getFileIDs().contains(sparseFileID));
+    // disabled by default
+    log.compact();
+    Assert.assertTrue(queue.getFileIDs().contains(sparseFileID));
+    log.setCompactionMaxEvents(100);
+    log.setCompactionBytesPerSecond(0L);
+    log.compact();
+    Assert.assertFalse(queue.getFileIDs().contains(sparseFileID));
+    Assert.assertEquals(1L, log.getCounterGroup()
+        .get(Log.COUNTER_COMPACTION_FILES).longValue());
+    Assert.assertEquals(1L, log.getCounterGroup()
+        .get(Log.COUNTER_COMPACTION_EVENTS).longValue());
+    Assert.assertEquals(11, queue.size());
+    Assert.assertArrayEquals(eventsIn.get(9).getBody(),
+        log.get(queue.removeHead()).getBody());
+    // the relocated event is readable after replay, the data file it
+    // was relocated from is kept until both checkpoints hold it
+    log.close();
+    log = new Log(Long.MAX_VALUE, LogFile.MAX_FILE_SIZE, 100,
+        checkpointDir, dataDirs);
+    log.replay();
+    queue = log.getFlumeEventQueue();
+    Assert.assertEquals(11, queue.size());
+    Set<String> bodies = Sets.newHashSet();
+    FlumeEventPointer pointer;
+    while((pointer = queue.removeHead()) != null) {
+      bodies.add(new String(log.get(pointer).getBody(), "UTF-8"));
+    }
+    Assert.assertTrue(bodies.contains(
+        new String(eventsIn.get(9).getBody(), "UTF-8")));
+    for (FlumeEvent event : moreEventsIn) {
+      Assert.assertTrue(bodies.contains(new String(event.getBody(), "UTF-8")));
+    }
+  }
+  /**
+   * @return an event whose body starts with name, ten of which exceed
+   * MAX_FILE_SIZE
+   */
+  private static FlumeEvent newEvent(String name) throws IOException {
+    StringBuilder body = new StringBuilder(name);
+    while(body.length() < 100) {
+      body.append('.');
+    }
+    return new FlumeEvent(new HashMap<String, String>(),
+        body.toString().getBytes("UTF-8"));
+  }
+  @Test
   public void testRoll() throws IOException, InterruptedException {
     log.shutdownWorker();
     for (int i = 0; i < 1000; i++) {
@@ -96,7 +443,7 @@ public class TestLog {
       }
     }
     // 67 files with TestLog.MAX_FILE_SIZE=1000
-    Assert.assertEquals(78, logCount);
+    Assert.assertEquals(84, logCount);
   }
   /**
    * After replay of the log, we should find the event because the put
@@ -20,19 +20,26 @@ package org.apache.flume.channel.file;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.flume.CounterGroup;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -129,4 +136,524 @@ public class TestLogFile {
       Assert.assertTrue(Arrays.equals(eventIn.getBody(), eventOut.getBody()));
     }
   }
+  @Test
+  public void testReaderSeek() throws InterruptedException, IOException {
+    List<FlumeEventPointer> pointers = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      Put put = new Put(++transactionID, TestUtils.newPersistableEvent());
+      pointers.add(logFileWriter.put(TransactionEventRecord.toByteBuffer(put)));
+    }
+    LogFile.SequentialReader reader = new LogFile.SequentialReader(dataFile);
+    Assert.assertEquals(pointers.get(0).getOffset(),
+        reader.next().getLeft().intValue());
+    reader.seek(pointers.get(5).getOffset());
+    for (int i = 5; i < 10; i++) {
+      Assert.assertEquals(pointers.get(i).getOffset(),
+          reader.next().getLeft().intValue());
+    }
+    Assert.assertNull(reader.next());
+    Assert.assertEquals(0, reader.getSkippedRegions());
+    try {
+      reader.seek(pointers.get(0).getOffset());
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // cannot move backwards
+    }
+  }
+  @Test
+  public void testBatch() throws InterruptedException, IOException {
+    List<FlumeEvent> events = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      events.add(TestUtils.newPersistableEvent());
+    }
+    Batch batch = Batch.newPut(++transactionID, events);
+    batch.setTimestamp(System.currentTimeMillis());
+    Pair<Integer, Integer> record = logFileWriter.commit(batch.toByteBuffers());
+    Assert.assertEquals(fileID, record.getLeft().intValue());
+    int offset = record.getRight();
+    LogFile.RandomReader logFileReader = new LogFile.RandomReader(dataFile);
+    try {
+      for (int i = 0; i < events.size(); i++) {
+        FlumeEvent eventOut = logFileReader.get(offset
+            + batch.getEventOffsets()[i]);
+        Assert.assertEquals(events.get(i).getHeaders(), eventOut.getHeaders());
+        Assert.assertTrue(Arrays.equals(events.get(i).getBody(),
+            eventOut.getBody()));
+      }
+    } finally {
+      logFileReader.close();
+    }
+    LogFile.SequentialReader reader = new LogFile.SequentialReader(dataFile);
+    try {
+      Assert.assertEquals(LogFile.VERSION, reader.getVersion());
+      Pair<Integer, TransactionEventRecord> entry = reader.next();
+      Assert.assertEquals(offset, reader.getLastPayloadOffset());
+      Assert.assertEquals(offset - LogFile.FRAME_HEADER_SIZE,
+          entry.getLeft().intValue());
+      Batch batchOut = (Batch) entry.getRight();
+      Assert.assertEquals(batch.getTransactionID(), batchOut.getTransactionID());
+      Assert.assertTrue(Arrays.equals(batch.getEventOffsets(),
+          batchOut.getEventOffsets()));
+      Assert.assertNull(reader.next());
+    } finally {
+      reader.close();
+    }
+  }
+  @Test
+  public void testCompressedBatch() throws InterruptedException,
+      IOException {
+    logFileWriter.close();
+    FileUtils.deleteQuietly(dataFile);
+    CompressionCodec codec = CompressionCodecs.forName(
+        CompressionCodecs.DEFLATE);
+    logFileWriter = new LogFile.Writer(dataFile, fileID,
+        LogFile.MAX_FILE_SIZE, 0L, new CounterGroup(), codec);
+    List<FlumeEvent> events = Lists.newArrayList();
+    Random random = new Random(fileID);
+    for (int i = 0; i < 10; i++) {
+      Map<String, String> headers = Maps.newHashMap();
+      headers.put("index", String.valueOf(i));
+      byte[] body;
+      if(i % 2 == 0) {
+        StringBuilder json = new StringBuilder();
+        for (int j = 0; j < 20; j++) {
+          json.append("{\"host\":\"web").append(j % 3)
+              .append("\",\"status\":200}");
+        }
+        body = json.toString().getBytes(Charsets.UTF_8);
+      } else {
+        body = new byte[100];
+        random.nextBytes(body);
+      }
+      events.add(new FlumeEvent(headers, body));
+    }
+    Batch batch = Batch.newPut(++transactionID, events);
+    batch.setTimestamp(System.currentTimeMillis());
+    Pair<Integer, Integer> record = logFileWriter.commit(
+        batch.toByteBuffers(codec));
+    int offset = record.getRight();
+    // only the events which compress are compressed
+    RandomAccessFile fileHandle = new RandomAccessFile(dataFile, "r");
+    try {
+      for (int i = 0; i < events.size(); i++) {
+        fileHandle.seek(offset + batch.getEventOffsets()[i]);
+        Assert.assertEquals(i % 2 == 0 ? LogFile.OP_CHECKED_COMPRESSED_EVENT :
+            LogFile.OP_CHECKED_COMPACT_EVENT, fileHandle.readByte());
+      }
+    } finally {
+      fileHandle.close();
+    }
+    logFileWriter.close();
+    for (int readAheadSize : new int[] { 0, 64 * 1024 }) {
+      LogFile.RandomReader logFileReader = new LogFile.RandomReader(dataFile,
+          readAheadSize, new CounterGroup());
+      logFileReader.setImmutable();
+      try {
+        for (int i = 0; i < events.size(); i++) {
+          FlumeEvent eventOut = logFileReader.get(offset
+              + batch.getEventOffsets()[i]);
+          Assert.assertEquals(events.get(i).getHeaders(),
+              eventOut.getHeaders());
+          Assert.assertTrue(Arrays.equals(events.get(i).getBody(),
+              eventOut.getBody()));
+        }
+      } finally {
+        logFileReader.close();
+      }
+    }
+    LogFile.SequentialReader reader = new LogFile.SequentialReader(dataFile);
+    try {
+      Assert.assertSame(codec, reader.getCompressionCodec());
+      Batch batchOut = (Batch) reader.next().getRight();
+      Assert.assertTrue(Arrays.equals(batch.getEventOffsets(),
+          batchOut.getEventOffsets()));
+      Assert.assertNull(reader.next());
+    } finally {
+      reader.close();
+    }
+  }
+  @Test
+  public void testReadVersion1() throws InterruptedException, IOException {
+    Put put = new Put(++transactionID, TestUtils.newPersistableEvent());
+    logFileWriter.close();
+    // version 1 records are preceded by an op code alone
+    RandomAccessFile fileHandle = new RandomAccessFile(dataFile, "rw");
+    try {
+      fileHandle.setLength(0L);
+      fileHandle.writeInt(LogFile.VERSION_1);
+      fileHandle.writeInt(fileID);
+      fileHandle.writeByte(LogFile.OP_RECORD);
+      fileHandle.write(TransactionEventRecord.toByteBuffer(put).array());
+    } finally {
+      fileHandle.close();
+    }
+    LogFile.RandomReader logFileReader = new LogFile.RandomReader(dataFile);
+    try {
+      Assert.assertTrue(Arrays.equals(put.getEvent().getBody(),
+          logFileReader.get(8).getBody()));
+    } finally {
+      logFileReader.close();
+    }
+    LogFile.SequentialReader reader = new LogFile.SequentialReader(dataFile);
+    try {
+      Assert.assertEquals(LogFile.VERSION_1, reader.getVersion());
+      Pair<Integer, TransactionEventRecord> entry = reader.next();
+      Assert.assertEquals(8, entry.getLeft().intValue());
+      Assert.assertEquals(put.getTransactionID(),
+          entry.getRight().getTransactionID());
+      Assert.assertTrue(entry.getRight() instanceof Put);
+    } finally {
+      reader.close();
+    }
+  }
+  @Test
+  public void testSkipCorruptRecord() throws InterruptedException,
+      IOException {
+    List<FlumeEventPointer> pointers = Lists.newArrayList();
+    List<Put> puts = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      Put put = new Put(++transactionID, TestUtils.newPersistableEvent());
+      puts.add(put);
+      pointers.add(logFileWriter.put(TransactionEventRecord.toByteBuffer(put)));
+    }
+    logFileWriter.close();
+    // flip a byte in the body of the second record
+    int corruptOffset = pointers.get(1).getOffset();
+    int corruptLength = pointers.get(2).getOffset() - corruptOffset;
+    RandomAccessFile fileHandle = new RandomAccessFile(dataFile, "rw");
+    try {
+      long position = corruptOffset + corruptLength - 1;
+      fileHandle.seek(position);
+      byte value = fileHandle.readByte();
+      fileHandle.seek(position);
+      fileHandle.writeByte(value + 1);
+    } finally {
+      fileHandle.close();
+    }
+    LogFile.RandomReader logFileReader = new LogFile.RandomReader(dataFile);
+    try {
+      logFileReader.get(corruptOffset);
+      Assert.fail("Corrupt record was read");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      logFileReader.close();
+    }
+    LogFile.SequentialReader reader = new LogFile.SequentialReader(dataFile);
+    try {
+      Pair<Integer, TransactionEventRecord> entry = reader.next();
+      Assert.assertEquals(pointers.get(0).getOffset(),
+          entry.getLeft().intValue());
+      Assert.assertEquals(puts.get(0).getTransactionID(),
+          entry.getRight().getTransactionID());
+      entry = reader.next();
+      Assert.assertEquals(pointers.get(2).getOffset(),
+          entry.getLeft().intValue());
+      Assert.assertEquals(puts.get(2).getTransactionID(),
+          entry.getRight().getTransactionID());
+      Assert.assertNull(reader.next());
+      Assert.assertEquals(1, reader.getSkippedRegions());
+      Assert.assertEquals(corruptLength, reader.getSkippedBytes());
+    } finally {
+      reader.close();
+    }
+  }
+  @Test
+  public void testCorruptBatchEvent() throws InterruptedException,
+      IOException {
+    List<FlumeEvent> events = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      events.add(TestUtils.newPersistableEvent());
+    }
+    Batch batch = Batch.newPut(++transactionID, events);
+    batch.setTimestamp(System.currentTimeMillis());
+    int offset = logFileWriter.commit(batch.toByteBuffers()).getRight();
+    logFileWriter.close();
+    // flip the last byte of the body of the second event
+    int corruptOffset = offset + batch.getEventOffsets()[1];
+    RandomAccessFile fileHandle = new RandomAccessFile(dataFile, "rw");
+    try {
+      long position = offset + batch.getEventOffsets()[2] - 1 -
+          LogFile.EVENT_CHECKSUM_SIZE;
+      fileHandle.seek(position);
+      byte value = fileHandle.readByte();
+      fileHandle.seek(position);
+      fileHandle.writeByte(value + 1);
+    } finally {
+      fileHandle.close();
+    }
+    for (int readAheadSize : new int[] { 0, 64 * 1024 }) {
+      LogFile.RandomReader logFileReader = new LogFile.RandomReader(dataFile,
+          readAheadSize, new CounterGroup());
+      logFileReader.setImmutable();
+      try {
+        Assert.assertTrue(Arrays.equals(events.get(0).getBody(),
+            logFileReader.get(offset + batch.getEventOffsets()[0]).getBody()));
+        try {
+          logFileReader.get(corruptOffset);
+          Assert.fail("Corrupt event was read");
+        } catch (IOException e) {
+          // expected
+        }
+        Assert.assertTrue(Arrays.equals(events.get(2).getBody(),
+            logFileReader.get(offset + batch.getEventOffsets()[2]).getBody()));
+      } finally {
+        logFileReader.close();
+      }
+    }
+  }
+  @Test
+  public void testSkipIncompleteWrite() throws InterruptedException,
+      IOException {
+    Put put = new Put(++transactionID, TestUtils.newPersistableEvent());
+    FlumeEventPointer ptr = logFileWriter.put(
+        TransactionEventRecord.toByteBuffer(put));
+    // a record whose bytes only partly reached the disk
+    Put torn = new Put(++transactionID, TestUtils.newPersistableEvent());
+    FlumeEventPointer tornPtr = logFileWriter.put(
+        TransactionEventRecord.toByteBuffer(torn));
+    logFileWriter.close();
+    RandomAccessFile fileHandle = new RandomAccessFile(dataFile, "rw");
+    try {
+      fileHandle.seek(tornPtr.getOffset() + LogFile.FRAME_HEADER_SIZE + 10);
+      fileHandle.write(new byte[20]);
+    } finally {
+      fileHandle.close();
+    }
+    LogFile.SequentialReader reader = new LogFile.SequentialReader(dataFile);
+    try {
+      Pair<Integer, TransactionEventRecord> entry = reader.next();
+      Assert.assertEquals(ptr.getOffset(), entry.getLeft().intValue());
+      Assert.assertNull(reader.next());
+      Assert.assertEquals(1, reader.getSkippedRegions());
+      Assert.assertEquals(dataFile.length() - tornPtr.getOffset(),
+          reader.getSkippedBytes());
+    } finally {
+      reader.close();
+    }
+    // a file whose preallocated end is intact skips nothing
+    File intactFile = new File(dataDir, String.valueOf(fileID + 1));
+    logFileWriter = new LogFile.Writer(intactFile, fileID + 1, 1000);
+    logFileWriter.put(TransactionEventRecord.toByteBuffer(put));
+    logFileWriter.close();
+    reader = new LogFile.SequentialReader(intactFile);
+    try {
+      Assert.assertNotNull(reader.next());
+      Assert.assertNull(reader.next());
+      Assert.assertEquals(0, reader.getSkippedRegions());
+    } finally {
+      reader.close();
+    }
+  }
+  @Test
+  public void testReadAhead() throws InterruptedException, IOException {
+    List<FlumeEventPointer> pointers = Lists.newArrayList();
+    Map<Integer, Put> puts = Maps.newHashMap();
+    for (int i = 0; i < 1000; i++) {
+      FlumeEvent eventIn = TestUtils.newPersistableEvent();
+      Put put = new Put(++transactionID, eventIn);
+      FlumeEventPointer ptr = logFileWriter.put(
+          TransactionEventRecord.toByteBuffer(put));
+      pointers.add(ptr);
+      puts.put(ptr.getOffset(), put);
+    }
+    logFileWriter.close();
+    CounterGroup counters = new CounterGroup();
+    LogFile.RandomReader logFileReader =
+        new LogFile.RandomReader(dataFile, 4096, counters);
+    try {
+      logFileReader.setImmutable();
+      for (FlumeEventPointer ptr : pointers) {
+        FlumeEvent eventIn = puts.get(ptr.getOffset()).getEvent();
+        FlumeEvent eventOut = logFileReader.get(ptr.getOffset());
+        Assert.assertEquals(eventIn.getHeaders(), eventOut.getHeaders());
+        Assert.assertTrue(Arrays.equals(eventIn.getBody(), eventOut.getBody()));
+      }
+      long hits = counters.get(LogFile.COUNTER_READ_AHEAD_HITS);
+      long fills = counters.get(LogFile.COUNTER_READ_AHEAD_FILLS);
+      // only the first get reads from the file directly
+      Assert.assertEquals(1L, counters.get(LogFile.COUNTER_READS).longValue());
+      Assert.assertEquals(999L, hits);
+      Assert.assertTrue("fills " + fills, fills > 0 && fills < 100);
+      // gets out of order are still served correctly
+      for (int i = pointers.size() - 1; i >= 0; i -= 7) {
+        FlumeEventPointer ptr = pointers.get(i);
+        FlumeEvent eventIn = puts.get(ptr.getOffset()).getEvent();
+        FlumeEvent eventOut = logFileReader.get(ptr.getOffset());
+        Assert.assertEquals(eventIn.getHeaders(), eventOut.getHeaders());
+        Assert.assertTrue(Arrays.equals(eventIn.getBody(), eventOut.getBody()));
+      }
+    } finally {
+      logFileReader.close();
+    }
+  }
+  @Test
+  public void testGroupCommit() throws InterruptedException, IOException {
+    logFileWriter.close();
+    CounterGroup counters = new CounterGroup();
+    logFileWriter = new LogFile.Writer(dataFile, fileID,
+        LogFile.MAX_FILE_SIZE, 10L, counters, null);
+    final int threads = 10;
+    final int commitsPerThread = 20;
+    final List<Throwable> errors = Lists.newArrayList();
+    final CountDownLatch latch = new CountDownLatch(threads);
+    ExecutorService executorService = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      final long threadTransactionID = ++transactionID * 1000L;
+      executorService.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < commitsPerThread; j++) {
+              Commit commit = new Commit(threadTransactionID + j,
+                  TransactionEventRecord.Type.PUT.get());
+              logFileWriter.commit(TransactionEventRecord.toByteBuffer(commit));
+            }
+          } catch(Throwable throwable) {
+            synchronized (errors) {
+              errors.add(throwable);
+            }
+          } finally {
+            latch.countDown();
+          }
+        }
+      });
+    }
+    Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+    executorService.shutdown();
+    for(Throwable throwable : errors) {
+      Throwables.propagate(throwable);
+    }
+    long commits = threads * commitsPerThread;
+    long syncs = counters.get(LogFile.COUNTER_SYNCS);
+    Assert.assertEquals(commits,
+        (long) counters.get(LogFile.COUNTER_SYNC_COMMITS));
+    Assert.assertTrue("syncs = " + syncs, syncs > 0 && syncs < commits);
+    Assert.assertTrue(counters.get(LogFile.COUNTER_SYNC_COMMITS_MAX) > 1);
+    int count = 0;
+    LogFile.SequentialReader reader = new LogFile.SequentialReader(dataFile);
+    try {
+      while(reader.next() != null) {
+        count++;
+      }
+    } finally {
+      reader.close();
+    }
+    Assert.assertEquals(commits, count);
+  }
+  @Test
+  public void testOSDurability() throws InterruptedException, IOException {
+    logFileWriter.close();
+    CounterGroup counters = new CounterGroup();
+    logFileWriter = new LogFile.Writer(dataFile, fileID,
+        LogFile.MAX_FILE_SIZE, 0L, counters, null, Durability.OS, null);
+    for (int i = 0; i < 10; i++) {
+      Commit commit = new Commit(++transactionID,
+          TransactionEventRecord.Type.PUT.get());
+      logFileWriter.commit(TransactionEventRecord.toByteBuffer(commit));
+    }
+    // commits are written but not synced
+    Assert.assertEquals(0L, (long) counters.get(LogFile.COUNTER_SYNCS));
+    logFileWriter.sync();
+    Assert.assertEquals(1L, (long) counters.get(LogFile.COUNTER_SYNCS));
+    Assert.assertEquals(10L, (long) counters.get(LogFile.COUNTER_SYNC_COMMITS));
+  }
+  @Test
+  public void testPeriodicDurability() throws InterruptedException,
+      IOException {
+    logFileWriter.close();
+    CounterGroup counters = new CounterGroup();
+    // only the byte threshold syncs within the test
+    LogFile.Syncer syncer = new LogFile.Syncer(TimeUnit.HOURS.toMillis(1),
+        1L);
+    syncer.start();
+    try {
+      logFileWriter = new LogFile.Writer(dataFile, fileID,
+          LogFile.MAX_FILE_SIZE, 0L, counters, null, Durability.PERIODIC,
+          syncer);
+      Commit commit = new Commit(++transactionID,
+          TransactionEventRecord.Type.PUT.get());
+      logFileWriter.commit(TransactionEventRecord.toByteBuffer(commit));
+      Assert.assertEquals(1L,
+          (long) counters.get(LogFile.COUNTER_SYNC_REQUESTS));
+      long deadline = System.currentTimeMillis() + 10000L;
+      while(counters.get(LogFile.COUNTER_SYNCS) == 0L &&
+          System.currentTimeMillis() < deadline) {
+        Thread.sleep(10L);
+      }
+      Assert.assertEquals(1L, (long) counters.get(LogFile.COUNTER_SYNCS));
+      Assert.assertEquals(1L,
+          (long) counters.get(LogFile.COUNTER_SYNC_COMMITS));
+    } finally {
+      syncer.shutdown();
+    }
+  }
+  @Test
+  public void testWriteThread() throws InterruptedException, IOException {
+    logFileWriter.close();
+    CounterGroup counters = new CounterGroup();
+    logFileWriter = new LogFile.Writer(dataFile, fileID,
+        LogFile.MAX_FILE_SIZE, 0L, counters, null, Durability.SYNC, null, 8);
+    final int threads = 10;
+    final int commitsPerThread = 20;
+    final Map<Integer, FlumeEvent> events = Maps.newConcurrentMap();
+    final List<Throwable> errors = Lists.newArrayList();
+    final CountDownLatch latch = new CountDownLatch(threads);
+    ExecutorService executorService = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      final long threadTransactionID = ++transactionID * 1000L;
+      executorService.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < commitsPerThread; j++) {
+              FlumeEvent event = TestUtils.newPersistableEvent();
+              Batch batch = Batch.newPut(threadTransactionID + j,
+                  Collections.singletonList(event));
+              int offset = logFileWriter.commit(batch.toByteBuffers())
+                  .getRight();
+              events.put(offset + batch.getEventOffsets()[0], event);
+            }
+          } catch(Throwable throwable) {
+            synchronized (errors) {
+              errors.add(throwable);
+            }
+          } finally {
+            latch.countDown();
+          }
+        }
+      });
+    }
+    Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+    executorService.shutdown();
+    for(Throwable throwable : errors) {
+      Throwables.propagate(throwable);
+    }
+    long commits = threads * commitsPerThread;
+    Assert.assertEquals(commits, events.size());
+    Assert.assertEquals(commits,
+        (long) counters.get(LogFile.COUNTER_WRITE_BATCH_RECORDS));
+    Assert.assertEquals(commits,
+        (long) counters.get(LogFile.COUNTER_SYNC_COMMITS));
+    Assert.assertTrue(counters.get(LogFile.COUNTER_WRITE_BATCHES) <= commits);
+    LogFile.RandomReader reader = new LogFile.RandomReader(dataFile);
+    try {
+      for (Map.Entry<Integer, FlumeEvent> entry : events.entrySet()) {
+        FlumeEvent event = reader.get(entry.getKey());
+        Assert.assertEquals(entry.getValue().getHeaders(), event.getHeaders());
+        Assert.assertTrue(Arrays.equals(entry.getValue().getBody(),
+            event.getBody()));
+      }
+    } finally {
+      reader.close();
+    }
+    logFileWriter.close();
+    try {
+      logFileWriter.commit(TransactionEventRecord.toByteBuffer(
+          new Commit(++transactionID, TransactionEventRecord.Type.PUT.get())));
+      Assert.fail();
+    } catch (IOException e) {
+      // closed
+    }
+  }
 }
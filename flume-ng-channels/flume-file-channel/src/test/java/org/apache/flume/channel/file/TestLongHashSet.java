@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+
+public class TestLongHashSet {
+
+  @Test
+  public void testAddContainsRemove() {
+    LongHashSet set = new LongHashSet();
+    Assert.assertTrue(set.isEmpty());
+    Assert.assertTrue(set.add(1L));
+    Assert.assertFalse(set.add(1L));
+    Assert.assertTrue(set.contains(1L));
+    Assert.assertFalse(set.contains(2L));
+    Assert.assertEquals(1, set.size());
+    Assert.assertFalse(set.remove(2L));
+    Assert.assertTrue(set.remove(1L));
+    Assert.assertFalse(set.contains(1L));
+    Assert.assertTrue(set.isEmpty());
+  }
+  @Test(expected=IllegalArgumentException.class)
+  public void testAddZero() {
+    new LongHashSet().add(0L);
+  }
+  @Test
+  public void testAgainstHashSet() {
+    Random random = new Random(42);
+    LongHashSet set = new LongHashSet(4);
+    Set<Long> expected = Sets.newHashSet();
+    for (int i = 0; i < 100000; i++) {
+      long value = new FlumeEventPointer(random.nextInt(64),
+          random.nextInt(4096) + 1).toLong();
+      if(random.nextBoolean()) {
+        Assert.assertEquals(expected.add(value), set.add(value));
+      } else {
+        Assert.assertEquals(expected.remove(value), set.remove(value));
+      }
+      Assert.assertEquals(expected.size(), set.size());
+    }
+    for (Long value : expected) {
+      Assert.assertTrue(set.contains(value));
+    }
+    long[] actual = set.toArray();
+    Arrays.sort(actual);
+    long[] values = new long[expected.size()];
+    int index = 0;
+    for (Long value : expected) {
+      values[index++] = value;
+    }
+    Arrays.sort(values);
+    Assert.assertArrayEquals(values, actual);
+    set.clear();
+    Assert.assertTrue(set.isEmpty());
+    Assert.assertEquals(0, set.toArray().length);
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+public class TestSpillableMemoryChannel {
+  private File spillDir;
+  private SpillableMemoryChannel channel;
+
+  @Before
+  public void setup() {
+    spillDir = Files.createTempDir();
+    channel = new SpillableMemoryChannel();
+    Context context = new Context();
+    context.put(SpillableMemoryChannelConfiguration.CAPACITY, "100");
+    context.put(SpillableMemoryChannelConfiguration.MEMORY_CAPACITY, "5");
+    context.put(SpillableMemoryChannelConfiguration.TRANSACTION_CAPACITY,
+        "10");
+    context.put(SpillableMemoryChannelConfiguration.KEEP_ALIVE, "0");
+    context.put(SpillableMemoryChannelConfiguration.SPILL_DIR,
+        spillDir.getAbsolutePath());
+    context.put(SpillableMemoryChannelConfiguration.MAX_FILE_SIZE, "1000");
+    Configurables.configure(channel, context);
+    channel.start();
+  }
+
+  @After
+  public void cleanup() {
+    channel.stop();
+    FileUtils.deleteQuietly(spillDir);
+  }
+
+  @Test
+  public void testMemoryOnly() {
+    put(0, 5);
+    Assert.assertNull(channel.getSpillLogIfOpen());
+    Assert.assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, take(10));
+    Assert.assertEquals(0, spillDir.list().length);
+  }
+
+  @Test
+  public void testSpillInOrder() {
+    put(0, 3);
+    // doesn't fit in memory, nor does anything put while it is spilled
+    put(3, 3);
+    put(6, 1);
+    Assert.assertEquals(4L, (long) channel.getCounterGroup().get(
+        SpillableMemoryChannel.COUNTER_SPILL_PUTS));
+    // taking memory down to half of its capacity reads the spill back
+    Assert.assertArrayEquals(new int[] { 0, 1, 2, 3 }, take(4));
+    Assert.assertEquals(4L, (long) channel.getCounterGroup().get(
+        SpillableMemoryChannel.COUNTER_SPILL_REFILLS));
+    Assert.assertEquals(0L, (long) channel.getCounterGroup().get(
+        SpillableMemoryChannel.COUNTER_SPILL_TAKES));
+
+    // rolled back takes are taken again in order
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals(4, channel.take().getBody()[0]);
+    Assert.assertEquals(5, channel.take().getBody()[0]);
+    transaction.rollback();
+    transaction.close();
+    Assert.assertArrayEquals(new int[] { 4, 5, 6 }, take(10));
+
+    // back to memory once the spill is drained
+    put(7, 2);
+    Assert.assertEquals(4L, (long) channel.getCounterGroup().get(
+        SpillableMemoryChannel.COUNTER_SPILL_PUTS));
+    Assert.assertArrayEquals(new int[] { 7, 8 }, take(10));
+  }
+
+  @Test
+  public void testSpillFilesDeleted() {
+    // a batch of 8 events of 100 bytes fills a spill file of 1000 bytes
+    put(0, 5);
+    for (int batch = 0; batch < 5; batch++) {
+      put(5 + batch * 8, 8);
+    }
+    SpillLog spillLog = channel.getSpillLogIfOpen();
+    Assert.assertEquals(5, spillLog.getFileCount());
+    Assert.assertEquals(2, take(2).length);
+    Assert.assertEquals(5, spillLog.getFileCount());
+    // reading all the events of the first file back into memory
+    Assert.assertEquals(8, take(8).length);
+    Assert.assertEquals(4, spillLog.getFileCount());
+    while(take(10).length > 0) {
+      // drain
+    }
+    // the file being written is kept until the channel is stopped
+    Assert.assertEquals(1, spillLog.getFileCount());
+    Assert.assertEquals(1, spillDir.list().length);
+    channel.stop();
+    Assert.assertEquals(0, spillDir.list().length);
+    channel.start();
+  }
+
+  @Test
+  public void testStopWithSpilledTakes() {
+    channel.stop();
+    channel = new SpillableMemoryChannel();
+    Context context = new Context();
+    context.put(SpillableMemoryChannelConfiguration.MEMORY_CAPACITY, "0");
+    context.put(SpillableMemoryChannelConfiguration.KEEP_ALIVE, "0");
+    context.put(SpillableMemoryChannelConfiguration.SPILL_DIR,
+        spillDir.getAbsolutePath());
+    Configurables.configure(channel, context);
+    channel.start();
+    put(0, 3);
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals(0, channel.take().getBody()[0]);
+    Assert.assertEquals(1, channel.take().getBody()[0]);
+    Assert.assertEquals(2, channel.take().getBody()[0]);
+    // the spill must outlive the takes which may roll back into it
+    channel.stop();
+    Assert.assertNotNull(channel.getSpillLogIfOpen());
+    transaction.rollback();
+    transaction.close();
+    channel.start();
+    Assert.assertArrayEquals(new int[] { 0, 1, 2 }, take(10));
+    channel.stop();
+    Assert.assertNull(channel.getSpillLogIfOpen());
+    Assert.assertEquals(0, spillDir.list().length);
+    channel.start();
+  }
+
+  @Test
+  public void testCapacity() {
+    for (int batch = 0; batch < 10; batch++) {
+      put(batch * 10, 10);
+    }
+    try {
+      put(100, 1);
+      Assert.fail();
+    } catch (ChannelException e) {
+      // expected
+    }
+    Assert.assertEquals(10, take(10).length);
+    put(100, 1);
+  }
+
+  @Test
+  public void testConcurrentSources() throws Exception {
+    final int threads = 4;
+    final int batches = 50;
+    final AtomicInteger taken = new AtomicInteger();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Map<String, Integer> counts = Maps.newConcurrentMap();
+    final CountDownLatch done = new CountDownLatch(threads + 1);
+    for (int thread = 0; thread < threads; thread++) {
+      final String source = String.valueOf(thread);
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int batch = 0; batch < batches; batch++) {
+              Transaction transaction = channel.getTransaction();
+              transaction.begin();
+              for (int index = 0; index < 10; index++) {
+                channel.put(EventBuilder.withBody(
+                    (source + "-" + (batch * 10 + index)).getBytes()));
+              }
+              try {
+                transaction.commit();
+              } catch (ChannelException e) {
+                // full, put the batch again
+                transaction.rollback();
+                batch--;
+              }
+              transaction.close();
+            }
+          } catch (Throwable throwable) {
+            error.compareAndSet(null, throwable);
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    // a single sink so that the events of each source are taken in order
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          while(taken.get() < threads * batches * 10 && error.get() == null) {
+            Transaction transaction = channel.getTransaction();
+            transaction.begin();
+            int count = 0;
+            Event event;
+            while(count < 10 && (event = channel.take()) != null) {
+              String[] parts = new String(event.getBody()).split("-");
+              // the events of a source are taken in order
+              Integer last = counts.put(parts[0], Integer.valueOf(parts[1]));
+              Assert.assertEquals(last == null ? 0 : last + 1,
+                  Integer.parseInt(parts[1]));
+              count++;
+            }
+            transaction.commit();
+            transaction.close();
+            taken.addAndGet(count);
+          }
+        } catch (Throwable throwable) {
+          error.compareAndSet(null, throwable);
+        } finally {
+          done.countDown();
+        }
+      }
+    }.start();
+    Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+    if(error.get() != null) {
+      throw new AssertionError(error.get());
+    }
+    Assert.assertEquals(threads * batches * 10, taken.get());
+  }
+
+  private void put(int first, int count) {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    try {
+      for (int index = first; index < first + count; index++) {
+        byte[] body = new byte[100];
+        body[0] = (byte) index;
+        channel.put(EventBuilder.withBody(body));
+      }
+      transaction.commit();
+    } catch (ChannelException e) {
+      transaction.rollback();
+      throw e;
+    } finally {
+      transaction.close();
+    }
+  }
+
+  private int[] take(int max) {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    int[] taken = new int[max];
+    int count = 0;
+    Event event;
+    while(count < max && (event = channel.take()) != null) {
+      taken[count++] = event.getBody()[0];
+    }
+    transaction.commit();
+    transaction.close();
+    int[] result = new int[count];
+    System.arraycopy(taken, 0, result, 0, count);
+    return result;
+  }
+}
@@ -29,11 +29,16 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.Assert;
 
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
 public class TestTransactionEventRecord {
 
   @Test
@@ -49,6 +54,9 @@ public class TestTransactionEventRecord {
 
     Commit commit = new Commit(System.currentTimeMillis());
     Assert.assertEquals(TransactionEventRecord.Type.COMMIT.get(), commit.getRecordType());
+
+    Batch batch = new Batch(System.currentTimeMillis());
+    Assert.assertEquals(TransactionEventRecord.Type.BATCH.get(), batch.getRecordType());
   }
 
   @Test
@@ -99,6 +107,95 @@ public class TestTransactionEventRecord {
     Assert.assertEquals(in.getTimestamp(), out.getTimestamp());
   }
 
+  @Test
+  public void testPutBatchSerialization() throws IOException {
+    List<FlumeEvent> events = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      HashMap<String, String> headers = new HashMap<String, String>();
+      headers.put("index", String.valueOf(i));
+      events.add(new FlumeEvent(headers, new byte[i * 10]));
+    }
+    Batch in = Batch.newPut(System.currentTimeMillis(), events);
+    in.setTimestamp(System.currentTimeMillis());
+    Batch out = (Batch)TransactionEventRecord.fromDataInput(toDataInput(in));
+    Assert.assertEquals(in.getRecordType(), out.getRecordType());
+    Assert.assertEquals(in.getTransactionID(), out.getTransactionID());
+    Assert.assertEquals(in.getTimestamp(), out.getTimestamp());
+    Assert.assertEquals(TransactionEventRecord.Type.PUT.get(), out.getType());
+    Assert.assertEquals(3, out.getCount());
+    Assert.assertTrue(Arrays.equals(in.getEventOffsets(), out.getEventOffsets()));
+    // the gathering encoding is the same as the streamed one
+    ByteBuffer streamed = TransactionEventRecord.toByteBuffer(in);
+    ByteArrayOutputStream gathered = new ByteArrayOutputStream();
+    for (ByteBuffer buffer : in.toByteBuffers()) {
+      byte[] bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      gathered.write(bytes);
+    }
+    Assert.assertTrue(Arrays.equals(streamed.array(), gathered.toByteArray()));
+    // each event can be read at its offset
+    byte[] record = gathered.toByteArray();
+    for (int i = 0; i < 3; i++) {
+      DataInputStream input = new DataInputStream(new ByteArrayInputStream(
+          record, out.getEventOffsets()[i], record.length));
+      Assert.assertEquals(LogFile.OP_CHECKED_COMPACT_EVENT, input.readByte());
+      int length = input.readInt();
+      FlumeEvent event = LogFile.fromBatchEvent(
+          LogFile.OP_CHECKED_COMPACT_EVENT, record,
+          out.getEventOffsets()[i] + Batch.EVENT_HEADER_SIZE, length, null);
+      Assert.assertEquals(events.get(i).getHeaders(), event.getHeaders());
+      Assert.assertTrue(Arrays.equals(events.get(i).getBody(), event.getBody()));
+    }
+  }
+
+  @Test
+  public void testCompactEventEncoding() throws IOException {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("ascii", "value");
+    headers.put("two byte \u00e9", "three byte \u20ac");
+    headers.put("surrogate pair", "\ud83d\ude00");
+    headers.put("unpaired surrogate", "a\ud83db");
+    headers.put("empty", "");
+    FlumeEvent[] events = {
+        new FlumeEvent(headers, new byte[] { 1, 2, 3 }),
+        new FlumeEvent(null, null),
+        new FlumeEvent(new HashMap<String, String>(), new byte[0])
+    };
+    for (FlumeEvent in : events) {
+      RecordBuffer buffer = RecordBuffer.forThread();
+      buffer.putInt(-1);
+      in.writeCompact(buffer);
+      FlumeEvent out = FlumeEvent.fromCompact(buffer.array(), 4,
+          buffer.position() - 4);
+      // strings are encoded as String.getBytes() would, replacing an
+      // unpaired surrogate by '?'
+      Map<String, String> expected = new HashMap<String, String>();
+      if (in.getHeaders() != null) {
+        for (Map.Entry<String, String> entry : in.getHeaders().entrySet()) {
+          expected.put(entry.getKey(),
+              new String(entry.getValue().getBytes(Charsets.UTF_8),
+                  Charsets.UTF_8));
+        }
+      }
+      Assert.assertEquals(expected, out.getHeaders());
+      Assert.assertTrue(Arrays.equals(in.getBody(), out.getBody()));
+    }
+  }
+
+  @Test
+  public void testTakeBatchSerialization() throws IOException {
+    List<FlumeEventPointer> pointers = Lists.newArrayList();
+    pointers.add(new FlumeEventPointer(1, 10));
+    pointers.add(new FlumeEventPointer(2, 20));
+    Batch in = Batch.newTake(System.currentTimeMillis(), pointers);
+    in.setTimestamp(System.currentTimeMillis());
+    Batch out = (Batch)TransactionEventRecord.fromDataInput(toDataInput(in));
+    Assert.assertEquals(in.getTransactionID(), out.getTransactionID());
+    Assert.assertEquals(in.getTimestamp(), out.getTimestamp());
+    Assert.assertEquals(TransactionEventRecord.Type.TAKE.get(), out.getType());
+    Assert.assertTrue(Arrays.equals(in.getPointers(), out.getPointers()));
+  }
+
   @Test
   public void testBadHeader() throws IOException {
     Put in = new Put(System.currentTimeMillis(),
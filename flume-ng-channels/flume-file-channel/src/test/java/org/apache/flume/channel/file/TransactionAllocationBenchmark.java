@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel.file;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+
+import com.google.common.io.Files;
+
+/**
+ * Measures the bytes allocated per committed event by the transactions
+ * of {@link MemoryChannel} and {@link FileChannel} when, as with sources
+ * such as the syslog UDP source, each event is put and taken in a
+ * transaction of its own. Requires a JVM which measures the allocation
+ * of threads, such as HotSpot. Not run as part of the unit tests, run it
+ * with the test classpath:
+ *
+ * <pre>
+ * java -Dbenchmark.events=200000 \
+ *   org.apache.flume.channel.file.TransactionAllocationBenchmark
+ * </pre>
+ *
+ * Each channel is run once to warm up before it is measured.
+ */
+public class TransactionAllocationBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int events = Integer.getInteger("benchmark.events", 200000);
+    System.out.println("channel bytesPerEvent eventsPerSecond");
+    File dir = Files.createTempDir();
+    try {
+      Context context = new Context();
+      context.put("capacity", "1000");
+      context.put("transactionCapacity", "100");
+      MemoryChannel memoryChannel = new MemoryChannel();
+      Configurables.configure(memoryChannel, context);
+      memoryChannel.start();
+      run("memory", memoryChannel, events);
+
+      context.put(FileChannelConfiguration.CHECKPOINT_DIR,
+          new File(dir, "checkpoint").getAbsolutePath());
+      context.put(FileChannelConfiguration.DATA_DIRS,
+          new File(dir, "data").getAbsolutePath());
+      // the allocation of the transactions, not of syncing each commit
+      context.put(FileChannelConfiguration.DURABILITY,
+          Durability.OS.getName());
+      FileChannel fileChannel = new FileChannel();
+      Configurables.configure(fileChannel, context);
+      fileChannel.start();
+      try {
+        run("file", fileChannel, events);
+      } finally {
+        fileChannel.stop();
+      }
+    } finally {
+      FileUtils.deleteQuietly(dir);
+    }
+  }
+
+  private static void run(String name, Channel channel, int events) {
+    Event event = EventBuilder.withBody(new byte[100]);
+    putAndTake(channel, event, Math.max(1, events / 10));
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long startBytes = threads.getThreadAllocatedBytes(thread);
+    long startNanos = System.nanoTime();
+    putAndTake(channel, event, events);
+    long nanos = System.nanoTime() - startNanos;
+    long bytes = threads.getThreadAllocatedBytes(thread) - startBytes;
+    System.out.println(name + " " + (bytes / events) + " " +
+        (events * 1000000000L / nanos));
+  }
+
+  private static void putAndTake(Channel channel, Event event, int events) {
+    for (int index = 0; index < events; index++) {
+      Transaction transaction = channel.getTransaction();
+      transaction.begin();
+      channel.put(event);
+      transaction.commit();
+      transaction.close();
+      transaction = channel.getTransaction();
+      transaction.begin();
+      if(channel.take() == null) {
+        throw new IllegalStateException("Event put was not taken");
+      }
+      transaction.commit();
+      transaction.close();
+    }
+  }
+}
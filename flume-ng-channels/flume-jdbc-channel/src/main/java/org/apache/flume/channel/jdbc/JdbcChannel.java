@@ -17,6 +17,8 @@
  */
 package org.apache.flume.channel.jdbc;
 
+import java.util.List;
+
 import org.apache.flume.ChannelException;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
@@ -49,6 +51,16 @@ public class JdbcChannel extends AbstractChannel {
     return getProvider().removeEvent(getName());
   }
 
+  @Override
+  public void putAll(List<Event> events) throws ChannelException {
+    getProvider().persistEvents(getName(), events);
+  }
+
+  @Override
+  public int take(int max, List<Event> events) throws ChannelException {
+    return getProvider().removeEvents(getName(), max, events);
+  }
+
   @Override
   public Transaction getTransaction() {
     return getProvider().getTransaction();
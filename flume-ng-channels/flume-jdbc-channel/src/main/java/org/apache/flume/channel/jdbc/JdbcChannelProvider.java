@@ -17,6 +17,8 @@
  */
 package org.apache.flume.channel.jdbc;
 
+import java.util.List;
+
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.Transaction;
@@ -46,6 +48,14 @@ public interface JdbcChannelProvider {
    */
   public void persistEvent(String channelName, Event event);
 
+  /**
+   * Writes the events to the persistent store, checking the capacity
+   * once for all of them.
+   * @param channelName
+   * @param events
+   */
+  public void persistEvents(String channelName, List<Event> events);
+
 
   /**
    * Removes the next event for the named channel from the underlying
@@ -55,6 +65,16 @@ public interface JdbcChannelProvider {
    */
   public Event removeEvent(String channelName);
 
+  /**
+   * Removes up to max of the next events for the named channel from the
+   * underlying persistent store, adding them to events.
+   * @param channelName
+   * @param max
+   * @param events
+   * @return the number of events removed
+   */
+  public int removeEvents(String channelName, int max, List<Event> events);
+
   /**
    * @return the transaction associated with the current thread.
    */
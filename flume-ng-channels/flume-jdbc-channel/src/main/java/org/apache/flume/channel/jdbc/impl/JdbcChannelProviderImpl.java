@@ -26,6 +26,7 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
@@ -322,6 +323,75 @@ public class JdbcChannelProviderImpl implements JdbcChannelProvider {
     LOGGER.debug("Persisted event: {}", persistableEvent.getEventId());
   }
 
+  @Override
+  public void persistEvents(String channel, List<Event> events) {
+    JdbcTransactionImpl tx = null;
+    try {
+      tx = getTransaction();
+      tx.begin();
+
+      if (maxCapacity > 0) {
+        long currentSizeLong = currentSize.get();
+        if (currentSizeLong + events.size() > maxCapacity) {
+          throw new JdbcChannelException("Channel capacity reached: "
+              + "maxCapacity: " + maxCapacity + ", currentSize: "
+              + currentSizeLong + ", events: " + events.size());
+        }
+      }
+
+      for (Event event : events) {
+        schemaHandler.storeEvent(new PersistableEvent(channel, event),
+            tx.getConnection());
+        tx.incrementPersistedEventCount();
+      }
+
+      tx.commit();
+    } catch (Exception ex) {
+      tx.rollback();
+      throw new JdbcChannelException("Failed to persist events", ex);
+    } finally {
+      if (tx != null) {
+        tx.close();
+      }
+    }
+
+    LOGGER.debug("Persisted {} events", events.size());
+  }
+
+  @Override
+  public int removeEvents(String channelName, int max, List<Event> events) {
+    int removed = 0;
+    JdbcTransactionImpl tx = null;
+    try {
+      tx = getTransaction();
+      tx.begin();
+
+      while (removed < max) {
+        PersistableEvent result = schemaHandler.fetchAndDeleteEvent(
+            channelName, tx.getConnection());
+        if (result == null) {
+          break;
+        }
+        events.add(result);
+        tx.incrementRemovedEventCount();
+        removed++;
+      }
+
+      tx.commit();
+    } catch (Exception ex) {
+      tx.rollback();
+      throw new JdbcChannelException("Failed to remove events", ex);
+    } finally {
+      if (tx != null) {
+        tx.close();
+      }
+    }
+
+    LOGGER.debug("Removed {} events", removed);
+
+    return removed;
+  }
+
   @Override
   public Event removeEvent(String channelName) {
     PersistableEvent result = null;
@@ -36,7 +36,7 @@ import org.apache.flume.channel.BasicTransactionSemantics;
 import org.apache.flume.channel.MemoryChannel;
 import org.apache.flume.channel.recoverable.memory.wal.WAL;
 import org.apache.flume.channel.recoverable.memory.wal.WALEntry;
-import org.apache.flume.channel.recoverable.memory.wal.WALReplayResult;
+import org.apache.flume.channel.recoverable.memory.wal.WALReplayHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,9 +63,11 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
   public static final String WAL_WORKER_INTERVAL = "wal.workerInterval";
   public static final String CAPACITY = "capacity";
   public static final String KEEPALIVE = "keep-alive";
+  public static final String TRANSACTION_CAPACITY = "transactionCapacity";
 
   public static final int DEFAULT_CAPACITY = 100;
   public static final int DEFAULT_KEEPALIVE = 3;
+  public static final int DEFAULT_TRANSACTION_CAPACITY = 100;
 
   private MemoryChannel memoryChannel = new MemoryChannel();
   private AtomicLong seqidGenerator = new AtomicLong(0);
@@ -79,6 +81,7 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
   private Semaphore queueRemaining;
   private int capacity;
   private int keepAlive;
+  private int transactionCapacity;
   private volatile boolean open;
 
   public RecoverableMemoryChannel() {
@@ -99,6 +102,12 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
     }
     this.capacity = capacity;
     keepAlive = context.getInteger(KEEPALIVE, DEFAULT_KEEPALIVE);
+    transactionCapacity = context.getInteger(TRANSACTION_CAPACITY,
+        DEFAULT_TRANSACTION_CAPACITY);
+    if(transactionCapacity <= 0) {
+      // as the memory channel does
+      transactionCapacity = DEFAULT_TRANSACTION_CAPACITY;
+    }
     long rollSize = context.getLong(WAL_ROLL_SIZE, WAL.DEFAULT_ROLL_SIZE);
     long maxLogsSize = context.getLong(WAL_MAX_LOGS_SIZE, WAL.DEFAULT_MAX_LOGS_SIZE);
     long minLogRetentionPeriod = context.getLong(WAL_MIN_RENTENTION_PERIOD, WAL.DEFAULT_MIN_LOG_RENTENTION_PERIOD);
@@ -127,48 +136,25 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
   public synchronized void start() {
     LOG.info("Starting " + this);
     try {
-      WALReplayResult<RecoverableMemoryChannelEvent> results = wal.replay();
-      Preconditions.checkArgument(results.getSequenceID() >= 0);
-      LOG.info("Replay SequenceID " + results.getSequenceID());
-      seqidGenerator.set(results.getSequenceID());
-      int numResults = results.getResults().size();
-      Preconditions.checkState(numResults <= capacity, "Capacity " + capacity +
-          ", but we need to replay " + numResults);
-      LOG.info("Replay Events " + numResults);
-      for(WALEntry<RecoverableMemoryChannelEvent> entry : results.getResults()) {
-        seqidGenerator.set(Math.max(entry.getSequenceID(),seqidGenerator.get()));
-      }
-      for(WALEntry<RecoverableMemoryChannelEvent> entry : results.getResults()) {
-        Transaction transaction = null;
-        try {
-          transaction = memoryChannel.getTransaction();
-          transaction.begin();
-          memoryChannel.put(entry.getData());
-          transaction.commit();
-        } catch(Exception e) {
-          if(transaction != null) {
-            try {
-              transaction.rollback();
-            } catch(Exception ex) {
-              LOG.info("Error during rollback", ex);
-            }
-          }
-          Throwables.propagate(e);
-        } catch(Error e) {
-          if(transaction != null) {
-            try {
-              transaction.rollback();
-            } catch(Exception ex) {
-              LOG.info("Error during rollback", ex);
-            }
-          }
-          throw e;
-        } finally {
-          if(transaction != null) {
-            transaction.close();
-          }
+      // stream the events to replay into the memory channel a transaction
+      // at a time, rather than reading them all in first
+      final AtomicLong replayed = new AtomicLong(0);
+      long sequenceID = wal.replay(transactionCapacity,
+          new WALReplayHandler<RecoverableMemoryChannelEvent>() {
+        @Override
+        public void replay(
+            List<WALEntry<RecoverableMemoryChannelEvent>> entries) {
+          long numResults = replayed.addAndGet(entries.size());
+          Preconditions.checkState(queueRemaining.tryAcquire(entries.size()),
+              "Capacity " + capacity + ", but we need to replay at least " +
+              numResults);
+          replayEvents(entries);
         }
-      }
+      });
+      Preconditions.checkArgument(sequenceID >= 0);
+      LOG.info("Replay SequenceID " + sequenceID);
+      seqidGenerator.set(sequenceID);
+      LOG.info("Replay Events " + replayed.get());
     } catch (IOException e) {
       Throwables.propagate(e);
     }
@@ -176,10 +162,50 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
     open = true;
   }
 
+  private void replayEvents(
+      List<WALEntry<RecoverableMemoryChannelEvent>> entries) {
+    List<Event> events = Lists.newArrayListWithCapacity(entries.size());
+    for(WALEntry<RecoverableMemoryChannelEvent> entry : entries) {
+      events.add(entry.getData());
+    }
+    Transaction transaction = null;
+    try {
+      transaction = memoryChannel.getTransaction();
+      transaction.begin();
+      memoryChannel.putAll(events);
+      transaction.commit();
+    } catch(Exception e) {
+      if(transaction != null) {
+        try {
+          transaction.rollback();
+        } catch(Exception ex) {
+          LOG.info("Error during rollback", ex);
+        }
+      }
+      Throwables.propagate(e);
+    } catch(Error e) {
+      if(transaction != null) {
+        try {
+          transaction.rollback();
+        } catch(Exception ex) {
+          LOG.info("Error during rollback", ex);
+        }
+      }
+      throw e;
+    } finally {
+      if(transaction != null) {
+        transaction.close();
+      }
+    }
+  }
+
   @Override
   public synchronized void stop() {
     open = false;
     LOG.info("Stopping " + this);
+    if(wal != null) {
+      LOG.info("WAL Metrics: {}", wal.getCounterGroup());
+    }
     try {
       close();
     } catch (IOException e) {
@@ -209,6 +235,13 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
   private long nextSequenceID() {
     return seqidGenerator.incrementAndGet();
   }
+  /**
+   * Reserve count consecutive sequence ids
+   * @return the first of them
+   */
+  private long nextSequenceIDs(int count) {
+    return seqidGenerator.addAndGet(count) - count + 1;
+  }
 
   void close() throws IOException {
     if(wal != null) {
@@ -228,6 +261,8 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
     private RecoverableMemoryChannel channel;
     private List<Long> sequenceIds = Lists.newArrayList();
     private List<RecoverableMemoryChannelEvent> events = Lists.newArrayList();
+    // sequenced events of a batch take
+    private List<Event> taken = Lists.newArrayList();
     private int takes;
 
     private RecoverableMemoryTransaction(RecoverableMemoryChannel channel,
@@ -251,10 +286,49 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
       }
       RecoverableMemoryChannelEvent sequencedEvent =
           new RecoverableMemoryChannelEvent(event, channel.nextSequenceID());
-      memoryChannel.put(sequencedEvent);
+      boolean error = true;
+      try {
+        memoryChannel.put(sequencedEvent);
+        error = false;
+      } finally {
+        if(error) {
+          channel.queueRemaining.release();
+        }
+      }
       events.add(sequencedEvent);
     }
 
+    @Override
+    protected void doPutAll(List<Event> batch) throws InterruptedException {
+      if(!channel.open) {
+        throw new ChannelException("Channel not open");
+      }
+      int size = batch.size();
+      if(!channel.queueRemaining.tryAcquire(size, channel.keepAlive,
+          TimeUnit.SECONDS)) {
+        throw new ChannelException("Cannot acquire capacity");
+      }
+      long sequenceId = channel.nextSequenceIDs(size);
+      List<Event> sequencedEvents = Lists.newArrayListWithCapacity(size);
+      for (Event event : batch) {
+        sequencedEvents.add(new RecoverableMemoryChannelEvent(event,
+            sequenceId++));
+      }
+      boolean error = true;
+      try {
+        memoryChannel.putAll(sequencedEvents);
+        error = false;
+      } finally {
+        if(error) {
+          // none of the batch is in events, so rollback won't release it
+          channel.queueRemaining.release(size);
+        }
+      }
+      for (Event sequencedEvent : sequencedEvents) {
+        events.add((RecoverableMemoryChannelEvent)sequencedEvent);
+      }
+    }
+
     @Override
     protected Event doTake() throws InterruptedException {
       if(!channel.open) {
@@ -269,6 +343,25 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
       return null;
     }
 
+    @Override
+    protected int doTake(int max, List<Event> batch)
+        throws InterruptedException {
+      if(!channel.open) {
+        throw new ChannelException("Channel not open");
+      }
+      taken.clear();
+      int count = memoryChannel.take(max, taken);
+      for (Event event : taken) {
+        RecoverableMemoryChannelEvent sequencedEvent =
+            (RecoverableMemoryChannelEvent)event;
+        sequenceIds.add(sequencedEvent.sequenceId);
+        batch.add(sequencedEvent.event);
+      }
+      takes += count;
+      taken.clear();
+      return count;
+    }
+
     @Override
     protected void doCommit() throws InterruptedException {
       if(!channel.open) {
@@ -294,9 +387,9 @@ public class RecoverableMemoryChannel extends BasicChannelSemantics {
 
     @Override
     protected void doRollback() throws InterruptedException {
+      channel.queueRemaining.release(events.size());
       sequenceIds.clear();
       events.clear();
-      channel.queueRemaining.release(events.size());
       transaction.rollback();
     }
 
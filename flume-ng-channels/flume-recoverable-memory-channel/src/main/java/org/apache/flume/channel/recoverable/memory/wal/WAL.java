@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.flume.CounterGroup;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Writable;
 import org.slf4j.Logger;
@@ -68,7 +69,10 @@ import com.google.common.io.Files;
  * that is the current sequence id) is greater than the greatest sequence id
  *  in the file.
  *
- * The only synchronization this class does is around rolling log files. When
+ * Writes are group committed: concurrent calls to a write*() method share
+ * a single sync of the file, each returning once its entries are on disk.
+ *
+ * The only other synchronization this class does is around rolling log files. When
  * a roll of the log file is required, the thread which discovers this
  * will execute the roll. Any threads calling a write*() method during
  * the roll will block until the roll is complete.
@@ -93,6 +97,7 @@ public class WAL<T extends Writable> implements Closeable {
   private volatile long workerInterval;
   private int numReplaySequenceIDOverride;
   private Worker backgroundWorker;
+  private final CounterGroup counterGroup = new CounterGroup();
 
   /**
    * Number of bytes before we roll the file.
@@ -106,6 +111,10 @@ public class WAL<T extends Writable> implements Closeable {
    * Minimum number of ms to keep a log file.
    */
   public static final long DEFAULT_MIN_LOG_RENTENTION_PERIOD = 5L * 60L * 1000L;
+  /**
+   * Number of entries handed on at a time by {@link #replay()}.
+   */
+  public static final int DEFAULT_REPLAY_BATCH_SIZE = 1000;
   /**
    * How often in ms the background worker runs
    */
@@ -199,8 +208,10 @@ public class WAL<T extends Writable> implements Closeable {
         seqWalFileName = new File(sequenceIDPath, Long.toString(ts));
       }
 
-      dataFileWALWriter = new WALDataFile.Writer<T>(dataWalFileName);
-      sequenceIDWALWriter = new WALDataFile.Writer<NullWritable>(seqWalFileName);
+      dataFileWALWriter = new WALDataFile.Writer<T>(dataWalFileName,
+          counterGroup, "data.");
+      sequenceIDWALWriter = new WALDataFile.Writer<NullWritable>(seqWalFileName,
+          counterGroup, "seq.");
       rollRequired = false;
     } finally {
       rollInProgress = false;
@@ -211,7 +222,34 @@ public class WAL<T extends Writable> implements Closeable {
     }
   }
 
+  /**
+   * Replay the WAL, holding every entry which survives in memory.
+   * {@link #replay(int, WALReplayHandler)} bounds the memory used.
+   */
   public WALReplayResult<T> replay() throws IOException {
+    final List<WALEntry<T>> entries = Lists.newArrayList();
+    long sequenceID = replay(DEFAULT_REPLAY_BATCH_SIZE,
+        new WALReplayHandler<T>() {
+      @Override
+      public void replay(List<WALEntry<T>> batch) {
+        entries.addAll(batch);
+      }
+    });
+    return new WALReplayResult<T>(entries, sequenceID);
+  }
+
+  /**
+   * Replay the WAL, streaming the entries which survive to handler in
+   * batches of at most batchSize as the data files are read. Only the
+   * committed sequence ids, as a sorted array of longs, and a batch of
+   * entries are held in memory.
+   *
+   * @return the largest sequence id found in the WAL
+   */
+  public long replay(final int batchSize, final WALReplayHandler<T> handler)
+      throws IOException {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be > 0");
+    Preconditions.checkNotNull(handler, "handler");
     final AtomicLong sequenceID = new AtomicLong(0);
     final Map<String, Long> fileLargestSequenceIDMap = Maps.newHashMap();
     final AtomicLong totalBytes = new AtomicLong(0);
@@ -231,87 +269,102 @@ public class WAL<T extends Writable> implements Closeable {
     LOG.info("Replay assumptions: baseSize = " + baseSize
         + ", estimatedNumEntries " + numEntries);
     final SequenceIDBuffer sequenceIDs = new SequenceIDBuffer(numEntries);
-
-    // read them all into ram
-    final AtomicInteger index = new AtomicInteger(0);
-    readFiles(sequenceIDPath, new Function<File, Void>() {
-      @Override
-      public Void apply(File input) {
-        LOG.info("Replaying " + input);
-        WALDataFile.Reader<NullWritable> reader = null;
-        int localIndex = index.get();
-        try {
-          // item stored is a NullWritable so we only store the base WALEntry
-          reader = new WALDataFile.Reader<NullWritable>(input,
-              NullWritable.class);
-          List<WALEntry<NullWritable>> batch;
-          long largestForFile = Long.MIN_VALUE;
-          while ((batch = reader.nextBatch()) != null) {
-            for(WALEntry<NullWritable> entry : batch) {
-              long current = entry.getSequenceID();
-              sequenceIDs.put(localIndex++, current);
-              largestForFile = Math.max(largestForFile, current);
+    try {
+      // read them all into ram
+      final AtomicInteger index = new AtomicInteger(0);
+      readFiles(sequenceIDPath, new Function<File, Void>() {
+        @Override
+        public Void apply(File input) {
+          LOG.info("Replaying " + input);
+          WALDataFile.Reader<NullWritable> reader = null;
+          int localIndex = index.get();
+          try {
+            // item stored is a NullWritable so we only store the base WALEntry
+            reader = new WALDataFile.Reader<NullWritable>(input,
+                NullWritable.class);
+            List<WALEntry<NullWritable>> batch;
+            long largestForFile = Long.MIN_VALUE;
+            while ((batch = reader.nextBatch()) != null) {
+              for(WALEntry<NullWritable> entry : batch) {
+                long current = entry.getSequenceID();
+                sequenceIDs.put(localIndex++, current);
+                largestForFile = Math.max(largestForFile, current);
+              }
             }
-          }
-          sequenceID.set(Math.max(largestForFile, sequenceID.get()));
-          fileLargestSequenceIDMap.put(input.getAbsolutePath(),
-              largestForFile);
-        } catch (IOException e) {
-          Throwables.propagate(e);
-        } finally {
-          index.set(localIndex);
-          if (reader != null) {
-            try {
-              reader.close();
-            } catch (IOException e) {
+            sequenceID.set(Math.max(largestForFile, sequenceID.get()));
+            fileLargestSequenceIDMap.put(input.getAbsolutePath(),
+                largestForFile);
+          } catch (IOException e) {
+            Throwables.propagate(e);
+          } finally {
+            index.set(localIndex);
+            if (reader != null) {
+              try {
+                reader.close();
+              } catch (IOException e) {
+              }
             }
           }
+          return null;
         }
-        return null;
-      }
-    });
-
-    sequenceIDs.sort();
-
-    // now read all edits storing items with a sequence id
-    // which is *not* in the sequenceIDs
-    final List<WALEntry<T>> entries = Lists.newArrayList();
-    final Class<T> dataClazz = clazz;
-    readFiles(dataPath, new Function<File, Void>() {
-      @Override
-      public Void apply(File input) {
-        LOG.info("Replaying " + input);
-        WALDataFile.Reader<T> reader = null;
-        try {
-          reader = new WALDataFile.Reader<T>(input, dataClazz);
-          List<WALEntry<T>> batch = Lists.newArrayList();
-          long largestForFile = Long.MIN_VALUE;
-          while ((batch = reader.nextBatch()) != null) {
-            for(WALEntry<T> entry : batch) {
-              long current = entry.getSequenceID();
-              if (!sequenceIDs.exists(current)) {
-                entries.add(entry);
+      });
+
+      sequenceIDs.sort();
+
+      // now stream all edits, handing on items with a sequence id
+      // which is *not* in the sequenceIDs
+      final List<WALEntry<T>> entries =
+          Lists.newArrayListWithCapacity(batchSize);
+      final AtomicLong replayed = new AtomicLong(0);
+      final Class<T> dataClazz = clazz;
+      readFiles(dataPath, new Function<File, Void>() {
+        @Override
+        public Void apply(File input) {
+          LOG.info("Replaying " + input);
+          WALDataFile.Reader<T> reader = null;
+          try {
+            reader = new WALDataFile.Reader<T>(input, dataClazz);
+            List<WALEntry<T>> batch;
+            long largestForFile = Long.MIN_VALUE;
+            while ((batch = reader.nextBatch()) != null) {
+              for(WALEntry<T> entry : batch) {
+                long current = entry.getSequenceID();
+                if (!sequenceIDs.exists(current)) {
+                  entries.add(entry);
+                  if (entries.size() >= batchSize) {
+                    handler.replay(entries);
+                    replayed.addAndGet(entries.size());
+                    entries.clear();
+                  }
+                }
+                largestForFile = Math.max(largestForFile, current);
               }
-              largestForFile = Math.max(largestForFile, current);
             }
-          }
-          sequenceID.set(Math.max(largestForFile, sequenceID.get()));
-          fileLargestSequenceIDMap.put(input.getAbsolutePath(),
-              largestForFile);
-        } catch (IOException e) {
-          Throwables.propagate(e);
-        } finally {
-          if (reader != null) {
-            try {
-              reader.close();
-            } catch (IOException e) {
+            sequenceID.set(Math.max(largestForFile, sequenceID.get()));
+            fileLargestSequenceIDMap.put(input.getAbsolutePath(),
+                largestForFile);
+          } catch (IOException e) {
+            Throwables.propagate(e);
+          } finally {
+            if (reader != null) {
+              try {
+                reader.close();
+              } catch (IOException e) {
+              }
             }
           }
+          return null;
         }
-        return null;
+      });
+      if (!entries.isEmpty()) {
+        handler.replay(entries);
+        replayed.addAndGet(entries.size());
+        entries.clear();
       }
-    });
-    sequenceIDs.close();
+      LOG.info("Replayed " + replayed.get() + " entries");
+    } finally {
+      sequenceIDs.close();
+    }
     synchronized (this.fileLargestSequenceIDMap) {
       this.fileLargestSequenceIDMap.clear();
       this.fileLargestSequenceIDMap.putAll(fileLargestSequenceIDMap);
@@ -319,7 +372,7 @@ public class WAL<T extends Writable> implements Closeable {
     }
     largestCommitedSequenceID.set(sequenceID.get());
     LOG.info("Replay complete: LargestCommitedSequenceID = " + largestCommitedSequenceID.get());
-    return new WALReplayResult<T>(entries, largestCommitedSequenceID.get());
+    return largestCommitedSequenceID.get();
   }
 
   public void writeEntries(List<WALEntry<T>> entries) throws IOException {
@@ -364,13 +417,17 @@ public class WAL<T extends Writable> implements Closeable {
     waitWhileRolling();
     boolean error = true;
     try {
-      List<WALEntry<NullWritable>> entries = Lists.newArrayList();
+      List<WALEntry<NullWritable>> entries =
+          Lists.newArrayListWithCapacity(sequenceIDs.size());
+      long largest = Long.MIN_VALUE;
       for(Long sequenceID : sequenceIDs) {
-      largestCommitedSequenceID.set(Math.max(sequenceID,
-          largestCommitedSequenceID.get()));
-      entries.add(new WALEntry<NullWritable>(NullWritable.get(), sequenceID));
-      sequenceIDWALWriter.append(entries);
+        largest = Math.max(largest, sequenceID);
+        entries.add(new WALEntry<NullWritable>(NullWritable.get(), sequenceID));
       }
+      // one batch, so one sync, for all the sequence ids
+      sequenceIDWALWriter.append(entries);
+      largestCommitedSequenceID.set(Math.max(largest,
+          largestCommitedSequenceID.get()));
       error = false;
     } finally {
       if (error) {
@@ -379,6 +436,17 @@ public class WAL<T extends Writable> implements Closeable {
     }
   }
 
+  /**
+   * Counters of the syncs of the data and sequence id files, prefixed
+   * data. and seq. respectively: syncs, the number of forces of the
+   * file; sync.batches, the number of committed batches those covered;
+   * and sync.nanos, the time spent syncing. Batches per sync is the
+   * average size of a group commit, nanos per sync its latency.
+   */
+  public CounterGroup getCounterGroup() {
+    return counterGroup;
+  }
+
   private void waitWhileRolling() {
     synchronized (this) {
       while (rollInProgress) {
@@ -18,6 +18,7 @@
  */
 package org.apache.flume.channel.recoverable.memory.wal;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -26,9 +27,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.flume.CounterGroup;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.ReflectionUtils;
@@ -92,40 +95,138 @@ class WALDataFile<T extends Writable> {
 
   /**
    * Append and flush operations are synchronized as we are modifying
-   * a file in said methods.
+   * a file in said methods. Appends are buffered and group committed:
+   * a thread appending a batch returns once the batch is synced, but
+   * the sync it waits for covers every batch appended before it started,
+   * so concurrent commits share a single force of the file.
    */
   static class Writer<T extends Writable> implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private FileOutputStream fileOutput;
     private DataOutputStream dataOutput;
     private AtomicLong largestSequenceID = new AtomicLong(0);
     private File path;
+    private final CounterGroup counters;
+    private final String prefix;
+    // held while syncing, taken before the lock on the writer
+    private final Object syncLock = new Object();
+    // batches appended, guarded by this
+    private long appended;
+    // batches known to be on disk, guarded by syncLock
+    private long synced;
+    // file offset just past the last complete batch, guarded by this
+    private long completeSize;
+    // guarded by this
+    private boolean closed;
+    private boolean failed;
+    // set once close forced every complete batch, guarded by this
+    private boolean forcedOnClose;
 
     Writer(File path) throws IOException {
+      this(path, new CounterGroup(), "");
+    }
+
+    /**
+     * @param counters receives the syncs, the batches they covered and
+     * the nanoseconds spent syncing, as counters named by prefix
+     */
+    Writer(File path, CounterGroup counters, String prefix)
+        throws IOException {
       this.path = path;
+      this.counters = counters;
+      this.prefix = prefix;
       fileOutput = new FileOutputStream(path);
-      dataOutput = new DataOutputStream(fileOutput);
+      dataOutput = new DataOutputStream(new BufferedOutputStream(fileOutput,
+          BUFFER_SIZE));
       dataOutput.writeInt(VERSION);
       flush();
+      completeSize = dataOutput.size();
+    }
+
+    void append(List<WALEntry<T>> entries) throws IOException {
+      long batch;
+      synchronized (this) {
+        if(closed) {
+          throw new IOException("Writer for " + path + " is closed");
+        }
+        if(failed) {
+          // the file may end in part of a batch, appending after it
+          // would make the batches which follow unreadable
+          throw new IOException("Previous append to " + path + " failed");
+        }
+        boolean error = true;
+        try {
+          for (WALEntry<T> entry : entries) {
+            largestSequenceID.set(Math.max(entry.getSequenceID(),
+                largestSequenceID.get()));
+            dataOutput.writeInt(RECORD_TYPE_EVENT);
+            entry.write(dataOutput);
+          }
+          dataOutput.writeInt(RECORD_TYPE_COMMIT);
+          completeSize = dataOutput.size();
+          error = false;
+        } finally {
+          if(error) {
+            failed = true;
+          }
+        }
+        batch = ++appended;
+      }
+      // once this returns the events have been successfully
+      // persisted and will be replayed in the case of a crash
+      sync(batch);
     }
 
-    // TODO group commit
-    synchronized void append(List<WALEntry<T>> entries) throws IOException {
-      for (WALEntry<T> entry : entries) {
-        largestSequenceID.set(Math.max(entry.getSequenceID(), largestSequenceID.get()));
-        dataOutput.writeInt(RECORD_TYPE_EVENT);
-        entry.write(dataOutput);
+    /**
+     * Wait until the given batch is on disk, syncing it along with every
+     * other batch appended so far unless a sync already covered it.
+     */
+    private void sync(long batch) throws IOException {
+      synchronized (syncLock) {
+        if(synced >= batch) {
+          return;
+        }
+        long start = System.nanoTime();
+        long target;
+        synchronized (this) {
+          if(closed) {
+            if(!forcedOnClose) {
+              throw new IOException("Writer for " + path +
+                  " was closed before batch " + batch + " was synced");
+            }
+            // close flushed and forced every complete batch
+            synced = appended;
+            return;
+          }
+          if(failed) {
+            throw new IOException("Previous append to " + path + " failed");
+          }
+          dataOutput.flush();
+          target = appended;
+        }
+        try {
+          fileOutput.getChannel().force(false);
+        } catch (ClosedChannelException e) {
+          synchronized (this) {
+            // a roll closed the file, which forced it, while we synced
+            if(!closed) {
+              throw e;
+            }
+          }
+        }
+        counters.incrementAndGet(prefix + "syncs");
+        counters.addAndGet(prefix + "sync.batches", target - synced);
+        counters.addAndGet(prefix + "sync.nanos", System.nanoTime() - start);
+        synced = target;
       }
-      // if this is successful, the events have been
-      // successfully persisted and will be replayed
-      // in the case of a crash
-      dataOutput.writeInt(RECORD_TYPE_COMMIT);
-      flush(false);
     }
 
     synchronized void flush() throws IOException {
       flush(true);
     }
     synchronized void flush(boolean metadata) throws IOException {
+      dataOutput.flush();
       fileOutput.getChannel().force(metadata);
     }
 
@@ -136,15 +237,25 @@ class WALDataFile<T extends Writable> {
       return path;
     }
 
-    public long getSize() {
+    public synchronized long getSize() {
       return dataOutput.size();
     }
 
     @Override
     public synchronized void close() throws IOException {
-      if (dataOutput != null) {
-        flush();
-        dataOutput.close();
+      if (dataOutput != null && !closed) {
+        closed = true;
+        try {
+          dataOutput.flush();
+          if(failed) {
+            // drop the partial batch so only complete batches are forced
+            fileOutput.getChannel().truncate(completeSize);
+          }
+          fileOutput.getChannel().force(true);
+          forcedOnClose = true;
+        } finally {
+          dataOutput.close();
+        }
       }
     }
   }
@@ -99,6 +99,30 @@ public class TestRecoverableMemoryChannel {
     Assert.assertEquals(in, out);
   }
   @Test
+  public void testRestartReplaysInBatches() throws Exception {
+    List<String> in = putEvents(channel, "restart", 10,
+        RecoverableMemoryChannel.DEFAULT_CAPACITY);
+    channel.stop();
+    channel = new RecoverableMemoryChannel();
+    context = new Context();
+    context.put(RecoverableMemoryChannel.WAL_DATA_DIR, dataDir.getAbsolutePath());
+    context.put(RecoverableMemoryChannel.TRANSACTION_CAPACITY, "7");
+    context.put(RecoverableMemoryChannel.KEEPALIVE, "0");
+    Configurables.configure(channel, context);
+    channel.start();
+    // the replayed events hold the capacity of the channel
+    try {
+      putEvents(channel, "full", 1, 1);
+      Assert.fail();
+    } catch (ChannelException e) {
+      Assert.assertEquals("Cannot acquire capacity", e.getMessage());
+    }
+    List<String> out = takeEvents(channel, 1, Integer.MAX_VALUE);
+    Collections.sort(in);
+    Collections.sort(out);
+    Assert.assertEquals(in, out);
+  }
+  @Test
   public void testReconfigure() throws Exception {
     List<String> in = Lists.newArrayList();
     try {
@@ -196,6 +220,48 @@ public class TestRecoverableMemoryChannel {
     Assert.assertEquals("rollback-0-0", new String(event.getBody(), Charsets.UTF_8));
   }
   @Test
+  public void testRollbackReleasesCapacity() throws Exception {
+    // roll back more puts than the channel has capacity for
+    for (int i = 0; i < 2 * RecoverableMemoryChannel.DEFAULT_CAPACITY; i++) {
+      Transaction transaction = channel.getTransaction();
+      transaction.begin();
+      channel.put(EventBuilder.withBody("rollback".getBytes(Charsets.UTF_8)));
+      transaction.rollback();
+      transaction.close();
+    }
+    putEvents(channel, "capacity", 1, 50);
+    Assert.assertEquals(50, takeEvents(channel, 1, 50).size());
+  }
+  @Test
+  public void testFailedPutAllReleasesCapacity() throws Exception {
+    channel.stop();
+    channel = new RecoverableMemoryChannel();
+    context = new Context();
+    context.put(RecoverableMemoryChannel.WAL_DATA_DIR, dataDir.getAbsolutePath());
+    context.put(RecoverableMemoryChannel.TRANSACTION_CAPACITY, "10");
+    Configurables.configure(channel, context);
+    channel.start();
+    List<Event> batch = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      batch.add(EventBuilder.withBody("failed".getBytes(Charsets.UTF_8)));
+    }
+    // fail more batches than the channel has capacity for
+    for (int i = 0; i < 10; i++) {
+      Transaction transaction = channel.getTransaction();
+      transaction.begin();
+      try {
+        channel.putAll(batch);
+        Assert.fail();
+      } catch (ChannelException e) {
+        // the batch exceeds the transaction capacity
+      }
+      transaction.rollback();
+      transaction.close();
+    }
+    putEvents(channel, "capacity", 1, 50);
+    Assert.assertEquals(50, takeEvents(channel, 1, 50).size());
+  }
+  @Test
   public void testPut() throws Exception {
     // should find no items
     int found = takeEvents(channel, 1, 5).size();
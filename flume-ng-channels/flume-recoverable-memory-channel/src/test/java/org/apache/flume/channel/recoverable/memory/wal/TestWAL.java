@@ -28,6 +28,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.flume.CounterGroup;
 import org.apache.flume.channel.recoverable.memory.wal.WAL;
 import org.apache.flume.channel.recoverable.memory.wal.WALEntry;
 import org.apache.flume.channel.recoverable.memory.wal.WALReplayResult;
@@ -128,6 +129,40 @@ public class TestWAL {
     Assert.assertEquals(expected, actual);
   }
 
+  @Test
+  public void testStreamingReplay() throws IOException {
+    long seqid = 0;
+    List<String> expected = Lists.newArrayList();
+    for (int i = 0; i < 250; i++) {
+      String s = Integer.toString(i);
+      wal.writeEntry(new WALEntry<Text>(new Text(s), ++seqid));
+      if (i % 5 == 0) {
+        wal.writeSequenceID(seqid);
+      } else {
+        expected.add(s);
+      }
+    }
+    wal.close();
+    wal = new WAL<Text>(dataDir, Text.class);
+    final List<Integer> batchSizes = Lists.newArrayList();
+    final List<String> actual = Lists.newArrayList();
+    long sequenceID = wal.replay(30, new WALReplayHandler<Text>() {
+      @Override
+      public void replay(List<WALEntry<Text>> entries) {
+        batchSizes.add(entries.size());
+        actual.addAll(toStringList(entries));
+      }
+    });
+    Assert.assertEquals(250, sequenceID);
+    Assert.assertEquals(expected, actual);
+    // 200 entries survive, in full batches but for the last
+    Assert.assertEquals(7, batchSizes.size());
+    for (int i = 0; i < 6; i++) {
+      Assert.assertEquals(30, (int) batchSizes.get(i));
+    }
+    Assert.assertEquals(20, (int) batchSizes.get(6));
+  }
+
   @Test
   public void testReplayNone() throws IOException {
     long seqid = 0;
@@ -199,6 +234,114 @@ public class TestWAL {
     Assert.assertEquals(globalExpected, actual);
   }
 
+  @Test
+  public void testSequenceIDsWrittenAsOneBatch() throws IOException {
+    long seqid = 0;
+    List<String> expected = strings(100);
+    for(String s : expected) {
+      wal.writeEntry(new WALEntry<Text>(new Text(s), ++seqid));
+    }
+    List<Long> sequenceIDs = Lists.newArrayList();
+    for (long i = 1; i <= 50; i++) {
+      sequenceIDs.add(i);
+    }
+    wal.writeSequenceIDs(sequenceIDs);
+    CounterGroup counters = wal.getCounterGroup();
+    Assert.assertEquals(1L, (long) counters.get("seq.syncs"));
+    Assert.assertEquals(1L, (long) counters.get("seq.sync.batches"));
+    Assert.assertEquals(100L, (long) counters.get("data.sync.batches"));
+    wal.close();
+    wal = new WAL<Text>(dataDir, Text.class);
+    WALReplayResult<Text> result = wal.replay();
+    Assert.assertEquals(100, result.getSequenceID());
+    Assert.assertEquals(expected.subList(50, 100),
+        toStringList(result.getResults()));
+  }
+
+  @Test
+  public void testGroupCommit() throws IOException, InterruptedException {
+    int numThreads = 10;
+    final int numBatches = 100;
+    final CountDownLatch startLatch = new CountDownLatch(numThreads);
+    final CountDownLatch stopLatch = new CountDownLatch(numThreads);
+    final AtomicLong seqid = new AtomicLong(0);
+    final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+    for (int i = 0; i < numThreads; i++) {
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          try {
+            startLatch.countDown();
+            startLatch.await();
+            for (int j = 0; j < numBatches; j++) {
+              long id = seqid.incrementAndGet();
+              wal.writeEntry(new WALEntry<Text>(new Text(Long.toString(id)),
+                  id));
+            }
+          } catch (Exception e) {
+            logger.warn("Error doing appends", e);
+            errors.add(e);
+          } finally {
+            stopLatch.countDown();
+          }
+        }
+      };
+      t.setDaemon(true);
+      t.start();
+    }
+    Assert.assertTrue(stopLatch.await(30, TimeUnit.SECONDS));
+    Assert.assertEquals(Collections.EMPTY_LIST, errors);
+    // every batch was covered by exactly one sync, and no sync
+    // happened without a batch to cover
+    CounterGroup counters = wal.getCounterGroup();
+    long syncs = counters.get("data.syncs");
+    Assert.assertEquals(numThreads * numBatches,
+        (long) counters.get("data.sync.batches"));
+    Assert.assertTrue(syncs > 0);
+    Assert.assertTrue(syncs <= numThreads * numBatches);
+    logger.info("Group commit: " + counters);
+    wal.close();
+    wal = new WAL<Text>(dataDir, Text.class);
+    WALReplayResult<Text> result = wal.replay();
+    Assert.assertEquals(numThreads * numBatches, result.getSequenceID());
+    Assert.assertEquals(numThreads * numBatches, result.getResults().size());
+  }
+
+  /**
+   * A batch whose append fails must not leave a partial batch behind,
+   * and close must still force the complete batches before it
+   */
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testCloseAfterFailedAppend() throws IOException {
+    File file = new File(dataDir, "failed-append");
+    WALDataFile.Writer<Text> writer = new WALDataFile.Writer<Text>(file);
+    writer.append(Lists.newArrayList(new WALEntry<Text>(new Text("a"), 1)));
+    Text failing = new Text("b") {
+      @Override
+      public void write(java.io.DataOutput out) throws IOException {
+        out.writeInt(1);
+        throw new IOException("Expected");
+      }
+    };
+    try {
+      writer.append(Lists.newArrayList(new WALEntry<Text>(failing, 2)));
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertEquals("Expected", e.getMessage());
+    }
+    writer.close();
+    WALDataFile.Reader<Text> reader =
+        new WALDataFile.Reader<Text>(file, Text.class);
+    try {
+      List<WALEntry<Text>> batch = reader.nextBatch();
+      Assert.assertEquals(Lists.newArrayList("a"), toStringList(batch));
+      Assert.assertNull(reader.nextBatch());
+    } finally {
+      reader.close();
+    }
+  }
+
   @Test(expected=IOException.class)
   public void testInvalidReadClass() throws IOException {
     wal.writeEntry(new WALEntry<Text>(new Text(""), 1));
@@ -52,7 +52,33 @@ public class ChannelConfiguration extends ComponentConfiguration {
      * Recoverable Memory Channel
      * @see org.apache.flume.channel.recoverable.memory.RecoverableMemoryChannel
      */
-    RECOVERABLEMEMORY("org.apache.flume.conf.channel.RecoverableMemoryChannelConfiguration");
+    RECOVERABLEMEMORY("org.apache.flume.conf.channel.RecoverableMemoryChannelConfiguration"),
+
+    //Just basic validation for the memory channel variants from here on
+    //as well. This should be updated when their config stubs are added.
+    /**
+     * Ring buffer memory channel
+     * @see org.apache.flume.channel.RingBufferMemoryChannel
+     */
+    RINGBUFFERMEMORY("org.apache.flume.conf.channel.RingBufferMemoryChannelConfiguration"),
+
+    /**
+     * Off heap memory channel
+     * @see org.apache.flume.channel.OffHeapMemoryChannel
+     */
+    OFFHEAPMEMORY("org.apache.flume.conf.channel.OffHeapMemoryChannelConfiguration"),
+
+    /**
+     * Memory channel spilling to disk
+     * @see org.apache.flume.channel.file.SpillableMemoryChannel
+     */
+    SPILLABLEMEMORY("org.apache.flume.conf.channel.SpillableMemoryChannelConfiguration"),
+
+    /**
+     * Memory channel with several lanes
+     * @see org.apache.flume.channel.PartitionedMemoryChannel
+     */
+    PARTITIONEDMEMORY("org.apache.flume.conf.channel.PartitionedMemoryChannelConfiguration");
 
     private String channelConfigurationType;
 
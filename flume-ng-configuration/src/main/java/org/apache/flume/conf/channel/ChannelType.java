@@ -52,7 +52,36 @@ public enum ChannelType {
    * @see org.apache.flume.channel.recoverable.memory.RecoverableMemoryChannel
    */
   RECOVERABLEMEMORY(
-      "org.apache.flume.channel.recoverable.memory.RecoverableMemoryChannel");
+      "org.apache.flume.channel.recoverable.memory.RecoverableMemoryChannel"),
+
+  /**
+   * Memory channel backed by a ring buffer
+   *
+   * @see org.apache.flume.channel.RingBufferMemoryChannel
+   */
+  RINGBUFFERMEMORY("org.apache.flume.channel.RingBufferMemoryChannel"),
+
+  /**
+   * Memory channel which keeps its events in direct memory
+   *
+   * @see org.apache.flume.channel.OffHeapMemoryChannel
+   */
+  OFFHEAPMEMORY("org.apache.flume.channel.OffHeapMemoryChannel"),
+
+  /**
+   * Memory channel which spills to disk when full, provided by the file
+   * channel
+   *
+   * @see org.apache.flume.channel.file.SpillableMemoryChannel
+   */
+  SPILLABLEMEMORY("org.apache.flume.channel.file.SpillableMemoryChannel"),
+
+  /**
+   * Memory channel which queues events in several lanes
+   *
+   * @see org.apache.flume.channel.PartitionedMemoryChannel
+   */
+  PARTITIONEDMEMORY("org.apache.flume.channel.PartitionedMemoryChannel");
 
   private final String channelClassName;
 
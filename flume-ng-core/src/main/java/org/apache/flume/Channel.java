@@ -17,6 +17,8 @@
  */
 package org.apache.flume;
 
+import java.util.List;
+
 import org.apache.flume.lifecycle.LifecycleAware;
 
 /**
@@ -78,6 +80,36 @@ public interface Channel extends LifecycleAware, NamedComponent {
    */
   public Event take() throws ChannelException;
 
+  /**
+   * <p>Puts the given events into the channel, as calling
+   * {@link #put(Event)} for each of them would, but letting the channel
+   * acquire its locks and capacity once for the whole batch.</p>
+   * <p><strong>Note</strong>: This method must be invoked within an active
+   * {@link Transaction} boundary. Failure to do so can lead to unpredictable
+   * results.</p>
+   * @param events the events to transport.
+   * @throws ChannelException in case this operation fails.
+   * @see org.apache.flume.Transaction#begin()
+   */
+  public void putAll(List<Event> events) throws ChannelException;
+
+  /**
+   * <p>Takes up to max events from the channel, adding them to the given
+   * list. Waits, as {@link #take()} does, only for the first event: if
+   * fewer than max events are available those which are available are
+   * taken. If the channel does not have any events available no events
+   * are added and {@code 0} is returned.</p>
+   * <p><strong>Note</strong>: This method must be invoked within an active
+   * {@link Transaction} boundary. Failure to do so can lead to unpredictable
+   * results.</p>
+   * @param max the maximum number of events to take.
+   * @param events the list the events taken are added to.
+   * @return the number of events taken.
+   * @throws ChannelException in case this operation fails.
+   * @see org.apache.flume.Transaction#begin()
+   */
+  public int take(int max, List<Event> events) throws ChannelException;
+
   /**
    * @return the transaction instance associated with this channel.
    */
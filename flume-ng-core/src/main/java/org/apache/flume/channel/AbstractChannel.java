@@ -18,8 +18,12 @@
  */
 package org.apache.flume.channel;
 
+import java.util.List;
+
 import org.apache.flume.Channel;
+import org.apache.flume.ChannelException;
 import org.apache.flume.Context;
+import org.apache.flume.Event;
 import org.apache.flume.conf.Configurable;
 import org.apache.flume.lifecycle.LifecycleAware;
 import org.apache.flume.lifecycle.LifecycleState;
@@ -60,6 +64,35 @@ public abstract class AbstractChannel
     return name;
   }
 
+  /**
+   * Puts each of the events in turn, for channels which have no cheaper
+   * way of putting a batch
+   */
+  @Override
+  public void putAll(List<Event> events) throws ChannelException {
+    for (Event event : events) {
+      put(event);
+    }
+  }
+
+  /**
+   * Takes events in turn until max have been taken or the channel is
+   * empty, for channels which have no cheaper way of taking a batch
+   */
+  @Override
+  public int take(int max, List<Event> events) throws ChannelException {
+    int taken = 0;
+    while(taken < max) {
+      Event event = take();
+      if(event == null) {
+        break;
+      }
+      events.add(event);
+      taken++;
+    }
+    return taken;
+  }
+
   @Override
   public void configure(Context context) {
 
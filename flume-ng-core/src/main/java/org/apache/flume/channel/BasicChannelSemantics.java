@@ -19,6 +19,8 @@
 
 package org.apache.flume.channel;
 
+import java.util.List;
+
 import org.apache.flume.Channel;
 import org.apache.flume.ChannelException;
 import org.apache.flume.Event;
@@ -56,7 +58,9 @@ public abstract class BasicChannelSemantics extends AbstractChannel {
    * extend {@link BasicTransactionSemantics}.  Each object is used
    * for only one transaction, but is stored in a thread-local and
    * retrieved by <code>getTransaction</code> for the duration of that
-   * transaction.
+   * transaction.  Channels may instead return the closed transaction of
+   * the calling thread after {@link BasicTransactionSemantics#reset()
+   * resetting} it, to avoid allocating one per transaction.
    * </p>
    */
   protected abstract BasicTransactionSemantics createTransaction();
@@ -91,6 +95,36 @@ public abstract class BasicChannelSemantics extends AbstractChannel {
     return transaction.take();
   }
 
+  /**
+   * <p>
+   * Ensures that a transaction exists for this thread and then
+   * delegates the <code>putAll</code> to the thread's {@link
+   * BasicTransactionSemantics} instance.
+   * </p>
+   */
+  @Override
+  public void putAll(List<Event> events) throws ChannelException {
+    BasicTransactionSemantics transaction = currentTransaction.get();
+    Preconditions.checkState(transaction != null,
+        "No transaction exists for this thread");
+    transaction.putAll(events);
+  }
+
+  /**
+   * <p>
+   * Ensures that a transaction exists for this thread and then
+   * delegates the batch <code>take</code> to the thread's {@link
+   * BasicTransactionSemantics} instance.
+   * </p>
+   */
+  @Override
+  public int take(int max, List<Event> events) throws ChannelException {
+    BasicTransactionSemantics transaction = currentTransaction.get();
+    Preconditions.checkState(transaction != null,
+        "No transaction exists for this thread");
+    return transaction.take(max, events);
+  }
+
   /**
    * <p>
    * Initializes the channel if it is not already, then checks to see
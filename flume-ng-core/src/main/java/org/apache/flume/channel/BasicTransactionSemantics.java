@@ -19,6 +19,8 @@
 
 package org.apache.flume.channel;
 
+import java.util.List;
+
 import org.apache.flume.Channel;
 import org.apache.flume.ChannelException;
 import org.apache.flume.Event;
@@ -70,6 +72,38 @@ public abstract class BasicTransactionSemantics implements Transaction {
   protected abstract void doRollback() throws InterruptedException;
   protected void doClose() {}
 
+  /**
+   * Put a batch of events, by default by calling {@link #doPut(Event)}
+   * for each. Transactions which can acquire their locks and capacity
+   * once for the batch override this.
+   */
+  protected void doPutAll(List<Event> events) throws InterruptedException {
+    for (Event event : events) {
+      doPut(event);
+    }
+  }
+
+  /**
+   * Take up to max events, adding them to events, by default by calling
+   * {@link #doTake()} until it returns null. Transactions which can
+   * acquire their locks and capacity once for the batch override this,
+   * waiting only for the first event.
+   * @return the number of events taken
+   */
+  protected int doTake(int max, List<Event> events)
+      throws InterruptedException {
+    int taken = 0;
+    while(taken < max) {
+      Event event = doTake();
+      if(event == null) {
+        break;
+      }
+      events.add(event);
+      taken++;
+    }
+    return taken;
+  }
+
   protected BasicTransactionSemantics() {
     state = State.NEW;
     initialThreadId = Thread.currentThread().getId();
@@ -117,6 +151,79 @@ public abstract class BasicTransactionSemantics implements Transaction {
     }
   }
 
+  /**
+   * <p>
+   * The method to which {@link BasicChannelSemantics} delegates calls
+   * to <code>putAll</code>.
+   * </p>
+   */
+  protected void putAll(List<Event> events) {
+    Preconditions.checkState(Thread.currentThread().getId() == initialThreadId,
+        "putAll() called from different thread than getTransaction()!");
+    Preconditions.checkState(state.equals(State.OPEN),
+        "putAll() called when transaction is %s!", state);
+    Preconditions.checkArgument(events != null,
+        "putAll() called with null events!");
+    for (Event event : events) {
+      Preconditions.checkArgument(event != null,
+          "putAll() called with null event!");
+    }
+    if(events.isEmpty()) {
+      return;
+    }
+
+    try {
+      doPutAll(events);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ChannelException(e.toString(), e);
+    }
+  }
+
+  /**
+   * <p>
+   * The method to which {@link BasicChannelSemantics} delegates batch
+   * calls to <code>take</code>.
+   * </p>
+   */
+  protected int take(int max, List<Event> events) {
+    Preconditions.checkState(Thread.currentThread().getId() == initialThreadId,
+        "take() called from different thread than getTransaction()!");
+    Preconditions.checkState(state.equals(State.OPEN),
+        "take() called when transaction is %s!", state);
+    Preconditions.checkArgument(max >= 0,
+        "take() called with negative max %s!", max);
+    if(max == 0) {
+      return 0;
+    }
+
+    int size = events.size();
+    try {
+      return doTake(max, events);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return events.size() - size;
+    }
+  }
+
+  /**
+   * <p>
+   * Returns a closed transaction to the NEW state, so that the thread
+   * which created it can use it for its next transaction rather than
+   * {@link BasicChannelSemantics#createTransaction()} creating a new
+   * one. Subclasses which are reused this way clear their own state
+   * before calling it.
+   * </p>
+   */
+  protected void reset() {
+    Preconditions.checkState(Thread.currentThread().getId() == initialThreadId,
+        "reset() called from different thread than getTransaction()!");
+    Preconditions.checkState(state.equals(State.CLOSED),
+        "reset() called when transaction is %s!", state);
+
+    state = State.NEW;
+  }
+
   /**
    * @return the current state of the transaction
    */
@@ -183,9 +183,7 @@ public class ChannelProcessor implements Configurable {
 
         List<Event> batch = reqChannelQueue.get(reqChannel);
 
-        for (Event event : batch) {
-          reqChannel.put(event);
-        }
+        reqChannel.putAll(batch);
 
         tx.commit();
       } catch (ChannelException ex) {
@@ -207,9 +205,7 @@ public class ChannelProcessor implements Configurable {
 
         List<Event> batch = optChannelQueue.get(optChannel);
 
-        for (Event event : batch ) {
-          optChannel.put(event);
-        }
+        optChannel.putAll(batch);
 
         tx.commit();
       } catch (ChannelException ex) {
@@ -17,9 +17,13 @@
  */
 package org.apache.flume.channel;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -31,33 +35,98 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 
+/**
+ * A channel which keeps its events in an in-memory queue. It is
+ * configured with:
+ * <ul>
+ * <li><tt>capacity</tt>, the events the queue holds, 100 by default</li>
+ * <li><tt>transactionCapacity</tt>, the puts or takes of a transaction,
+ * 100 by default</li>
+ * <li><tt>keep-alive</tt>, the seconds a put commit waits for space or
+ * a take waits for an event, 3 by default</li>
+ * <li><tt>byteCapacity</tt>, the estimated bytes the queued events and
+ * the uncommitted takes may use, by default 80% of the maximum heap</li>
+ * <li><tt>byteCapacityHeaderOverhead</tt>, the bytes added to the
+ * estimate for each header, 32 by default</li>
+ * </ul>
+ * The estimate of an event is the bytes of its body, the UTF-8 bytes of
+ * its header keys and values, and the overhead of each header. It is not
+ * the heap the event uses, which depends on the event implementation,
+ * so byteCapacity should be left well below the heap. As byteCapacity
+ * defaults to a bound, a configuration without it rejects commits once
+ * the events reach it. When the maximum heap is above 2GB the bytes are
+ * counted in units of more than one byte, which each commit rounds its
+ * net bytes up to, rather than each event.
+ */
 public class MemoryChannel extends BasicChannelSemantics {
   private static Logger LOGGER = LoggerFactory.getLogger(MemoryChannel.class);
   private static final Integer defaultCapacity = 100;
   private static final Integer defaultTransCapacity = 100;
   private static final Integer defaultKeepAlive = 3;
+  private static final Integer defaultByteCapacityHeaderOverhead = 32;
+  // percentage of the maximum heap used when no byteCapacity is set
+  private static final long defaultByteCapacityHeapPercentage = 80;
 
+  /**
+   * A transaction of the channel, reused by the thread which created it
+   * for each of its transactions. As it is confined to that thread its
+   * lists are plain arrays, which keep their size once grown.
+   */
   public class MemoryTransaction extends BasicTransactionSemantics {
-    private LinkedBlockingDeque<Event> takeList;
-    private LinkedBlockingDeque<Event> putList;
+    private int transCapacity;
+    private final ArrayList<Event> takeList;
+    private final ArrayList<Event> putList;
+    // estimated bytes of the events in putList and takeList
+    private long putBytes;
+    private long takeBytes;
 
     public MemoryTransaction(int transCapacity) {
-      putList = new LinkedBlockingDeque<Event>(transCapacity);
-      takeList = new LinkedBlockingDeque<Event>(transCapacity);
+      this.transCapacity = transCapacity;
+      putList = new ArrayList<Event>();
+      takeList = new ArrayList<Event>();
+    }
+
+    /**
+     * Prepare the closed transaction for the next transaction of its
+     * thread, with the current transactionCapacity of the channel
+     */
+    private void reset(int transCapacity) {
+      this.transCapacity = transCapacity;
+      putList.clear();
+      takeList.clear();
+      putBytes = 0;
+      takeBytes = 0;
+      reset();
     }
 
     @Override
     protected void doPut(Event event) {
-      if(!putList.offer(event)) {
+      if(putList.size() >= transCapacity) {
         throw new ChannelException("Put queue for MemoryTransaction of capacity " +
             putList.size() + " full, consider committing more frequently, " +
             "increasing capacity or increasing thread count");
       }
+      putList.add(event);
+      putBytes += estimateBytes(event);
+    }
+
+    @Override
+    protected void doPutAll(List<Event> events) {
+      if(transCapacity - putList.size() < events.size()) {
+        throw new ChannelException("Put queue for MemoryTransaction of capacity " +
+            transCapacity + " can't hold " + events.size() + " more events, " +
+            "consider committing more frequently, increasing capacity or " +
+            "increasing thread count");
+      }
+      for (Event event : events) {
+        putList.add(event);
+        putBytes += estimateBytes(event);
+      }
     }
 
     @Override
     protected Event doTake() throws InterruptedException {
-      if(takeList.remainingCapacity() == 0) {
+      if(takeList.size() >= transCapacity) {
         throw new ChannelException("Take list for MemoryTransaction, capacity " +
             takeList.size() + " full, consider committing more frequently, " +
             "increasing capacity, or increasing thread count");
@@ -71,11 +140,47 @@ public class MemoryChannel extends BasicChannelSemantics {
       }
       Preconditions.checkNotNull(event, "Queue.poll returned NULL despite semaphore " +
           "signalling existence of entry");
-      takeList.put(event);
+      takeList.add(event);
+      takeBytes += estimateBytes(event);
 
       return event;
     }
 
+    @Override
+    protected int doTake(int max, List<Event> events)
+        throws InterruptedException {
+      if(takeList.size() >= transCapacity) {
+        throw new ChannelException("Take list for MemoryTransaction, capacity " +
+            takeList.size() + " full, consider committing more frequently, " +
+            "increasing capacity, or increasing thread count");
+      }
+      // take no more than the transaction has room for
+      max = Math.min(max, transCapacity - takeList.size());
+      if(!queueStored.tryAcquire(keepAlive, TimeUnit.SECONDS)) {
+        return 0;
+      }
+      // only wait for the first event, then take whatever else is stored
+      int permits = 1;
+      int available = Math.min(max - 1, queueStored.availablePermits());
+      if(available > 0 && queueStored.tryAcquire(available)) {
+        permits += available;
+      }
+      int size = events.size();
+      synchronized(queueLock) {
+        for (int index = 0; index < permits; index++) {
+          Event event = queue.poll();
+          Preconditions.checkNotNull(event, "Queue.poll returned NULL despite " +
+              "semaphore signalling existence of entry");
+          events.add(event);
+        }
+      }
+      for (Event event : events.subList(size, size + permits)) {
+        takeList.add(event);
+        takeBytes += estimateBytes(event);
+      }
+      return permits;
+    }
+
     @Override
     protected void doCommit() throws InterruptedException {
       int remainingChange = takeList.size() - putList.size();
@@ -85,13 +190,22 @@ public class MemoryChannel extends BasicChannelSemantics {
               " Sinks are likely not keeping up with sources, or the buffer size is too tight");
         }
       }
+      long bytesChange = putBytes - takeBytes;
+      if(bytesChange > 0) {
+        if(!acquireBytes(bytesChange)) {
+          if(remainingChange < 0) {
+            queueRemaining.release(-remainingChange);
+          }
+          throw new ChannelException("Space for commit to queue couldn't be acquired" +
+              " as the byteCapacity of the channel is used up. Sinks are likely not" +
+              " keeping up with sources, or the byteCapacity is too tight");
+        }
+      }
       int puts = putList.size();
       synchronized(queueLock) {
-        if(puts > 0 ) {
-          while(!putList.isEmpty()) {
-            if(!queue.offer(putList.removeFirst())) {
-              throw new RuntimeException("Queue add failed, this shouldn't be able to happen");
-            }
+        for (int index = 0; index < puts; index++) {
+          if(!queue.offer(putList.get(index))) {
+            throw new RuntimeException("Queue add failed, this shouldn't be able to happen");
           }
         }
         putList.clear();
@@ -101,7 +215,11 @@ public class MemoryChannel extends BasicChannelSemantics {
       if(remainingChange > 0) {
         queueRemaining.release(remainingChange);
       }
-
+      if(bytesChange < 0) {
+        releaseBytes(-bytesChange);
+      }
+      putBytes = 0;
+      takeBytes = 0;
     }
 
     @Override
@@ -110,12 +228,16 @@ public class MemoryChannel extends BasicChannelSemantics {
       synchronized(queueLock) {
         Preconditions.checkState(queue.remainingCapacity() >= takeList.size(), "Not enough space in memory channel " +
             "queue to rollback takes. This should never happen, please report");
-        while(!takeList.isEmpty()) {
-          queue.addFirst(takeList.removeLast());
+        for (int index = takes - 1; index >= 0; index--) {
+          queue.addFirst(takeList.get(index));
         }
+        takeList.clear();
         putList.clear();
       }
       queueStored.release(takes);
+      // the takes are queued again so keep holding their bytes
+      putBytes = 0;
+      takeBytes = 0;
     }
 
   }
@@ -136,8 +258,23 @@ public class MemoryChannel extends BasicChannelSemantics {
   // by using this we can block for a while to get data without locking all other threads out
   // like we would if we tried to use a blocking call on queue
   private Semaphore queueStored;
+  // estimated bytes remaining in the queue, in permits of byteUnit bytes,
+  // with the bytes of all uncommitted takeLists deducted as for
+  // queueRemaining
+  private Semaphore bytesRemaining;
+  // bytes of the permits acquired from bytesRemaining which no event
+  // uses, as commits round their bytes up to whole permits, always zero
+  // when byteUnit is one
+  private final AtomicLong byteSlack = new AtomicLong();
+  private volatile int bytePermits;
+  // bytes per permit, one unless the heap is too large to count in bytes
+  private long byteUnit;
+  private volatile int byteCapacityHeaderOverhead;
   // maximum items in a transaction queue
   private volatile Integer transCapacity;
+  // transaction of each thread, reused once it is closed
+  private final ThreadLocal<MemoryTransaction> transactions =
+      new ThreadLocal<MemoryTransaction>();
   private volatile int keepAlive;
 
 
@@ -179,9 +316,33 @@ public class MemoryChannel extends BasicChannelSemantics {
       keepAlive = Integer.parseInt(strKeepAlive);
     }
 
+    Integer headerOverhead = context.getInteger("byteCapacityHeaderOverhead",
+        defaultByteCapacityHeaderOverhead);
+    Preconditions.checkState(headerOverhead >= 0,
+        "byteCapacityHeaderOverhead must not be negative");
+    if(queue == null) {
+      byteCapacityHeaderOverhead = headerOverhead;
+    } else if(headerOverhead != byteCapacityHeaderOverhead) {
+      // queued events were estimated with the old overhead
+      LOGGER.warn("byteCapacityHeaderOverhead can't be changed once the " +
+          "channel is configured, keeping " + byteCapacityHeaderOverhead);
+    }
+
+    long maxMemory = Runtime.getRuntime().maxMemory();
+    if(byteUnit == 0) {
+      byteUnit = Math.max(1L, (maxMemory - 1) / Integer.MAX_VALUE + 1);
+    }
+    Long byteCapacity = context.getLong("byteCapacity");
+    if(byteCapacity == null) {
+      byteCapacity = maxMemory / 100 * defaultByteCapacityHeapPercentage;
+    }
+    Preconditions.checkState(byteCapacity > 0, "byteCapacity must be positive");
+    int permits = (int) Math.min(Integer.MAX_VALUE, byteCapacity / byteUnit);
+
     if(queue != null) {
       try {
         resizeQueue(capacity);
+        resizeBytes(permits);
       } catch (InterruptedException e) {
         Thread.currentThread().interrupt();
       }
@@ -190,6 +351,8 @@ public class MemoryChannel extends BasicChannelSemantics {
         queue = new LinkedBlockingDeque<Event>(capacity);
         queueRemaining = new Semaphore(capacity);
         queueStored = new Semaphore(0);
+        bytesRemaining = new Semaphore(permits);
+        bytePermits = permits;
       }
     }
   }
@@ -222,8 +385,133 @@ public class MemoryChannel extends BasicChannelSemantics {
     }
   }
 
+  private void resizeBytes(int permits) throws InterruptedException {
+    int oldPermits = bytePermits;
+    if(oldPermits == permits) {
+      return;
+    } else if(oldPermits > permits) {
+      if(!bytesRemaining.tryAcquire(oldPermits - permits, keepAlive, TimeUnit.SECONDS)) {
+        LOGGER.warn("Couldn't acquire permits to downsize the byteCapacity, resizing has been aborted");
+      } else {
+        bytePermits = permits;
+      }
+    } else {
+      bytePermits = permits;
+      bytesRemaining.release(permits - oldPermits);
+    }
+  }
+
+  /**
+   * Acquire the permits of bytes from {@link #bytesRemaining}, using the
+   * slack first and adding the rest of the last permit to it
+   * @return false if the permits couldn't be acquired within keep-alive
+   */
+  private boolean acquireBytes(long bytes) throws InterruptedException {
+    long slack;
+    long used;
+    do {
+      slack = byteSlack.get();
+      used = Math.min(slack, bytes);
+    } while(!byteSlack.compareAndSet(slack, slack - used));
+    long needed = bytes - used;
+    long permits = (needed + byteUnit - 1) / byteUnit;
+    boolean acquired = false;
+    try {
+      acquired = permits == 0 || bytesRemaining.tryAcquire((int) permits,
+          keepAlive, TimeUnit.SECONDS);
+    } finally {
+      // give back the slack used if the permits were not acquired
+      byteSlack.addAndGet(acquired ? permits * byteUnit - needed : used);
+    }
+    return acquired;
+  }
+
+  /**
+   * Release bytes to {@link #bytesRemaining} as whole permits, keeping
+   * the rest of the last permit as slack
+   */
+  private void releaseBytes(long bytes) {
+    long slack = byteSlack.addAndGet(bytes);
+    while(slack >= byteUnit) {
+      long permits = slack / byteUnit;
+      if(byteSlack.compareAndSet(slack, slack - permits * byteUnit)) {
+        bytesRemaining.release((int) permits);
+        return;
+      }
+      slack = byteSlack.get();
+    }
+  }
+
+  /**
+   * Estimate the heap used by an event as the bytes of its body, plus
+   * the UTF-8 bytes of each header key and value and the configured
+   * overhead of each header.
+   */
+  private long estimateBytes(Event event) {
+    long bytes = 0;
+    byte[] body = event.getBody();
+    if(body != null) {
+      bytes += body.length;
+    }
+    Map<String, String> headers = event.getHeaders();
+    if(headers != null) {
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        bytes += byteCapacityHeaderOverhead;
+        if(header.getKey() != null) {
+          bytes += utf8Length(header.getKey());
+        }
+        if(header.getValue() != null) {
+          bytes += utf8Length(header.getValue());
+        }
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the length of the UTF-8 encoding of value, without encoding it
+   */
+  private static int utf8Length(String value) {
+    int chars = value.length();
+    int length = chars;
+    for (int index = 0; index < chars; index++) {
+      char c = value.charAt(index);
+      if(c >= 0x800) {
+        // three bytes, or four for the two chars of a surrogate pair
+        length += c >= Character.MIN_SURROGATE &&
+            c <= Character.MAX_SURROGATE ? 1 : 2;
+      } else if(c >= 0x80) {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * @return the estimated bytes of the events queued or taken by
+   * uncommitted transactions, a gauge of how full the byteCapacity is
+   */
+  public long getByteUsage() {
+    return (long) (bytePermits - bytesRemaining.availablePermits()) * byteUnit
+        - byteSlack.get();
+  }
+
+  /**
+   * @return the estimated bytes the channel can hold
+   */
+  public long getByteCapacity() {
+    return (long) bytePermits * byteUnit;
+  }
+
   @Override
   protected BasicTransactionSemantics createTransaction() {
-    return new MemoryTransaction(transCapacity);
+    MemoryTransaction transaction = transactions.get();
+    if(transaction == null) {
+      transaction = new MemoryTransaction(transCapacity);
+      transactions.set(transaction);
+    } else {
+      transaction.reset(transCapacity);
+    }
+    return transaction;
   }
 }
@@ -0,0 +1,636 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.tools.DirectMemoryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * A memory channel which keeps its events out of the heap. Puts are
+ * serialized when they are put and written into large direct memory
+ * slabs when they are committed, so the heap only holds a queue of
+ * pointers to them. An event is deserialized when it is taken. Slabs are
+ * filled in order and each is reclaimed once the takes of all its events
+ * have committed, which with a FIFO queue frees them in the order they
+ * were filled. A commit which has to wait for slab space releases its own
+ * takes first, keeping a heap copy of them in case its puts still don't
+ * fit, in which case a rollback returns the copies ahead of the queue.
+ *
+ * Besides the capacity, transactionCapacity and keep-alive of
+ * {@link MemoryChannel} it is configured with:
+ * <ul>
+ * <li><tt>byteCapacity</tt>, the direct memory the slabs may use, by
+ * default 80% of the maximum direct memory</li>
+ * <li><tt>slabSize</tt>, the bytes of each slab, 16MB by default, which
+ * bounds the size of an event and must not exceed the byteCapacity</li>
+ * </ul>
+ * These and the capacity can't be changed once the channel is
+ * configured.
+ */
+public class OffHeapMemoryChannel extends BasicChannelSemantics {
+  private static Logger LOGGER =
+      LoggerFactory.getLogger(OffHeapMemoryChannel.class);
+  private static final Integer defaultCapacity = 100;
+  private static final Integer defaultTransCapacity = 100;
+  private static final Integer defaultKeepAlive = 3;
+  private static final Integer defaultSlabSize = 16 * 1024 * 1024;
+  // percentage of the maximum direct memory used when no byteCapacity
+  // is set
+  private static final long defaultByteCapacityPercentage = 80;
+  // bytes of the length which precedes each event in a slab
+  private static final int RECORD_HEADER_SIZE = 4;
+  // reclaimed slabs kept for reuse rather than freed
+  private static final int SPARE_SLABS = 1;
+  // the take was of a returned event, which is not in a slab
+  private static final long NO_POINTER = -1L;
+
+  public class OffHeapTransaction extends BasicTransactionSemantics {
+    private final int transCapacity;
+    // serialized puts, each ending at its putEnds
+    private final EncodingBuffer putBuffer;
+    private final int[] putEnds;
+    private final long[] putPointers;
+    private int putCount;
+    private final long[] takePointers;
+    // heap copies of the takes which are not in a slab
+    private final byte[][] takeRecords;
+    private int takeCount;
+    private byte[] scratch;
+
+    public OffHeapTransaction(int transCapacity) {
+      this.transCapacity = transCapacity;
+      putBuffer = new EncodingBuffer();
+      putEnds = new int[transCapacity];
+      putPointers = new long[transCapacity];
+      takePointers = new long[transCapacity];
+      takeRecords = new byte[transCapacity][];
+      scratch = new byte[64];
+    }
+
+    @Override
+    protected void doPut(Event event) {
+      if(putCount == transCapacity) {
+        throw new ChannelException("Put queue for OffHeapTransaction of " +
+            "capacity " + transCapacity + " full, consider committing more " +
+            "frequently, increasing capacity or increasing thread count");
+      }
+      int start = putBuffer.size();
+      encode(event, putBuffer);
+      int length = putBuffer.size() - start;
+      if(length > slabSize - RECORD_HEADER_SIZE) {
+        putBuffer.truncate(start);
+        throw new ChannelException("Event of " + length + " bytes is " +
+            "larger than the slabSize " + slabSize);
+      }
+      putEnds[putCount++] = putBuffer.size();
+    }
+
+    @Override
+    protected Event doTake() throws InterruptedException {
+      if(takeCount == transCapacity) {
+        throw new ChannelException("Take list for OffHeapTransaction, " +
+            "capacity " + transCapacity + " full, consider committing more " +
+            "frequently, increasing capacity, or increasing thread count");
+      }
+      if(!queueStored.tryAcquire(keepAlive, TimeUnit.SECONDS)) {
+        return null;
+      }
+      long pointer = NO_POINTER;
+      Slab slab = null;
+      byte[] record;
+      synchronized(queueLock) {
+        record = returned.pollFirst();
+        if(record == null) {
+          pointer = removeFirst();
+          slab = slabs[slabIndex(pointer)];
+        }
+      }
+      takePointers[takeCount] = pointer;
+      takeRecords[takeCount++] = record;
+      if(record != null) {
+        return decode(ByteBuffer.wrap(record));
+      }
+      // the slab is not reclaimed until this take commits, and other
+      // threads only write after the event, so it can be read unlocked
+      ByteBuffer view = slab.buffer.duplicate();
+      view.position(slabOffset(pointer) + RECORD_HEADER_SIZE);
+      return decode(view);
+    }
+
+    @Override
+    protected void doCommit() throws InterruptedException {
+      int remainingChange = takeCount - putCount;
+      if(remainingChange < 0) {
+        if(!queueRemaining.tryAcquire(-remainingChange, keepAlive, TimeUnit.SECONDS)) {
+          throw new ChannelException("Space for commit to queue couldn't be" +
+              " acquired Sinks are likely not keeping up with sources, or the" +
+              " buffer size is too tight");
+        }
+      }
+      boolean committed = false;
+      try {
+        synchronized(queueLock) {
+          long deadline = System.nanoTime() +
+              TimeUnit.SECONDS.toNanos(keepAlive);
+          boolean takesReleased = false;
+          int appended = 0;
+          try {
+            appended = appendPuts(0,
+                takeCount > 0 ? System.nanoTime() : deadline);
+            if(appended < putCount && takeCount > 0) {
+              // the space may be held by this transaction's own takes
+              releaseTakes();
+              takesReleased = true;
+              appended = appendPuts(appended, deadline);
+            }
+          } finally {
+            if(appended < putCount) {
+              for (int index = 0; index < appended; index++) {
+                release(putPointers[index]);
+              }
+            }
+          }
+          if(appended < putCount) {
+            throw new ChannelException("Space for commit to slabs " +
+                "couldn't be acquired, Sinks are likely not keeping up " +
+                "with sources, or the byteCapacity is too tight");
+          }
+          for (int index = 0; index < putCount; index++) {
+            addLast(putPointers[index]);
+          }
+          if(!takesReleased) {
+            releaseTakes();
+          }
+        }
+        committed = true;
+      } finally {
+        if(!committed && remainingChange < 0) {
+          queueRemaining.release(-remainingChange);
+        }
+      }
+      queueStored.release(putCount);
+      if(remainingChange > 0) {
+        queueRemaining.release(remainingChange);
+      }
+      putBuffer.truncate(0);
+      putCount = 0;
+      clearTakes();
+    }
+
+    @Override
+    protected void doRollback() {
+      synchronized(queueLock) {
+        // returned takes were taken before those from the slabs
+        for (int index = takeCount - 1; index >= 0; index--) {
+          if(takeRecords[index] == null) {
+            addFirst(takePointers[index]);
+          } else {
+            returned.addFirst(takeRecords[index]);
+          }
+        }
+      }
+      queueStored.release(takeCount);
+      putBuffer.truncate(0);
+      putCount = 0;
+      clearTakes();
+    }
+
+    /**
+     * Append the puts from the given one on, waiting until the deadline
+     * for slab space.
+     * @return the index of the first put which could not be appended, or
+     * putCount if all were
+     */
+    @GuardedBy(value = "queueLock")
+    private int appendPuts(int from, long deadline)
+        throws InterruptedException {
+      int start = from == 0 ? 0 : putEnds[from - 1];
+      for (int index = from; index < putCount; index++) {
+        long pointer = append(putBuffer.array(), start,
+            putEnds[index] - start, deadline);
+        if(pointer < 0) {
+          return index;
+        }
+        putPointers[index] = pointer;
+        start = putEnds[index];
+      }
+      return putCount;
+    }
+
+    /**
+     * Release the slab space of the takes, first copying them to the heap
+     * so that they can still be returned should the commit fail
+     */
+    @GuardedBy(value = "queueLock")
+    private void releaseTakes() {
+      for (int index = 0; index < takeCount; index++) {
+        long pointer = takePointers[index];
+        if(pointer == NO_POINTER) {
+          continue;
+        }
+        ByteBuffer view = slabs[slabIndex(pointer)].buffer.duplicate();
+        view.position(slabOffset(pointer));
+        byte[] record = new byte[view.getInt()];
+        view.get(record);
+        takeRecords[index] = record;
+        takePointers[index] = NO_POINTER;
+        release(pointer);
+      }
+    }
+
+    private void clearTakes() {
+      for (int index = 0; index < takeCount; index++) {
+        takeRecords[index] = null;
+      }
+      takeCount = 0;
+    }
+
+    private Event decode(ByteBuffer view) {
+      int headerCount = view.getInt();
+      Map<String, String> headers = new HashMap<String, String>();
+      for (int index = 0; index < headerCount; index++) {
+        String key = readString(view);
+        headers.put(key, readString(view));
+      }
+      byte[] body = new byte[view.getInt()];
+      view.get(body);
+      return EventBuilder.withBody(body, headers);
+    }
+
+    private String readString(ByteBuffer view) {
+      int length = view.getInt();
+      if(length < 0) {
+        return null;
+      }
+      if(scratch.length < length) {
+        scratch = new byte[Math.max(length, scratch.length * 2)];
+      }
+      view.get(scratch, 0, length);
+      return new String(scratch, 0, length, Charsets.UTF_8);
+    }
+  }
+
+  /**
+   * A direct memory buffer which events are appended to, and how many
+   * of them are still queued or taken by uncommitted transactions
+   */
+  private static class Slab {
+    private final int index;
+    private final ByteBuffer buffer;
+    private int position;
+    private int live;
+
+    Slab(int index, ByteBuffer buffer) {
+      this.index = index;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Growable byte array the puts of a transaction are serialized into
+   */
+  private static class EncodingBuffer {
+    private byte[] buffer = new byte[1024];
+    private int size;
+
+    byte[] array() {
+      return buffer;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void truncate(int size) {
+      this.size = size;
+    }
+
+    void putInt(int value) {
+      ensureCapacity(4);
+      buffer[size++] = (byte) (value >>> 24);
+      buffer[size++] = (byte) (value >>> 16);
+      buffer[size++] = (byte) (value >>> 8);
+      buffer[size++] = (byte) value;
+    }
+
+    void put(byte[] bytes) {
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buffer, size, bytes.length);
+      size += bytes.length;
+    }
+
+    private void ensureCapacity(int bytes) {
+      if(buffer.length - size < bytes) {
+        byte[] grown = new byte[Math.max(buffer.length * 2, size + bytes)];
+        System.arraycopy(buffer, 0, grown, 0, size);
+        buffer = grown;
+      }
+    }
+  }
+
+  // lock to guard the pointers and slabs, which is waited on for space
+  // in the slabs
+  private final Object queueLock;
+
+  // ring of pointers to the queued events, the index of the slab in the
+  // upper and the offset of the event in the lower 32 bits
+  @GuardedBy(value = "queueLock")
+  private long[] pointers;
+  @GuardedBy(value = "queueLock")
+  private int head;
+  @GuardedBy(value = "queueLock")
+  private int size;
+
+  // slabs in use by index, null when the index is free
+  @GuardedBy(value = "queueLock")
+  private Slab[] slabs;
+  @GuardedBy(value = "queueLock")
+  private int slabCount;
+  @GuardedBy(value = "queueLock")
+  private Slab writeSlab;
+  @GuardedBy(value = "queueLock")
+  private final ArrayDeque<ByteBuffer> spareSlabs;
+  // takes whose slab space was released by a commit which then failed,
+  // which are taken again before the queue
+  @GuardedBy(value = "queueLock")
+  private final ArrayDeque<byte[]> returned;
+
+  // as for MemoryChannel, the space remaining in the queue with all
+  // uncommitted takes deducted, and the events which can be taken
+  private Semaphore queueRemaining;
+  private Semaphore queueStored;
+  private volatile int slabSize;
+  // maximum items in a transaction queue
+  private volatile Integer transCapacity;
+  private volatile int keepAlive;
+
+  public OffHeapMemoryChannel() {
+    super();
+    queueLock = new Object();
+    spareSlabs = new ArrayDeque<ByteBuffer>();
+    returned = new ArrayDeque<byte[]>();
+  }
+
+  @Override
+  public void configure(Context context) {
+    Integer capacity = context.getInteger("capacity", defaultCapacity);
+    transCapacity = context.getInteger("transactionCapacity",
+        defaultTransCapacity);
+    Preconditions.checkState(transCapacity <= capacity);
+    keepAlive = context.getInteger("keep-alive", defaultKeepAlive);
+    Integer newSlabSize = context.getInteger("slabSize", defaultSlabSize);
+    Preconditions.checkState(newSlabSize > RECORD_HEADER_SIZE,
+        "slabSize must be larger than " + RECORD_HEADER_SIZE);
+    Long byteCapacity = context.getLong("byteCapacity");
+    if(byteCapacity == null) {
+      byteCapacity = DirectMemoryUtils.getDirectMemorySize() / 100 *
+          defaultByteCapacityPercentage;
+    }
+    Preconditions.checkState(byteCapacity >= newSlabSize, "byteCapacity " +
+        byteCapacity + " must be at least the slabSize " + newSlabSize);
+    long slabLimit = byteCapacity / newSlabSize;
+    Preconditions.checkState(slabLimit <= Integer.MAX_VALUE,
+        "byteCapacity " + byteCapacity + " needs too many slabs of " +
+        newSlabSize + " bytes");
+
+    synchronized(queueLock) {
+      if(pointers != null) {
+        if(capacity != pointers.length || newSlabSize != slabSize ||
+            slabLimit != slabs.length) {
+          LOGGER.warn("The capacity, slabSize and byteCapacity of an " +
+              "off heap memory channel can't be changed once it is " +
+              "configured, keeping the capacity of " + pointers.length +
+              " events and " + slabs.length + " slabs of " + slabSize +
+              " bytes");
+        }
+        return;
+      }
+      pointers = new long[capacity];
+      slabs = new Slab[(int) slabLimit];
+      slabSize = newSlabSize;
+      queueRemaining = new Semaphore(capacity);
+      queueStored = new Semaphore(0);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    synchronized(queueLock) {
+      // queued events are kept should the channel be started again
+      if(writeSlab != null && writeSlab.live == 0) {
+        reclaim(writeSlab);
+        writeSlab = null;
+      }
+      while(!spareSlabs.isEmpty()) {
+        clean(spareSlabs.poll());
+      }
+    }
+    super.stop();
+  }
+
+  /**
+   * @return the slabs holding events
+   */
+  int getSlabCount() {
+    synchronized(queueLock) {
+      return slabCount;
+    }
+  }
+
+  @GuardedBy(value = "queueLock")
+  private long append(byte[] data, int offset, int length, long deadline)
+      throws InterruptedException {
+    int recordSize = RECORD_HEADER_SIZE + length;
+    while(writeSlab == null || slabSize - writeSlab.position < recordSize) {
+      Slab slab = allocate();
+      if(slab != null) {
+        Slab full = writeSlab;
+        writeSlab = slab;
+        if(full != null && full.live == 0) {
+          reclaim(full);
+        }
+        break;
+      }
+      long remaining = deadline - System.nanoTime();
+      if(remaining <= 0) {
+        return -1;
+      }
+      TimeUnit.NANOSECONDS.timedWait(queueLock, remaining);
+    }
+    Slab slab = writeSlab;
+    int position = slab.position;
+    slab.buffer.putInt(position, length);
+    slab.buffer.position(position + RECORD_HEADER_SIZE);
+    slab.buffer.put(data, offset, length);
+    slab.position = position + recordSize;
+    slab.live++;
+    return ((long) slab.index << 32) | position;
+  }
+
+  /**
+   * Release the space of an event which is no longer queued
+   */
+  @GuardedBy(value = "queueLock")
+  private void release(long pointer) {
+    Slab slab = slabs[slabIndex(pointer)];
+    slab.live--;
+    if(slab.live == 0) {
+      if(slab == writeSlab) {
+        // nothing refers to the slab so write it from the start again
+        slab.position = 0;
+        queueLock.notifyAll();
+      } else {
+        reclaim(slab);
+      }
+    }
+  }
+
+  /**
+   * @return a new slab, reusing a spare one, or null if byteCapacity
+   * is used up
+   */
+  @GuardedBy(value = "queueLock")
+  private Slab allocate() {
+    if(slabCount == slabs.length) {
+      return null;
+    }
+    int index = 0;
+    while(slabs[index] != null) {
+      index++;
+    }
+    ByteBuffer buffer = spareSlabs.poll();
+    if(buffer == null) {
+      buffer = DirectMemoryUtils.allocate(slabSize);
+    }
+    Slab slab = new Slab(index, buffer);
+    slabs[index] = slab;
+    slabCount++;
+    return slab;
+  }
+
+  @GuardedBy(value = "queueLock")
+  private void reclaim(Slab slab) {
+    slabs[slab.index] = null;
+    slabCount--;
+    if(spareSlabs.size() < SPARE_SLABS) {
+      slab.buffer.clear();
+      spareSlabs.add(slab.buffer);
+    } else {
+      clean(slab.buffer);
+    }
+    queueLock.notifyAll();
+  }
+
+  private static void clean(ByteBuffer buffer) {
+    try {
+      DirectMemoryUtils.clean(buffer);
+    } catch (Exception e) {
+      LOGGER.warn("Error cleaning up slab, it will be freed when it is " +
+          "garbage collected", e);
+    }
+  }
+
+  @GuardedBy(value = "queueLock")
+  private void addLast(long pointer) {
+    Preconditions.checkState(size < pointers.length, "Queue add failed, " +
+        "this shouldn't be able to happen");
+    pointers[(head + size) % pointers.length] = pointer;
+    size++;
+  }
+
+  @GuardedBy(value = "queueLock")
+  private void addFirst(long pointer) {
+    Preconditions.checkState(size < pointers.length, "Not enough space " +
+        "in off heap memory channel queue to rollback takes. This should " +
+        "never happen, please report");
+    head = (head + pointers.length - 1) % pointers.length;
+    pointers[head] = pointer;
+    size++;
+  }
+
+  @GuardedBy(value = "queueLock")
+  private long removeFirst() {
+    Preconditions.checkState(size > 0, "Queue was empty despite semaphore " +
+        "signalling existence of entry");
+    long pointer = pointers[head];
+    head = (head + 1) % pointers.length;
+    size--;
+    return pointer;
+  }
+
+  private static int slabIndex(long pointer) {
+    return (int) (pointer >>> 32);
+  }
+
+  private static int slabOffset(long pointer) {
+    return (int) pointer;
+  }
+
+  private static void encode(Event event, EncodingBuffer buffer) {
+    Map<String, String> headers = event.getHeaders();
+    if(headers == null) {
+      buffer.putInt(0);
+    } else {
+      buffer.putInt(headers.size());
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        writeString(header.getKey(), buffer);
+        writeString(header.getValue(), buffer);
+      }
+    }
+    byte[] body = event.getBody();
+    if(body == null) {
+      buffer.putInt(0);
+    } else {
+      buffer.putInt(body.length);
+      buffer.put(body);
+    }
+  }
+
+  private static void writeString(String value, EncodingBuffer buffer) {
+    if(value == null) {
+      buffer.putInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(Charsets.UTF_8);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+  }
+
+  @Override
+  protected BasicTransactionSemantics createTransaction() {
+    return new OffHeapTransaction(transCapacity);
+  }
+}
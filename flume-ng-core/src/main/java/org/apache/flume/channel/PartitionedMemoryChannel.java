@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link MemoryChannel} alternative which queues events in several
+ * lanes, each with its own lock, so that threads taking from the channel
+ * don't all contend for one queue. A commit puts its events on one lane,
+ * chosen round robin, or on the lane of the value of their
+ * <tt>partitionHeader</tt> so that events with the same value are queued
+ * in order on the same lane. Each taking thread has a home lane it takes
+ * from, and steals from the other lanes only when its own is empty.
+ * Takes which are rolled back are returned to the head of their lanes.
+ * The capacity is shared by all lanes.
+ *
+ * Besides the capacity, transactionCapacity and keep-alive of
+ * {@link MemoryChannel} it is configured with <tt>lanes</tt>, 4 by
+ * default, which can't be changed once the channel is configured, and
+ * <tt>partitionHeader</tt>, by default none.
+ */
+public class PartitionedMemoryChannel extends BasicChannelSemantics {
+  private static Logger LOGGER =
+      LoggerFactory.getLogger(PartitionedMemoryChannel.class);
+  private static final Integer defaultCapacity = 100;
+  private static final Integer defaultTransCapacity = 100;
+  private static final Integer defaultKeepAlive = 3;
+  private static final Integer defaultLanes = 4;
+
+  public class PartitionedTransaction extends BasicTransactionSemantics {
+    private final int transCapacity;
+    private final List<Event> putList;
+    private final List<Event> takeList;
+    // lane of each take
+    private final int[] takeLanes;
+    // lane of each put while committing
+    private final int[] putLanes;
+
+    public PartitionedTransaction(int transCapacity) {
+      this.transCapacity = transCapacity;
+      putList = new ArrayList<Event>(transCapacity);
+      takeList = new ArrayList<Event>(transCapacity);
+      takeLanes = new int[transCapacity];
+      putLanes = new int[transCapacity];
+    }
+
+    @Override
+    protected void doPut(Event event) {
+      if(putList.size() == transCapacity) {
+        throw new ChannelException("Put queue for PartitionedTransaction of " +
+            "capacity " + transCapacity + " full, consider committing more " +
+            "frequently, increasing capacity or increasing thread count");
+      }
+      putList.add(event);
+    }
+
+    @Override
+    protected Event doTake() throws InterruptedException {
+      if(takeList.size() == transCapacity) {
+        throw new ChannelException("Take list for PartitionedTransaction, " +
+            "capacity " + transCapacity + " full, consider committing more " +
+            "frequently, increasing capacity, or increasing thread count");
+      }
+      if(!queueStored.tryAcquire(keepAlive, TimeUnit.SECONDS)) {
+        return null;
+      }
+      int home = getHomeLane();
+      Event event = null;
+      int lane = home;
+      // the permit guarantees an event is queued on some lane
+      while(event == null) {
+        for (int index = 0; index < lanes.length && event == null; index++) {
+          lane = (home + index) % lanes.length;
+          event = lanes[lane].poll();
+        }
+      }
+      if(lane != home) {
+        steals.incrementAndGet();
+      }
+      takeLanes[takeList.size()] = lane;
+      takeList.add(event);
+      return event;
+    }
+
+    @Override
+    protected void doCommit() throws InterruptedException {
+      int remainingChange = takeList.size() - putList.size();
+      if(remainingChange < 0) {
+        if(!queueRemaining.tryAcquire(-remainingChange, keepAlive, TimeUnit.SECONDS)) {
+          throw new ChannelException("Space for commit to queue couldn't be " +
+              "acquired Sinks are likely not keeping up with sources, or the " +
+              "buffer size is too tight");
+        }
+      }
+      int puts = putList.size();
+      if(puts > 0) {
+        int lane = nextLane.getAndIncrement() & Integer.MAX_VALUE;
+        if(partitionHeader == null) {
+          lanes[lane % lanes.length].addAll(putList);
+        } else {
+          boolean[] used = new boolean[lanes.length];
+          for (int index = 0; index < puts; index++) {
+            putLanes[index] = laneOf(putList.get(index), lane);
+            used[putLanes[index]] = true;
+          }
+          for (int index = 0; index < lanes.length; index++) {
+            if(used[index]) {
+              lanes[index].addAll(putList, putLanes, index);
+            }
+          }
+        }
+      }
+      putList.clear();
+      takeList.clear();
+      queueStored.release(puts);
+      if(remainingChange > 0) {
+        queueRemaining.release(remainingChange);
+      }
+    }
+
+    @Override
+    protected void doRollback() {
+      int takes = takeList.size();
+      for (int index = takes - 1; index >= 0; index--) {
+        lanes[takeLanes[index]].addFirst(takeList.get(index));
+      }
+      putList.clear();
+      takeList.clear();
+      queueStored.release(takes);
+    }
+
+    /**
+     * @return the lane of the value of the partition header of event, or
+     * of roundRobin if it has none
+     */
+    private int laneOf(Event event, int roundRobin) {
+      String value = event.getHeaders() == null ? null :
+        event.getHeaders().get(partitionHeader);
+      if(value == null) {
+        return roundRobin % lanes.length;
+      }
+      return (value.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+  }
+
+  /**
+   * A queue of events guarded by its monitor, which should never be held
+   * through a blocking operation
+   */
+  private static class Lane {
+    private final ArrayDeque<Event> events = new ArrayDeque<Event>();
+
+    synchronized Event poll() {
+      return events.pollFirst();
+    }
+
+    synchronized void addFirst(Event event) {
+      events.addFirst(event);
+    }
+
+    synchronized void addAll(List<Event> puts) {
+      events.addAll(puts);
+    }
+
+    /**
+     * Add the puts whose lane is lane, in order
+     */
+    synchronized void addAll(List<Event> puts, int[] putLanes, int lane) {
+      for (int index = 0; index < puts.size(); index++) {
+        if(putLanes[index] == lane) {
+          events.addLast(puts.get(index));
+        }
+      }
+    }
+
+    synchronized int size() {
+      return events.size();
+    }
+  }
+
+  private Lane[] lanes;
+  private final AtomicInteger nextLane = new AtomicInteger();
+  private final AtomicInteger nextHomeLane = new AtomicInteger();
+  private final ThreadLocal<Integer> homeLane = new ThreadLocal<Integer>();
+  private final AtomicLong steals = new AtomicLong();
+
+  // as for MemoryChannel, the space remaining in all lanes with all
+  // uncommitted takes deducted, and the events which can be taken
+  private Semaphore queueRemaining;
+  private Semaphore queueStored;
+  private int capacity;
+  private volatile String partitionHeader;
+  // maximum items in a transaction queue
+  private volatile Integer transCapacity;
+  private volatile int keepAlive;
+
+  @Override
+  public synchronized void configure(Context context) {
+    int newCapacity = context.getInteger("capacity", defaultCapacity);
+    transCapacity = context.getInteger("transactionCapacity",
+        defaultTransCapacity);
+    Preconditions.checkState(transCapacity <= newCapacity);
+    keepAlive = context.getInteger("keep-alive", defaultKeepAlive);
+    partitionHeader = context.getString("partitionHeader");
+    int laneCount = context.getInteger("lanes", defaultLanes);
+    Preconditions.checkState(laneCount > 0, "lanes must be positive");
+
+    if(lanes == null) {
+      lanes = new Lane[laneCount];
+      for (int index = 0; index < laneCount; index++) {
+        lanes[index] = new Lane();
+      }
+      capacity = newCapacity;
+      queueRemaining = new Semaphore(capacity);
+      queueStored = new Semaphore(0);
+      return;
+    }
+    if(laneCount != lanes.length) {
+      LOGGER.warn("The number of lanes can't be changed once the channel " +
+          "is configured, keeping " + lanes.length);
+    }
+    if(newCapacity > capacity) {
+      queueRemaining.release(newCapacity - capacity);
+      capacity = newCapacity;
+    } else if(newCapacity < capacity) {
+      if(!queueRemaining.tryAcquire(capacity - newCapacity)) {
+        LOGGER.warn("Couldn't acquire permits to downsize the queue, " +
+            "resizing has been aborted");
+      } else {
+        capacity = newCapacity;
+      }
+    }
+  }
+
+  /**
+   * @return the events queued on each lane
+   */
+  int[] getLaneSizes() {
+    int[] sizes = new int[lanes.length];
+    for (int index = 0; index < lanes.length; index++) {
+      sizes[index] = lanes[index].size();
+    }
+    return sizes;
+  }
+
+  /**
+   * @return the takes made from other lanes than the home lane of the
+   * taking thread
+   */
+  long getSteals() {
+    return steals.get();
+  }
+
+  /**
+   * @return the lane the calling thread takes from first, assigned round
+   * robin to the threads as they first take
+   */
+  int getHomeLane() {
+    Integer lane = homeLane.get();
+    if(lane == null) {
+      lane = (nextHomeLane.getAndIncrement() & Integer.MAX_VALUE) %
+          lanes.length;
+      homeLane.set(lane);
+    }
+    return lane;
+  }
+
+  @Override
+  protected BasicTransactionSemantics createTransaction() {
+    return new PartitionedTransaction(transCapacity);
+  }
+}
@@ -0,0 +1,468 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link MemoryChannel} alternative which queues events in a pre-sized
+ * ring of slots rather than a locked deque. A commit claims a range of
+ * sequences for all of its puts at once and publishes them in claim
+ * order, a take claims the next published sequence and a batch take all
+ * the published sequences it has room for, so none of them holds a lock
+ * unless it has to wait for events or space. Takes which are rolled
+ * back are handed out again before the ring, as {@link MemoryChannel}
+ * returns them to the head of its queue.
+ *
+ * It is configured as {@link MemoryChannel} is. The ring is sized to the
+ * first configured capacity rounded up to a power of two, so capacity can
+ * later be changed within that size only.
+ */
+public class RingBufferMemoryChannel extends BasicChannelSemantics {
+  private static Logger LOGGER =
+      LoggerFactory.getLogger(RingBufferMemoryChannel.class);
+  private static final Integer defaultCapacity = 100;
+  private static final Integer defaultTransCapacity = 100;
+  private static final Integer defaultKeepAlive = 3;
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  public class RingBufferTransaction extends BasicTransactionSemantics {
+    private final int transCapacity;
+    private final List<Event> putList;
+    private final List<Event> takeList;
+
+    public RingBufferTransaction(int transCapacity) {
+      this.transCapacity = transCapacity;
+      putList = new ArrayList<Event>(transCapacity);
+      takeList = new ArrayList<Event>(transCapacity);
+    }
+
+    @Override
+    protected void doPut(Event event) {
+      if(putList.size() == transCapacity) {
+        throw new ChannelException("Put queue for RingBufferTransaction of " +
+            "capacity " + transCapacity + " full, consider committing more " +
+            "frequently, increasing capacity or increasing thread count");
+      }
+      putList.add(event);
+    }
+
+    @Override
+    protected void doPutAll(List<Event> events) {
+      if(transCapacity - putList.size() < events.size()) {
+        throw new ChannelException("Put queue for RingBufferTransaction of " +
+            "capacity " + transCapacity + " can't hold " + events.size() +
+            " more events, consider committing more frequently, increasing " +
+            "capacity or increasing thread count");
+      }
+      putList.addAll(events);
+    }
+
+    @Override
+    protected Event doTake() throws InterruptedException {
+      if(takeList.size() == transCapacity) {
+        throw new ChannelException("Take list for RingBufferTransaction, " +
+            "capacity " + transCapacity + " full, consider committing more " +
+            "frequently, increasing capacity, or increasing thread count");
+      }
+      Event event = poll(TimeUnit.SECONDS.toNanos(keepAlive));
+      if(event != null) {
+        takeList.add(event);
+      }
+      return event;
+    }
+
+    @Override
+    protected int doTake(int max, List<Event> events)
+        throws InterruptedException {
+      if(takeList.size() == transCapacity) {
+        throw new ChannelException("Take list for RingBufferTransaction, " +
+            "capacity " + transCapacity + " full, consider committing more " +
+            "frequently, increasing capacity, or increasing thread count");
+      }
+      // take no more than the transaction has room for
+      max = Math.min(max, transCapacity - takeList.size());
+      int size = events.size();
+      int taken = poll(max, events, TimeUnit.SECONDS.toNanos(keepAlive));
+      takeList.addAll(events.subList(size, size + taken));
+      return taken;
+    }
+
+    @Override
+    protected void doCommit() throws InterruptedException {
+      int remainingChange = takeList.size() - putList.size();
+      if(remainingChange < 0) {
+        if(!reserve(-remainingChange, TimeUnit.SECONDS.toNanos(keepAlive))) {
+          throw new ChannelException("Space for commit to queue couldn't be " +
+              "acquired Sinks are likely not keeping up with sources, or the " +
+              "buffer size is too tight");
+        }
+      }
+      if(!putList.isEmpty()) {
+        publish(putList);
+      }
+      putList.clear();
+      takeList.clear();
+      if(remainingChange > 0) {
+        release(remainingChange);
+      }
+    }
+
+    @Override
+    protected void doRollback() {
+      if(!takeList.isEmpty()) {
+        returnTakes(takeList);
+      }
+      putList.clear();
+      takeList.clear();
+    }
+  }
+
+  // events by sequence modulo the length, null once taken
+  private AtomicReferenceArray<Event> slots;
+  private int mask;
+  // next sequence to be claimed by a committing transaction
+  private final AtomicLong claimed;
+  // sequences below this have been written and may be taken
+  private final AtomicLong published;
+  // next sequence to be claimed by a take
+  private final AtomicLong consumed;
+  // capacity less events queued, claimed, returned or taken but not
+  // committed, so a rollback of takes always has room
+  private final AtomicInteger remaining;
+  private volatile int capacity;
+
+  // takes rolled back, which are taken again before the ring
+  private final Object returnedLock;
+  @GuardedBy("returnedLock")
+  private final ArrayDeque<Event> returned;
+  private volatile int returnedCount;
+
+  // only used by threads which have to wait for events or space
+  private final ReentrantLock waitLock;
+  private final Condition notEmpty;
+  private final Condition notFull;
+  private final AtomicInteger waitingTakers;
+  private final AtomicInteger waitingPutters;
+
+  // maximum items in a transaction queue
+  private volatile Integer transCapacity;
+  private volatile int keepAlive;
+
+  public RingBufferMemoryChannel() {
+    super();
+    claimed = new AtomicLong();
+    published = new AtomicLong();
+    consumed = new AtomicLong();
+    remaining = new AtomicInteger();
+    returnedLock = new Object();
+    returned = new ArrayDeque<Event>();
+    waitLock = new ReentrantLock();
+    notEmpty = waitLock.newCondition();
+    notFull = waitLock.newCondition();
+    waitingTakers = new AtomicInteger();
+    waitingPutters = new AtomicInteger();
+  }
+
+  @Override
+  public void configure(Context context) {
+    String strCapacity = context.getString("capacity");
+    Integer capacity = null;
+    if(strCapacity == null) {
+      capacity = defaultCapacity;
+    } else {
+      try {
+        capacity = Integer.parseInt(strCapacity);
+      } catch(NumberFormatException e) {
+        capacity = defaultCapacity;
+      }
+    }
+    String strTransCapacity = context.getString("transactionCapacity");
+    if(strTransCapacity == null) {
+      transCapacity = defaultTransCapacity;
+    } else {
+      try {
+        transCapacity = Integer.parseInt(strTransCapacity);
+      } catch(NumberFormatException e) {
+        transCapacity = defaultTransCapacity;
+      }
+    }
+    Preconditions.checkState(transCapacity <= capacity);
+    Preconditions.checkState(capacity > 0 && capacity <= MAX_CAPACITY,
+        "Capacity must be between 1 and " + MAX_CAPACITY);
+
+    String strKeepAlive = context.getString("keep-alive");
+
+    if (strKeepAlive == null) {
+      keepAlive = defaultKeepAlive;
+    } else {
+      keepAlive = Integer.parseInt(strKeepAlive);
+    }
+
+    if(slots != null) {
+      resize(capacity);
+    } else {
+      int length = Integer.highestOneBit(capacity);
+      if(length < capacity) {
+        length <<= 1;
+      }
+      slots = new AtomicReferenceArray<Event>(length);
+      mask = length - 1;
+      this.capacity = capacity;
+      remaining.set(capacity);
+    }
+  }
+
+  private void resize(int newCapacity) {
+    int change = newCapacity - capacity;
+    if(change == 0) {
+      return;
+    } else if(newCapacity > slots.length()) {
+      LOGGER.warn("Capacity " + newCapacity + " exceeds the ring size " +
+          slots.length() + ", resizing has been aborted");
+    } else if(change < 0) {
+      if(!tryReserve(-change)) {
+        LOGGER.warn("Couldn't acquire permits to downsize the queue, " +
+            "resizing has been aborted");
+      } else {
+        capacity = newCapacity;
+      }
+    } else {
+      capacity = newCapacity;
+      release(change);
+    }
+  }
+
+  /**
+   * Claim count sequences, write events into their slots and publish
+   * them once every earlier claim has been published, so takes never see
+   * a gap. Space for the events must have been reserved.
+   */
+  private void publish(List<Event> events) {
+    int count = events.size();
+    long start = claimed.getAndAdd(count);
+    for (int i = 0; i < count; i++) {
+      int index = (int) ((start + i) & mask);
+      // the take of the previous lap may have claimed but not yet
+      // cleared the slot
+      while(slots.get(index) != null) {
+        Thread.yield();
+      }
+      slots.lazySet(index, events.get(i));
+    }
+    while(published.get() != start) {
+      Thread.yield();
+    }
+    published.set(start + count);
+    if(waitingTakers.get() > 0) {
+      signal(notEmpty);
+    }
+  }
+
+  /**
+   * @return the next event, a returned one first, or null if there is
+   * none
+   */
+  private Event tryTake() {
+    if(returnedCount > 0) {
+      synchronized(returnedLock) {
+        Event event = returned.pollFirst();
+        returnedCount = returned.size();
+        if(event != null) {
+          return event;
+        }
+      }
+    }
+    long sequence;
+    do {
+      sequence = consumed.get();
+      if(sequence >= published.get()) {
+        return null;
+      }
+    } while(!consumed.compareAndSet(sequence, sequence + 1));
+    Event event = slots.getAndSet((int) (sequence & mask), null);
+    Preconditions.checkNotNull(event, "Slot was empty despite sequence " +
+        "signalling existence of entry");
+    return event;
+  }
+
+  /**
+   * Add up to max events to events, returned ones first, claiming all the
+   * published sequences taken with a single CAS.
+   * @return the number of events added
+   */
+  private int tryTake(int max, List<Event> events) {
+    int taken = 0;
+    if(returnedCount > 0) {
+      synchronized(returnedLock) {
+        while(taken < max && !returned.isEmpty()) {
+          events.add(returned.pollFirst());
+          taken++;
+        }
+        returnedCount = returned.size();
+      }
+    }
+    long sequence;
+    int count;
+    do {
+      sequence = consumed.get();
+      count = (int) Math.min(max - taken, published.get() - sequence);
+      if(count <= 0) {
+        return taken;
+      }
+    } while(!consumed.compareAndSet(sequence, sequence + count));
+    for (int i = 0; i < count; i++) {
+      Event event = slots.getAndSet((int) ((sequence + i) & mask), null);
+      Preconditions.checkNotNull(event, "Slot was empty despite sequence " +
+          "signalling existence of entry");
+      events.add(event);
+    }
+    return taken + count;
+  }
+
+  /**
+   * Wait only for the first event, then take whatever else is published.
+   */
+  private int poll(int max, List<Event> events, long nanos)
+      throws InterruptedException {
+    int taken = tryTake(max, events);
+    if(taken > 0) {
+      return taken;
+    }
+    Event event = poll(nanos);
+    if(event == null) {
+      return 0;
+    }
+    events.add(event);
+    return 1 + tryTake(max - 1, events);
+  }
+
+  private Event poll(long nanos) throws InterruptedException {
+    Event event = tryTake();
+    if(event != null) {
+      return event;
+    }
+    waitLock.lock();
+    try {
+      // registered before looking again so a publish either is seen or
+      // signals this thread
+      waitingTakers.incrementAndGet();
+      try {
+        while((event = tryTake()) == null) {
+          if(nanos <= 0) {
+            return null;
+          }
+          nanos = notEmpty.awaitNanos(nanos);
+        }
+        return event;
+      } finally {
+        waitingTakers.decrementAndGet();
+      }
+    } finally {
+      waitLock.unlock();
+    }
+  }
+
+  private void returnTakes(List<Event> takes) {
+    synchronized(returnedLock) {
+      for (int i = takes.size() - 1; i >= 0; i--) {
+        returned.addFirst(takes.get(i));
+      }
+      returnedCount = returned.size();
+    }
+    if(waitingTakers.get() > 0) {
+      signal(notEmpty);
+    }
+  }
+
+  private boolean tryReserve(int permits) {
+    while(true) {
+      int available = remaining.get();
+      if(available < permits) {
+        return false;
+      }
+      if(remaining.compareAndSet(available, available - permits)) {
+        return true;
+      }
+    }
+  }
+
+  private boolean reserve(int permits, long nanos)
+      throws InterruptedException {
+    if(tryReserve(permits)) {
+      return true;
+    }
+    waitLock.lock();
+    try {
+      waitingPutters.incrementAndGet();
+      try {
+        while(!tryReserve(permits)) {
+          if(nanos <= 0) {
+            return false;
+          }
+          nanos = notFull.awaitNanos(nanos);
+        }
+        return true;
+      } finally {
+        waitingPutters.decrementAndGet();
+      }
+    } finally {
+      waitLock.unlock();
+    }
+  }
+
+  private void release(int permits) {
+    remaining.addAndGet(permits);
+    if(waitingPutters.get() > 0) {
+      signal(notFull);
+    }
+  }
+
+  private void signal(Condition condition) {
+    waitLock.lock();
+    try {
+      condition.signalAll();
+    } finally {
+      waitLock.unlock();
+    }
+  }
+
+  @Override
+  protected BasicTransactionSemantics createTransaction() {
+    return new RingBufferTransaction(transCapacity);
+  }
+}
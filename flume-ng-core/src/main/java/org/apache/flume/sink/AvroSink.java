@@ -225,17 +225,13 @@ public class AvroSink extends AbstractSink implements Configurable {
 
       verifyConnection();
 
-      List<Event> batch = Lists.newLinkedList();
+      List<Event> batch = Lists.newArrayListWithCapacity(batchSize);
 
-      for (int i = 0; i < batchSize; i++) {
-        Event event = channel.take();
-
-        if (event == null) {
+      while (batch.size() < batchSize) {
+        if (channel.take(batchSize - batch.size(), batch) == 0) {
           counterGroup.incrementAndGet("batch.underflow");
           break;
         }
-
-        batch.add(event);
       }
 
       if (batch.isEmpty()) {
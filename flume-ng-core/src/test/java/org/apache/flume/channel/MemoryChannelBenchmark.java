@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+
+/**
+ * Compares the throughput of {@link MemoryChannel},
+ * {@link RingBufferMemoryChannel}, {@link OffHeapMemoryChannel} and
+ * {@link PartitionedMemoryChannel} with many sources and sinks committing
+ * batches concurrently, as {@link TestMemoryChannelConcurrency} does. Not
+ * run as part of the unit tests, run it with the test classpath:
+ *
+ * <pre>
+ * java -Dbenchmark.sources=16 -Dbenchmark.sinks=8 \
+ *   -Dbenchmark.batches=20000 -Dbenchmark.batchSize=100 \
+ *   org.apache.flume.channel.MemoryChannelBenchmark
+ * </pre>
+ *
+ * Each channel is run once to warm up before it is measured.
+ */
+public class MemoryChannelBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int sources = Integer.getInteger("benchmark.sources", 16);
+    int sinks = Integer.getInteger("benchmark.sinks", 8);
+    int batches = Integer.getInteger("benchmark.batches", 20000);
+    int batchSize = Integer.getInteger("benchmark.batchSize", 100);
+    int capacity = Integer.getInteger("benchmark.capacity", 10000);
+    Context context = new Context();
+    context.put("capacity", String.valueOf(capacity));
+    context.put("transactionCapacity", String.valueOf(batchSize));
+    context.put("keep-alive", "1");
+    System.out.println("channel eventsPerSecond");
+    for (String type : new String[] { "memory", "ringbuffer", "offheap",
+        "partitioned" }) {
+      run(newChannel(type, context), sources, sinks,
+          Math.max(1, batches / 10), batchSize);
+      long nanos = run(newChannel(type, context), sources, sinks, batches,
+          batchSize);
+      long total = (long) sources * batches * batchSize;
+      System.out.println(type + " " + (total * 1000000000L / nanos));
+    }
+  }
+
+  private static Channel newChannel(String type, Context context) {
+    Channel channel;
+    if(type.equals("memory")) {
+      channel = new MemoryChannel();
+    } else if(type.equals("ringbuffer")) {
+      channel = new RingBufferMemoryChannel();
+    } else if(type.equals("offheap")) {
+      channel = new OffHeapMemoryChannel();
+    } else {
+      channel = new PartitionedMemoryChannel();
+    }
+    Configurables.configure(channel, context);
+    return channel;
+  }
+
+  /**
+   * @return the nanoseconds taken for the sinks to take every event the
+   * sources put, not counting the commit of the last takes
+   */
+  private static long run(final Channel channel, int sources, int sinks,
+      final int batches, final int batchSize) throws Exception {
+    final long total = (long) sources * batches * batchSize;
+    final Event event = EventBuilder.withBody(new byte[100]);
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(sources + sinks);
+    final AtomicLong taken = new AtomicLong();
+    final AtomicLong endNanos = new AtomicLong();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    for (int index = 0; index < sources; index++) {
+      Thread source = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int batch = 0; batch < batches; batch++) {
+              Transaction tx = channel.getTransaction();
+              tx.begin();
+              for (int put = 0; put < batchSize; put++) {
+                channel.put(event);
+              }
+              tx.commit();
+              tx.close();
+            }
+          } catch (Throwable throwable) {
+            error.compareAndSet(null, throwable);
+          } finally {
+            done.countDown();
+          }
+        }
+      };
+      source.setDaemon(true);
+      source.start();
+    }
+    for (int index = 0; index < sinks; index++) {
+      Thread sink = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            while(taken.get() < total && error.get() == null) {
+              Transaction tx = channel.getTransaction();
+              tx.begin();
+              int count = 0;
+              while(count < batchSize && taken.get() < total &&
+                  channel.take() != null) {
+                count++;
+                if(taken.incrementAndGet() == total) {
+                  endNanos.set(System.nanoTime());
+                }
+              }
+              tx.commit();
+              tx.close();
+            }
+          } catch (Throwable throwable) {
+            error.compareAndSet(null, throwable);
+          } finally {
+            done.countDown();
+          }
+        }
+      };
+      sink.setDaemon(true);
+      sink.start();
+    }
+    long startNanos = System.nanoTime();
+    start.countDown();
+    done.await();
+    if(error.get() != null) {
+      throw new RuntimeException("Benchmark failed", error.get());
+    }
+    return endNanos.get() - startNanos;
+  }
+}
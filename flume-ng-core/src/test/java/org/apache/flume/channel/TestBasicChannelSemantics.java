@@ -19,6 +19,8 @@
 
 package org.apache.flume.channel;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Future;
 
 import org.apache.flume.Event;
@@ -806,4 +808,62 @@ public class TestBasicChannelSemantics
         }
       });
   }
+
+  @Test
+  public void testPutAllTakeBatch() {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    channel.putAll(events);
+    transaction.commit();
+    transaction.close();
+
+    transaction = channel.getTransaction();
+    transaction.begin();
+    List<Event> taken = new ArrayList<Event>();
+    Assert.assertEquals(3, channel.take(3, taken));
+    Assert.assertEquals(0, channel.take(0, taken));
+    Assert.assertEquals(events.size() - 3,
+        channel.take(events.size(), taken));
+    Assert.assertEquals(0, channel.take(1, taken));
+    Assert.assertEquals(events, taken);
+    transaction.commit();
+    transaction.close();
+  }
+
+  @Test
+  public void testPutAllTakeBatchIllegalState() throws Exception {
+    testIllegalState(new Runnable() {
+        @Override
+        public void run() {
+          channel.putAll(events);
+        }
+      });
+
+    testIllegalState(new Runnable() {
+        @Override
+        public void run() {
+          channel.take(1, new ArrayList<Event>());
+        }
+      });
+
+    final Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    final List<Event> withNull = new ArrayList<Event>(events);
+    withNull.add(null);
+    testIllegalArgument(new Runnable() {
+        @Override
+        public void run() {
+          channel.putAll(withNull);
+        }
+      });
+
+    testWrongThread(new Runnable() {
+        @Override
+        public void run() {
+          channel.take(1, new ArrayList<Event>());
+        }
+      });
+    transaction.rollback();
+    transaction.close();
+  }
 }
@@ -19,7 +19,9 @@
 
 package org.apache.flume.channel;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.flume.Channel;
@@ -232,4 +234,228 @@ public class TestMemoryChannel {
     tx.commit();
     tx.close();
   }
+
+  @Test
+  public void testByteCapacity() {
+    Context context = new Context();
+    Map<String, String> parms = new HashMap<String, String>();
+    parms.put("capacity", "10");
+    parms.put("transactionCapacity", "5");
+    parms.put("keep-alive", "0");
+    parms.put("byteCapacity", "1000");
+    parms.put("byteCapacityHeaderOverhead", "10");
+    context.putAll(parms);
+    Configurables.configure(channel,  context);
+    MemoryChannel memoryChannel = (MemoryChannel) channel;
+    Assert.assertEquals(1000, memoryChannel.getByteCapacity());
+
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("key", "value");
+    Transaction tx = channel.getTransaction();
+    tx.begin();
+    for(int i = 0; i < 3; i++) {
+      channel.put(EventBuilder.withBody(new byte[300]));
+    }
+    // 82 bytes of body, 8 of header key and value and 10 of overhead
+    channel.put(EventBuilder.withBody(new byte[82], headers));
+    tx.commit();
+    tx.close();
+    Assert.assertEquals(1000, memoryChannel.getByteUsage());
+
+    // the event count is far from the capacity but the bytes are not
+    tx = channel.getTransaction();
+    boolean overflowed = false;
+    try {
+      tx.begin();
+      channel.put(EventBuilder.withBody(new byte[1]));
+      tx.commit();
+    } catch (ChannelException e) {
+      overflowed = true;
+      tx.rollback();
+    } finally {
+      tx.close();
+    }
+    Assert.assertTrue(overflowed);
+    Assert.assertEquals(1000, memoryChannel.getByteUsage());
+
+    // uncommitted takes still use their bytes
+    tx = channel.getTransaction();
+    tx.begin();
+    Assert.assertEquals(300, channel.take().getBody().length);
+    Assert.assertEquals(1000, memoryChannel.getByteUsage());
+    tx.commit();
+    tx.close();
+    Assert.assertEquals(700, memoryChannel.getByteUsage());
+
+    // takes and puts of a commit are netted
+    tx = channel.getTransaction();
+    tx.begin();
+    Assert.assertEquals(300, channel.take().getBody().length);
+    channel.put(EventBuilder.withBody(new byte[600]));
+    tx.commit();
+    tx.close();
+    Assert.assertEquals(1000, memoryChannel.getByteUsage());
+
+    tx = channel.getTransaction();
+    tx.begin();
+    for(int i = 0; i < 3; i++) {
+      Assert.assertNotNull(channel.take());
+    }
+    tx.commit();
+    tx.close();
+    Assert.assertEquals(0, memoryChannel.getByteUsage());
+
+    // header values are counted in UTF-8 bytes, three for the euro sign
+    headers.put("key", "\u20ac");
+    tx = channel.getTransaction();
+    tx.begin();
+    channel.put(EventBuilder.withBody(new byte[0], headers));
+    tx.commit();
+    tx.close();
+    Assert.assertEquals(16, memoryChannel.getByteUsage());
+  }
+
+  @Test
+  public void testPutAllTakeBatch() {
+    Context context = new Context();
+    context.put("capacity", "10");
+    context.put("transactionCapacity", "10");
+    Configurables.configure(channel, context);
+
+    List<Event> events = new ArrayList<Event>();
+    for (int i = 0; i < 5; ++i) {
+      events.add(EventBuilder.withBody(String.valueOf(i).getBytes()));
+    }
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    channel.putAll(events);
+    transaction.commit();
+    transaction.close();
+
+    // a rolled back batch is taken again in order
+    transaction = channel.getTransaction();
+    transaction.begin();
+    List<Event> taken = new ArrayList<Event>();
+    Assert.assertEquals(3, channel.take(3, taken));
+    transaction.rollback();
+    transaction.close();
+
+    transaction = channel.getTransaction();
+    transaction.begin();
+    taken.clear();
+    Assert.assertEquals(3, channel.take(3, taken));
+    Assert.assertEquals(2, channel.take(7, taken));
+    Assert.assertEquals(events, taken);
+    transaction.commit();
+    transaction.close();
+  }
+
+  @Test
+  public void testTakeBatchLargerThanTransactionCapacity() {
+    Context context = new Context();
+    context.put("capacity", "10");
+    context.put("transactionCapacity", "4");
+    Configurables.configure(channel, context);
+
+    List<Event> events = new ArrayList<Event>();
+    for (int i = 0; i < 6; ++i) {
+      events.add(EventBuilder.withBody(String.valueOf(i).getBytes()));
+    }
+    for (int i = 0; i < 6; i += 3) {
+      Transaction transaction = channel.getTransaction();
+      transaction.begin();
+      channel.putAll(events.subList(i, i + 3));
+      transaction.commit();
+      transaction.close();
+    }
+
+    // max is capped by the room left in the transaction
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    List<Event> taken = new ArrayList<Event>();
+    Assert.assertEquals(4, channel.take(100, taken));
+    try {
+      channel.take(100, taken);
+      Assert.fail();
+    } catch (ChannelException e) {
+      // the transaction is full
+    }
+    transaction.commit();
+    transaction.close();
+
+    // fewer events than max are taken without error
+    transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals(2, channel.take(100, taken));
+    Assert.assertEquals(events, taken);
+    transaction.commit();
+    transaction.close();
+  }
+
+  @Test(expected=ChannelException.class)
+  public void testPutAllTransactionCapacityOverload() {
+    Context context = new Context();
+    context.put("capacity", "10");
+    context.put("transactionCapacity", "2");
+    Configurables.configure(channel, context);
+
+    List<Event> events = new ArrayList<Event>();
+    for (int i = 0; i < 3; ++i) {
+      events.add(EventBuilder.withBody(String.valueOf(i).getBytes()));
+    }
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    channel.putAll(events);
+  }
+
+  @Test
+  public void testTransactionReuse() throws Exception {
+    Context context = new Context();
+    context.put("capacity", "10");
+    context.put("transactionCapacity", "5");
+    Configurables.configure(channel, context);
+
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    channel.put(EventBuilder.withBody("a".getBytes()));
+    transaction.commit();
+    transaction.close();
+
+    // the closed transaction of the thread is reset and used again
+    Transaction reused = channel.getTransaction();
+    Assert.assertSame(transaction, reused);
+    reused.begin();
+    Assert.assertEquals("a", new String(channel.take().getBody()));
+    Assert.assertNull(channel.take());
+    reused.rollback();
+    reused.close();
+
+    // other threads have their own
+    final Transaction[] other = new Transaction[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        other[0] = channel.getTransaction();
+      }
+    };
+    thread.start();
+    thread.join();
+    Assert.assertNotSame(transaction, other[0]);
+
+    // a reused transaction has the transactionCapacity of the channel
+    context.put("transactionCapacity", "1");
+    Configurables.configure(channel, context);
+    reused = channel.getTransaction();
+    Assert.assertSame(transaction, reused);
+    reused.begin();
+    Assert.assertNotNull(channel.take());
+    try {
+      channel.take();
+      Assert.fail();
+    } catch (ChannelException e) {
+      // expected
+    }
+    reused.rollback();
+    reused.close();
+  }
 }
@@ -45,9 +45,16 @@ public class TestMemoryChannelConcurrency {
   public void setUp() {
   }
 
+  /**
+   * @return a new, unconfigured channel of the implementation under test
+   */
+  protected Channel createChannel() {
+    return new MemoryChannel();
+  }
+
   @Test
   public void testTransactionConcurrency() throws InterruptedException {
-    final Channel channel = new MemoryChannel();
+    final Channel channel = createChannel();
     barrier = new CyclicBarrier(2);
 
     Configurables.configure(channel, new Context());
@@ -130,7 +137,7 @@ public class TestMemoryChannelConcurrency {
    */
   @Test
   public void testManyThreads() throws InterruptedException {
-    final Channel channel = new MemoryChannel();
+    final Channel channel = createChannel();
     Context context = new Context();
     context.put("keep-alive", "1");
     context.put("capacity", "5000"); // theoretical maximum of 100 threads * 10 * 5
@@ -211,7 +218,7 @@ public class TestMemoryChannelConcurrency {
 
   @Test
   public void testConcurrentSinksAndSources() throws InterruptedException {
-    final Channel channel = new MemoryChannel();
+    final Channel channel = createChannel();
     Context context = new Context();
     context.put("keep-alive", "1");
     context.put("capacity", "100"); // theoretical maximum of 100 threads * 10 * 5
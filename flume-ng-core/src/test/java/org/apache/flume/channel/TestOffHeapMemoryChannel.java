@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestOffHeapMemoryChannel {
+
+  private OffHeapMemoryChannel channel;
+
+  @Before
+  public void setUp() {
+    channel = new OffHeapMemoryChannel();
+    Context context = new Context();
+    context.put("capacity", "100");
+    context.put("transactionCapacity", "10");
+    context.put("keep-alive", "0");
+    // events of a 20 byte body and no headers take 32 bytes, 4 a slab
+    context.put("slabSize", "128");
+    context.put("byteCapacity", "256");
+    Configurables.configure(channel, context);
+    channel.start();
+  }
+
+  @After
+  public void tearDown() {
+    channel.stop();
+  }
+
+  @Test
+  public void testPutTake() {
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("key", "value €");
+    headers.put("null", null);
+    Event event = EventBuilder.withBody("test event".getBytes(), headers);
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    channel.put(event);
+    channel.put(EventBuilder.withBody(new byte[0]));
+    transaction.commit();
+    transaction.close();
+
+    transaction = channel.getTransaction();
+    transaction.begin();
+    Event taken = channel.take();
+    Assert.assertEquals(headers, taken.getHeaders());
+    Assert.assertEquals("test event", new String(taken.getBody()));
+    Assert.assertEquals(0, channel.take().getBody().length);
+    Assert.assertNull(channel.take());
+    transaction.commit();
+    transaction.close();
+  }
+
+  @Test
+  public void testRollbackTakes() {
+    put(0, 3);
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals(0, channel.take().getBody()[0]);
+    Assert.assertEquals(1, channel.take().getBody()[0]);
+    transaction.rollback();
+    transaction.close();
+    Assert.assertArrayEquals(new int[] { 0, 1, 2 }, take(10));
+  }
+
+  @Test
+  public void testSlabsReclaimed() {
+    // fill both slabs
+    put(0, 4);
+    put(4, 4);
+    Assert.assertEquals(2, channel.getSlabCount());
+    try {
+      put(8, 1);
+      Assert.fail();
+    } catch (ChannelException e) {
+      // expected
+    }
+
+    // a slab is reclaimed once the takes of all of its events commit
+    Assert.assertArrayEquals(new int[] { 0, 1, 2 }, take(3));
+    Assert.assertEquals(2, channel.getSlabCount());
+    Assert.assertArrayEquals(new int[] { 3 }, take(1));
+    Assert.assertEquals(1, channel.getSlabCount());
+    put(8, 4);
+    Assert.assertEquals(2, channel.getSlabCount());
+    Assert.assertArrayEquals(new int[] { 4, 5, 6, 7, 8, 9, 10, 11 },
+        take(10));
+
+    // the write slab is written from the start once it is empty
+    Assert.assertEquals(1, channel.getSlabCount());
+    put(12, 4);
+    Assert.assertEquals(1, channel.getSlabCount());
+    Assert.assertArrayEquals(new int[] { 12, 13, 14, 15 }, take(10));
+  }
+
+  @Test
+  public void testCommitReleasesOwnTakes() {
+    put(0, 8);
+    // the puts only fit in the slab freed by the takes
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    for (int index = 0; index < 4; index++) {
+      Assert.assertEquals(index, channel.take().getBody()[0]);
+    }
+    for (int index = 8; index < 12; index++) {
+      byte[] body = new byte[20];
+      body[0] = (byte) index;
+      channel.put(EventBuilder.withBody(body));
+    }
+    transaction.commit();
+    transaction.close();
+    Assert.assertArrayEquals(new int[] { 4, 5, 6, 7, 8, 9, 10, 11 },
+        take(10));
+  }
+
+  @Test
+  public void testRollbackReleasedTakes() {
+    put(0, 8);
+    // a single take frees no slab, so the commit fails after releasing it
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals(0, channel.take().getBody()[0]);
+    channel.put(EventBuilder.withBody(new byte[20]));
+    channel.put(EventBuilder.withBody(new byte[20]));
+    try {
+      transaction.commit();
+      Assert.fail();
+    } catch (ChannelException e) {
+      transaction.rollback();
+    }
+    transaction.close();
+    Assert.assertArrayEquals(new int[] { 0, 1, 2, 3, 4, 5, 6, 7 },
+        take(10));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testByteCapacitySmallerThanSlab() {
+    Context context = new Context();
+    context.put("slabSize", "128");
+    context.put("byteCapacity", "100");
+    Configurables.configure(new OffHeapMemoryChannel(), context);
+  }
+
+  @Test
+  public void testEventLargerThanSlab() {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    try {
+      channel.put(EventBuilder.withBody(new byte[128]));
+      Assert.fail();
+    } catch (ChannelException e) {
+      // expected
+    }
+    channel.put(EventBuilder.withBody(new byte[100]));
+    transaction.commit();
+    transaction.close();
+    Assert.assertEquals(1, take(10).length);
+  }
+
+  private void put(int first, int count) {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    try {
+      for (int index = first; index < first + count; index++) {
+        byte[] body = new byte[20];
+        body[0] = (byte) index;
+        channel.put(EventBuilder.withBody(body));
+      }
+      transaction.commit();
+    } catch (ChannelException e) {
+      transaction.rollback();
+      throw e;
+    } finally {
+      transaction.close();
+    }
+  }
+
+  private int[] take(int max) {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    int[] taken = new int[max];
+    int count = 0;
+    Event event;
+    while(count < max && (event = channel.take()) != null) {
+      taken[count++] = event.getBody()[0];
+    }
+    transaction.commit();
+    transaction.close();
+    int[] result = new int[count];
+    System.arraycopy(taken, 0, result, 0, count);
+    return result;
+  }
+}
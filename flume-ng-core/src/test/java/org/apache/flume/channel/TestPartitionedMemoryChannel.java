@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPartitionedMemoryChannel {
+
+  private PartitionedMemoryChannel channel;
+  private Context context;
+
+  @Before
+  public void setUp() {
+    channel = new PartitionedMemoryChannel();
+    context = new Context();
+    context.put("capacity", "20");
+    context.put("transactionCapacity", "20");
+    context.put("keep-alive", "0");
+    context.put("lanes", "2");
+  }
+
+  @Test
+  public void testRoundRobin() {
+    Configurables.configure(channel, context);
+    put(null, "a", "b");
+    put(null, "c");
+    Assert.assertArrayEquals(new int[] { 2, 1 }, channel.getLaneSizes());
+
+    // the home lane is taken from first, then the other lane is stolen from
+    Assert.assertEquals(0, channel.getHomeLane());
+    Assert.assertArrayEquals(new String[] { "a", "b", "c" }, take(10));
+    Assert.assertEquals(1, channel.getSteals());
+  }
+
+  @Test
+  public void testPartitionHeader() {
+    context.put("partitionHeader", "key");
+    Configurables.configure(channel, context);
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    for (int index = 0; index < 6; index++) {
+      channel.put(event(index % 2 == 0 ? "even" : "odd",
+          String.valueOf(index)));
+    }
+    transaction.commit();
+    transaction.close();
+    int[] sizes = channel.getLaneSizes();
+    Assert.assertEquals(3, sizes[0]);
+    Assert.assertEquals(3, sizes[1]);
+
+    // the events of each key are queued in order on one lane
+    String[] taken = take(10);
+    Assert.assertEquals(6, taken.length);
+    int lane = ("even".hashCode() & Integer.MAX_VALUE) % 2;
+    String[] expected = lane == 0 ? new String[] { "0", "2", "4", "1", "3",
+        "5" } : new String[] { "1", "3", "5", "0", "2", "4" };
+    Assert.assertArrayEquals(expected, taken);
+  }
+
+  @Test
+  public void testRollbackToLanes() {
+    Configurables.configure(channel, context);
+    put(null, "a", "b");
+    put(null, "c");
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals("a", new String(channel.take().getBody()));
+    Assert.assertEquals("b", new String(channel.take().getBody()));
+    Assert.assertEquals("c", new String(channel.take().getBody()));
+    transaction.rollback();
+    transaction.close();
+    Assert.assertArrayEquals(new int[] { 2, 1 }, channel.getLaneSizes());
+    Assert.assertArrayEquals(new String[] { "a", "b", "c" }, take(10));
+  }
+
+  @Test
+  public void testGlobalCapacity() {
+    context.put("capacity", "3");
+    context.put("transactionCapacity", "3");
+    Configurables.configure(channel, context);
+    put(null, "a", "b");
+    put(null, "c");
+    boolean overflowed = false;
+    try {
+      put(null, "d");
+    } catch (Exception e) {
+      overflowed = true;
+    }
+    Assert.assertTrue(overflowed);
+    Assert.assertEquals(3, take(3).length);
+  }
+
+  private Event event(String key, String body) {
+    Map<String, String> headers = new HashMap<String, String>();
+    if(key != null) {
+      headers.put("key", key);
+    }
+    return EventBuilder.withBody(body.getBytes(), headers);
+  }
+
+  private void put(String key, String... bodies) {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    try {
+      for (String body : bodies) {
+        channel.put(event(key, body));
+      }
+      transaction.commit();
+    } catch (RuntimeException e) {
+      transaction.rollback();
+      throw e;
+    } finally {
+      transaction.close();
+    }
+  }
+
+  private String[] take(int max) {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    String[] bodies = new String[max];
+    int count = 0;
+    Event event;
+    while(count < max && (event = channel.take()) != null) {
+      bodies[count++] = new String(event.getBody());
+    }
+    transaction.commit();
+    transaction.close();
+    String[] taken = new String[count];
+    System.arraycopy(bodies, 0, taken, 0, count);
+    return taken;
+  }
+}
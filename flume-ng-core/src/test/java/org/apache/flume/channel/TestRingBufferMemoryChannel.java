@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.flume.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Transaction;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRingBufferMemoryChannel {
+
+  private Channel channel;
+
+  @Before
+  public void setUp() {
+    channel = new RingBufferMemoryChannel();
+    Context context = new Context();
+    context.put("capacity", "5");
+    context.put("transactionCapacity", "5");
+    context.put("keep-alive", "0");
+    Configurables.configure(channel, context);
+  }
+
+  @Test
+  public void testRollbackTakes() {
+    put("a", "b", "c");
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals("a", new String(channel.take().getBody()));
+    Assert.assertEquals("b", new String(channel.take().getBody()));
+    transaction.rollback();
+    transaction.close();
+
+    // rolled back takes are taken again first, in order
+    put("d");
+    Assert.assertArrayEquals(new String[] { "a", "b", "c", "d" }, take(5));
+  }
+
+  @Test
+  public void testWrapAround() {
+    for (int lap = 0; lap < 10; lap++) {
+      put("a" + lap, "b" + lap, "c" + lap);
+      Assert.assertArrayEquals(new String[] { "a" + lap, "b" + lap,
+          "c" + lap }, take(5));
+    }
+  }
+
+  @Test
+  public void testCapacity() {
+    put("a", "b", "c", "d", "e");
+    try {
+      put("overflow");
+      Assert.fail();
+    } catch (ChannelException e) {
+      // expected
+    }
+
+    // rolled back takes keep their space
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    Assert.assertEquals("a", new String(channel.take().getBody()));
+    transaction.rollback();
+    transaction.close();
+    try {
+      put("overflow");
+      Assert.fail();
+    } catch (ChannelException e) {
+      // expected
+    }
+    Assert.assertArrayEquals(new String[] { "a" }, take(1));
+    put("f");
+
+    // the ring of 8 slots can hold a larger capacity
+    Context context = new Context();
+    context.put("capacity", "8");
+    context.put("transactionCapacity", "5");
+    context.put("keep-alive", "0");
+    Configurables.configure(channel, context);
+    put("g", "h", "i");
+    Assert.assertArrayEquals(new String[] { "b", "c", "d", "e", "f" },
+        take(5));
+    Assert.assertArrayEquals(new String[] { "g", "h", "i" }, take(5));
+  }
+
+  @Test
+  public void testPutAllTakeBatch() {
+    List<Event> events = new ArrayList<Event>();
+    for (String body : new String[] { "a", "b", "c", "d" }) {
+      events.add(EventBuilder.withBody(body.getBytes()));
+    }
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    channel.putAll(events);
+    transaction.commit();
+    transaction.close();
+
+    // a rolled back batch is taken again in order, ahead of the ring
+    transaction = channel.getTransaction();
+    transaction.begin();
+    List<Event> taken = new ArrayList<Event>();
+    Assert.assertEquals(3, channel.take(3, taken));
+    transaction.rollback();
+    transaction.close();
+
+    put("e");
+    transaction = channel.getTransaction();
+    transaction.begin();
+    taken.clear();
+    Assert.assertEquals(2, channel.take(2, taken));
+    Assert.assertEquals(3, channel.take(10, taken));
+    transaction.commit();
+    transaction.close();
+    String[] bodies = new String[taken.size()];
+    for (int i = 0; i < bodies.length; i++) {
+      bodies[i] = new String(taken.get(i).getBody());
+    }
+    Assert.assertArrayEquals(new String[] { "a", "b", "c", "d", "e" },
+        bodies);
+  }
+
+  private void put(String... bodies) {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    try {
+      for (String body : bodies) {
+        channel.put(EventBuilder.withBody(body.getBytes()));
+      }
+      transaction.commit();
+    } catch (ChannelException e) {
+      transaction.rollback();
+      throw e;
+    } finally {
+      transaction.close();
+    }
+  }
+
+  private String[] take(int max) {
+    Transaction transaction = channel.getTransaction();
+    transaction.begin();
+    String[] bodies = new String[max];
+    int count = 0;
+    Event event;
+    while(count < max && (event = channel.take()) != null) {
+      bodies[count++] = new String(event.getBody());
+    }
+    transaction.commit();
+    transaction.close();
+    String[] taken = new String[count];
+    System.arraycopy(bodies, 0, taken, 0, count);
+    return taken;
+  }
+}
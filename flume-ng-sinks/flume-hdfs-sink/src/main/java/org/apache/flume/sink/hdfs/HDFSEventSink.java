@@ -391,48 +391,53 @@ public class HDFSEventSink extends AbstractSink implements Configurable {
     List<BucketWriter> writers = Lists.newArrayList();
     transaction.begin();
     try {
-      Event event = null;
-      for (int txnEventCount = 0; txnEventCount < txnEventMax; txnEventCount++) {
-        event = channel.take();
-        if (event == null) {
+      List<Event> events = Lists.newArrayList();
+      int taken = 0;
+      for (int txnEventCount = 0; txnEventCount < txnEventMax;
+          txnEventCount += taken) {
+        events.clear();
+        taken = channel.take(txnEventMax - txnEventCount, events);
+        if (taken == 0) {
           break;
         }
 
-        // reconstruct the path name by substituting place holders
-        String realPath = BucketPath.escapeString(path, event.getHeaders(),
-            needRounding, roundUnit, roundValue);
-        BucketWriter bucketWriter = sfWriters.get(realPath);
+        for (Event event : events) {
+          // reconstruct the path name by substituting place holders
+          String realPath = BucketPath.escapeString(path, event.getHeaders(),
+              needRounding, roundUnit, roundValue);
+          BucketWriter bucketWriter = sfWriters.get(realPath);
 
-        // we haven't seen this file yet, so open it and cache the handle
-        if (bucketWriter == null) {
+          // we haven't seen this file yet, so open it and cache the handle
+          if (bucketWriter == null) {
 
-          HDFSWriter hdfsWriter = writerFactory.getWriter(fileType);
-          FlumeFormatter formatter = HDFSFormatterFactory
-              .getFormatter(writeFormat);
+            HDFSWriter hdfsWriter = writerFactory.getWriter(fileType);
+            FlumeFormatter formatter = HDFSFormatterFactory
+                .getFormatter(writeFormat);
 
-          bucketWriter = new BucketWriter(rollInterval, rollSize, rollCount,
-              batchSize, context, realPath, codeC, compType, hdfsWriter,
-              formatter);
+            bucketWriter = new BucketWriter(rollInterval, rollSize, rollCount,
+                batchSize, context, realPath, codeC, compType, hdfsWriter,
+                formatter);
 
-          sfWriters.put(realPath, bucketWriter);
-        }
-
-        // track the buckets getting written in this transaction
-        if (!writers.contains(bucketWriter)) {
-          writers.add(bucketWriter);
-        }
+            sfWriters.put(realPath, bucketWriter);
+          }
 
-        // Write the data to HDFS
-        final BucketWriter callableWriter = bucketWriter;
-        final Event callableEvent = event;
-        callWithTimeout(executor, callTimeout,
-            new ProxyCallable<Void>(proxyTicket) {
-          @Override
-          public Void doCall() throws Exception {
-            callableWriter.append(callableEvent);
-            return null;
+          // track the buckets getting written in this transaction
+          if (!writers.contains(bucketWriter)) {
+            writers.add(bucketWriter);
           }
-        });
+
+          // Write the data to HDFS
+          final BucketWriter callableWriter = bucketWriter;
+          final Event callableEvent = event;
+          callWithTimeout(executor, callTimeout,
+              new ProxyCallable<Void>(proxyTicket) {
+            @Override
+            public Void doCall() throws Exception {
+              callableWriter.append(callableEvent);
+              return null;
+            }
+          });
+        }
       }
 
       // flush all pending buckets before committing the transaction
@@ -452,7 +457,7 @@ public class HDFSEventSink extends AbstractSink implements Configurable {
       }
 
       transaction.commit();
-      if(event == null) {
+      if(taken == 0) {
         return Status.BACKOFF;
       }
       return Status.READY;
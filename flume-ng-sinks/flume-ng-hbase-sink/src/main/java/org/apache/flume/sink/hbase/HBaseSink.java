@@ -19,6 +19,7 @@
 package org.apache.flume.sink.hbase;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -187,14 +188,17 @@ public class HBaseSink extends AbstractSink implements Configurable {
     Transaction txn = channel.getTransaction();
     List<Row> actions = new LinkedList<Row>();
     List<Increment> incs = new LinkedList<Increment>();
+    List<Event> events = new ArrayList<Event>();
     txn.begin();
-    for(long i = 0; i < batchSize; i++) {
-      Event event = channel.take();
-      if(event == null){
+    for(long i = 0; i < batchSize; i += events.size()) {
+      events.clear();
+      if(channel.take((int) Math.min(batchSize - i, Integer.MAX_VALUE),
+          events) == 0){
         status = Status.BACKOFF;
         counterGroup.incrementAndGet("channel.underflow");
         break;
-      } else {
+      }
+      for(Event event : events) {
         serializer.initialize(event, columnFamily);
         actions.addAll(serializer.getActions());
         incs.addAll(serializer.getIncrements());